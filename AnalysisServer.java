@@ -0,0 +1,540 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  A small local HTTP service that analyses positions.
+ *  GET /analyze with either moves=D3,PD2:0,... (played from an empty board)
+ *  or board=R:,,RY,Y,,, (see PositionCodec), plus optional w (width for
+ *  moves, default 7), n (win length, default 4) and budget (search time in
+ *  ms, at least 1). Boards are at most 64 columns wide. Answers with JSON
+ *  holding the legal moves, who has connected and a suggested move.
+ *  Identical requests that arrive while one is being worked on share its
+ *  result and finished results are kept in an LRU cache. Only as many
+ *  requests as the search threads and their queue can take wait for an
+ *  answer; the rest get 503 at once, and so do requests that find even the
+ *  bounded queue of the HTTP threads full. Like GameServer it turns on
+ *  sun.net.httpserver.nodelay unless it is set.
+ *  Use with the command:
+ *      java AnalysisServer port [searchThreads]
+ *  or with no arguments to run its checks.
+ *  @author Adam David
+ */
+public class AnalysisServer {
+
+	/**
+	 * search time used when a request does not give one.
+	 */
+	private static final long DEFAULT_BUDGET_MILLIS = 200;
+
+	/**
+	 * largest search time a request may ask for.
+	 */
+	private static final long MAX_BUDGET_MILLIS = 5000;
+
+	/**
+	 * widest board a request may ask about.
+	 */
+	private static final int MAX_WIDTH = 64;
+
+	/**
+	 * depth limit of every search, the budget is what normally stops it.
+	 */
+	private static final int MAX_DEPTH = 32;
+
+	/**
+	 * extra time a request waits for its result on top of the search budget.
+	 */
+	private static final long WAIT_SLACK_MILLIS = 2000;
+
+	/**
+	 * HTTP threads kept free of waiting on searches, to answer 503s and cached results.
+	 */
+	private static final int SPARE_HTTP_THREADS = 2;
+
+	/**
+	 * requests that may wait for an HTTP thread.
+	 */
+	private static final int HTTP_QUEUE_SIZE = 256;
+
+	/**
+	 * set while the thread that accepts requests has to answer one itself
+	 * because the HTTP queue is full.
+	 */
+	private static final ThreadLocal<Boolean> OVERFLOWING = ThreadLocal.withInitial(() -> Boolean.FALSE);
+
+	/**
+	 * the underlying JDK server.
+	 */
+	private final HttpServer server;
+
+	/**
+	 * threads that read requests and write responses.
+	 */
+	private final ThreadPoolExecutor httpPool;
+
+	/**
+	 * one permit for every request allowed to wait for a search.
+	 */
+	private final Semaphore admitted;
+
+	/**
+	 * bounded pool that runs searches.
+	 */
+	private final ThreadPoolExecutor searchPool;
+
+	/**
+	 * one searcher per search thread, so tables are reused between requests.
+	 */
+	private final ThreadLocal<Searcher> searchers = ThreadLocal.withInitial(Searcher::new);
+
+	/**
+	 * results being worked on, by request key.
+	 */
+	private final Map<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+
+	/**
+	 * finished results, least recently used first.
+	 */
+	private final Map<String, String> cache;
+
+	/**
+	 * searches started.
+	 */
+	private final AtomicLong searches = new AtomicLong();
+
+	/**
+	 * a constructer for a server on the loopback address.
+	 * @param port port to listen on, 0 picks a free one
+	 * @param searchThreads number of searches that run at once
+	 * @param queueSize number of searches that may wait for a thread
+	 * @param cacheSize number of finished results to keep
+	 * @throws IOException if the port cannot be opened
+	 */
+	public AnalysisServer(int port, int searchThreads, int queueSize, int cacheSize) throws IOException {
+		//the JDK server writes headers and body separately, which Nagle holds back for a delayed ACK
+		if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		}
+		this.cache = Collections.synchronizedMap(new LinkedHashMap<String, String>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+				return size() > cacheSize;
+			}
+		});
+		this.searchPool = new ThreadPoolExecutor(searchThreads, searchThreads, 0, TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<Runnable>(queueSize), new ThreadPoolExecutor.AbortPolicy());
+		this.admitted = new Semaphore(searchThreads + queueSize);
+		int httpThreads = searchThreads + queueSize + SPARE_HTTP_THREADS;
+		this.httpPool = new ThreadPoolExecutor(httpThreads, httpThreads, 0, TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<Runnable>(HTTP_QUEUE_SIZE), AnalysisServer::overflow);
+		this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 128);
+		this.server.createContext("/analyze", this::handle);
+		this.server.setExecutor(this.httpPool);
+	}
+
+	/**
+	 * Starts answering requests.
+	 */
+	public void start() {
+		this.server.start();
+	}
+
+	/**
+	 * Stops answering requests and shuts the pools down.
+	 */
+	public void stop() {
+		this.server.stop(0);
+		this.httpPool.shutdownNow();
+		this.searchPool.shutdownNow();
+	}
+
+	/**
+	 * getter for the port.
+	 * @return the port the server listens on
+	 */
+	public int port() {
+		return this.server.getAddress().getPort();
+	}
+
+	/**
+	 * Handles a request the HTTP queue has no room for: it runs on the
+	 * accepting thread, which only answers from the cache or with 503.
+	 * @param task the request
+	 * @param pool the HTTP pool
+	 */
+	private static void overflow(Runnable task, ThreadPoolExecutor pool) {
+		if (pool.isShutdown()) {
+			throw new RejectedExecutionException("Server is shutting down");
+		}
+		OVERFLOWING.set(Boolean.TRUE);
+		try {
+			task.run();
+		}
+		finally {
+			OVERFLOWING.remove();
+		}
+	}
+
+	/**
+	 * getter for the number of searches.
+	 * @return searches started, not counting requests answered from the cache or a shared result
+	 */
+	long searches() {
+		return this.searches.get();
+	}
+
+	/**
+	 * Answers one request.
+	 * @param exchange the request and response
+	 * @throws IOException if the response cannot be written
+	 */
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			if (!"GET".equals(exchange.getRequestMethod())) {
+				send(exchange, 405, error("Only GET is supported"));
+				return;
+			}
+			Map<String, String> params = query(exchange.getRequestURI().getRawQuery());
+			long budget = Math.min(MAX_BUDGET_MILLIS,
+				Long.parseLong(params.getOrDefault("budget", String.valueOf(DEFAULT_BUDGET_MILLIS))));
+			if (budget < 1) {
+				throw new IllegalArgumentException("Budget must be at least 1 ms");
+			}
+			PowerConnectFour game = position(params);
+			String key = PositionCodec.toText(game) + "|" + game.winLength() + "|" + budget;
+
+			String cached = this.cache.get(key);
+			if (cached != null) {
+				send(exchange, 200, cached);
+				return;
+			}
+			if (OVERFLOWING.get() || !this.admitted.tryAcquire()) {
+				throw new RejectedExecutionException("Too many analyses waiting");
+			}
+			String json;
+			try {
+				json = submit(key, game, budget).get(budget + WAIT_SLACK_MILLIS, TimeUnit.MILLISECONDS);
+			}
+			finally {
+				this.admitted.release();
+			}
+			send(exchange, 200, json);
+		}
+		catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+			send(exchange, 400, error(e.getMessage()));
+		}
+		catch (RejectedExecutionException e) {
+			exchange.getResponseHeaders().set("Retry-After", "1");
+			send(exchange, 503, error("Too many analyses queued, try again"));
+		}
+		catch (TimeoutException e) {
+			send(exchange, 504, error("Analysis took too long"));
+		}
+		catch (ExecutionException e) {
+			send(exchange, 500, error(String.valueOf(e.getCause())));
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			send(exchange, 503, error("Server is shutting down"));
+		}
+		finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Gets the result of a request, joining one already being worked on.
+	 * @param key request key
+	 * @param game position to analyse
+	 * @param budget search time in milliseconds
+	 * @return the future result
+	 */
+	private CompletableFuture<String> submit(String key, PowerConnectFour game, long budget) {
+		CompletableFuture<String> fresh = new CompletableFuture<>();
+		CompletableFuture<String> existing = this.inFlight.putIfAbsent(key, fresh);
+		if (existing != null) {
+			return existing;
+		}
+		try {
+			this.searchPool.execute(() -> {
+				try {
+					this.searches.incrementAndGet();
+					String json = analyze(game, budget);
+					this.cache.put(key, json);
+					fresh.complete(json);
+				}
+				catch (RuntimeException e) {
+					fresh.completeExceptionally(e);
+				}
+				finally {
+					this.inFlight.remove(key, fresh);
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			//let anyone who joined this key see the rejection too
+			this.inFlight.remove(key, fresh);
+			fresh.completeExceptionally(e);
+			throw e;
+		}
+		return fresh;
+	}
+
+	/**
+	 * Works out the answer for a position.
+	 * @param game position to analyse
+	 * @param budget search time in milliseconds
+	 * @return the answer as JSON
+	 */
+	private String analyze(PowerConnectFour game, long budget) {
+		boolean red = game.hasFourConnected(Token.RED);
+		boolean yellow = game.hasFourConnected(Token.YELLOW);
+		StringBuilder json = new StringBuilder(256);
+		json.append("{\"position\":\"").append(PositionCodec.toText(game)).append('"');
+		json.append(",\"toMove\":\"").append(game.currentPlayer().getSymbol()).append('"');
+		json.append(",\"redConnected\":").append(red);
+		json.append(",\"yellowConnected\":").append(yellow);
+
+		int[] moves = new int[game.maxLegalMoves()];
+		int n = game.legalMoves(moves);
+		json.append(",\"legalMoves\":[");
+		for (int i = 0; i < n; ++i) {
+			json.append(i == 0 ? "\"" : ",\"").append(Move.toString(moves[i])).append('"');
+		}
+		json.append(']');
+
+		if (red || yellow) {
+			json.append(",\"bestMove\":null");
+		}
+		else {
+			Searcher.Result result = this.searchers.get().search(game, budget, MAX_DEPTH);
+			json.append(",\"bestMove\":\"").append(Move.toString(result.bestMove())).append('"');
+			json.append(",\"score\":").append(result.score());
+			json.append(",\"depth\":").append(result.depth());
+			json.append(",\"nodes\":").append(result.nodes());
+		}
+		return json.append('}').toString();
+	}
+
+	/**
+	 * Builds the position a request asks about.
+	 * @param params query parameters
+	 * @return the position
+	 */
+	private static PowerConnectFour position(Map<String, String> params) {
+		int winLength = Integer.parseInt(params.getOrDefault("n", String.valueOf(PowerConnectFour.DEFAULT_WIN_LENGTH)));
+		String board = params.get("board");
+		if (board != null) {
+			return PositionCodec.fromText(board, winLength, MAX_WIDTH);
+		}
+		int width = Integer.parseInt(params.getOrDefault("w", String.valueOf(PowerConnectFour.DEFAULT_NUM_COLS)));
+		checkWidth(width);
+		PowerConnectFour game = new PowerConnectFour(width, winLength);
+		String moves = params.getOrDefault("moves", "");
+		for (String move : moves.split(",")) {
+			if (!move.isEmpty() && !game.apply(Move.parse(move))) {
+				throw new IllegalArgumentException("Invalid move: " + move);
+			}
+		}
+		return game;
+	}
+
+	/**
+	 * Checks the width of a board a request asks about.
+	 * @param width number of columns
+	 */
+	private static void checkWidth(int width) {
+		if (width > MAX_WIDTH) {
+			throw new IllegalArgumentException("Width must be at most " + MAX_WIDTH + ", not " + width);
+		}
+	}
+
+	/**
+	 * Splits a raw query string into parameters.
+	 * @param raw raw query string, can be null
+	 * @return parameters by name
+	 */
+	private static Map<String, String> query(String raw) {
+		Map<String, String> params = new HashMap<>();
+		if (raw == null) {
+			return params;
+		}
+		for (String pair : raw.split("&")) {
+			int eq = pair.indexOf('=');
+			if (eq > 0) {
+				params.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+					URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+			}
+		}
+		return params;
+	}
+
+	/**
+	 * Builds an error answer.
+	 * @param message what went wrong
+	 * @return the answer as JSON
+	 */
+	private static String error(String message) {
+		String safe = String.valueOf(message).replace("\\", "\\\\").replace("\"", "\\\"");
+		return "{\"error\":\"" + safe + "\"}";
+	}
+
+	/**
+	 * Writes a JSON response.
+	 * @param exchange the request and response
+	 * @param status HTTP status code
+	 * @param body JSON body
+	 * @throws IOException if the response cannot be written
+	 */
+	private static void send(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	/**
+	 * Starts a server and runs until the process is stopped, or runs the
+	 * checks when there are no arguments.
+	 * @param args command line args: port and search threads
+	 * @throws Exception if the port cannot be opened or a check fails to run
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length == 0) {
+			check();
+			return;
+		}
+		int port = Integer.parseInt(args[0]);
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		AnalysisServer server = new AnalysisServer(port, threads, threads * 4, 10000);
+		server.start();
+		System.out.println("Analysis server on http://127.0.0.1:" + server.port() + "/analyze");
+	}
+
+	//******************************************************
+	//*******     BELOW THIS LINE IS TESTING CODE    *******
+	//******************************************************
+
+	/**
+	 * Checks sharing, backpressure, eviction and the width limit on servers
+	 * on free ports.
+	 * @throws Exception if a request cannot be sent
+	 */
+	private static void check() throws Exception {
+		java.net.http.HttpClient client = java.net.http.HttpClient.newBuilder()
+			.version(java.net.http.HttpClient.Version.HTTP_1_1).build();
+
+		//identical requests at once run one search, one thread and room for four waiting
+		AnalysisServer server = new AnalysisServer(0, 1, 4, 16);
+		server.start();
+		try {
+			List<CompletableFuture<java.net.http.HttpResponse<String>>> same = new ArrayList<>();
+			for (int i = 0; i < 4; ++i) {
+				same.add(client.sendAsync(request(server, "moves=D3&budget=300"),
+					java.net.http.HttpResponse.BodyHandlers.ofString()));
+			}
+			Set<String> bodies = new HashSet<>();
+			boolean ok = true;
+			for (CompletableFuture<java.net.http.HttpResponse<String>> f : same) {
+				ok &= f.get().statusCode() == 200;
+				bodies.add(f.get().body());
+			}
+			if (ok && bodies.size() == 1 && server.searches() == 1) {
+				System.out.println("Yay 1");
+			}
+
+			//twelve different requests at once: five may wait, the rest are turned away at once
+			List<CompletableFuture<java.net.http.HttpResponse<String>>> burst = new ArrayList<>();
+			for (int w = 7; w < 19; ++w) {
+				burst.add(client.sendAsync(request(server, "w=" + w + "&budget=300"),
+					java.net.http.HttpResponse.BodyHandlers.ofString()));
+			}
+			int answered = 0;
+			int refused = 0;
+			for (CompletableFuture<java.net.http.HttpResponse<String>> f : burst) {
+				java.net.http.HttpResponse<String> response = f.get();
+				if (response.statusCode() == 200) {
+					++answered;
+				}
+				else if (response.statusCode() == 503 && response.headers().firstValue("Retry-After").isPresent()) {
+					++refused;
+				}
+			}
+			if (answered >= 1 && answered <= 5 && answered + refused == 12 && server.searches() == 1 + answered) {
+				System.out.println("Yay 2");
+			}
+		}
+		finally {
+			server.stop();
+		}
+
+		//a cache of two keeps the result used last and drops the other
+		server = new AnalysisServer(0, 1, 4, 2);
+		server.start();
+		try {
+			for (String q : new String[] {"moves=D0", "moves=D1", "moves=D0", "moves=D2"}) {
+				client.send(request(server, q + "&budget=1"), java.net.http.HttpResponse.BodyHandlers.ofString());
+			}
+			long before = server.searches();
+			client.send(request(server, "moves=D0&budget=1"), java.net.http.HttpResponse.BodyHandlers.ofString());
+			long kept = server.searches();
+			client.send(request(server, "moves=D1&budget=1"), java.net.http.HttpResponse.BodyHandlers.ofString());
+			if (before == 3 && kept == 3 && server.searches() == 4) {
+				System.out.println("Yay 3");
+			}
+
+			//a board far too wide is refused before it is built
+			StringBuilder wide = new StringBuilder("R:");
+			for (int i = 0; i < 1000000; ++i) {
+				wide.append(',');
+			}
+			java.net.http.HttpResponse<String> response = client.send(request(server, "board=" + wide),
+				java.net.http.HttpResponse.BodyHandlers.ofString());
+			if (response.statusCode() == 400 && response.body().contains("at most " + MAX_WIDTH)
+				&& server.searches() == 4) {
+				System.out.println("Yay 4");
+			}
+		}
+		finally {
+			server.stop();
+		}
+	}
+
+	/**
+	 * Builds a request to a server.
+	 * @param server the server
+	 * @param query the query string
+	 * @return the request
+	 */
+	private static java.net.http.HttpRequest request(AnalysisServer server, String query) {
+		return java.net.http.HttpRequest.newBuilder(
+			java.net.URI.create("http://127.0.0.1:" + server.port() + "/analyze?" + query)).build();
+	}
+}
@@ -0,0 +1,338 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *  Many boards of one size checked for winning lines all at once.
+ *  The boards are stored bit-sliced, structure-of-arrays: for every cell
+ *  and player there is an array of longs, and bit i of word b says whether
+ *  board 64 * b + i has that player's token in that cell. A line is then
+ *  found on 64 boards at a time by ANDing the words of its cells, and the
+ *  loops over the words are plain array loops the JIT can turn into SIMD
+ *  instructions. The result is a bitmap of the boards each player has
+ *  connected on, in the same layout.
+ *  Boards with a column taller than the batch's rows do not fit the
+ *  slices; they are kept as copies and checked one at a time with
+ *  hasFourConnected, the scalar fallback, and show up in the same bitmaps.
+ *  @author Adam David
+ */
+public class BoardBatch {
+
+	/**
+	 * number of columns of every board.
+	 */
+	private final int width;
+
+	/**
+	 * number of connected tokens needed to win.
+	 */
+	private final int winLength;
+
+	/**
+	 * rows stored in the slices.
+	 */
+	private final int rows;
+
+	/**
+	 * slices by player (0 red, 1 yellow), then cell (col * rows + row), then word.
+	 */
+	private final long[][][] slices;
+
+	/**
+	 * bit set for each board with yellow to move.
+	 */
+	private long[] yellowToMove;
+
+	/**
+	 * boards too tall for the slices, by index.
+	 */
+	private final Map<Integer, PowerConnectFour> tall = new HashMap<>();
+
+	/**
+	 * number of boards.
+	 */
+	private int size = 0;
+
+	/**
+	 * boards each player connected on, by player, null until worked out.
+	 */
+	private long[][] wins;
+
+	/**
+	 * a constructer for an empty batch.
+	 * @param width number of columns of every board
+	 * @param winLength number of connected tokens needed to win
+	 * @param rows rows kept in the slices, taller boards are checked one at a time
+	 */
+	public BoardBatch(int width, int winLength, int rows) {
+		if (width < 1 || winLength < 1 || rows < 1) {
+			throw new IllegalArgumentException("Width, win length and rows must be positive");
+		}
+		this.width = width;
+		this.winLength = winLength;
+		this.rows = rows;
+		this.slices = new long[2][width * rows][1];
+		this.yellowToMove = new long[1];
+	}
+
+	/**
+	 * Adds a copy of a board's position.
+	 * @param game the board, left as it was
+	 * @return index of the board in the batch
+	 */
+	public int add(PowerConnectFour game) {
+		if (game.sizeCol() != this.width || game.winLength() != this.winLength) {
+			throw new IllegalArgumentException("Board is " + game.sizeCol() + " wide with win length "
+				+ game.winLength() + ", the batch is " + this.width + " and " + this.winLength);
+		}
+		int index = this.size;
+		int word = index >>> 6;
+		if (word == this.yellowToMove.length) {
+			grow();
+		}
+		long bit = 1L << index;
+		if (game.currentPlayer() == Token.YELLOW) {
+			this.yellowToMove[word] |= bit;
+		}
+		boolean fits = true;
+		for (int col = 0; col < this.width && fits; ++col) {
+			fits = game.getColumn(col).size() <= this.rows;
+		}
+		if (fits) {
+			for (int col = 0; col < this.width; ++col) {
+				Column<Token> column = game.getColumn(col);
+				for (int row = 0; row < column.size(); ++row) {
+					this.slices[column.get(row) == Token.RED ? 0 : 1][col * this.rows + row][word] |= bit;
+				}
+			}
+		}
+		else {
+			this.tall.put(index, new PowerConnectFour(game));
+		}
+		++this.size;
+		this.wins = null;
+		return index;
+	}
+
+	/**
+	 * Doubles the words kept for every slice.
+	 */
+	private void grow() {
+		int words = this.yellowToMove.length * 2;
+		for (long[][] player : this.slices) {
+			for (int cell = 0; cell < player.length; ++cell) {
+				player[cell] = Arrays.copyOf(player[cell], words);
+			}
+		}
+		this.yellowToMove = Arrays.copyOf(this.yellowToMove, words);
+	}
+
+	/**
+	 * Empties the batch, keeping its memory.
+	 */
+	public void clear() {
+		for (long[][] player : this.slices) {
+			for (long[] slice : player) {
+				Arrays.fill(slice, 0);
+			}
+		}
+		Arrays.fill(this.yellowToMove, 0);
+		this.tall.clear();
+		this.size = 0;
+		this.wins = null;
+	}
+
+	/**
+	 * getter for the number of boards.
+	 * @return number of boards added since the last clear
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Bitmap of the boards a player has connected on: bit i of word i / 64
+	 * is board i. Worked out for every board the first time it is asked for
+	 * after an add.
+	 * @param player the player
+	 * @return the bitmap, one word per 64 boards; do not change it
+	 */
+	public long[] wins(Token player) {
+		if (this.wins == null) {
+			this.wins = new long[][] {connected(0), connected(1)};
+		}
+		return this.wins[player == Token.RED ? 0 : 1];
+	}
+
+	/**
+	 * Whether a player has connected on one board.
+	 * @param player the player
+	 * @param index index of the board
+	 * @return whether the player has a line on it
+	 */
+	public boolean wins(Token player, int index) {
+		checkIndex(index);
+		return (wins(player)[index >>> 6] & 1L << index) != 0;
+	}
+
+	/**
+	 * Who has won a board, decided the way the GUI decides it: the player
+	 * who just moved if they connected, else the player to move if they did.
+	 * @param index index of the board
+	 * @return the winner, or null if nobody has connected
+	 */
+	public Token winner(int index) {
+		checkIndex(index);
+		Token toMove = (this.yellowToMove[index >>> 6] & 1L << index) != 0 ? Token.YELLOW : Token.RED;
+		Token mover = toMove == Token.RED ? Token.YELLOW : Token.RED;
+		return wins(mover, index) ? mover : wins(toMove, index) ? toMove : null;
+	}
+
+	/**
+	 * Checks an index.
+	 * @param index index of a board
+	 */
+	private void checkIndex(int index) {
+		if (index < 0 || index >= this.size) {
+			throw new IndexOutOfBoundsException("Index: " + index + " out of bounds!");
+		}
+	}
+
+	/**
+	 * Finds the boards a player has connected on: every line that fits on
+	 * the sliced rows, 64 boards per word, then the tall boards one at a time.
+	 * @param p 0 for red, 1 for yellow
+	 * @return the bitmap
+	 */
+	private long[] connected(int p) {
+		long[][] cells = this.slices[p];
+		int words = (this.size + 63) >>> 6;
+		long[] found = new long[words];
+		long[] line = new long[words];
+		int[][] steps = {{1, 0}, {0, 1}, {1, 1}, {1, -1}};
+		for (int[] step : steps) {
+			for (int col = 0; col < this.width; ++col) {
+				int lastCol = col + step[0] * (this.winLength - 1);
+				if (lastCol >= this.width) {
+					continue;
+				}
+				for (int row = 0; row < this.rows; ++row) {
+					int lastRow = row + step[1] * (this.winLength - 1);
+					if (lastRow < 0 || lastRow >= this.rows) {
+						continue;
+					}
+					long[] first = cells[col * this.rows + row];
+					System.arraycopy(first, 0, line, 0, words);
+					for (int k = 1; k < this.winLength; ++k) {
+						long[] next = cells[(col + k * step[0]) * this.rows + row + k * step[1]];
+						for (int w = 0; w < words; ++w) {
+							line[w] &= next[w];
+						}
+					}
+					for (int w = 0; w < words; ++w) {
+						found[w] |= line[w];
+					}
+				}
+			}
+		}
+		//the scalar fallback
+		Token player = p == 0 ? Token.RED : Token.YELLOW;
+		for (Map.Entry<Integer, PowerConnectFour> e : this.tall.entrySet()) {
+			int index = e.getKey();
+			if (e.getValue().hasFourConnected(player)) {
+				found[index >>> 6] |= 1L << index;
+			}
+		}
+		return found;
+	}
+
+	//******************************************************
+	//*******     BELOW THIS LINE IS TESTING CODE    *******
+	//******************************************************
+
+	/**
+	 * Main is testing the batch against hasFourConnected and timing both.
+	 * @param args takes in command line arguements
+	 */
+	public static void main(String[] args) {
+		java.util.Random random = new java.util.Random(47);
+		int count = 20000;
+		PowerConnectFour[] games = new PowerConnectFour[count];
+		int[] moves = new int[1024];
+		for (int i = 0; i < count; ++i) {
+			PowerConnectFour game = new PowerConnectFour(7, 4);
+			int plies = random.nextInt(40);
+			for (int ply = 0; ply < plies; ++ply) {
+				game.apply(moves[random.nextInt(game.legalMoves(moves))]);
+			}
+			games[i] = game;
+		}
+		BoardBatch batch = new BoardBatch(7, 4, 8);
+		for (PowerConnectFour game : games) {
+			batch.add(game);
+		}
+
+		boolean same = batch.size() == count && !batch.tall.isEmpty();
+		int decided = 0;
+		for (int i = 0; i < count; ++i) {
+			same = same && batch.wins(Token.RED, i) == games[i].hasFourConnected(Token.RED)
+				&& batch.wins(Token.YELLOW, i) == games[i].hasFourConnected(Token.YELLOW);
+			decided += batch.winner(i) != null ? 1 : 0;
+		}
+		if (same && decided > 0 && decided < count) {
+			System.out.println("Yay 1");
+		}
+
+		boolean gui = true;
+		for (int i = 0; i < count; ++i) {
+			int score = Searcher.terminalScore(games[i], 0);
+			Token toMove = games[i].currentPlayer();
+			Token expected = score == 0 ? null : score > 0 ? toMove : toMove == Token.RED ? Token.YELLOW : Token.RED;
+			gui = gui && batch.winner(i) == expected;
+		}
+		if (gui) {
+			System.out.println("Yay 2");
+		}
+
+		//bitmap words hold 64 boards, and clear empties the batch
+		long bits = 0;
+		for (long word : batch.wins(Token.RED)) {
+			bits += Long.bitCount(word);
+		}
+		int red = 0;
+		for (PowerConnectFour game : games) {
+			red += game.hasFourConnected(Token.RED) ? 1 : 0;
+		}
+		batch.clear();
+		batch.add(games[0]);
+		if (bits == red && batch.size() == 1 && batch.wins(Token.RED).length == 1) {
+			System.out.println("Yay 3");
+		}
+
+		//a fresh copy has not checked anything yet, like a board just read in
+		batch.clear();
+		for (PowerConnectFour game : games) {
+			batch.add(game);
+		}
+		long found = 0;
+		long batched = Long.MAX_VALUE;
+		long scalar = Long.MAX_VALUE;
+		for (int rep = 0; rep < 10; ++rep) {
+			long start = System.nanoTime();
+			batch.wins = null;
+			found += batch.wins(Token.RED)[0] & batch.wins(Token.YELLOW)[0] & 1;
+			batched = Math.min(batched, System.nanoTime() - start);
+			PowerConnectFour[] copies = new PowerConnectFour[count];
+			for (int i = 0; i < count; ++i) {
+				copies[i] = new PowerConnectFour(games[i]);
+			}
+			start = System.nanoTime();
+			for (PowerConnectFour game : copies) {
+				found += game.hasFourConnected(Token.RED) & game.hasFourConnected(Token.YELLOW) ? 1 : 0;
+			}
+			scalar = Math.min(scalar, System.nanoTime() - start);
+		}
+		System.out.format("both players on %d boards (%d too tall): batch %.2f ms, one at a time %.2f ms (%d)%n",
+			count, batch.tall.size(), batched / 1e6, scalar / 1e6, found & 1);
+	}
+}
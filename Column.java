@@ -1,15 +1,38 @@
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
 /**
  * Custom dynamic array to be used as columns in connect 4.
  * a class for the dynamic array, makes settings and allocates memory.
  * @author Adam David
  * @param <T> accepts a generic data type
  */
-public class Column<T> {
+public class Column<T> implements Iterable<T> {
 
 	/**
 	/ default initial capacity or minimum capacity.
 	*/
 	private static final int DEFAULT_CAPACITY = 2;
+
+	/**
+	 * estimated bytes of an object header (64-bit JVM, compressed pointers).
+	 */
+	protected static final int OBJECT_HEADER_BYTES = 12;
+
+	/**
+	 * estimated bytes of an array header (64-bit JVM, compressed pointers).
+	 */
+	protected static final int ARRAY_HEADER_BYTES = 16;
+
+	/**
+	 * estimated bytes of one object reference (compressed pointers).
+	 */
+	protected static final int REFERENCE_BYTES = 4;
 	
 	/**
 	 * underlying array for storage.
@@ -25,25 +48,36 @@ public class Column<T> {
 	 */
 	private int capacity;
 
+	/**
+	 * decides how the underlying array grows and shrinks.
+	 */
+	private GrowthPolicy policy;
+
 	/**
 	 *  a constructer for the dynamic array, makes settings and allocates memory.
 	 */
-	@SuppressWarnings("unchecked")
 	public Column() {
 		// Constructor
 		
 		// Initial capacity of the storage should be DEFAULT_CAPACITY
-		// make an array of generic Ts
-		this.data = (T[]) new Object[DEFAULT_CAPACITY];
-		this.capacity = DEFAULT_CAPACITY;
+		this(DEFAULT_CAPACITY, GrowthPolicy.DEFAULT);
 	}
 
 	/**
 	 * a constructer for the dynamic array, makes settings and allocates memory.
 	 * @param initialCapacity lets you setup a custom capacity
 	 */
-	@SuppressWarnings("unchecked")
 	public Column(int initialCapacity) {
+		this(initialCapacity, GrowthPolicy.DEFAULT);
+	}
+
+	/**
+	 * a constructer for the dynamic array, makes settings and allocates memory.
+	 * @param initialCapacity lets you setup a custom capacity
+	 * @param policy decides how the array grows and shrinks
+	 */
+	@SuppressWarnings("unchecked")
+	public Column(int initialCapacity, GrowthPolicy policy) {
 		// Constructor	
 		// Throw IllegalArgumentException if initialCapacity is smaller than 1
 		// Use this _exact_ error message for the exception
@@ -51,13 +85,13 @@ public class Column<T> {
 		if (initialCapacity < 1) {
 			throw new IllegalArgumentException("Capacity must be positive");
 		}
+		if (policy == null) {
+			throw new IllegalArgumentException("Growth policy cannot be null");
+		}
+		// make an array of generic Ts
 		this.data = (T[]) new Object[initialCapacity];
 		this.capacity = initialCapacity;
-
-		// Initial capacity of the storage should be initialCapacity
-		
-
-		
+		this.policy = policy;
 	}
 	
 	/**
@@ -81,6 +115,25 @@ public class Column<T> {
 		return this.capacity;
 	}
 
+	/**
+	 *  getter for the growth policy.
+	 * 	@return the policy in use
+	 */
+	public GrowthPolicy policy() {
+		return this.policy;
+	}
+
+	/**
+	 *  setter for the growth policy, takes effect on the next add or delete.
+	 * 	@param policy decides how the array grows and shrinks
+	 */
+	public void setPolicy(GrowthPolicy policy) {
+		if (policy == null) {
+			throw new IllegalArgumentException("Growth policy cannot be null");
+		}
+		this.policy = policy;
+	}
+
 	/**
 	 * replace one value with another.
 	 * @param index for the location of item
@@ -128,8 +181,8 @@ public class Column<T> {
 		// for invalid indicies.
 		// --------------------
 
-		// verify that index being accessed isnt below 0 or isnt above capacity-1
-		if (index < 0 || index > capacity-1) {
+		// verify that index being accessed isnt below 0 or isnt above size-1
+		if (index < 0 || index > size-1) {
 			throw new IndexOutOfBoundsException("Index: " + index + " out of bounds!");
 		}
 
@@ -141,49 +194,19 @@ public class Column<T> {
 	 * Add to end of list, expand capacity if needed.
 	 * @param value to be added
 	 */
-	@SuppressWarnings("unchecked")
 	public void add(T value) {
 		// Append an element to the end of the storage.		
-		// Double the capacity if no space available.
+		// Grow the capacity (by the policy) if no space available.
 		
 		// Amortized O(1)
 		// -------------------------
 
-		//scenario when array full
-		if (this.size == this.capacity) {
-
-			this.capacity = this.capacity * 2;
-			T[] temp = (T[]) new Object[this.capacity];
-
-			for (int i = 0; i < this.capacity/2;++i) {
-				temp[i] = data[i];
-			}
-
-			this.data = temp;
-			this.data[this.capacity/2] = value;
-			++size;
-		}
-
-		//scenario when not full
-		else if (this.capacity > this.size) {
-			this.data[this.size] = value;
-			++size;
-		}
-
-		//allows the capacity to never fill.
+		//scenario when array full, only grow once the new item needs the room
 		if (this.size == this.capacity) {
-
-			this.capacity = this.capacity * 2;
-			T[] temp = (T[]) new Object[this.capacity];
-
-			for (int i = 0; i < this.capacity/2;++i) {
-				temp[i] = data[i];
-			}
-
-			this.data = temp;
+			resize(this.policy.grow(this.capacity));
 		}
-		return;
-		
+		this.data[this.size] = value;
+		++size;
 	} 
 
 	/**
@@ -191,10 +214,9 @@ public class Column<T> {
 	 * @param index for the location of item
 	 * @param value to be inserted
 	 */
-	@SuppressWarnings("unchecked")
 	public void add(int index, T value) {
 		// Insert the given value at the given index. Shift elements if needed,  
-		// double capacity if no space available, throw an exception if you cannot
+		// grow capacity if no space available, throw an exception if you cannot
 		// insert at the given index. You _can_ append items with this method.
 		
 		// For the exception, use the same exception and message as set() and
@@ -207,52 +229,17 @@ public class Column<T> {
 			throw new IndexOutOfBoundsException("Index: " + index + " out of bounds!");
 		}
 
-		//scenario where index is not occupied (appending)
-		if (index == size) {
-			//check if capacity needs to be extended
-			if (capacity == index) {
-				//copy everything over and double capacity
-				this.capacity = capacity *2;
-				T[] temp = (T[]) new Object[this.capacity];
-				for (int i = 0; i < this.capacity/2;++i) {
-					temp[i] = this.data[i];
-				}
-				this.data = temp;
-				//this would append - this should only add at the end
-				this.data[index] = value;
-			}
-			//if there is enough room already
-			else if (capacity > index) {
-				this.data[index] = value;
-				this.size++;
-			}
+		//check if capacity needs to be extended
+		if (this.size == this.capacity) {
+			resize(this.policy.grow(this.capacity));
 		}
 
-		//scenario when you are shifting elements
-		else if (index < size) {
-			//check if capacity needs to be extended
-			if (size == capacity) {
-				this.capacity = capacity*2;
-				T[] temp = (T[]) new Object[this.capacity];
-				for (int i = 0; i < this.capacity/2;++i) {
-					temp[i] = this.data[i];
-				}
-				this.data = temp;
-			}
-			//insert logic
-			T holder;
-			T cur;
-			holder = this.data[index];
-			cur = value;
-			this.data[index] = value;
-			for (int i = index+1; i < size+1; ++i) {
-				cur = this.data[i];
-				this.data[i] = holder;
-				holder = cur;
-			}
-			++size;
+		//scenario when you are shifting elements, nothing to move when appending
+		if (index < size) {
+			System.arraycopy(this.data, index, this.data, index + 1, this.size - index);
 		}
-		
+		this.data[index] = value;
+		++size;
 	} 
 	
 	/**
@@ -260,14 +247,14 @@ public class Column<T> {
 	 * @param index for the location of item
 	 * @return the token removed
 	 */
-	@SuppressWarnings("unchecked")
 	public T delete(int index) {
 		// Remove and return the element at the given index. Shift elements
 		// to remove the gap. Throw an exception when there is an invalid
 		// index (see set(), get(), etc. above).
 		
-		// Halve capacity of the storage if the number of elements falls
-		// below 1/3 of the capacity. Capacity should NOT go below DEFAULT_CAPACITY.
+		// Shrink capacity of the storage (by the policy) once the number of
+		// elements falls far enough below the capacity. The old array is
+		// released so the memory can actually be reclaimed.
 		
 		// O(N) where N is the number of elements currently in the storage
 		if (index < 0 || index >= size) {
@@ -276,30 +263,342 @@ public class Column<T> {
 
 		T element = this.data[index];
 
-		// no shift scenario
-		if (index == size-1) {
-			this.data[index] = null;
-		}
-
 		//scenario with shift
-		else if (index < (size-1) ) {
-			for (int i = index; i < size-1; ++i) {
-				data[i] = data[i+1];
-			}
-			data[size-1] = null;
+		if (index < (size-1)) {
+			System.arraycopy(this.data, index + 1, this.data, index, this.size - 1 - index);
 		}
+		this.data[size-1] = null;
 		--this.size;
 
 		//capacity management
-		if (this.size < this.capacity/3.0 && this.capacity/3 >= DEFAULT_CAPACITY) {
-			this.capacity = this.capacity/2;
+		int shrunk = this.policy.shrink(this.size, this.capacity);
+		if (shrunk < this.capacity) {
+			resize(shrunk);
 		}
 		return element;
 
 	}  
 
+	/**
+	 * Counts the items in the run of equal items holding the given index,
+	 * the item itself included.
+	 * @param index for the location of item
+	 * @return the length of that run
+	 */
+	public int runLength(int index) {
+		// O(L) where L is the length of the run
+		if (index < 0 || index > size-1) {
+			throw new IndexOutOfBoundsException("Index: " + index + " out of bounds!");
+		}
+		T value = this.data[index];
+		int lo = index;
+		int hi = index + 1;
+		while (lo > 0 && Objects.equals(this.data[lo - 1], value)) {
+			--lo;
+		}
+		while (hi < this.size && Objects.equals(this.data[hi], value)) {
+			++hi;
+		}
+		return hi - lo;
+	}
+
+	/**
+	 * Appends every item of the given array, growing once for the whole batch.
+	 * @param values items to be added, in order
+	 */
+	public void addAll(T[] values) {
+		addAll(this.size, values, 0, values.length);
+	}
+
+	/**
+	 * Appends every item of another column, growing once for the whole batch.
+	 * @param other column to copy from, left unchanged
+	 */
+	public void addAll(Column<? extends T> other) {
+		int count = other.size();
+		ensureCapacity(this.size + count);
+		other.copyRange(0, count, this.data, this.size);
+		this.size += count;
+	}
+
+	/**
+	 * Inserts a slice of an array at the given index. Shift elements if needed.
+	 * @param index for the location of the first inserted item
+	 * @param values array holding the items
+	 * @param offset first position of values to insert
+	 * @param length number of items to insert
+	 */
+	public void addAll(int index, T[] values, int offset, int length) {
+		// O(N + L) where L is the number of items inserted
+		if (index < 0 || index > size) {
+			throw new IndexOutOfBoundsException("Index: " + index + " out of bounds!");
+		}
+		if (offset < 0 || length < 0 || offset > values.length - length) {
+			throw new IndexOutOfBoundsException("Range: " + offset + " to " + (offset + length) + " out of bounds!");
+		}
+		ensureCapacity(this.size + length);
+		if (index < this.size) {
+			System.arraycopy(this.data, index, this.data, index + length, this.size - index);
+		}
+		System.arraycopy(values, offset, this.data, index, length);
+		this.size += length;
+	}
+
+	/**
+	 * Removes items from index from (inclusive) to index to (exclusive).
+	 * @param from first index to remove
+	 * @param to one past the last index to remove
+	 */
+	public void removeRange(int from, int to) {
+		// O(N) where N is the number of elements currently in the storage
+		checkRange(from, to);
+		int removed = to - from;
+		if (removed == 0) {
+			return;
+		}
+		System.arraycopy(this.data, to, this.data, from, this.size - to);
+		for (int i = this.size - removed; i < this.size; ++i) {
+			this.data[i] = null;
+		}
+		this.size -= removed;
+
+		//capacity management, a big removal can shrink more than once
+		int shrunk = this.policy.shrink(this.size, this.capacity);
+		int next = this.policy.shrink(this.size, shrunk);
+		while (next < shrunk) {
+			shrunk = next;
+			next = this.policy.shrink(this.size, shrunk);
+		}
+		if (shrunk < this.capacity) {
+			resize(shrunk);
+		}
+	}
+
+	/**
+	 * Copies items from index from (inclusive) to index to (exclusive) into
+	 * an array owned by the caller, no alterations to structure.
+	 * @param from first index to copy
+	 * @param to one past the last index to copy
+	 * @param dest array to copy into
+	 * @param destPos position in dest for the item at from
+	 */
+	public void copyRange(int from, int to, Object[] dest, int destPos) {
+		checkRange(from, to);
+		System.arraycopy(this.data, from, dest, destPos, to - from);
+	}
+
+	/**
+	 * Runs the action on every item, bottom to top.
+	 * @param action to run on each item
+	 */
+	@Override
+	public void forEach(Consumer<? super T> action) {
+		for (int i = 0; i < this.size; ++i) {
+			action.accept(this.data[i]);
+		}
+	}
+
+	/**
+	 * Iterator over the items, bottom to top. The column should not be
+	 * changed while iterating.
+	 * @return iterator for the column
+	 */
+	@Override
+	public Iterator<T> iterator() {
+		return new Iterator<T>() {
+			private int next = 0;
+
+			public boolean hasNext() {
+				return this.next < size;
+			}
+
+			public T next() {
+				if (this.next >= size) {
+					throw new NoSuchElementException();
+				}
+				return data[this.next++];
+			}
+		};
+	}
+
+	/**
+	 * Sized spliterator over the items, bottom to top. Splits in halves so
+	 * a parallel stream spreads a column evenly over a fork-join pool.
+	 * The column should not be changed while it is being traversed.
+	 * @return spliterator for the column
+	 */
+	@Override
+	public Spliterator<T> spliterator() {
+		return new ColumnSpliterator<T>(this.data, 0, this.size);
+	}
+
+	/**
+	 * Sequential stream over the items, bottom to top.
+	 * @return stream of the column
+	 */
+	public Stream<T> stream() {
+		return StreamSupport.stream(spliterator(), false);
+	}
+
+	/**
+	 * Parallel stream over the items.
+	 * @return parallel stream of the column
+	 */
+	public Stream<T> parallelStream() {
+		return StreamSupport.stream(spliterator(), true);
+	}
+
+	/**
+	 * Shrinks the underlying array to the smallest capacity the policy allows.
+	 * Use after a column has been emptied out to give its peak memory back.
+	 */
+	public void trimToSize() {
+		int trimmed = this.policy.trim(this.size);
+		if (trimmed < this.capacity) {
+			resize(trimmed);
+		}
+	}
+
+	/**
+	 * Estimates the memory held by this column: the column object and its
+	 * underlying array. Items themselves are not counted since tokens are shared.
+	 * @return estimated bytes
+	 */
+	public long footprintBytes() {
+		// header + data + policy references, size + capacity ints
+		long self = align(OBJECT_HEADER_BYTES + 2 * REFERENCE_BYTES + 2 * Integer.BYTES);
+		return self + align(ARRAY_HEADER_BYTES + (long) this.capacity * REFERENCE_BYTES);
+	}
+
+	/**
+	 * Rounds a byte count up to the 8 byte object alignment of the JVM.
+	 * @param bytes unaligned size
+	 * @return aligned size
+	 */
+	protected static long align(long bytes) {
+		return (bytes + 7) & ~7L;
+	}
+
+	/**
+	 * Grows the underlying array (by the policy) until it can hold the given amount.
+	 * @param needed number of items that must fit
+	 */
+	private void ensureCapacity(int needed) {
+		if (needed <= this.capacity) {
+			return;
+		}
+		int next = this.capacity;
+		while (next < needed) {
+			next = this.policy.grow(next);
+		}
+		resize(next);
+	}
+
+	/**
+	 * Checks a from/to index pair against the items stored.
+	 * @param from first index
+	 * @param to one past the last index
+	 */
+	private void checkRange(int from, int to) {
+		if (from < 0 || to > this.size || from > to) {
+			throw new IndexOutOfBoundsException("Range: " + from + " to " + to + " out of bounds!");
+		}
+	}
+
+	/**
+	 * Moves the items into a new array of the given capacity.
+	 * @param newCapacity length of the new array, at least size
+	 */
+	@SuppressWarnings("unchecked")
+	private void resize(int newCapacity) {
+		EngineEvents.ColumnResized event = EngineEvents.resizeStarted();
+		int oldCapacity = this.capacity;
+		T[] temp = (T[]) new Object[newCapacity];
+		System.arraycopy(this.data, 0, temp, 0, this.size);
+		this.data = temp;
+		this.capacity = newCapacity;
+		EngineEvents.resized(event, oldCapacity, newCapacity, this.size, false);
+	}
+
 	
 	
+	/**
+	 * Spliterator over a slice of a column's underlying array.
+	 * @param <T> accepts a generic data type
+	 */
+	private static final class ColumnSpliterator<T> implements Spliterator<T> {
+
+		/**
+		 * the column's array at the time of creation.
+		 */
+		private final Object[] array;
+
+		/**
+		 * next index to hand out.
+		 */
+		private int index;
+
+		/**
+		 * one past the last index to hand out.
+		 */
+		private final int fence;
+
+		/**
+		 * a constructer for a slice of the array.
+		 * @param array items to go over
+		 * @param origin first index
+		 * @param fence one past the last index
+		 */
+		ColumnSpliterator(Object[] array, int origin, int fence) {
+			this.array = array;
+			this.index = origin;
+			this.fence = fence;
+		}
+
+		@Override
+		public Spliterator<T> trySplit() {
+			int lo = this.index;
+			int mid = (lo + this.fence) >>> 1;
+			if (lo >= mid) {
+				return null;
+			}
+			this.index = mid;
+			return new ColumnSpliterator<T>(this.array, lo, mid);
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public boolean tryAdvance(Consumer<? super T> action) {
+			if (this.index < this.fence) {
+				action.accept((T) this.array[this.index++]);
+				return true;
+			}
+			return false;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public void forEachRemaining(Consumer<? super T> action) {
+			Object[] a = this.array;
+			int hi = this.fence;
+			int i = this.index;
+			this.index = hi;
+			for (; i < hi; ++i) {
+				action.accept((T) a[i]);
+			}
+		}
+
+		@Override
+		public long estimateSize() {
+			return this.fence - this.index;
+		}
+
+		@Override
+		public int characteristics() {
+			return Spliterator.ORDERED | Spliterator.SIZED | Spliterator.SUBSIZED;
+		}
+	}
+
 	//******************************************************
 	//*******     BELOW THIS LINE IS TESTING CODE    *******
 	//******************************************************
@@ -377,6 +676,41 @@ public class Column<T> {
 			
 		}
 		System.out.println(nums);
+
+		//memory is given back after a tall column empties out
+		Column<Integer> tall = new Column<>();
+		for (int i = 0; i < 1000; i++) {
+			tall.add(i);
+		}
+		long peak = tall.footprintBytes();
+		while (tall.size() > 1) {
+			tall.delete(tall.size() - 1);
+		}
+		tall.trimToSize();
+		if (tall.capacity() == 2 && tall.footprintBytes() < peak / 50 && tall.get(0) == 0) {
+			System.out.println("Yay 6");
+		}
+
+		//custom policy, grows by half and keeps at least 8 slots
+		Column<Integer> slow = new Column<>(8, new GrowthPolicy(1.5, 4, 2, 8));
+		for (int i = 0; i < 9; i++) {
+			slow.add(0, i);
+		}
+		if (slow.capacity() == 12 && slow.get(0) == 8 && slow.get(8) == 0) {
+			System.out.println("Yay 7");
+		}
+
+		//bulk operations
+		Column<Integer> bulk = new Column<>();
+		bulk.addAll(new Integer[] {0, 1, 2, 3, 4, 5, 6, 7});
+		bulk.addAll(2, new Integer[] {-1, -2}, 0, 2);
+		bulk.removeRange(0, 2);
+		Integer[] copy = new Integer[3];
+		bulk.copyRange(0, 3, copy, 0);
+		if (bulk.size() == 8 && copy[0] == -1 && copy[1] == -2 && copy[2] == 2
+			&& bulk.parallelStream().mapToInt(Integer::intValue).sum() == 24) {
+			System.out.println("Yay 8");
+		}
 	}
 	
 
@@ -0,0 +1,213 @@
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Weak intern table of shared columns, safe to use from many threads.
+ * Games that are given the same interner hold one SharedColumn per distinct
+ * column contents between them, so thousands of games that are still in
+ * their openings take little more memory than one. Entries are weak: a
+ * column no game holds any more is collected, and its entry is cleared on
+ * a later lookup.
+ * Use with PowerConnectFour.setInterner; the footprint and hit counts are
+ * the memory metrics of the sharing.
+ * @author Adam David
+ */
+public class ColumnInterner {
+
+	/**
+	 * estimated bytes of a table entry: map node, boxed key and weak reference.
+	 */
+	private static final int ENTRY_BYTES = 96;
+
+	/**
+	 * live columns by code.
+	 */
+	private final ConcurrentHashMap<Long, Entry> table = new ConcurrentHashMap<>();
+
+	/**
+	 * entries whose column was collected.
+	 */
+	private final ReferenceQueue<SharedColumn> collected = new ReferenceQueue<>();
+
+	/**
+	 * lookups answered with a column already in the table.
+	 */
+	private final LongAdder hits = new LongAdder();
+
+	/**
+	 * lookups that had to make a new column.
+	 */
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * Weak reference to a column that knows its code, so a cleared entry
+	 * can be taken out of the table.
+	 */
+	private static final class Entry extends WeakReference<SharedColumn> {
+
+		/**
+		 * code of the column.
+		 */
+		private final long code;
+
+		/**
+		 * a constructer for an entry.
+		 * @param column the column
+		 * @param queue where the entry goes once the column is collected
+		 */
+		Entry(SharedColumn column, ReferenceQueue<SharedColumn> queue) {
+			super(column, queue);
+			this.code = column.code();
+		}
+	}
+
+	/**
+	 * Finds the shared column for a code, making it if needed.
+	 * @param code marker bit above the token bits (see SharedColumn)
+	 * @return the one column with that code
+	 */
+	public SharedColumn intern(long code) {
+		expunge();
+		Long key = code;
+		while (true) {
+			Entry entry = this.table.get(key);
+			SharedColumn column = entry == null ? null : entry.get();
+			if (column != null) {
+				this.hits.increment();
+				return column;
+			}
+			SharedColumn fresh = new SharedColumn(code);
+			Entry made = new Entry(fresh, this.collected);
+			//another thread may have put a live column in first, then use that
+			boolean won = entry == null ? this.table.putIfAbsent(key, made) == null : this.table.replace(key, entry, made);
+			if (won) {
+				this.misses.increment();
+				return fresh;
+			}
+		}
+	}
+
+	/**
+	 * Finds the shared column with the same tokens as a column.
+	 * @param column column to look up, no taller than SharedColumn.MAX_HEIGHT
+	 * @return the shared column
+	 */
+	public SharedColumn intern(Column<Token> column) {
+		long code = SharedColumn.encode(column);
+		if (code < 0) {
+			throw new IllegalArgumentException("Column of " + column.size() + " tokens is too tall to share");
+		}
+		return intern(code);
+	}
+
+	/**
+	 * Takes the entries of collected columns out of the table.
+	 */
+	private void expunge() {
+		Object ref;
+		while ((ref = this.collected.poll()) != null) {
+			Entry entry = (Entry) ref;
+			this.table.remove(entry.code, entry);
+		}
+	}
+
+	/**
+	 * Number of distinct columns in the table.
+	 * @return the number of entries, some may be waiting to be cleared
+	 */
+	public int size() {
+		expunge();
+		return this.table.size();
+	}
+
+	/**
+	 * getter for the hit count.
+	 * @return lookups answered with a column already in the table
+	 */
+	public long hits() {
+		return this.hits.sum();
+	}
+
+	/**
+	 * getter for the miss count.
+	 * @return lookups that had to make a new column
+	 */
+	public long misses() {
+		return this.misses.sum();
+	}
+
+	/**
+	 * Estimates the memory held by the table and its columns.
+	 * @return estimated bytes
+	 */
+	public long footprintBytes() {
+		long perColumn = new SharedColumn(SharedColumn.EMPTY).footprintBytes() + ENTRY_BYTES;
+		return size() * perColumn;
+	}
+
+	//******************************************************
+	//*******     BELOW THIS LINE IS TESTING CODE    *******
+	//******************************************************
+
+	/**
+	 * Main is testing sharing between many games and the memory it saves.
+	 * @param args takes in command line arguements
+	 */
+	public static void main(String[] args) {
+		ColumnInterner interner = new ColumnInterner();
+		if (interner.intern(5L) == interner.intern(5L) && interner.hits() == 1 && interner.misses() == 1) {
+			System.out.println("Yay 1");
+		}
+
+		//the same random games with and without sharing end up the same
+		java.util.Random random = new java.util.Random(45);
+		boolean same = true;
+		PowerConnectFour[] games = new PowerConnectFour[10000];
+		long plainBytes = 0;
+		for (int g = 0; g < games.length; ++g) {
+			PowerConnectFour plain = new PowerConnectFour();
+			PowerConnectFour shared = new PowerConnectFour();
+			shared.setInterner(interner);
+			int[] moves = new int[64];
+			//early games: a few moves from a handful of openings
+			java.util.Random opening = new java.util.Random(g % 20);
+			for (int i = 0; i < 8 && !plain.isGameOver(); ++i) {
+				java.util.Random pick = i < 6 ? opening : random;
+				int n = plain.legalMoves(moves);
+				int move = moves[pick.nextInt(n)];
+				same = same && plain.apply(move) && shared.apply(move);
+			}
+			same = same && plain.positionHash() == shared.positionHash()
+				&& PositionCodec.toText(plain).equals(PositionCodec.toText(shared))
+				&& plain.isGameOver() == shared.isGameOver();
+			plainBytes += plain.footprintBytes();
+			games[g] = shared;
+		}
+		long sharedBytes = interner.footprintBytes();
+		for (PowerConnectFour game : games) {
+			sharedBytes += game.footprintBytes();
+		}
+		if (same && sharedBytes * 3 < plainBytes) {
+			System.out.println("Yay 2");
+		}
+
+		//a copy shares its columns, and a tall column goes private and back
+		PowerConnectFour copy = new PowerConnectFour(games[0]);
+		boolean shared = copy.getColumn(3) == games[0].getColumn(3);
+		for (int i = 0; i < SharedColumn.MAX_HEIGHT + 5; ++i) {
+			copy.drop(6);
+		}
+		boolean tall = !(copy.getColumn(6) instanceof SharedColumn);
+		for (int i = 0; i < 10 && copy.getColumn(6).size() > 0; ++i) {
+			if (!copy.pop(6)) {
+				copy.drop(0);
+			}
+		}
+		boolean back = copy.getColumn(6).size() <= SharedColumn.MAX_HEIGHT && copy.getColumn(6) instanceof SharedColumn;
+		if (shared && tall && back && copy.unsharedFootprintBytes() > copy.footprintBytes()) {
+			System.out.println("Yay 3");
+		}
+	}
+}
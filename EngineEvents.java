@@ -0,0 +1,411 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ *  Java Flight Recorder events for the engine, so latency spikes in a
+ *  recording can be matched to the moves and columns behind them.
+ *  Moves, win checks and column resizes are timed, and by default only
+ *  the ones slower than their threshold are kept; rejected moves take no
+ *  time and are off unless turned on. A setting like
+ *      PowerConnectFour.MoveApplied#threshold=0 ms
+ *  in a .jfc file records every one.
+ *  Loading the first event class starts up JFR itself, which takes about
+ *  a third of a second, so the engine makes no events at all unless the
+ *  JVM is started with -Dpowerconnectfour.jfr=true. The switch is a
+ *  constant, so with it off the JIT drops the tracing code.
+ *  @author Adam David
+ */
+public final class EngineEvents {
+
+	/**
+	 * whether the engine makes events, from -Dpowerconnectfour.jfr.
+	 */
+	static final boolean ENABLED = Boolean.getBoolean("powerconnectfour.jfr");
+
+	/**
+	 * Only event classes, no instances.
+	 */
+	private EngineEvents() {
+	}
+
+	/**
+	 * A move was made on the board.
+	 */
+	@Name("PowerConnectFour.MoveApplied")
+	@Label("Move Applied")
+	@Category({"Power Connect Four", "Engine"})
+	@Description("A drop, pop, power drop or power pop, with the tokens it shifted")
+	@Threshold("1 ms")
+	@StackTrace(false)
+	static final class MoveApplied extends Event {
+
+		/**
+		 * kind of move, as in Move.
+		 */
+		@Label("Kind")
+		String kind;
+
+		/**
+		 * column of the move.
+		 */
+		@Label("Column")
+		int column;
+
+		/**
+		 * row of the move.
+		 */
+		@Label("Row")
+		int row;
+
+		/**
+		 * tokens above the row that moved up or down a row.
+		 */
+		@Label("Shift Length")
+		int shifted;
+	}
+
+	/**
+	 * A move was turned down.
+	 */
+	@Name("PowerConnectFour.MoveRejected")
+	@Label("Move Rejected")
+	@Category({"Power Connect Four", "Engine"})
+	@Description("A move that broke the rules, and why")
+	@Enabled(false)
+	@StackTrace(false)
+	static final class MoveRejected extends Event {
+
+		/**
+		 * kind of move, as in Move.
+		 */
+		@Label("Kind")
+		String kind;
+
+		/**
+		 * column of the move.
+		 */
+		@Label("Column")
+		int column;
+
+		/**
+		 * row of the move.
+		 */
+		@Label("Row")
+		int row;
+
+		/**
+		 * the rule it broke.
+		 */
+		@Label("Reason")
+		String reason;
+	}
+
+	/**
+	 * A player was checked for a winning line.
+	 */
+	@Name("PowerConnectFour.WinCheck")
+	@Label("Win Check")
+	@Category({"Power Connect Four", "Engine"})
+	@Description("A check of one player for a winning line, with the cells it looked at")
+	@Threshold("1 ms")
+	@StackTrace(false)
+	static final class WinCheck extends Event {
+
+		/**
+		 * the player checked.
+		 */
+		@Label("Player")
+		String player;
+
+		/**
+		 * cells a line was looked for through.
+		 */
+		@Label("Cells Examined")
+		long cells;
+
+		/**
+		 * whether a line was found.
+		 */
+		@Label("Found")
+		boolean found;
+	}
+
+	/**
+	 * A column's underlying array was reallocated.
+	 */
+	@Name("PowerConnectFour.ColumnResized")
+	@Label("Column Resized")
+	@Category({"Power Connect Four", "Storage"})
+	@Description("A column array that grew or shrank, from Column.add or delete")
+	@Threshold("1 ms")
+	@StackTrace(false)
+	static final class ColumnResized extends Event {
+
+		/**
+		 * capacity before.
+		 */
+		@Label("Old Capacity")
+		int oldCapacity;
+
+		/**
+		 * capacity after.
+		 */
+		@Label("New Capacity")
+		int newCapacity;
+
+		/**
+		 * items or runs stored.
+		 */
+		@Label("Size")
+		int size;
+
+		/**
+		 * whether the capacity counts runs of a RunLengthColumn.
+		 */
+		@Label("Runs")
+		boolean runs;
+	}
+
+	/**
+	 * Starts timing a move.
+	 * @return the event, or null when tracing is off
+	 */
+	static MoveApplied moveStarted() {
+		if (!ENABLED) {
+			return null;
+		}
+		MoveApplied event = new MoveApplied();
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * Ends the event of a move and keeps it if it was slow enough.
+	 * @param event the event from moveStarted, can be null
+	 * @param kind kind of move, as in Move
+	 * @param col index of the column
+	 * @param row index of the row
+	 * @param shifted tokens above the row that moved
+	 */
+	static void moveApplied(MoveApplied event, int kind, int col, int row, int shifted) {
+		if (event == null) {
+			return;
+		}
+		event.end();
+		if (event.shouldCommit()) {
+			event.kind = kindName(kind);
+			event.column = col;
+			event.row = row;
+			event.shifted = shifted;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Records a move that was turned down, when that event is on.
+	 * @param kind kind of move, as in Move
+	 * @param col index of the column
+	 * @param row index of the row
+	 * @param reason the rule it broke
+	 */
+	static void moveRejected(int kind, int col, int row, String reason) {
+		if (!ENABLED) {
+			return;
+		}
+		MoveRejected event = new MoveRejected();
+		if (event.isEnabled()) {
+			event.kind = kindName(kind);
+			event.column = col;
+			event.row = row;
+			event.reason = reason;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Starts timing a win check.
+	 * @return the event, or null when tracing is off
+	 */
+	static WinCheck winCheckStarted() {
+		if (!ENABLED) {
+			return null;
+		}
+		WinCheck event = new WinCheck();
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * Ends the event of a win check and keeps it if it was slow enough.
+	 * @param event the event from winCheckStarted, can be null
+	 * @param player the player checked
+	 * @param cells cells a line was looked for through
+	 * @param found whether a line was found
+	 */
+	static void winChecked(WinCheck event, Token player, long cells, boolean found) {
+		if (event == null) {
+			return;
+		}
+		event.end();
+		if (event.shouldCommit()) {
+			event.player = player.name();
+			event.cells = cells;
+			event.found = found;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Starts timing a column resize.
+	 * @return the event, or null when tracing is off
+	 */
+	static ColumnResized resizeStarted() {
+		if (!ENABLED) {
+			return null;
+		}
+		ColumnResized event = new ColumnResized();
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * Ends the event of a column resize and keeps it if it was slow enough.
+	 * @param event the event from resizeStarted, can be null
+	 * @param oldCapacity capacity before
+	 * @param newCapacity capacity after
+	 * @param size items or runs stored
+	 * @param runs whether the capacity counts runs
+	 */
+	static void resized(ColumnResized event, int oldCapacity, int newCapacity, int size, boolean runs) {
+		if (event == null) {
+			return;
+		}
+		event.end();
+		if (event.shouldCommit()) {
+			event.oldCapacity = oldCapacity;
+			event.newCapacity = newCapacity;
+			event.size = size;
+			event.runs = runs;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Name of a move kind for the events.
+	 * @param kind kind of move, as in Move
+	 * @return the name
+	 */
+	private static String kindName(int kind) {
+		switch (kind) {
+			case Move.DROP:
+				return "DROP";
+			case Move.POP:
+				return "POP";
+			case Move.POWER_DROP:
+				return "POWER_DROP";
+			default:
+				return "POWER_POP";
+		}
+	}
+
+	//******************************************************
+	//*******     BELOW THIS LINE IS TESTING CODE    *******
+	//******************************************************
+
+	/**
+	 * Main is testing that the engine's events show up in a recording.
+	 * Run with -Dpowerconnectfour.jfr=true.
+	 * @param args takes in command line arguements
+	 * @throws Exception if the recording cannot be made or read
+	 */
+	public static void main(String[] args) throws Exception {
+		if (!ENABLED) {
+			System.out.println("Run with -Dpowerconnectfour.jfr=true to test the events");
+			return;
+		}
+		Path file = Files.createTempFile("engine", ".jfr");
+		try {
+			//every event, whatever it took
+			jdk.jfr.Recording all = new jdk.jfr.Recording();
+			for (String name : new String[] {"MoveApplied", "MoveRejected", "WinCheck", "ColumnResized"}) {
+				all.enable("PowerConnectFour." + name).withThreshold(Duration.ZERO);
+			}
+			all.start();
+			PowerConnectFour game = new PowerConnectFour();
+			game.drop(3);
+			game.drop(3);
+			game.drop(3);
+			game.powerDrop(3, 0);
+			game.pop(5);
+			game.hasFourConnected(Token.RED);
+			all.stop();
+			all.dump(file);
+			all.close();
+			List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+
+			boolean powerDrop = false;
+			boolean rejected = false;
+			boolean check = false;
+			boolean resized = false;
+			for (RecordedEvent e : events) {
+				switch (e.getEventType().getName()) {
+					case "PowerConnectFour.MoveApplied":
+						powerDrop |= "POWER_DROP".equals(e.getString("kind")) && e.getInt("column") == 3
+							&& e.getInt("row") == 0 && e.getInt("shifted") == 3;
+						break;
+					case "PowerConnectFour.MoveRejected":
+						rejected |= "POP".equals(e.getString("kind")) && e.getString("reason").equals("empty column");
+						break;
+					case "PowerConnectFour.WinCheck":
+						check |= "RED".equals(e.getString("player")) && e.getLong("cells") > 0 && !e.getBoolean("found");
+						break;
+					default:
+						resized |= e.getInt("newCapacity") > e.getInt("oldCapacity");
+				}
+			}
+			if (powerDrop) {
+				System.out.println("Yay 1");
+			}
+			if (rejected && check && resized) {
+				System.out.println("Yay 2");
+			}
+
+			//with the default settings quick moves are left out
+			jdk.jfr.Recording slow = new jdk.jfr.Recording();
+			slow.enable("PowerConnectFour.MoveApplied");
+			slow.enable("PowerConnectFour.MoveRejected");
+			slow.start();
+			for (int i = 0; i < 1000; ++i) {
+				game.drop(i % 7);
+			}
+			game.pop(-1);
+			slow.stop();
+			slow.dump(file);
+			slow.close();
+			int applied = 0;
+			int turnedDown = 0;
+			for (RecordedEvent e : RecordingFile.readAllEvents(file)) {
+				applied += e.getEventType().getName().endsWith("Applied") ? 1 : 0;
+				turnedDown += e.getEventType().getName().endsWith("Rejected") ? 1 : 0;
+			}
+			if (applied < 10 && turnedDown == 1) {
+				System.out.println("Yay 3");
+			}
+		}
+		finally {
+			Files.deleteIfExists(file);
+		}
+	}
+}
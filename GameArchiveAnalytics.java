@@ -0,0 +1,670 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ *  Replays a whole archive of recorded games and reports on them: results
+ *  by opening move, how long games run, how often each kind of move is
+ *  used and how tall the columns get.
+ *  An archive is a text file with one game per line, written as moves in
+ *  Move notation separated by commas (D3,PD2:0,P3,...), played from an
+ *  empty board. Blank lines and lines starting with # are skipped. A game
+ *  ends at the first move after which someone has connected (the mover
+ *  first, as in the GUI); moves after that are ignored. A line with a move
+ *  that cannot be read or played counts as invalid and adds nothing else.
+ *  The file is cut into byte ranges that start and end on line breaks,
+ *  whatever its size, and a fork-join task maps each range and replays it
+ *  into its own Stats on its own board; the Stats are merged at the end,
+ *  so no locks are shared while games are replayed.
+ *  Use with the command:
+ *      java GameArchiveAnalytics archive [-p threads] [-w width] [-n winLength] [-g games]
+ *  where -g first writes that many random games to the archive.
+ *  @author Adam David
+ */
+public class GameArchiveAnalytics {
+
+	/**
+	 * number of game length buckets, bucket b holds lengths from 2^(b-1) to 2^b - 1.
+	 */
+	private static final int LENGTH_BUCKETS = 33;
+
+	/**
+	 * longest game generate writes, in moves.
+	 */
+	private static final int MAX_GENERATED_MOVES = 400;
+
+	/**
+	 * most bytes one task maps, before moving to the next line break.
+	 */
+	private static final long MAX_SPLIT_BYTES = 64L << 20;
+
+	/**
+	 * fewest bytes one task maps, unless the file is smaller.
+	 */
+	private static final long MIN_SPLIT_BYTES = 64L << 10;
+
+	/**
+	 * Only static helpers, no instances.
+	 */
+	private GameArchiveAnalytics() {
+	}
+
+	/**
+	 * Replays every game of an archive.
+	 * @param archive the archive file
+	 * @param width number of columns of every game
+	 * @param winLength number of connected tokens needed to win
+	 * @param pool pool to run on
+	 * @return the merged stats
+	 * @throws IOException if the archive cannot be read
+	 */
+	public static Stats analyze(Path archive, int width, int winLength, ForkJoinPool pool) throws IOException {
+		long perTask = Files.size(archive) / (pool.getParallelism() * 4L);
+		return analyze(archive, width, winLength, pool, Math.max(MIN_SPLIT_BYTES, Math.min(MAX_SPLIT_BYTES, perTask)));
+	}
+
+	/**
+	 * Replays every game of an archive, cut into ranges of about a given size.
+	 * @param archive the archive file
+	 * @param width number of columns of every game
+	 * @param winLength number of connected tokens needed to win
+	 * @param pool pool to run on
+	 * @param splitBytes bytes each task reads, up to the next line break
+	 * @return the merged stats
+	 * @throws IOException if the archive cannot be read
+	 */
+	static Stats analyze(Path archive, int width, int winLength, ForkJoinPool pool, long splitBytes) throws IOException {
+		try (FileChannel channel = FileChannel.open(archive, StandardOpenOption.READ)) {
+			long[] starts = lineStarts(channel, splitBytes);
+			return pool.submit(() -> IntStream.range(0, starts.length - 1).parallel().collect(
+				() -> new Stats(width, winLength), (stats, i) -> replay(channel, starts[i], starts[i + 1], stats),
+				Stats::merge)).get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while reading " + archive, e);
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof UncheckedIOException) {
+				throw ((UncheckedIOException) e.getCause()).getCause();
+			}
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Cuts a file into ranges that each start at the beginning of a line.
+	 * @param channel the file
+	 * @param splitBytes bytes each range should have, up to the next line break
+	 * @return the start of every range, then the size of the file
+	 * @throws IOException if the file cannot be read
+	 */
+	private static long[] lineStarts(FileChannel channel, long splitBytes) throws IOException {
+		long size = channel.size();
+		long[] starts = new long[(int) Math.min(Integer.MAX_VALUE - 1, (size + splitBytes - 1) / splitBytes) + 1];
+		int count = 1;
+		ByteBuffer scan = ByteBuffer.allocate(4096);
+		long at = splitBytes;
+		while (at < size) {
+			//the range starts after the first line break at or after at - 1
+			long breakAt = -1;
+			for (long from = at - 1; breakAt < 0 && from < size; from += scan.limit()) {
+				scan.clear();
+				channel.read(scan, from);
+				scan.flip();
+				for (int i = 0; i < scan.limit(); ++i) {
+					if (scan.get(i) == '\n') {
+						breakAt = from + i;
+						break;
+					}
+				}
+			}
+			if (breakAt < 0 || breakAt + 1 >= size) {
+				break;
+			}
+			starts[count++] = breakAt + 1;
+			at = Math.max(breakAt + 1 + splitBytes, at + splitBytes);
+		}
+		starts[count++] = size;
+		return Arrays.copyOf(starts, count);
+	}
+
+	/**
+	 * Maps one range of a file and replays every line of it.
+	 * @param channel the file
+	 * @param from first byte, at the start of a line
+	 * @param to byte after the last, at the start of a line or the end of the file
+	 * @param stats totals to add to
+	 */
+	private static void replay(FileChannel channel, long from, long to, Stats stats) {
+		if (to - from > Integer.MAX_VALUE) {
+			throw new UncheckedIOException(new IOException("A line of the archive is longer than 2 GB"));
+		}
+		ByteBuffer window;
+		try {
+			window = channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		Line line = new Line(window);
+		int start = 0;
+		int end = window.limit();
+		for (int i = 0; i < end; ++i) {
+			if (window.get(i) == '\n') {
+				stats.accept(line.set(start, i));
+				start = i + 1;
+			}
+		}
+		if (start < end) {
+			stats.accept(line.set(start, end));
+		}
+	}
+
+	/**
+	 * One ASCII line of a mapped range, read in place so no String is made for it.
+	 */
+	private static final class Line implements CharSequence {
+
+		/**
+		 * the mapped range.
+		 */
+		private final ByteBuffer bytes;
+
+		/**
+		 * position of the first character.
+		 */
+		private int from;
+
+		/**
+		 * number of characters.
+		 */
+		private int length;
+
+		/**
+		 * a constructer for a line of a range.
+		 * @param bytes the mapped range
+		 */
+		Line(ByteBuffer bytes) {
+			this.bytes = bytes;
+		}
+
+		/**
+		 * Moves the line to other bytes of the range, leaving out a carriage return at the end.
+		 * @param start position of the first character
+		 * @param end position after the last character
+		 * @return this line
+		 */
+		Line set(int start, int end) {
+			if (end > start && this.bytes.get(end - 1) == '\r') {
+				--end;
+			}
+			this.from = start;
+			this.length = end - start;
+			return this;
+		}
+
+		@Override
+		public int length() {
+			return this.length;
+		}
+
+		@Override
+		public char charAt(int index) {
+			if (index < 0 || index >= this.length) {
+				throw new IndexOutOfBoundsException("Index " + index + " out of bounds!");
+			}
+			return (char) (this.bytes.get(this.from + index) & 0xFF);
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return toString().substring(start, end);
+		}
+
+		@Override
+		public String toString() {
+			byte[] text = new byte[this.length];
+			this.bytes.get(this.from, text);
+			return new String(text, StandardCharsets.US_ASCII);
+		}
+	}
+
+	/**
+	 * Writes an archive of random games, each played until someone connects
+	 * or it reaches MAX_GENERATED_MOVES moves.
+	 * @param archive the archive file, replaced if it exists
+	 * @param games number of games to write
+	 * @param width number of columns of every game
+	 * @param winLength number of connected tokens needed to win
+	 * @param seed seed for the moves, the same seed writes the same archive
+	 * @throws IOException if the archive cannot be written
+	 */
+	public static void generate(Path archive, long games, int width, int winLength, long seed) throws IOException {
+		SplittableRandom random = new SplittableRandom(seed);
+		PowerConnectFour game = new PowerConnectFour(width, winLength);
+		int[] moves = new int[game.maxLegalMoves()];
+		StringBuilder line = new StringBuilder(1024);
+		try (BufferedWriter out = Files.newBufferedWriter(archive, StandardCharsets.US_ASCII)) {
+			for (long g = 0; g < games; ++g) {
+				game.reset();
+				line.setLength(0);
+				for (int ply = 0; ply < MAX_GENERATED_MOVES && !game.isGameOver(); ++ply) {
+					if (moves.length < game.maxLegalMoves()) {
+						moves = new int[game.maxLegalMoves() * 2];
+					}
+					int move = moves[random.nextInt(game.legalMoves(moves))];
+					game.apply(move);
+					line.append(ply == 0 ? "" : ",").append(Move.toString(move));
+				}
+				out.append(line).append('\n');
+			}
+		}
+	}
+
+	/**
+	 * Mergeable totals for a set of games. Each instance is only used by one
+	 * thread at a time; merge combines two when their threads are done.
+	 */
+	public static final class Stats {
+
+		/**
+		 * result index of a game nobody won.
+		 */
+		private static final int UNFINISHED = 0;
+
+		/**
+		 * result index of a game red won.
+		 */
+		private static final int RED_WON = 1;
+
+		/**
+		 * result index of a game yellow won.
+		 */
+		private static final int YELLOW_WON = 2;
+
+		/**
+		 * number of games replayed.
+		 */
+		private long games = 0;
+
+		/**
+		 * number of lines that could not be replayed.
+		 */
+		private long invalid = 0;
+
+		/**
+		 * number of moves played over all games.
+		 */
+		private long moves = 0;
+
+		/**
+		 * games by result index.
+		 */
+		private final long[] results = new long[3];
+
+		/**
+		 * games by length bucket.
+		 */
+		private final long[] lengths = new long[LENGTH_BUCKETS];
+
+		/**
+		 * moves by Move kind.
+		 */
+		private final long[] kinds = new long[4];
+
+		/**
+		 * games by result index, by opening move.
+		 */
+		private final Map<Integer, long[]> openings = new HashMap<>();
+
+		/**
+		 * tallest column of any game.
+		 */
+		private int maxHeight = 0;
+
+		/**
+		 * sum over games of the tallest column of the game.
+		 */
+		private long heightSum = 0;
+
+		/**
+		 * board the games are replayed on.
+		 */
+		private final PowerConnectFour game;
+
+		/**
+		 * moves by kind of the game being replayed.
+		 */
+		private final int[] gameKinds = new int[4];
+
+		/**
+		 * a constructer for empty totals.
+		 * @param width number of columns of every game
+		 * @param winLength number of connected tokens needed to win
+		 */
+		public Stats(int width, int winLength) {
+			this.game = new PowerConnectFour(width, winLength);
+		}
+
+		/**
+		 * Replays one line of an archive and adds it to the totals.
+		 * @param line one game, see the class comment
+		 */
+		public void accept(CharSequence line) {
+			if (isBlank(line) || line.charAt(0) == '#') {
+				return;
+			}
+			PowerConnectFour g = this.game;
+			g.reset();
+			Arrays.fill(this.gameKinds, 0);
+			int opening = -1;
+			int played = 0;
+			int tallest = 0;
+			int result = UNFINISHED;
+			for (int from = 0; from <= line.length() && result == UNFINISHED; ) {
+				int to = from;
+				while (to < line.length() && line.charAt(to) != ',') {
+					++to;
+				}
+				int move;
+				try {
+					move = Move.parse(line, from, to);
+				}
+				catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+					this.invalid++;
+					return;
+				}
+				if (!g.apply(move)) {
+					this.invalid++;
+					return;
+				}
+				if (played++ == 0) {
+					opening = move;
+				}
+				this.gameKinds[Move.kind(move)]++;
+				tallest = Math.max(tallest, g.getColumn(Move.col(move)).size());
+				Token mover = g.currentPlayer() == Token.RED ? Token.YELLOW : Token.RED;
+				if (g.hasFourConnected(mover)) {
+					result = mover == Token.RED ? RED_WON : YELLOW_WON;
+				}
+				else if (g.hasFourConnected(g.currentPlayer())) {
+					result = g.currentPlayer() == Token.RED ? RED_WON : YELLOW_WON;
+				}
+				from = to + 1;
+			}
+			this.games++;
+			this.moves += played;
+			this.results[result]++;
+			this.lengths[32 - Integer.numberOfLeadingZeros(played)]++;
+			for (int k = 0; k < 4; ++k) {
+				this.kinds[k] += this.gameKinds[k];
+			}
+			this.openings.computeIfAbsent(opening, key -> new long[3])[result]++;
+			this.maxHeight = Math.max(this.maxHeight, tallest);
+			this.heightSum += tallest;
+		}
+
+		/**
+		 * Checks whether a line has only white space.
+		 * @param line the line
+		 * @return whether it is blank
+		 */
+		private static boolean isBlank(CharSequence line) {
+			for (int i = 0; i < line.length(); ++i) {
+				if (!Character.isWhitespace(line.charAt(i))) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Adds another set of totals into this one.
+		 * @param other totals to add, not used afterwards
+		 */
+		public void merge(Stats other) {
+			this.games += other.games;
+			this.invalid += other.invalid;
+			this.moves += other.moves;
+			for (int i = 0; i < 3; ++i) {
+				this.results[i] += other.results[i];
+			}
+			for (int i = 0; i < LENGTH_BUCKETS; ++i) {
+				this.lengths[i] += other.lengths[i];
+			}
+			for (int k = 0; k < 4; ++k) {
+				this.kinds[k] += other.kinds[k];
+			}
+			for (Map.Entry<Integer, long[]> e : other.openings.entrySet()) {
+				long[] mine = this.openings.computeIfAbsent(e.getKey(), key -> new long[3]);
+				for (int i = 0; i < 3; ++i) {
+					mine[i] += e.getValue()[i];
+				}
+			}
+			this.maxHeight = Math.max(this.maxHeight, other.maxHeight);
+			this.heightSum += other.heightSum;
+		}
+
+		/**
+		 * getter for the number of games.
+		 * @return number of games replayed
+		 */
+		public long games() {
+			return this.games;
+		}
+
+		/**
+		 * getter for the number of invalid lines.
+		 * @return number of lines that could not be replayed
+		 */
+		public long invalid() {
+			return this.invalid;
+		}
+
+		/**
+		 * getter for the number of moves.
+		 * @return number of moves played over all games
+		 */
+		public long moves() {
+			return this.moves;
+		}
+
+		/**
+		 * getter for how often a kind of move was used.
+		 * @param kind one of the Move kinds
+		 * @return number of moves of that kind
+		 */
+		public long kindCount(int kind) {
+			return this.kinds[kind];
+		}
+
+		/**
+		 * getter for the tallest column.
+		 * @return tallest column of any game
+		 */
+		public int maxHeight() {
+			return this.maxHeight;
+		}
+
+		/**
+		 * Checks whether two sets of totals are the same in every count.
+		 * @param other the other totals
+		 * @return whether they match
+		 */
+		public boolean sameAs(Stats other) {
+			if (this.openings.size() != other.openings.size()) {
+				return false;
+			}
+			for (Map.Entry<Integer, long[]> e : this.openings.entrySet()) {
+				if (!Arrays.equals(e.getValue(), other.openings.get(e.getKey()))) {
+					return false;
+				}
+			}
+			return this.games == other.games && this.invalid == other.invalid && this.moves == other.moves
+				&& this.maxHeight == other.maxHeight && this.heightSum == other.heightSum
+				&& Arrays.equals(this.results, other.results) && Arrays.equals(this.lengths, other.lengths)
+				&& Arrays.equals(this.kinds, other.kinds);
+		}
+
+		/**
+		 * Writes the report.
+		 * @param out where to write it
+		 */
+		public void print(PrintStream out) {
+			long finished = Math.max(1, this.games);
+			out.format("games %d  invalid %d  moves %d  mean length %.1f%n",
+				this.games, this.invalid, this.moves, this.moves / (double) finished);
+			out.format("red won %.1f%%  yellow won %.1f%%  unfinished %.1f%%%n",
+				100.0 * this.results[RED_WON] / finished, 100.0 * this.results[YELLOW_WON] / finished,
+				100.0 * this.results[UNFINISHED] / finished);
+			long total = Math.max(1, this.moves);
+			out.format("moves  D %.1f%%  P %.1f%%  PD %.1f%%  PP %.1f%%%n",
+				100.0 * this.kinds[Move.DROP] / total, 100.0 * this.kinds[Move.POP] / total,
+				100.0 * this.kinds[Move.POWER_DROP] / total, 100.0 * this.kinds[Move.POWER_POP] / total);
+			out.format("tallest column %d  mean tallest per game %.1f%n",
+				this.maxHeight, this.heightSum / (double) finished);
+
+			out.println("length  games");
+			for (int b = 0; b < LENGTH_BUCKETS; ++b) {
+				if (this.lengths[b] > 0) {
+					long lo = b == 0 ? 0 : 1L << (b - 1);
+					long hi = b == 0 ? 0 : (1L << b) - 1;
+					out.format("%d-%d  %d%n", lo, hi, this.lengths[b]);
+				}
+			}
+
+			out.println("opening  games  red won  yellow won");
+			List<Integer> keys = new ArrayList<>(this.openings.keySet());
+			keys.sort(null);
+			for (int key : keys) {
+				long[] r = this.openings.get(key);
+				long n = r[0] + r[1] + r[2];
+				out.format("%s  %d  %.1f%%  %.1f%%%n", key < 0 ? "-" : Move.toString(key), n,
+					100.0 * r[RED_WON] / n, 100.0 * r[YELLOW_WON] / n);
+			}
+		}
+	}
+
+	/**
+	 * Analyses an archive and prints the report with the time taken, or
+	 * with no arguments checks the analytics.
+	 * @param args command line args, see the class comment
+	 * @throws IOException if the archive cannot be read or written
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0) {
+			check();
+			return;
+		}
+		Path archive = Paths.get(args[0]);
+		int threads = Runtime.getRuntime().availableProcessors();
+		int width = PowerConnectFour.DEFAULT_NUM_COLS;
+		int winLength = PowerConnectFour.DEFAULT_WIN_LENGTH;
+		long generate = 0;
+		for (int i = 1; i < args.length; ++i) {
+			switch (args[i]) {
+				case "-p":
+					threads = Integer.parseInt(args[++i]);
+					break;
+				case "-w":
+					width = Integer.parseInt(args[++i]);
+					break;
+				case "-n":
+					winLength = Integer.parseInt(args[++i]);
+					break;
+				case "-g":
+					generate = Long.parseLong(args[++i]);
+					break;
+				default:
+					System.out.println("Unknown option: " + args[i]);
+					System.exit(1);
+			}
+		}
+		if (generate > 0) {
+			generate(archive, generate, width, winLength, 35);
+		}
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		long start = System.nanoTime();
+		Stats stats = analyze(archive, width, winLength, pool);
+		long elapsed = Math.max(System.nanoTime() - start, 1);
+		pool.shutdown();
+		stats.print(System.out);
+		System.out.format("%d ms on %d threads, %.0f games/s%n", elapsed / 1000000, threads,
+			(stats.games() + stats.invalid()) * 1e9 / elapsed);
+	}
+
+	//******************************************************
+	//*******     BELOW THIS LINE IS TESTING CODE    *******
+	//******************************************************
+
+	/**
+	 * Checks the fork-join totals against replaying the lines one by one.
+	 * @throws IOException if the scratch archive cannot be written or read
+	 */
+	private static void check() throws IOException {
+		Path archive = Files.createTempFile("archive", ".txt");
+		try {
+			//random games, then a comment, a blank line and two lines that cannot be played
+			generate(archive, 3000, 7, 4, 35);
+			Files.write(archive, Arrays.asList("# notes", "", "D3,XX", "D0,P5"), StandardCharsets.US_ASCII,
+				StandardOpenOption.APPEND);
+			ForkJoinPool pool = new ForkJoinPool(4);
+			Stats forked = analyze(archive, 7, 4, pool);
+			//ranges of a few lines each must not lose or split a game either
+			Stats tiny = analyze(archive, 7, 4, pool, 100);
+			pool.shutdown();
+			List<String> lines = Files.readAllLines(archive, StandardCharsets.US_ASCII);
+			Stats sequential = new Stats(7, 4);
+			for (String line : lines) {
+				sequential.accept(line);
+			}
+			if (forked.sameAs(sequential) && tiny.sameAs(sequential) && forked.games() == 3000 && forked.invalid() == 2) {
+				System.out.println("Yay 1");
+			}
+
+			//two halves merged are the whole
+			Stats first = new Stats(7, 4);
+			Stats second = new Stats(7, 4);
+			for (int i = 0; i < lines.size(); ++i) {
+				(i < lines.size() / 2 ? first : second).accept(lines.get(i));
+			}
+			first.merge(second);
+			if (first.sameAs(sequential) && !second.sameAs(sequential)) {
+				System.out.println("Yay 2");
+			}
+		}
+		finally {
+			Files.deleteIfExists(archive);
+		}
+
+		//red stacks four in column 0, the move after the win is not counted
+		Stats known = new Stats(7, 4);
+		known.accept("D0,D1,D0,D1,D0,D1,D0,D5");
+		known.accept("D6,PD6:0");
+		if (known.games() == 2 && known.moves() == 9 && known.results[Stats.RED_WON] == 1
+			&& known.kindCount(Move.POWER_DROP) == 1 && known.maxHeight() == 4) {
+			System.out.println("Yay 3");
+		}
+	}
+}
@@ -0,0 +1,360 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  A small local HTTP service that hosts games.
+ *  GET /new with optional w (width, default 7, at most 64) and n (win
+ *  length, default 4) starts a game and answers with its id. GET /move
+ *  with game=id and m=D3 (see Move.parse) plays a move and acknowledges
+ *  it with the player to move next and whether the game is over, by a win
+ *  or by threefold repetition; finished games are dropped, and a move that
+ *  races with the one that finished its game is answered 409.
+ *  GET /end with game=id drops a game early. GET /stats reports how much
+ *  memory the grids of the games hold, and with shared columns on how
+ *  much the sharing saves.
+ *  With a SpectatorServer set, every game can be watched under its id from
+ *  the moment it starts until it is dropped; only games someone watches
+ *  get a move bus.
+ *  Moves on one game are played one at a time, moves on different games
+ *  run in parallel.
+ *  The server turns on sun.net.httpserver.nodelay unless it is set, since
+ *  without it every answer on a kept-alive connection waits about 40 ms
+ *  for a delayed ACK. The property is read once per JVM, so another
+ *  HttpServer made earlier in the process keeps it from taking effect.
+ *  Use with the command:
+ *      java GameServer [port] [threads] [share] [spectatorPort]
+ *  @author Adam David
+ */
+public class GameServer {
+
+	/**
+	 * widest game a request may start.
+	 */
+	private static final int MAX_WIDTH = 64;
+
+	/**
+	 * the underlying JDK server.
+	 */
+	private final HttpServer server;
+
+	/**
+	 * threads that play moves and write responses.
+	 */
+	private final ExecutorService pool;
+
+	/**
+	 * games being played, by id.
+	 */
+	private final Map<Long, PowerConnectFour> games = new ConcurrentHashMap<>();
+
+	/**
+	 * id of the next game.
+	 */
+	private final AtomicLong nextId = new AtomicLong(1);
+
+	/**
+	 * table every game shares its columns through, null for none.
+	 */
+	private final ColumnInterner interner;
+
+	/**
+	 * server games are streamed to, null for none.
+	 */
+	private volatile SpectatorServer spectators;
+
+	/**
+	 * a constructer for a server on the loopback address.
+	 * @param port port to listen on, 0 picks a free one
+	 * @param threads number of requests handled at once
+	 * @throws IOException if the port cannot be opened
+	 */
+	public GameServer(int port, int threads) throws IOException {
+		this(port, threads, false);
+	}
+
+	/**
+	 * a constructer for a server on the loopback address that can share
+	 * identical columns between its games.
+	 * @param port port to listen on, 0 picks a free one
+	 * @param threads number of requests handled at once
+	 * @param shareColumns whether games share columns through a ColumnInterner
+	 * @throws IOException if the port cannot be opened
+	 */
+	public GameServer(int port, int threads, boolean shareColumns) throws IOException {
+		//the JDK server writes headers and body separately, which Nagle holds back for a delayed ACK
+		if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		}
+		this.interner = shareColumns ? new ColumnInterner() : null;
+		this.pool = Executors.newFixedThreadPool(threads);
+		this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 1024);
+		this.server.createContext("/new", this::handle);
+		this.server.createContext("/move", this::handle);
+		this.server.createContext("/end", this::handle);
+		this.server.createContext("/stats", this::handle);
+		this.server.setExecutor(this.pool);
+	}
+
+	/**
+	 * setter for the spectator server. Games started from now on are
+	 * streamed to it.
+	 * @param spectators the started spectator server, null for none
+	 */
+	public void setSpectators(SpectatorServer spectators) {
+		this.spectators = spectators;
+	}
+
+	/**
+	 * Starts answering requests.
+	 */
+	public void start() {
+		this.server.start();
+	}
+
+	/**
+	 * Stops answering requests and shuts the pool down.
+	 */
+	public void stop() {
+		this.server.stop(0);
+		this.pool.shutdownNow();
+	}
+
+	/**
+	 * getter for the port.
+	 * @return the port the server listens on
+	 */
+	public int port() {
+		return this.server.getAddress().getPort();
+	}
+
+	/**
+	 * getter for the number of games.
+	 * @return number of games being played
+	 */
+	public int activeGames() {
+		return this.games.size();
+	}
+
+	/**
+	 * Answers one request.
+	 * @param exchange the request and response
+	 * @throws IOException if the response cannot be written
+	 */
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			if (!"GET".equals(exchange.getRequestMethod())) {
+				send(exchange, 405, error("Only GET is supported"));
+				return;
+			}
+			Map<String, String> params = query(exchange.getRequestURI().getRawQuery());
+			switch (exchange.getHttpContext().getPath()) {
+				case "/new":
+					send(exchange, 200, start(params));
+					break;
+				case "/move":
+					move(exchange, params);
+					break;
+				case "/stats":
+					send(exchange, 200, stats());
+					break;
+				default:
+					long id = Long.parseLong(params.getOrDefault("game", "0"));
+					boolean ended = drop(id);
+					send(exchange, ended ? 200 : 404, ended ? "{\"game\":" + id + ",\"ended\":true}" : error("No game " + id));
+			}
+		}
+		catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+			send(exchange, 400, error(e.getMessage()));
+		}
+		finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Starts a game.
+	 * @param params query parameters
+	 * @return the answer as JSON
+	 */
+	private String start(Map<String, String> params) {
+		int width = Integer.parseInt(params.getOrDefault("w", String.valueOf(PowerConnectFour.DEFAULT_NUM_COLS)));
+		int winLength = Integer.parseInt(params.getOrDefault("n", String.valueOf(PowerConnectFour.DEFAULT_WIN_LENGTH)));
+		if (width > MAX_WIDTH) {
+			throw new IllegalArgumentException("Width must be at most " + MAX_WIDTH + ", not " + width);
+		}
+		PowerConnectFour game = new PowerConnectFour(width, winLength);
+		if (this.interner != null) {
+			game.setInterner(this.interner);
+		}
+		long id = this.nextId.getAndIncrement();
+		this.games.put(id, game);
+		SpectatorServer spectators = this.spectators;
+		if (spectators != null) {
+			spectators.watch(id, game);
+		}
+		return "{\"game\":" + id + "}";
+	}
+
+	/**
+	 * Drops a game, and stops streaming it.
+	 * @param id id of the game
+	 * @return whether there was such a game
+	 */
+	private boolean drop(long id) {
+		if (this.games.remove(id) == null) {
+			return false;
+		}
+		SpectatorServer spectators = this.spectators;
+		if (spectators != null) {
+			spectators.unwatch(id);
+		}
+		return true;
+	}
+
+	/**
+	 * Plays a move and acknowledges it.
+	 * @param exchange the request and response
+	 * @param params query parameters
+	 * @throws IOException if the response cannot be written
+	 */
+	private void move(HttpExchange exchange, Map<String, String> params) throws IOException {
+		long id = Long.parseLong(params.getOrDefault("game", "0"));
+		String text = params.getOrDefault("m", "");
+		int move = Move.parse(text);
+		PowerConnectFour game = this.games.get(id);
+		if (game == null) {
+			send(exchange, 404, error("No game " + id));
+			return;
+		}
+		String json;
+		synchronized (game) {
+			//another request may have finished or ended the game since it was looked up
+			if (this.games.get(id) != game || game.isGameOver() || game.isDrawByRepetition()) {
+				send(exchange, 409, error("Game " + id + " is over"));
+				return;
+			}
+			if (!game.apply(move)) {
+				send(exchange, 400, error("Invalid move: " + text));
+				return;
+			}
+			//decided the way the GUI decides it
+			Token toMove = game.currentPlayer();
+			Token mover = toMove == Token.RED ? Token.YELLOW : Token.RED;
+			Token winner = game.hasFourConnected(mover) ? mover : game.hasFourConnected(toMove) ? toMove : null;
+			//bots that keep popping back and forth would never finish
+			boolean draw = winner == null && game.isDrawByRepetition();
+			if (winner != null || draw) {
+				drop(id);
+			}
+			json = "{\"game\":" + id + ",\"move\":\"" + Move.toString(move) + "\",\"toMove\":\"" + toMove.getSymbol()
+				+ "\",\"over\":" + (winner != null || draw) + (winner != null ? ",\"winner\":\"" + winner.getSymbol() + "\"" : "")
+				+ (draw ? ",\"draw\":true" : "") + "}";
+		}
+		send(exchange, 200, json);
+	}
+
+	/**
+	 * Memory held by the grids of the games. gridBytes counts each game's
+	 * own columns, sharedBytes the shared ones once, and unsharedBytes what
+	 * the grids would hold with nothing shared.
+	 * @return the answer as JSON
+	 */
+	private String stats() {
+		int count = 0;
+		long grids = 0;
+		long unshared = 0;
+		for (PowerConnectFour game : this.games.values()) {
+			synchronized (game) {
+				grids += game.footprintBytes();
+				unshared += game.unsharedFootprintBytes();
+			}
+			++count;
+		}
+		long shared = this.interner == null ? 0 : this.interner.footprintBytes();
+		String json = "{\"games\":" + count + ",\"gridBytes\":" + grids + ",\"sharedBytes\":" + shared
+			+ ",\"unsharedBytes\":" + unshared + ",\"savedBytes\":" + (unshared - grids - shared);
+		if (this.interner != null) {
+			json += ",\"sharedColumns\":" + this.interner.size() + ",\"hits\":" + this.interner.hits()
+				+ ",\"misses\":" + this.interner.misses();
+		}
+		return json + "}";
+	}
+
+	/**
+	 * Splits a raw query string into parameters.
+	 * @param raw raw query string, can be null
+	 * @return parameters by name
+	 */
+	private static Map<String, String> query(String raw) {
+		Map<String, String> params = new HashMap<>();
+		if (raw == null) {
+			return params;
+		}
+		for (String pair : raw.split("&")) {
+			int eq = pair.indexOf('=');
+			if (eq > 0) {
+				params.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+					URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+			}
+		}
+		return params;
+	}
+
+	/**
+	 * Builds an error answer.
+	 * @param message what went wrong
+	 * @return the answer as JSON
+	 */
+	private static String error(String message) {
+		String safe = String.valueOf(message).replace("\\", "\\\\").replace("\"", "\\\"");
+		return "{\"error\":\"" + safe + "\"}";
+	}
+
+	/**
+	 * Writes a JSON response.
+	 * @param exchange the request and response
+	 * @param status HTTP status code
+	 * @param body JSON body
+	 * @throws IOException if the response cannot be written
+	 */
+	private static void send(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	/**
+	 * Starts a server and runs until the process is stopped.
+	 * @param args command line args: port (default 8081), threads, share to share columns (or anything
+	 * else not to), and a port to stream games to spectators on
+	 * @throws IOException if the port cannot be opened
+	 */
+	public static void main(String[] args) throws IOException {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 8081;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors() * 4;
+		boolean share = args.length > 2 && "share".equals(args[2]);
+		GameServer server = new GameServer(port, threads, share);
+		if (args.length > 3) {
+			SpectatorServer spectators = new SpectatorServer(Integer.parseInt(args[3]));
+			spectators.start();
+			server.setSpectators(spectators);
+			System.out.println("Spectators on 127.0.0.1:" + spectators.port());
+		}
+		server.start();
+		System.out.println("Game server on http://127.0.0.1:" + server.port() + "/new");
+	}
+}
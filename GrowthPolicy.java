@@ -0,0 +1,120 @@
+/**
+ * Settings for how a column grows and shrinks its underlying array.
+ * A column grows by growthFactor when it is full, and it gives memory back
+ * by dividing its capacity by shrinkFactor once fewer than
+ * capacity/shrinkThreshold items are left. The gap between the two
+ * numbers is the hysteresis that stops a column from reallocating on
+ * every drop/pop at the same height.
+ * @author Adam David
+ */
+public class GrowthPolicy {
+
+	/**
+	 * The policy columns use unless told otherwise: double when full,
+	 * halve when under a third full, never below 2 slots.
+	 */
+	public static final GrowthPolicy DEFAULT = new GrowthPolicy(2.0, 3, 2, 2);
+
+	/**
+	 * how much the capacity is multiplied by when the array is full.
+	 */
+	private final double growthFactor;
+
+	/**
+	 * shrink once size falls below capacity/shrinkThreshold.
+	 */
+	private final int shrinkThreshold;
+
+	/**
+	 * how much the capacity is divided by when shrinking.
+	 */
+	private final int shrinkFactor;
+
+	/**
+	 * capacity never goes below this.
+	 */
+	private final int minCapacity;
+
+	/**
+	 * a constructer for a growth policy.
+	 * @param growthFactor multiplier used when the array is full, must be above 1
+	 * @param shrinkThreshold shrink when size is below capacity/shrinkThreshold
+	 * @param shrinkFactor divisor used when shrinking, must be smaller than shrinkThreshold
+	 * @param minCapacity smallest capacity a column may have, must be positive
+	 */
+	public GrowthPolicy(double growthFactor, int shrinkThreshold, int shrinkFactor, int minCapacity) {
+		if (!(growthFactor > 1.0)) {
+			throw new IllegalArgumentException("Growth factor must be above 1");
+		}
+		if (shrinkFactor < 2) {
+			throw new IllegalArgumentException("Shrink factor must be at least 2");
+		}
+		//without the gap a column sitting at the threshold would shrink and regrow every move
+		if (shrinkThreshold <= shrinkFactor) {
+			throw new IllegalArgumentException("Shrink threshold must be larger than shrink factor");
+		}
+		if (minCapacity < 1) {
+			throw new IllegalArgumentException("Capacity must be positive");
+		}
+		this.growthFactor = growthFactor;
+		this.shrinkThreshold = shrinkThreshold;
+		this.shrinkFactor = shrinkFactor;
+		this.minCapacity = minCapacity;
+	}
+
+	/**
+	 * getter for the minimum capacity.
+	 * @return smallest capacity allowed
+	 */
+	public int minCapacity() {
+		return this.minCapacity;
+	}
+
+	/**
+	 * Calculates the capacity to use when an array of the given capacity is full.
+	 * @param capacity the current capacity
+	 * @return the larger capacity, always at least one more than before
+	 */
+	public int grow(int capacity) {
+		long next = (long) Math.ceil(capacity * this.growthFactor);
+		if (next > Integer.MAX_VALUE - 8) {
+			next = Integer.MAX_VALUE - 8;
+		}
+		if (next <= capacity) {
+			throw new OutOfMemoryError("Column cannot grow past " + capacity);
+		}
+		return Math.max((int) next, this.minCapacity);
+	}
+
+	/**
+	 * Calculates the capacity to use after a removal.
+	 * @param size the number of items left
+	 * @param capacity the current capacity
+	 * @return the new capacity, or the same capacity if no shrink is needed
+	 */
+	public int shrink(int size, int capacity) {
+		if (size < capacity / (double) this.shrinkThreshold
+			&& capacity / this.shrinkThreshold >= this.minCapacity) {
+			return Math.max(capacity / this.shrinkFactor, this.minCapacity);
+		}
+		return capacity;
+	}
+
+	/**
+	 * Calculates the capacity to use for a trim.
+	 * @param size the number of items stored
+	 * @return the tightest capacity allowed for that size
+	 */
+	public int trim(int size) {
+		return Math.max(size, this.minCapacity);
+	}
+
+	/**
+	 * Allows policy to be printed in a custom format.
+	 * @return string representing the policy
+	 */
+	public String toString() {
+		return "GrowthPolicy(grow x" + this.growthFactor + ", shrink /" + this.shrinkFactor
+			+ " below 1/" + this.shrinkThreshold + ", min " + this.minCapacity + ")";
+	}
+}
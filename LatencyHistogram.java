@@ -0,0 +1,277 @@
+import java.io.PrintStream;
+
+/**
+ *  A latency histogram in the style of HdrHistogram: buckets double in
+ *  width, and each is split into SUB_BUCKETS / 2 equal slots, so every
+ *  value is kept to within 1 part in 128 whatever its size, in a fixed
+ *  few thousand counters. Recording is a couple of shifts and an add.
+ *  Not thread safe; give each thread its own and add them up at the end.
+ *  @author Adam David
+ */
+public class LatencyHistogram {
+
+	/**
+	 * slots of the first bucket, a power of two.
+	 */
+	private static final int SUB_BUCKETS = 256;
+
+	/**
+	 * log2 of SUB_BUCKETS.
+	 */
+	private static final int SUB_BITS = 8;
+
+	/**
+	 * count of each slot.
+	 */
+	private final long[] counts = new long[SUB_BUCKETS + (64 - SUB_BITS) * (SUB_BUCKETS / 2)];
+
+	/**
+	 * number of values recorded.
+	 */
+	private long total = 0;
+
+	/**
+	 * sum of the values recorded, for the mean.
+	 */
+	private double sum = 0;
+
+	/**
+	 * sum of the squares of the values recorded, for the deviation.
+	 */
+	private double sumSquares = 0;
+
+	/**
+	 * largest value recorded.
+	 */
+	private long max = 0;
+
+	/**
+	 * Records one value.
+	 * @param value the value, not negative
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			throw new IllegalArgumentException("Latency cannot be negative: " + value);
+		}
+		++this.counts[slot(value)];
+		++this.total;
+		this.sum += value;
+		this.sumSquares += (double) value * value;
+		this.max = Math.max(this.max, value);
+	}
+
+	/**
+	 * Records one value and makes up for coordinated omission. A closed
+	 * loop client that is held up by a slow answer does not send the
+	 * requests it would have sent meanwhile, so they are never measured.
+	 * If the value is longer than the interval at which values were
+	 * expected, the values those requests would have seen (value minus
+	 * one interval, minus two, and so on) are recorded as well.
+	 * @param value the value, not negative
+	 * @param expectedInterval expected time between values, 0 for no correction
+	 */
+	public void recordCorrected(long value, long expectedInterval) {
+		record(value);
+		if (expectedInterval <= 0) {
+			return;
+		}
+		for (long missed = value - expectedInterval; missed >= expectedInterval; missed -= expectedInterval) {
+			record(missed);
+		}
+	}
+
+	/**
+	 * Adds every value of another histogram to this one.
+	 * @param other the other histogram, left as it was
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < this.counts.length; ++i) {
+			this.counts[i] += other.counts[i];
+		}
+		this.total += other.total;
+		this.sum += other.sum;
+		this.sumSquares += other.sumSquares;
+		this.max = Math.max(this.max, other.max);
+	}
+
+	/**
+	 * getter for the number of values.
+	 * @return number of values recorded
+	 */
+	public long count() {
+		return this.total;
+	}
+
+	/**
+	 * getter for the largest value.
+	 * @return largest value recorded, 0 if none
+	 */
+	public long max() {
+		return this.max;
+	}
+
+	/**
+	 * Mean of the values.
+	 * @return the mean, 0 if none
+	 */
+	public double mean() {
+		return this.total == 0 ? 0 : this.sum / this.total;
+	}
+
+	/**
+	 * Standard deviation of the values.
+	 * @return the deviation, 0 if none
+	 */
+	public double deviation() {
+		if (this.total == 0) {
+			return 0;
+		}
+		double mean = mean();
+		return Math.sqrt(Math.max(0, this.sumSquares / this.total - mean * mean));
+	}
+
+	/**
+	 * Value at a percentile, as the highest value of its slot.
+	 * @param percentile percentile, 0 to 100
+	 * @return the value, 0 if none
+	 */
+	public long valueAt(double percentile) {
+		if (this.total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(Math.min(100, percentile) / 100 * this.total));
+		long seen = 0;
+		for (int i = 0; i < this.counts.length; ++i) {
+			seen += this.counts[i];
+			if (seen >= rank) {
+				return Math.min(highest(i), this.max);
+			}
+		}
+		return this.max;
+	}
+
+	/**
+	 * Prints the percentile distribution the way HdrHistogram does, with a
+	 * line per halving of what is left above, down to 1 in 100000.
+	 * @param out where to print
+	 * @param scale values are divided by this when printed
+	 */
+	public void print(PrintStream out, double scale) {
+		out.format("%12s %14s %10s %14s%n%n", "Value", "Percentile", "TotalCount", "1/(1-Percentile)");
+		for (double left = 100; left >= 0.001; left /= 2) {
+			printLine(out, scale, 100 - left);
+			//also show the round percentiles people ask for
+			if (left > 0.1 && left / 2 < 0.1) {
+				printLine(out, scale, 99.9);
+			}
+			else if (left > 1 && left / 2 < 1) {
+				printLine(out, scale, 99);
+			}
+		}
+		printLine(out, scale, 100);
+		out.format("#[Mean    = %12.3f, StdDeviation   = %12.3f]%n", mean() / scale, deviation() / scale);
+		out.format("#[Max     = %12.3f, Total count    = %12d]%n", this.max / scale, this.total);
+	}
+
+	/**
+	 * Prints one line of the distribution.
+	 * @param out where to print
+	 * @param scale values are divided by this when printed
+	 * @param percentile the percentile
+	 */
+	private void printLine(PrintStream out, double scale, double percentile) {
+		long value = valueAt(percentile);
+		long below = 0;
+		for (int i = 0; i < this.counts.length && lowest(i) <= value; ++i) {
+			below += this.counts[i];
+		}
+		String inverse = percentile >= 100 ? "" : String.format("%.2f", 100 / (100 - percentile));
+		out.format("%12.3f %14.12f %10d %14s%n", value / scale, percentile / 100, below, inverse);
+	}
+
+	/**
+	 * Slot of a value.
+	 * @param value the value, not negative
+	 * @return index into counts
+	 */
+	private static int slot(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS + 1;
+		int top = (int) (value >>> shift);
+		return SUB_BUCKETS + (shift - 1) * (SUB_BUCKETS / 2) + top - SUB_BUCKETS / 2;
+	}
+
+	/**
+	 * Shift of the bucket a slot is in.
+	 * @param slot index into counts
+	 * @return log2 of the slot width
+	 */
+	private static int shift(int slot) {
+		return slot < SUB_BUCKETS ? 0 : (slot - SUB_BUCKETS) / (SUB_BUCKETS / 2) + 1;
+	}
+
+	/**
+	 * Lowest value that goes in a slot.
+	 * @param slot index into counts
+	 * @return the value
+	 */
+	private static long lowest(int slot) {
+		int shift = shift(slot);
+		if (shift == 0) {
+			return slot;
+		}
+		long top = slot - SUB_BUCKETS - (shift - 1) * (SUB_BUCKETS / 2) + SUB_BUCKETS / 2;
+		return top << shift;
+	}
+
+	/**
+	 * Highest value that goes in a slot.
+	 * @param slot index into counts
+	 * @return the value
+	 */
+	private static long highest(int slot) {
+		return lowest(slot) + (1L << shift(slot)) - 1;
+	}
+
+	//******************************************************
+	//*******     BELOW THIS LINE IS TESTING CODE    *******
+	//******************************************************
+
+	/**
+	 * Main is testing precision, the correction and adding up.
+	 * @param args takes in command line arguements
+	 */
+	public static void main(String[] args) {
+		LatencyHistogram h = new LatencyHistogram();
+		for (long v = 1; v <= 1000000; ++v) {
+			h.record(v);
+		}
+		boolean close = true;
+		for (double p : new double[] {50, 90, 99, 99.9}) {
+			double exact = p * 10000;
+			close = close && Math.abs(h.valueAt(p) - exact) <= exact / 128;
+		}
+		if (close && h.valueAt(100) == 1000000 && h.count() == 1000000 && Math.abs(h.mean() - 500000.5) < 1e-6) {
+			System.out.println("Yay 1");
+		}
+
+		//one stall of 200 with values expected every 20 hides nine more
+		LatencyHistogram stalled = new LatencyHistogram();
+		for (int i = 0; i < 90; ++i) {
+			stalled.recordCorrected(10, 20);
+		}
+		stalled.recordCorrected(200, 20);
+		if (stalled.count() == 100 && stalled.valueAt(95) == 100 && stalled.valueAt(90) == 10) {
+			System.out.println("Yay 2");
+		}
+
+		LatencyHistogram sum = new LatencyHistogram();
+		sum.add(h);
+		sum.add(stalled);
+		if (sum.count() == 1000100 && sum.max() == 1000000 && sum.valueAt(0.001) == 10) {
+			System.out.println("Yay 3");
+		}
+	}
+}
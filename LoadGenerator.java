@@ -0,0 +1,637 @@
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ *  Closed-loop load test of the game server. Each simulated player starts
+ *  a game, then over and over thinks, picks a legal move from a weighted
+ *  mix of drops, pops, power drops and power pops, sends it and waits for
+ *  the acknowledgement; it plays both colours and starts a new game when
+ *  one ends. A failed request counts as an error and costs the player
+ *  its game, which is ended on the server, but not the rest of the run.
+ *  Players run on virtual threads when the JDK has them, else on
+ *  platform threads. Every player has its own seeded random source, so a
+ *  run with the same options sends the same moves.
+ *  Reports throughput and the acknowledgement latency as measured and
+ *  corrected for coordinated omission (see LatencyHistogram), with the full
+ *  distribution in HdrHistogram's format. Without -u a server is started in
+ *  this process. The server needs sun.net.httpserver.nodelay on, which
+ *  GameServer does itself, or every acknowledgement on a kept-alive
+ *  connection waits about 40 ms for a delayed ACK and the latencies
+ *  measure TCP instead of the game.
+ *  Use with the command:
+ *      java LoadGenerator [-u url] [-p players] [-d seconds] [-W warmupSeconds]
+ *          [-t none|fixed:ms|uniform:lo:hi|exp:mean] [-m drop,pop,powerDrop,powerPop]
+ *          [-i intervalMs] [-w width] [-n winLength] [-g maxPlies] [-s seed]
+ *  @author Adam David
+ */
+public class LoadGenerator {
+
+	/**
+	 * how much each move kind is picked, by kind.
+	 */
+	private static final int[] DEFAULT_MIX = {60, 10, 20, 10};
+
+	/**
+	 * how long a request may take before it counts as an error.
+	 */
+	private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+
+	/**
+	 * how long a player waits after a failed request before the next one.
+	 */
+	private static final long ERROR_PAUSE_NANOS = 10000000L;
+
+	/**
+	 * client shared by every player.
+	 */
+	private final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+
+	/**
+	 * address of the server, without a trailing slash.
+	 */
+	private final String base;
+
+	/**
+	 * number of columns of each game.
+	 */
+	private final int width;
+
+	/**
+	 * win length of each game.
+	 */
+	private final int winLength;
+
+	/**
+	 * weight of each move kind.
+	 */
+	private final int[] mix;
+
+	/**
+	 * time players think before each move.
+	 */
+	private final Think think;
+
+	/**
+	 * expected time between moves of a player in microseconds, 0 for no correction.
+	 */
+	private final long intervalMicros;
+
+	/**
+	 * moves after which a game is given up and a new one started.
+	 */
+	private final int maxPlies;
+
+	/**
+	 * a constructer for a load generator.
+	 * @param base address of the server, like http://127.0.0.1:8081
+	 * @param width number of columns of each game
+	 * @param winLength win length of each game
+	 * @param mix weight of each move kind, by kind
+	 * @param think time players think before each move
+	 * @param intervalMicros expected time between moves of a player, 0 for no correction
+	 * @param maxPlies moves after which a game is given up
+	 */
+	public LoadGenerator(String base, int width, int winLength, int[] mix, Think think, long intervalMicros, int maxPlies) {
+		if (mix.length != 4) {
+			throw new IllegalArgumentException("Move mix needs a weight for each of the 4 move kinds");
+		}
+		this.base = base.endsWith("/") ? base.substring(0, base.length() - 1) : base;
+		this.width = width;
+		this.winLength = winLength;
+		this.mix = mix.clone();
+		this.think = think;
+		this.intervalMicros = intervalMicros;
+		this.maxPlies = maxPlies;
+	}
+
+	/**
+	 * Think time distribution.
+	 */
+	public static final class Think {
+
+		/**
+		 * one of none, fixed, uniform and exp.
+		 */
+		private final String kind;
+
+		/**
+		 * fixed time, lowest time or mean time in nanoseconds.
+		 */
+		private final long a;
+
+		/**
+		 * highest time in nanoseconds, for uniform.
+		 */
+		private final long b;
+
+		/**
+		 * a constructer for a distribution.
+		 * @param kind one of none, fixed, uniform and exp
+		 * @param a fixed time, lowest time or mean time in nanoseconds
+		 * @param b highest time in nanoseconds, for uniform
+		 */
+		private Think(String kind, long a, long b) {
+			this.kind = kind;
+			this.a = a;
+			this.b = b;
+		}
+
+		/**
+		 * Reads a distribution like none, fixed:5, uniform:0:10 or exp:5,
+		 * times in milliseconds.
+		 * @param text the distribution
+		 * @return the distribution
+		 */
+		public static Think parse(String text) {
+			String[] parts = text.split(":");
+			try {
+				switch (parts[0]) {
+					case "none":
+						return new Think("none", 0, 0);
+					case "fixed":
+					case "exp":
+						return new Think(parts[0], millisToNanos(parts[1]), 0);
+					case "uniform":
+						long lo = millisToNanos(parts[1]);
+						long hi = millisToNanos(parts[2]);
+						if (hi < lo) {
+							throw new IllegalArgumentException("Think time range is empty: " + text);
+						}
+						return new Think("uniform", lo, hi);
+					default:
+						throw new IllegalArgumentException("Unknown think time: " + text);
+				}
+			}
+			catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+				throw new IllegalArgumentException("Unknown think time: " + text);
+			}
+		}
+
+		/**
+		 * Draws one think time.
+		 * @param random the player's random source
+		 * @return the time in nanoseconds
+		 */
+		long next(SplittableRandom random) {
+			switch (this.kind) {
+				case "fixed":
+					return this.a;
+				case "uniform":
+					return this.a + (long) (random.nextDouble() * (this.b - this.a));
+				case "exp":
+					return (long) (-Math.log(1 - random.nextDouble()) * this.a);
+				default:
+					return 0;
+			}
+		}
+
+		/**
+		 * Mean think time.
+		 * @return the mean in nanoseconds
+		 */
+		public long mean() {
+			return "uniform".equals(this.kind) ? (this.a + this.b) / 2 : this.a;
+		}
+
+		/**
+		 * Reads a time in milliseconds.
+		 * @param text the time, can have a fraction
+		 * @return the time in nanoseconds
+		 */
+		private static long millisToNanos(String text) {
+			double millis = Double.parseDouble(text);
+			if (millis < 0) {
+				throw new IllegalArgumentException("Think time cannot be negative: " + text);
+			}
+			return (long) (millis * 1000000);
+		}
+	}
+
+	/**
+	 * Totals of a run.
+	 */
+	public static final class Report {
+
+		/**
+		 * acknowledgement latency in microseconds, as measured.
+		 */
+		private final LatencyHistogram raw = new LatencyHistogram();
+
+		/**
+		 * acknowledgement latency in microseconds, corrected.
+		 */
+		private final LatencyHistogram corrected = new LatencyHistogram();
+
+		/**
+		 * moves acknowledged while measuring.
+		 */
+		private long moves = 0;
+
+		/**
+		 * games finished or given up while measuring.
+		 */
+		private long games = 0;
+
+		/**
+		 * requests that failed.
+		 */
+		private long errors = 0;
+
+		/**
+		 * length of the measured part of the run in nanoseconds.
+		 */
+		private long nanos = 1;
+
+		/**
+		 * getter for the measured latency.
+		 * @return latency in microseconds, as measured
+		 */
+		public LatencyHistogram raw() {
+			return this.raw;
+		}
+
+		/**
+		 * getter for the corrected latency.
+		 * @return latency in microseconds, corrected for coordinated omission
+		 */
+		public LatencyHistogram corrected() {
+			return this.corrected;
+		}
+
+		/**
+		 * getter for the number of moves.
+		 * @return moves acknowledged while measuring
+		 */
+		public long moves() {
+			return this.moves;
+		}
+
+		/**
+		 * getter for the number of errors.
+		 * @return requests that failed
+		 */
+		public long errors() {
+			return this.errors;
+		}
+
+		/**
+		 * Moves acknowledged per second.
+		 * @return the throughput
+		 */
+		public double throughput() {
+			return this.moves * 1e9 / this.nanos;
+		}
+
+		/**
+		 * Adds a player's totals.
+		 * @param player the player, finished
+		 */
+		private void add(Player player) {
+			this.raw.add(player.raw);
+			this.corrected.add(player.corrected);
+			this.moves += player.moves;
+			this.games += player.games;
+			this.errors += player.errors;
+		}
+	}
+
+	/**
+	 * Runs the players and waits for them.
+	 * @param players number of players
+	 * @param warmupMillis time before measuring starts
+	 * @param millis time measured
+	 * @param seed seed of the first player, the others follow it
+	 * @return the totals
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public Report run(int players, long warmupMillis, long millis, long seed) throws InterruptedException {
+		long measureFrom = System.nanoTime() + warmupMillis * 1000000L;
+		long end = measureFrom + millis * 1000000L;
+		List<Player> list = new ArrayList<>(players);
+		List<Thread> threads = new ArrayList<>(players);
+		for (int i = 0; i < players; ++i) {
+			Player player = new Player(new SplittableRandom(seed + i), measureFrom, end);
+			list.add(player);
+			threads.add(startThread(player, "player-" + i));
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		Report report = new Report();
+		report.nanos = Math.max(1, Math.min(System.nanoTime(), end) - measureFrom);
+		for (Player player : list) {
+			report.add(player);
+		}
+		return report;
+	}
+
+	/**
+	 * One simulated player and its own totals.
+	 */
+	private final class Player implements Runnable {
+
+		/**
+		 * source of think times and moves.
+		 */
+		private final SplittableRandom random;
+
+		/**
+		 * System.nanoTime() from which answers are counted.
+		 */
+		private final long measureFrom;
+
+		/**
+		 * System.nanoTime() after which no move is sent.
+		 */
+		private final long end;
+
+		/**
+		 * latency as measured.
+		 */
+		private final LatencyHistogram raw = new LatencyHistogram();
+
+		/**
+		 * latency corrected.
+		 */
+		private final LatencyHistogram corrected = new LatencyHistogram();
+
+		/**
+		 * moves acknowledged while measuring.
+		 */
+		private long moves = 0;
+
+		/**
+		 * games finished or given up while measuring.
+		 */
+		private long games = 0;
+
+		/**
+		 * requests that failed.
+		 */
+		private long errors = 0;
+
+		/**
+		 * a constructer for a player.
+		 * @param random source of think times and moves
+		 * @param measureFrom System.nanoTime() from which answers are counted
+		 * @param end System.nanoTime() after which no move is sent
+		 */
+		Player(SplittableRandom random, long measureFrom, long end) {
+			this.random = random;
+			this.measureFrom = measureFrom;
+			this.end = end;
+		}
+
+		@Override
+		public void run() {
+			PowerConnectFour mirror = null;
+			long game = -1;
+			int plies = 0;
+			try {
+				while (System.nanoTime() < this.end) {
+					//one failed request costs that game, not the player
+					try {
+						if (game < 0) {
+							String started = get("/new?w=" + width + "&n=" + winLength);
+							if (started == null) {
+								++this.errors;
+								LockSupport.parkNanos(ERROR_PAUSE_NANOS);
+								continue;
+							}
+							game = Long.parseLong(started.replaceAll("[^0-9]", ""));
+							mirror = new PowerConnectFour(width, winLength);
+							plies = 0;
+						}
+						long pause = think.next(this.random);
+						if (pause > 0) {
+							LockSupport.parkNanos(pause);
+						}
+						int move = pick(mirror);
+						long sent = System.nanoTime();
+						String ack = get("/move?game=" + game + "&m=" + Move.toString(move));
+						long micros = (System.nanoTime() - sent) / 1000;
+						boolean measured = sent >= this.measureFrom;
+						if (measured) {
+							this.raw.record(micros);
+							this.corrected.recordCorrected(micros, intervalMicros);
+						}
+						if (ack == null) {
+							//the copy no longer matches the server's game, so it is given up there too
+							++this.errors;
+							abandon(game);
+							game = -1;
+							continue;
+						}
+						mirror.apply(move);
+						++plies;
+						this.moves += measured ? 1 : 0;
+						if (ack.contains("\"over\":true") || plies >= maxPlies) {
+							if (plies >= maxPlies && !ack.contains("\"over\":true")) {
+								get("/end?game=" + game);
+							}
+							this.games += measured ? 1 : 0;
+							game = -1;
+						}
+					}
+					catch (IOException | RuntimeException e) {
+						++this.errors;
+						if (game >= 0) {
+							abandon(game);
+							game = -1;
+						}
+						LockSupport.parkNanos(ERROR_PAUSE_NANOS);
+					}
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		/**
+		 * Ends a game on the server after a failed request, so it is not
+		 * left hosted. A failure here only counts as another error.
+		 * @param game id of the game
+		 * @throws InterruptedException if interrupted while waiting
+		 */
+		private void abandon(long game) throws InterruptedException {
+			try {
+				get("/end?game=" + game);
+			}
+			catch (IOException | RuntimeException e) {
+				++this.errors;
+			}
+		}
+
+		/**
+		 * Picks a move: first a kind by the mix weights, among the kinds
+		 * that have a legal move, then one move of that kind.
+		 * @param game the player's copy of the game
+		 * @return the packed move
+		 */
+		private int pick(PowerConnectFour game) {
+			int[] moves = new int[game.maxLegalMoves()];
+			int n = game.legalMoves(moves);
+			int[] perKind = new int[4];
+			for (int i = 0; i < n; ++i) {
+				++perKind[Move.kind(moves[i])];
+			}
+			int total = 0;
+			for (int kind = 0; kind < 4; ++kind) {
+				total += perKind[kind] > 0 ? mix[kind] : 0;
+			}
+			if (total == 0) {
+				return moves[this.random.nextInt(n)];
+			}
+			int r = this.random.nextInt(total);
+			int kind = 0;
+			while (perKind[kind] == 0 || r >= mix[kind]) {
+				r -= perKind[kind] > 0 ? mix[kind] : 0;
+				++kind;
+			}
+			int which = this.random.nextInt(perKind[kind]);
+			for (int i = 0; i < n; ++i) {
+				if (Move.kind(moves[i]) == kind && which-- == 0) {
+					return moves[i];
+				}
+			}
+			return moves[0];
+		}
+	}
+
+	/**
+	 * Sends one request.
+	 * @param path path and query
+	 * @return the body, or null if the server did not answer 200
+	 * @throws IOException if the request fails
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	private String get(String path) throws IOException, InterruptedException {
+		HttpRequest request = HttpRequest.newBuilder(URI.create(this.base + path)).timeout(REQUEST_TIMEOUT).GET().build();
+		HttpResponse<String> response = this.client.send(request, HttpResponse.BodyHandlers.ofString());
+		return response.statusCode() == 200 ? response.body() : null;
+	}
+
+	/**
+	 * Starts a task on a virtual thread if the JDK has them, else on a
+	 * daemon platform thread.
+	 * @param task the task
+	 * @param name name of a platform thread
+	 * @return the started thread
+	 */
+	private static Thread startThread(Runnable task, String name) {
+		try {
+			Method virtual = Thread.class.getMethod("startVirtualThread", Runnable.class);
+			return (Thread) virtual.invoke(null, task);
+		}
+		catch (ReflectiveOperationException | UnsupportedOperationException e) {
+			Thread t = new Thread(task, name);
+			t.setDaemon(true);
+			t.start();
+			return t;
+		}
+	}
+
+	/**
+	 * Runs a load test and prints the report.
+	 * @param args command line args, see the class comment
+	 * @throws IOException if the local server cannot be started
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		String url = null;
+		int players = 100;
+		long seconds = 10;
+		long warmup = 2;
+		Think think = Think.parse("exp:10");
+		int[] mix = DEFAULT_MIX.clone();
+		double intervalMillis = -1;
+		int width = PowerConnectFour.DEFAULT_NUM_COLS;
+		int winLength = PowerConnectFour.DEFAULT_WIN_LENGTH;
+		int maxPlies = 200;
+		long seed = 43;
+		for (int i = 0; i < args.length; ++i) {
+			switch (args[i]) {
+				case "-u":
+					url = args[++i];
+					break;
+				case "-p":
+					players = Integer.parseInt(args[++i]);
+					break;
+				case "-d":
+					seconds = Long.parseLong(args[++i]);
+					break;
+				case "-W":
+					warmup = Long.parseLong(args[++i]);
+					break;
+				case "-t":
+					think = Think.parse(args[++i]);
+					break;
+				case "-m":
+					String[] weights = args[++i].split(",");
+					for (int k = 0; k < mix.length; ++k) {
+						mix[k] = k < weights.length ? Integer.parseInt(weights[k]) : 0;
+					}
+					break;
+				case "-i":
+					intervalMillis = Double.parseDouble(args[++i]);
+					break;
+				case "-w":
+					width = Integer.parseInt(args[++i]);
+					break;
+				case "-n":
+					winLength = Integer.parseInt(args[++i]);
+					break;
+				case "-g":
+					maxPlies = Integer.parseInt(args[++i]);
+					break;
+				case "-s":
+					seed = Long.parseLong(args[++i]);
+					break;
+				default:
+					System.out.println("Unknown option: " + args[i]);
+					System.exit(1);
+			}
+		}
+
+		GameServer local = null;
+		if (url == null) {
+			local = new GameServer(0, Runtime.getRuntime().availableProcessors() * 4);
+			local.start();
+			url = "http://127.0.0.1:" + local.port();
+		}
+		//by default a player is expected to move once per mean think time
+		long interval = intervalMillis >= 0 ? (long) (intervalMillis * 1000) : think.mean() / 1000;
+		LoadGenerator generator = new LoadGenerator(url, width, winLength, mix, think, interval, maxPlies);
+		Report report = generator.run(players, warmup * 1000, seconds * 1000, seed);
+		if (local != null) {
+			local.stop();
+		}
+
+		System.out.format("%d players, %d s, %d moves, %.1f moves/s, %d games, %d errors%n",
+			players, seconds, report.moves, report.throughput(), report.games, report.errors);
+		summary("measured", report.raw);
+		summary(interval > 0 ? String.format("corrected (interval %.3f ms)", interval / 1000.0) : "corrected (off)", report.corrected);
+		System.out.println();
+		report.corrected.print(System.out, 1000.0);
+	}
+
+	/**
+	 * Prints the headline percentiles of a histogram in milliseconds.
+	 * @param label what the histogram is
+	 * @param h latency in microseconds
+	 */
+	private static void summary(String label, LatencyHistogram h) {
+		System.out.format("%-32s p50 %8.3f ms  p99 %8.3f ms  p999 %8.3f ms  max %8.3f ms%n", label,
+			h.valueAt(50) / 1000.0, h.valueAt(99) / 1000.0, h.valueAt(99.9) / 1000.0, h.max() / 1000.0);
+	}
+}
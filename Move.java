@@ -0,0 +1,281 @@
+/**
+ *  Helpers for moves packed into a single int, so move lists can live in
+ *  plain int arrays without allocating an object per move.
+ *  Bits 0-1 hold the kind, bits 2-13 the column and bits 14-31 the row.
+ *  Written out a move looks like the GUI input without spaces:
+ *  D3, P3, PD3:0 and PP3:0.
+ *  @author Adam David
+ */
+public final class Move {
+
+	/**
+	 * kind of a plain drop.
+	 */
+	public static final int DROP = 0;
+
+	/**
+	 * kind of a plain pop.
+	 */
+	public static final int POP = 1;
+
+	/**
+	 * kind of a power drop.
+	 */
+	public static final int POWER_DROP = 2;
+
+	/**
+	 * kind of a power pop.
+	 */
+	public static final int POWER_POP = 3;
+
+	/**
+	 * largest column a move can name.
+	 */
+	public static final int MAX_COL = (1 << 12) - 1;
+
+	/**
+	 * largest row a move can name.
+	 */
+	public static final int MAX_ROW = (1 << 18) - 1;
+
+	/**
+	 * short names of the kinds, by kind.
+	 */
+	private static final String[] NAMES = {"D", "P", "PD", "PP"};
+
+	/**
+	 * Only static helpers, no instances.
+	 */
+	private Move() {
+	}
+
+	/**
+	 * Packs a move.
+	 * @param kind one of DROP, POP, POWER_DROP, POWER_POP
+	 * @param col index of the column
+	 * @param row index of the row, ignored for drop and pop
+	 * @return packed move
+	 */
+	public static int of(int kind, int col, int row) {
+		if (kind < DROP || kind > POWER_POP) {
+			throw new IllegalArgumentException("Unknown move kind " + kind);
+		}
+		if (col < 0 || col > MAX_COL || row < 0 || row > MAX_ROW) {
+			throw new IndexOutOfBoundsException("Col " + col + ", Row "+ row + " out of bounds!");
+		}
+		return kind | (col << 2) | (row << 14);
+	}
+
+	/**
+	 * Packs a plain drop.
+	 * @param col index of the column
+	 * @return packed move
+	 */
+	public static int drop(int col) {
+		return of(DROP, col, 0);
+	}
+
+	/**
+	 * Packs a plain pop.
+	 * @param col index of the column
+	 * @return packed move
+	 */
+	public static int pop(int col) {
+		return of(POP, col, 0);
+	}
+
+	/**
+	 * Packs a power drop.
+	 * @param col index of the column
+	 * @param row index of the row
+	 * @return packed move
+	 */
+	public static int powerDrop(int col, int row) {
+		return of(POWER_DROP, col, row);
+	}
+
+	/**
+	 * Packs a power pop.
+	 * @param col index of the column
+	 * @param row index of the row
+	 * @return packed move
+	 */
+	public static int powerPop(int col, int row) {
+		return of(POWER_POP, col, row);
+	}
+
+	/**
+	 * Reads the kind of a packed move.
+	 * @param move packed move
+	 * @return one of DROP, POP, POWER_DROP, POWER_POP
+	 */
+	public static int kind(int move) {
+		return move & 3;
+	}
+
+	/**
+	 * Reads the column of a packed move.
+	 * @param move packed move
+	 * @return index of the column
+	 */
+	public static int col(int move) {
+		return (move >>> 2) & MAX_COL;
+	}
+
+	/**
+	 * Reads the row of a packed move.
+	 * @param move packed move
+	 * @return index of the row, 0 for drop and pop
+	 */
+	public static int row(int move) {
+		return move >>> 14;
+	}
+
+	/**
+	 * Writes a packed move out, for example PD3:0.
+	 * @param move packed move
+	 * @return the move as text
+	 */
+	public static String toString(int move) {
+		int kind = kind(move);
+		if (kind == DROP || kind == POP) {
+			return NAMES[kind] + col(move);
+		}
+		return NAMES[kind] + col(move) + ":" + row(move);
+	}
+
+	/**
+	 * Reads a move written out by toString.
+	 * @param text the move as text, for example PD3:0
+	 * @return packed move
+	 */
+	public static int parse(String text) {
+		String s = text.trim();
+		int kind;
+		int at;
+		if (s.startsWith("PD")) {
+			kind = POWER_DROP;
+			at = 2;
+		}
+		else if (s.startsWith("PP")) {
+			kind = POWER_POP;
+			at = 2;
+		}
+		else if (s.startsWith("D")) {
+			kind = DROP;
+			at = 1;
+		}
+		else if (s.startsWith("P")) {
+			kind = POP;
+			at = 1;
+		}
+		else {
+			throw new IllegalArgumentException("Unknown move: " + text);
+		}
+		try {
+			int colon = s.indexOf(':');
+			if (kind == DROP || kind == POP) {
+				if (colon >= 0) {
+					throw new IllegalArgumentException("Unknown move: " + text);
+				}
+				return of(kind, Integer.parseInt(s.substring(at)), 0);
+			}
+			if (colon < 0) {
+				throw new IllegalArgumentException("Move needs a row: " + text);
+			}
+			return of(kind, Integer.parseInt(s.substring(at, colon)), Integer.parseInt(s.substring(colon + 1)));
+		}
+		catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Unknown move: " + text);
+		}
+	}
+
+	/**
+	 * Reads a move from part of a line without copying it out, for tools
+	 * that read millions of moves. Takes the same notation as parse.
+	 * @param text text holding the move
+	 * @param from index of the first character of the move
+	 * @param to index just past the last character of the move
+	 * @return packed move
+	 */
+	public static int parse(CharSequence text, int from, int to) {
+		while (from < to && Character.isWhitespace(text.charAt(from))) {
+			++from;
+		}
+		while (to > from && Character.isWhitespace(text.charAt(to - 1))) {
+			--to;
+		}
+		int at = from;
+		int kind;
+		if (at < to && text.charAt(at) == 'P') {
+			++at;
+			if (at < to && text.charAt(at) == 'D') {
+				kind = POWER_DROP;
+				++at;
+			}
+			else if (at < to && text.charAt(at) == 'P') {
+				kind = POWER_POP;
+				++at;
+			}
+			else {
+				kind = POP;
+			}
+		}
+		else if (at < to && text.charAt(at) == 'D') {
+			kind = DROP;
+			++at;
+		}
+		else {
+			throw new IllegalArgumentException("Unknown move: " + text.subSequence(from, to));
+		}
+		int colEnd = digitsEnd(text, at, to);
+		if (colEnd == at) {
+			throw new IllegalArgumentException("Unknown move: " + text.subSequence(from, to));
+		}
+		int col = digitsValue(text, at, colEnd);
+		if (kind == DROP || kind == POP) {
+			if (colEnd != to) {
+				throw new IllegalArgumentException("Unknown move: " + text.subSequence(from, to));
+			}
+			return of(kind, col, 0);
+		}
+		if (colEnd == to || text.charAt(colEnd) != ':') {
+			throw new IllegalArgumentException("Move needs a row: " + text.subSequence(from, to));
+		}
+		int rowEnd = digitsEnd(text, colEnd + 1, to);
+		if (rowEnd == colEnd + 1 || rowEnd != to) {
+			throw new IllegalArgumentException("Unknown move: " + text.subSequence(from, to));
+		}
+		return of(kind, col, digitsValue(text, colEnd + 1, rowEnd));
+	}
+
+	/**
+	 * Finds the end of a run of digits.
+	 * @param text text holding the digits
+	 * @param from index of the first character to look at
+	 * @param to index to stop at
+	 * @return index of the first character that is not a digit
+	 */
+	private static int digitsEnd(CharSequence text, int from, int to) {
+		while (from < to && text.charAt(from) >= '0' && text.charAt(from) <= '9') {
+			++from;
+		}
+		return from;
+	}
+
+	/**
+	 * Reads a run of digits, stopping short of overflow; anything that big
+	 * is out of bounds for a move anyway.
+	 * @param text text holding the digits
+	 * @param from index of the first digit
+	 * @param to index just past the last digit
+	 * @return the value
+	 */
+	private static int digitsValue(CharSequence text, int from, int to) {
+		int value = 0;
+		for (int i = from; i < to && value <= MAX_ROW; ++i) {
+			value = value * 10 + (text.charAt(i) - '0');
+		}
+		return value;
+	}
+}
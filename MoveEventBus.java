@@ -0,0 +1,380 @@
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ *  Fans move events out from one game thread to any number of consumers
+ *  (spectators, renderers, archivers) through a preallocated ring buffer.
+ *  Publishing never blocks and never allocates: each event is packed into
+ *  one long in a fixed slot. Each subscription reads at its own pace; one
+ *  that falls more than the buffer capacity behind skips ahead to the
+ *  oldest event still held and counts the events it missed.
+ *  Besides moves there is one more kind of event, RELOAD, for a position
+ *  that changed without a move (a reset, load or undo); a consumer that
+ *  follows the moves has to read the game again.
+ *  A consumer that sleeps between events can ask to be told of each
+ *  publish; the listener runs on the game thread, so it must be quick.
+ *  One thread publishes, each subscription is polled by one thread.
+ *  @author Adam David
+ */
+public class MoveEventBus {
+
+	/**
+	 * Receives events from a subscription.
+	 */
+	public interface Handler {
+
+		/**
+		 * Called once per event, in order.
+		 * @param sequence position of the event in the stream, starting at 0
+		 * @param kind one of the Move kinds, or RELOAD
+		 * @param col index of the column, 0 for RELOAD
+		 * @param row row the token landed on or was removed from, 0 for RELOAD
+		 * @param player player who made the move, the player to move for RELOAD
+		 * @param height height of the column after the move, 0 for RELOAD
+		 */
+		void onEvent(long sequence, int kind, int col, int row, Token player, int height);
+	}
+
+	/**
+	 * kind of the event for a position that changed without a move.
+	 */
+	public static final int RELOAD = 4;
+
+	/**
+	 * bit of a packed event set for RELOAD.
+	 */
+	private static final long RELOAD_BIT = 1L << 63;
+
+	/**
+	 * tokens by ordinal, kept so reading an event does not copy Token.values().
+	 */
+	private static final Token[] TOKENS = Token.values();
+
+	/**
+	 * marks a slot that is being written.
+	 */
+	private static final long WRITING = -1L;
+
+	/**
+	 * packed event of each slot.
+	 */
+	private final AtomicLongArray events;
+
+	/**
+	 * sequence of the event held by each slot, WRITING while it changes.
+	 */
+	private final AtomicLongArray sequences;
+
+	/**
+	 * slot count minus one, the slot count is a power of two.
+	 */
+	private final int mask;
+
+	/**
+	 * sequence the next event gets, only written by the publishing thread.
+	 */
+	private volatile long cursor = 0;
+
+	/**
+	 * run after every publish, or null.
+	 */
+	private volatile Runnable listener;
+
+	/**
+	 * every open subscription, for metrics.
+	 */
+	private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+	/**
+	 * a constructer for a bus holding the last capacity events.
+	 * @param capacity number of slots, rounded up to a power of two
+	 */
+	public MoveEventBus(int capacity) {
+		if (capacity < 1 || capacity > (1 << 30)) {
+			throw new IllegalArgumentException("Capacity must be between 1 and 2^30");
+		}
+		int slots = Integer.highestOneBit(capacity);
+		if (slots < capacity) {
+			slots <<= 1;
+		}
+		this.events = new AtomicLongArray(slots);
+		this.sequences = new AtomicLongArray(slots);
+		for (int i = 0; i < slots; ++i) {
+			this.sequences.set(i, WRITING);
+		}
+		this.mask = slots - 1;
+	}
+
+	/**
+	 * getter for the capacity.
+	 * @return number of events the buffer holds
+	 */
+	public int capacity() {
+		return this.mask + 1;
+	}
+
+	/**
+	 * getter for the number of events published.
+	 * @return events published so far
+	 */
+	public long published() {
+		return this.cursor;
+	}
+
+	/**
+	 * Adds an event. Only the game thread may call this.
+	 * @param kind one of the Move kinds
+	 * @param col index of the column
+	 * @param row row the token landed on or was removed from
+	 * @param player player who made the move
+	 * @param height height of the column after the move
+	 */
+	public void publish(int kind, int col, int row, Token player, int height) {
+		if (col < 0 || col > Move.MAX_COL || row < 0 || row > Move.MAX_ROW) {
+			throw new IndexOutOfBoundsException("Col " + col + ", Row " + row + " out of bounds!");
+		}
+		if (height < 0 || height > Move.MAX_ROW + 1) {
+			throw new IndexOutOfBoundsException("Height: " + height + " out of bounds!");
+		}
+		write((kind & 3L)
+			| ((long) col << 2)
+			| ((long) row << 14)
+			| ((long) player.ordinal() << 32)
+			| ((long) height << 33));
+	}
+
+	/**
+	 * Adds a RELOAD event: the position changed without a move. Only the
+	 * game thread may call this.
+	 * @param toMove player to move in the new position
+	 */
+	public void publishReload(Token toMove) {
+		write(RELOAD_BIT | ((long) toMove.ordinal() << 32));
+	}
+
+	/**
+	 * Puts a packed event in the next slot.
+	 * @param packed the event
+	 */
+	private void write(long packed) {
+		long seq = this.cursor;
+		int slot = (int) seq & this.mask;
+		//readers that see WRITING or a new sequence know the slot moved on
+		this.sequences.set(slot, WRITING);
+		this.events.set(slot, packed);
+		this.sequences.set(slot, seq);
+		this.cursor = seq + 1;
+		Runnable l = this.listener;
+		if (l != null) {
+			l.run();
+		}
+	}
+
+	/**
+	 * Sets what runs on the game thread after every publish.
+	 * @param listener the listener, null for none
+	 */
+	public void onPublish(Runnable listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Opens a subscription that starts with the next event published.
+	 * @return the subscription
+	 */
+	public Subscription subscribe() {
+		Subscription s = new Subscription(this.cursor);
+		this.subscriptions.add(s);
+		return s;
+	}
+
+	/**
+	 * Finds how far the slowest subscription is behind.
+	 * @return largest lag in events, 0 with no subscriptions
+	 */
+	public long maxLag() {
+		long max = 0;
+		for (Subscription s : this.subscriptions) {
+			max = Math.max(max, s.lag());
+		}
+		return max;
+	}
+
+	/**
+	 * Adds up the events missed by every subscription.
+	 * @return total events dropped
+	 */
+	public long totalDropped() {
+		long total = 0;
+		for (Subscription s : this.subscriptions) {
+			total += s.dropped();
+		}
+		return total;
+	}
+
+	/**
+	 * One consumer's position in the stream and its metrics.
+	 */
+	public final class Subscription {
+
+		/**
+		 * sequence of the next event to read.
+		 */
+		private volatile long next;
+
+		/**
+		 * events handed to the handler.
+		 */
+		private volatile long consumed = 0;
+
+		/**
+		 * events overwritten before they were read.
+		 */
+		private volatile long dropped = 0;
+
+		/**
+		 * a constructer for a subscription.
+		 * @param start sequence of the first event to read
+		 */
+		private Subscription(long start) {
+			this.next = start;
+		}
+
+		/**
+		 * Hands waiting events to the handler, oldest first.
+		 * @param handler receives the events
+		 * @param max largest number of events to hand over
+		 * @return number of events handed over
+		 */
+		public int poll(Handler handler, int max) {
+			int handled = 0;
+			long seq = this.next;
+			while (handled < max && seq < cursor) {
+				int slot = (int) seq & mask;
+				long before = sequences.get(slot);
+				long packed = events.get(slot);
+				long after = sequences.get(slot);
+				if (before != seq || after != seq) {
+					//lapped by the publisher, jump to the oldest event still held
+					long oldest = Math.max(seq + 1, cursor - capacity());
+					this.dropped += oldest - seq;
+					seq = oldest;
+					continue;
+				}
+				++seq;
+				this.next = seq;
+				handled++;
+				handler.onEvent(seq - 1, packed < 0 ? RELOAD : (int) (packed & 3), (int) ((packed >>> 2) & Move.MAX_COL),
+					(int) ((packed >>> 14) & Move.MAX_ROW), TOKENS[(int) ((packed >>> 32) & 1)],
+					(int) ((packed >>> 33) & (Integer.MAX_VALUE >>> 1)));
+			}
+			this.next = seq;
+			this.consumed += handled;
+			return handled;
+		}
+
+		/**
+		 * getter for the lag.
+		 * @return events published but not yet read
+		 */
+		public long lag() {
+			return Math.max(0, cursor - this.next);
+		}
+
+		/**
+		 * getter for the number of events read.
+		 * @return events handed to a handler
+		 */
+		public long consumed() {
+			return this.consumed;
+		}
+
+		/**
+		 * getter for the number of events missed.
+		 * @return events overwritten before they were read
+		 */
+		public long dropped() {
+			return this.dropped;
+		}
+
+		/**
+		 * Stops counting this subscription in the bus metrics.
+		 */
+		public void close() {
+			subscriptions.remove(this);
+		}
+	}
+
+	//******************************************************
+	//*******     BELOW THIS LINE IS TESTING CODE    *******
+	//******************************************************
+
+	/**
+	 * Main is testing a fast and a slow subscriber.
+	 * @param args takes in command line arguements
+	 */
+	public static void main(String[] args) {
+		MoveEventBus bus = new MoveEventBus(8);
+		PowerConnectFour game = new PowerConnectFour();
+		game.setEventBus(bus);
+		Subscription fast = bus.subscribe();
+		Subscription slow = bus.subscribe();
+		long[] seen = new long[1];
+		Handler count = (seq, kind, col, row, player, height) -> seen[0]++;
+
+		//the fast one keeps up every move
+		for (int i = 0; i < 20; i++) {
+			game.drop(i % 7);
+			fast.poll(count, 100);
+		}
+		if (seen[0] == 20 && fast.dropped() == 0 && fast.lag() == 0 && bus.published() == 20) {
+			System.out.println("Yay 1");
+		}
+
+		//the slow one only gets the last 8
+		int got = slow.poll(count, 100);
+		if (got == 8 && slow.dropped() == 12 && slow.lag() == 0) {
+			System.out.println("Yay 2");
+		}
+
+		//fields come back as they went in
+		game.powerDrop(3, 1);
+		int[] last = new int[4];
+		Token[] who = new Token[1];
+		fast.poll((seq, kind, col, row, player, height) -> {
+			last[0] = kind;
+			last[1] = col;
+			last[2] = row;
+			last[3] = height;
+			who[0] = player;
+		}, 1);
+		//columns past what Move packs are refused, not cut down
+		boolean tooWide = false;
+		try {
+			new PowerConnectFour(Move.MAX_COL + 2, 4).setEventBus(bus);
+		}
+		catch (IllegalArgumentException e) {
+			tooWide = true;
+		}
+		boolean outOfRange = false;
+		try {
+			bus.publish(Move.DROP, Move.MAX_COL + 1, 0, Token.RED, 1);
+		}
+		catch (IndexOutOfBoundsException e) {
+			outOfRange = true;
+		}
+		boolean moved = last[0] == Move.POWER_DROP && last[1] == 3 && last[2] == 1 && last[3] == 4
+			&& who[0] == Token.RED && !game.pop(6);
+		//a reset is no move, followers are told to read the game again
+		game.reset();
+		fast.poll((seq, kind, col, row, player, height) -> {
+			last[0] = kind;
+			who[0] = player;
+		}, 1);
+		if (moved && last[0] == RELOAD && who[0] == game.currentPlayer() && tooWide && outOfRange
+			&& bus.published() == 22) {
+			System.out.println("Yay 3");
+		}
+	}
+}
@@ -0,0 +1,575 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ *  Scores every legal move of the player to move, for the GUI's hint
+ *  command. Each candidate move is a fork-join task; a running task
+ *  borrows a copy of the board and a Searcher from a free list of the
+ *  call and plays its move on that copy, so tall boards are only copied
+ *  once per task running at the same time. The searchers share one table.
+ *  The candidates are deepened together, one depth per round, until a
+ *  shared deadline. A round's scores are only kept if every candidate in
+ *  it finished, so every move has a score of the same quality whatever the
+ *  board size, and the answer comes back in the budget.
+ *  Moves that win at once are marked WIN, moves that hand the other
+ *  player a connection LOSS, and moves that take away a win the other
+ *  player could make next BLOCK. The first round, which marks the moves
+ *  and scores them statically, runs even if the budget is spent; a block
+ *  check that runs out of time leaves its move unmarked.
+ *  @author Adam David
+ */
+public final class MoveHints {
+
+	/**
+	 * mark of a move with nothing special about it.
+	 */
+	public static final int NONE = 0;
+
+	/**
+	 * mark of a move that connects for the mover.
+	 */
+	public static final int WIN = 1;
+
+	/**
+	 * mark of a move that stops a win the other player has ready.
+	 */
+	public static final int BLOCK = 2;
+
+	/**
+	 * mark of a move after which only the other player has connected.
+	 */
+	public static final int LOSS = 3;
+
+	/**
+	 * canWinNext found a move that wins at once.
+	 */
+	private static final int FOUND_WIN = 0;
+
+	/**
+	 * canWinNext tried every move and none wins at once.
+	 */
+	private static final int NO_WIN = 1;
+
+	/**
+	 * canWinNext ran out of time before trying every move.
+	 */
+	private static final int TIMED_OUT = 2;
+
+	/**
+	 * Only static helpers, no instances.
+	 */
+	private MoveHints() {
+	}
+
+	/**
+	 * One scored move.
+	 */
+	public static final class Hint {
+
+		/**
+		 * the packed move.
+		 */
+		private final int move;
+
+		/**
+		 * score for the player to move, higher is better.
+		 */
+		private final int score;
+
+		/**
+		 * one of NONE, WIN, BLOCK and LOSS.
+		 */
+		private final int mark;
+
+		/**
+		 * search depth behind the score, 0 for a static score.
+		 */
+		private final int depth;
+
+		/**
+		 * a constructer for a hint.
+		 * @param move the packed move
+		 * @param score score for the player to move
+		 * @param mark one of NONE, WIN, BLOCK and LOSS
+		 * @param depth search depth behind the score
+		 */
+		public Hint(int move, int score, int mark, int depth) {
+			this.move = move;
+			this.score = score;
+			this.mark = mark;
+			this.depth = depth;
+		}
+
+		/**
+		 * getter for the move.
+		 * @return the packed move
+		 */
+		public int move() {
+			return this.move;
+		}
+
+		/**
+		 * getter for the score.
+		 * @return score for the player to move, higher is better
+		 */
+		public int score() {
+			return this.score;
+		}
+
+		/**
+		 * getter for the mark.
+		 * @return one of NONE, WIN, BLOCK and LOSS
+		 */
+		public int mark() {
+			return this.mark;
+		}
+
+		/**
+		 * getter for the depth.
+		 * @return search depth behind the score, 0 for a static score
+		 */
+		public int depth() {
+			return this.depth;
+		}
+	}
+
+	/**
+	 * Scores every legal move. The game is left as it was.
+	 * @param game position to score, not over
+	 * @param budgetMillis time budget in milliseconds
+	 * @param maxDepth deepest search depth to try
+	 * @param pool pool the candidates run on
+	 * @return one hint per legal move, best first
+	 */
+	public static Hint[] analyze(PowerConnectFour game, long budgetMillis, int maxDepth, ForkJoinPool pool) {
+		long deadline = System.nanoTime() + budgetMillis * 1000000L;
+		Searcher.Table table = new Searcher.Table(18);
+		Workers workers = new Workers(new PowerConnectFour(game), table);
+		boolean threatened = canWinNext(swapTurn(game), deadline) == FOUND_WIN;
+
+		int[] moves = new int[game.maxLegalMoves()];
+		int n = game.legalMoves(moves);
+		List<Candidate> candidates = new ArrayList<>(n);
+		for (int i = 0; i < n; ++i) {
+			candidates.add(new Candidate(moves[i], threatened, workers, deadline));
+		}
+		//round 0 only marks and scores statically, and always runs
+		for (int depth = 0; depth <= maxDepth && (depth == 0 || System.nanoTime() < deadline); ++depth) {
+			List<Candidate> open = new ArrayList<>();
+			for (Candidate c : candidates) {
+				if (!c.settled) {
+					c.reinitialize();
+					c.target = depth;
+					open.add(c);
+				}
+			}
+			if (open.isEmpty()) {
+				break;
+			}
+			pool.invoke(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected void compute() {
+					invokeAll(open);
+				}
+			});
+			//a round cut off by the deadline would mix depths, so it is thrown away
+			boolean complete = true;
+			for (Candidate c : open) {
+				complete = complete && c.finished;
+			}
+			if (!complete) {
+				break;
+			}
+			for (Candidate c : open) {
+				c.keepRound();
+			}
+		}
+
+		Hint[] hints = new Hint[n];
+		for (int i = 0; i < n; ++i) {
+			Candidate c = candidates.get(i);
+			hints[i] = new Hint(c.move, c.score, c.mark, c.depth);
+		}
+		Arrays.sort(hints, (a, b) -> Integer.compare(b.score, a.score));
+		return hints;
+	}
+
+	/**
+	 * Board copy and searcher of one pool thread.
+	 */
+	private static final class Worker {
+
+		/**
+		 * copy of the position being scored.
+		 */
+		private final PowerConnectFour game;
+
+		/**
+		 * searcher of this thread.
+		 */
+		private final Searcher searcher;
+
+		/**
+		 * a constructer for a worker.
+		 * @param root position being scored, only read
+		 * @param table table shared by every worker
+		 */
+		Worker(PowerConnectFour root, Searcher.Table table) {
+			synchronized (root) {
+				this.game = new PowerConnectFour(root);
+			}
+			this.searcher = new Searcher(table);
+		}
+	}
+
+	/**
+	 * Workers of one call to analyze, lent to one task at a time.
+	 */
+	private static final class Workers {
+
+		/**
+		 * position being scored, only read.
+		 */
+		private final PowerConnectFour root;
+
+		/**
+		 * table shared by every worker.
+		 */
+		private final Searcher.Table table;
+
+		/**
+		 * workers no task is using.
+		 */
+		private final ConcurrentLinkedQueue<Worker> idle = new ConcurrentLinkedQueue<>();
+
+		/**
+		 * a constructer for the workers of a call.
+		 * @param root position being scored, only read
+		 * @param table table shared by every worker
+		 */
+		Workers(PowerConnectFour root, Searcher.Table table) {
+			this.root = root;
+			this.table = table;
+		}
+
+		/**
+		 * Lends a worker, making one if none is idle.
+		 * @return a worker whose board is at the position being scored
+		 */
+		Worker take() {
+			Worker w = this.idle.poll();
+			return w != null ? w : new Worker(this.root, this.table);
+		}
+
+		/**
+		 * Takes a worker back.
+		 * @param w the worker, with its board back at the position being scored
+		 */
+		void give(Worker w) {
+			this.idle.add(w);
+		}
+	}
+
+	/**
+	 * Fork-join task for one candidate move, run once per round.
+	 */
+	private static final class Candidate extends RecursiveAction {
+
+		/**
+		 * serialization id, tasks are never serialized.
+		 */
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * the packed move.
+		 */
+		private final int move;
+
+		/**
+		 * whether the other player could win next before the move.
+		 */
+		private final boolean threatened;
+
+		/**
+		 * board copies and searchers to borrow.
+		 */
+		private final Workers workers;
+
+		/**
+		 * System.nanoTime() after which nothing new is started.
+		 */
+		private final long deadline;
+
+		/**
+		 * depth of the current round.
+		 */
+		private int target;
+
+		/**
+		 * score for the player who made the move.
+		 */
+		private int score = 0;
+
+		/**
+		 * depth behind the score.
+		 */
+		private int depth = 0;
+
+		/**
+		 * one of NONE, WIN, BLOCK and LOSS.
+		 */
+		private int mark = NONE;
+
+		/**
+		 * whether more depth would not change anything.
+		 */
+		private boolean settled = false;
+
+		/**
+		 * whether the current round got to its depth.
+		 */
+		private boolean finished;
+
+		/**
+		 * score of the current round.
+		 */
+		private int roundScore;
+
+		/**
+		 * depth behind the score of the current round.
+		 */
+		private int roundDepth;
+
+		/**
+		 * whether the current round settled the candidate.
+		 */
+		private boolean roundSettled;
+
+		/**
+		 * a constructer for a candidate.
+		 * @param move the packed move, legal in the position being scored
+		 * @param threatened whether the other player could win next before the move
+		 * @param workers board copies and searchers to borrow
+		 * @param deadline System.nanoTime() after which nothing new is started
+		 */
+		Candidate(int move, boolean threatened, Workers workers, long deadline) {
+			this.move = move;
+			this.threatened = threatened;
+			this.workers = workers;
+			this.deadline = deadline;
+		}
+
+		@Override
+		protected void compute() {
+			this.finished = false;
+			Worker worker = this.workers.take();
+			PowerConnectFour child = worker.game;
+			child.apply(this.move);
+			try {
+				if (this.target == 0) {
+					markAndScore(child);
+					this.finished = true;
+					return;
+				}
+				long left = (this.deadline - System.nanoTime()) / 1000000L;
+				if (left <= 0) {
+					return;
+				}
+				Searcher.Result r = worker.searcher.search(child, left, this.target);
+				boolean forced = r.depth() > 0 && Math.abs(r.score()) >= Searcher.WIN_THRESHOLD;
+				if (r.depth() == this.target || forced) {
+					this.roundScore = -r.score();
+					this.roundDepth = r.depth() + 1;
+					this.roundSettled = forced;
+					this.finished = true;
+				}
+			}
+			finally {
+				child.undo(this.move);
+				this.workers.give(worker);
+			}
+		}
+
+		/**
+		 * Keeps the score of a round every candidate finished.
+		 */
+		void keepRound() {
+			this.score = this.roundScore;
+			this.depth = this.roundDepth;
+			this.settled = this.roundSettled;
+		}
+
+		/**
+		 * First round: finds the mark and a static score.
+		 * @param child position after the move
+		 */
+		private void markAndScore(PowerConnectFour child) {
+			int terminal = Searcher.terminalScore(child, 1);
+			this.roundDepth = 0;
+			if (terminal != 0) {
+				//the score is for the other player, who is to move in the child
+				this.roundScore = -terminal;
+				this.mark = this.roundScore > 0 ? WIN : LOSS;
+				this.roundSettled = true;
+				return;
+			}
+			//a check that timed out says nothing, so it leaves the move unmarked
+			if (this.threatened && canWinNext(child, this.deadline) == NO_WIN) {
+				this.mark = BLOCK;
+			}
+			this.roundScore = -Searcher.evaluate(child);
+			this.roundSettled = false;
+		}
+	}
+
+	/**
+	 * Checks whether the player to move has a move that wins at once.
+	 * Gives up at the deadline.
+	 * @param game position to look at, left as it was
+	 * @param deadline System.nanoTime() to give up at
+	 * @return FOUND_WIN, NO_WIN, or TIMED_OUT if not every move was tried
+	 */
+	private static int canWinNext(PowerConnectFour game, long deadline) {
+		if (game.isGameOver()) {
+			return NO_WIN;
+		}
+		int[] moves = new int[game.maxLegalMoves()];
+		int n = game.legalMoves(moves);
+		for (int i = 0; i < n; ++i) {
+			if (System.nanoTime() >= deadline) {
+				return TIMED_OUT;
+			}
+			game.apply(moves[i]);
+			boolean win = Searcher.terminalScore(game, 1) < 0;
+			game.undo(moves[i]);
+			if (win) {
+				return FOUND_WIN;
+			}
+		}
+		return NO_WIN;
+	}
+
+	/**
+	 * Copies a position with the other player to move.
+	 * @param game position to copy
+	 * @return the copy
+	 */
+	private static PowerConnectFour swapTurn(PowerConnectFour game) {
+		Token[][] columns = new Token[game.sizeCol()][];
+		for (int col = 0; col < columns.length; ++col) {
+			Column<Token> column = game.getColumn(col);
+			columns[col] = new Token[column.size()];
+			for (int row = 0; row < columns[col].length; ++row) {
+				columns[col][row] = column.get(row);
+			}
+		}
+		PowerConnectFour swapped = new PowerConnectFour(game.sizeCol(), game.winLength());
+		swapped.load(columns, game.currentPlayer() == Token.RED ? Token.YELLOW : Token.RED);
+		return swapped;
+	}
+
+	//******************************************************
+	//*******     BELOW THIS LINE IS TESTING CODE    *******
+	//******************************************************
+
+	/**
+	 * Main is testing the marks and the time budget.
+	 * @param args takes in command line arguements
+	 */
+	public static void main(String[] args) {
+		ForkJoinPool pool = ForkJoinPool.commonPool();
+
+		//red has three in the bottom row, a drop on either end wins
+		PowerConnectFour game = PositionCodec.fromText("R:,R,R,R,Y,Y,Y", 4);
+		Hint[] hints = analyze(game, 200, 8, pool);
+		//with the budget spent before it starts, the first round still marks the wins
+		Hint[] spent = analyze(game, 0, 8, pool);
+		if (hints[0].mark() == WIN && Move.toString(hints[0].move()).equals("D0")
+			&& spent[0].mark() == WIN && spent.length == hints.length) {
+			System.out.println("Yay 1");
+		}
+
+		//yellow to move has to break up red's row; a plain drop on the end
+		//is not enough, red would power drop under it
+		game = PositionCodec.fromText("Y:Y,R,R,R,,Y,Y", 4);
+		hints = analyze(game, 200, 8, pool);
+		Hint d4 = null;
+		for (Hint h : hints) {
+			if (Move.toString(h.move()).equals("D4")) {
+				d4 = h;
+			}
+		}
+		if (hints[0].mark() == BLOCK && Move.kind(hints[0].move()) == Move.POWER_DROP
+			&& d4 != null && d4.mark() == NONE && d4.score() <= -Searcher.WIN_THRESHOLD) {
+			System.out.println("Yay 2");
+		}
+
+		//a block check that runs out of time leaves the move unmarked instead of calling it a block
+		PowerConnectFour threat = game;
+		Workers workers = new Workers(new PowerConnectFour(threat), new Searcher.Table(4));
+		long later = System.nanoTime() + 60000000000L;
+		Candidate blocks = new Candidate(hints[0].move(), true, workers, later);
+		Candidate open = new Candidate(Move.drop(6), true, workers, later);
+		Candidate late = new Candidate(Move.drop(6), true, workers, System.nanoTime());
+		for (Candidate c : new Candidate[] {blocks, open, late}) {
+			c.target = 0;
+			pool.invoke(c);
+		}
+		boolean timeouts = blocks.mark == BLOCK && open.mark == NONE && late.mark == NONE
+			&& canWinNext(threat, System.nanoTime()) == TIMED_OUT;
+
+		//a tall board still answers close to the budget
+		PowerConnectFour tall = new PowerConnectFour(7, 4);
+		java.util.Random random = new java.util.Random(37);
+		int[] moves = new int[16];
+		for (int i = 0; i < 3000; ++i) {
+			if (moves.length < tall.maxLegalMoves()) {
+				moves = new int[tall.maxLegalMoves() * 2];
+			}
+			int n = tall.legalMoves(moves);
+			for (int tries = 0; tries < 100; ++tries) {
+				int move = moves[random.nextInt(n)];
+				tall.apply(move);
+				if (!tall.isGameOver()) {
+					break;
+				}
+				tall.undo(move);
+			}
+		}
+		long start = System.nanoTime();
+		hints = analyze(tall, 300, 8, pool);
+		long millis = (System.nanoTime() - start) / 1000000L;
+		if (!tall.isGameOver() && hints.length == tall.legalMoves(new int[tall.maxLegalMoves()]) && millis < 1000
+			&& timeouts) {
+			System.out.println("Yay 3");
+		}
+
+		//every move that is not won or lost by force has a score of the same depth
+		game = new PowerConnectFour(9, 4);
+		for (int i = 0; i < 12; ++i) {
+			game.apply(moves[random.nextInt(game.legalMoves(moves))]);
+			if (game.isGameOver()) {
+				game.reset();
+			}
+		}
+		boolean even = true;
+		for (int budget : new int[] {5, 20, 80}) {
+			int depth = -1;
+			for (Hint h : analyze(game, budget, 12, pool)) {
+				if (Math.abs(h.score()) < Searcher.WIN_THRESHOLD && h.mark() != WIN && h.mark() != LOSS) {
+					even = even && (depth < 0 || h.depth() == depth);
+					depth = h.depth();
+				}
+			}
+		}
+		if (even) {
+			System.out.println("Yay 4");
+		}
+	}
+}
@@ -0,0 +1,589 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ *  A write-ahead log of moves from any number of games, so games survive a
+ *  crash. Each accepted move is appended as a fixed 16 byte record (game
+ *  id, packed move, check) and counts as safe once awaitDurable returns
+ *  for it. Records from all threads go into one buffer; a single flusher
+ *  thread writes the buffer and forces it to disk once per group commit
+ *  window, so many moves share one fsync.
+ *  The file grows in preallocated zero-filled chunks, so a force only has
+ *  data to flush and not the file length. Each record's check mixes its
+ *  contents with its index in the file, so recovery stops at the first
+ *  torn or never-written record. A batch can reach the disk in any order,
+ *  so good records may lie past a torn one; opening a log cuts the file
+ *  after the last good record and forces that, so such records can never
+ *  be read back as part of a later run.
+ *  @author Adam David
+ */
+public class MoveLog implements AutoCloseable {
+
+	/**
+	 * bytes per record.
+	 */
+	public static final int RECORD_BYTES = 16;
+
+	/**
+	 * first bytes of every log file.
+	 */
+	private static final long MAGIC = 0x50433457414C3031L;
+
+	/**
+	 * bytes before the first record.
+	 */
+	private static final int HEADER_BYTES = 16;
+
+	/**
+	 * records per buffer; a full buffer is flushed without waiting out the window.
+	 */
+	private static final int BATCH_RECORDS = 8192;
+
+	/**
+	 * the log file.
+	 */
+	private final FileChannel channel;
+
+	/**
+	 * bytes the file grows by when it runs out of preallocated space.
+	 */
+	private final long chunkBytes;
+
+	/**
+	 * how long the flusher waits for more records before it writes.
+	 */
+	private final long windowNanos;
+
+	/**
+	 * guards the buffers and the counters.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * signalled when records are waiting to be written.
+	 */
+	private final Condition pending = this.lock.newCondition();
+
+	/**
+	 * signalled when records become durable or the buffer has room again.
+	 */
+	private final Condition flushed = this.lock.newCondition();
+
+	/**
+	 * buffer records are appended to.
+	 */
+	private ByteBuffer active = ByteBuffer.allocateDirect(BATCH_RECORDS * RECORD_BYTES);
+
+	/**
+	 * buffer being written by the flusher.
+	 */
+	private ByteBuffer writing = ByteBuffer.allocateDirect(BATCH_RECORDS * RECORD_BYTES);
+
+	/**
+	 * records appended, over the life of the file.
+	 */
+	private long appended;
+
+	/**
+	 * records on disk, over the life of the file.
+	 */
+	private long durable;
+
+	/**
+	 * bytes of the file that are preallocated.
+	 */
+	private long allocated;
+
+	/**
+	 * set by close.
+	 */
+	private boolean closed = false;
+
+	/**
+	 * what stopped the flusher, if anything.
+	 */
+	private IOException failure;
+
+	/**
+	 * the flusher thread.
+	 */
+	private final Thread flusher;
+
+	/**
+	 * number of forces done, for metrics.
+	 */
+	private long forces = 0;
+
+	/**
+	 * a constructer for a log that appends to a file, creating it if needed.
+	 * Records already in the file are kept and new ones follow them.
+	 * @param file the log file
+	 * @param chunkBytes bytes to preallocate at a time
+	 * @param windowMicros group commit window in microseconds
+	 * @throws IOException if the file cannot be opened or is not a log
+	 */
+	public MoveLog(Path file, long chunkBytes, long windowMicros) throws IOException {
+		if (chunkBytes < RECORD_BYTES) {
+			throw new IllegalArgumentException("Chunk must hold at least one record");
+		}
+		this.chunkBytes = chunkBytes - chunkBytes % RECORD_BYTES;
+		this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+		this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+			StandardOpenOption.WRITE);
+		try {
+			if (this.channel.size() == 0) {
+				ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).putLong(MAGIC).putInt(RECORD_BYTES).putInt(0);
+				header.flip();
+				this.channel.write(header, 0);
+			}
+			this.appended = scan(this.channel, null);
+			this.durable = this.appended;
+			this.allocated = HEADER_BYTES + this.appended * RECORD_BYTES;
+			if (this.channel.size() > this.allocated) {
+				this.channel.truncate(this.allocated);
+				this.channel.force(true);
+			}
+		}
+		catch (IOException e) {
+			this.channel.close();
+			throw e;
+		}
+		this.flusher = new Thread(this::flushLoop, "move-log");
+		this.flusher.setDaemon(true);
+		this.flusher.start();
+	}
+
+	/**
+	 * Adds a move to the log without waiting for it to reach the disk.
+	 * @param gameId id of the game the move belongs to
+	 * @param move packed move (see Move)
+	 * @return ticket to pass to awaitDurable
+	 * @throws IOException if the log is closed or has failed
+	 */
+	public long append(long gameId, int move) throws IOException {
+		this.lock.lock();
+		try {
+			while (!this.active.hasRemaining() && this.failure == null && !this.closed) {
+				this.pending.signal();
+				this.flushed.awaitUninterruptibly();
+			}
+			checkOpen();
+			long index = this.appended++;
+			this.active.putLong(gameId).putInt(move).putInt(check(gameId, move, index));
+			//the first record of a batch wakes the flusher to start its window
+			if (this.active.position() == RECORD_BYTES || !this.active.hasRemaining()) {
+				this.pending.signal();
+			}
+			return index + 1;
+		}
+		finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until every record up to a ticket is on disk.
+	 * @param ticket ticket from append
+	 * @throws IOException if the log failed before the record was written
+	 */
+	public void awaitDurable(long ticket) throws IOException {
+		this.lock.lock();
+		try {
+			while (this.durable < ticket && this.failure == null) {
+				this.flushed.awaitUninterruptibly();
+			}
+			if (this.durable < ticket) {
+				throw new IOException("Move log failed", this.failure);
+			}
+		}
+		finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Adds a move and waits until it is on disk.
+	 * @param gameId id of the game the move belongs to
+	 * @param move packed move (see Move)
+	 * @throws IOException if the log is closed or has failed
+	 */
+	public void commit(long gameId, int move) throws IOException {
+		awaitDurable(append(gameId, move));
+	}
+
+	/**
+	 * getter for the number of records.
+	 * @return records appended over the life of the file
+	 */
+	public long appended() {
+		this.lock.lock();
+		try {
+			return this.appended;
+		}
+		finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * getter for the number of forces.
+	 * @return times the file was forced to disk by this log
+	 */
+	public long forces() {
+		this.lock.lock();
+		try {
+			return this.forces;
+		}
+		finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Writes every appended record, stops the flusher and closes the file.
+	 * @throws IOException if the last records cannot be written
+	 */
+	@Override
+	public void close() throws IOException {
+		this.lock.lock();
+		try {
+			if (this.closed) {
+				return;
+			}
+			this.closed = true;
+			this.pending.signal();
+		}
+		finally {
+			this.lock.unlock();
+		}
+		try {
+			this.flusher.join();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		this.channel.close();
+		if (this.failure != null) {
+			throw new IOException("Move log failed", this.failure);
+		}
+	}
+
+	/**
+	 * Body of the flusher: wait for records, wait out the window, then write
+	 * and force them as one batch.
+	 */
+	private void flushLoop() {
+		while (true) {
+			long batchEnd;
+			ByteBuffer batch;
+			this.lock.lock();
+			try {
+				while (this.active.position() == 0 && !this.closed) {
+					this.pending.awaitUninterruptibly();
+				}
+				if (this.active.position() == 0) {
+					return;
+				}
+				long wait = this.windowNanos;
+				while (wait > 0 && this.active.hasRemaining() && !this.closed) {
+					try {
+						wait = this.pending.awaitNanos(wait);
+					}
+					catch (InterruptedException e) {
+						break;
+					}
+				}
+				batch = this.active;
+				this.active = this.writing;
+				this.writing = batch;
+				batchEnd = this.appended;
+				//appenders blocked on a full buffer can go on
+				this.flushed.signalAll();
+			}
+			finally {
+				this.lock.unlock();
+			}
+
+			IOException error = null;
+			try {
+				write(batch, batchEnd);
+			}
+			catch (IOException e) {
+				error = e;
+			}
+			batch.clear();
+
+			this.lock.lock();
+			try {
+				if (error != null) {
+					this.failure = error;
+				}
+				else {
+					this.durable = batchEnd;
+					this.forces++;
+				}
+				this.flushed.signalAll();
+				if (error != null) {
+					return;
+				}
+			}
+			finally {
+				this.lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Writes a batch at its place in the file and forces it.
+	 * @param batch records to write, from position 0
+	 * @param batchEnd number of records in the file after this batch
+	 * @throws IOException if the file cannot be written
+	 */
+	private void write(ByteBuffer batch, long batchEnd) throws IOException {
+		batch.flip();
+		long end = HEADER_BYTES + batchEnd * RECORD_BYTES;
+		long at = end - batch.remaining();
+		while (this.allocated < end) {
+			ByteBuffer zeros = ByteBuffer.allocate((int) Math.min(this.chunkBytes, 1 << 20));
+			long grown = this.allocated + this.chunkBytes;
+			for (long p = this.allocated; p < grown; p += zeros.capacity()) {
+				zeros.clear().limit((int) Math.min(zeros.capacity(), grown - p));
+				while (zeros.hasRemaining()) {
+					this.channel.write(zeros, p + zeros.position());
+				}
+			}
+			this.allocated = grown;
+		}
+		while (batch.hasRemaining()) {
+			at += this.channel.write(batch, at);
+		}
+		this.channel.force(false);
+	}
+
+	/**
+	 * Throws if appending is no longer possible. Holds the lock.
+	 * @throws IOException if the log is closed or has failed
+	 */
+	private void checkOpen() throws IOException {
+		if (this.failure != null) {
+			throw new IOException("Move log failed", this.failure);
+		}
+		if (this.closed) {
+			throw new IOException("Move log is closed");
+		}
+	}
+
+	/**
+	 * Receives records during recovery.
+	 */
+	public interface Handler {
+
+		/**
+		 * Called once per record, in order.
+		 * @param gameId id of the game the move belongs to
+		 * @param move packed move
+		 */
+		void onRecord(long gameId, int move);
+	}
+
+	/**
+	 * Reads every valid record of a log file, in order.
+	 * @param file the log file
+	 * @param handler receives the records
+	 * @return number of valid records
+	 * @throws IOException if the file cannot be read or is not a log
+	 */
+	public static long read(Path file, Handler handler) throws IOException {
+		try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+			return scan(in, handler);
+		}
+	}
+
+	/**
+	 * Rebuilds every game in a log file on fresh boards.
+	 * @param file the log file
+	 * @param numCols number of columns of every game
+	 * @param winLength number of connected tokens needed to win
+	 * @return the games by id
+	 * @throws IOException if the file cannot be read, is not a log, or holds
+	 * a move its game cannot make
+	 */
+	public static Map<Long, PowerConnectFour> recover(Path file, int numCols, int winLength) throws IOException {
+		Map<Long, PowerConnectFour> games = new HashMap<>();
+		long[] bad = {-1};
+		read(file, (gameId, move) -> {
+			PowerConnectFour game = games.computeIfAbsent(gameId, id -> new PowerConnectFour(numCols, winLength));
+			if (!game.apply(move) && bad[0] < 0) {
+				bad[0] = gameId;
+			}
+		});
+		if (bad[0] >= 0) {
+			throw new IOException("Log holds an invalid move for game " + bad[0]);
+		}
+		return games;
+	}
+
+	/**
+	 * Reads records from the start of a log until the first invalid one.
+	 * @param in the open log file
+	 * @param handler receives the records, can be null
+	 * @return number of valid records
+	 * @throws IOException if the file cannot be read or is not a log
+	 */
+	private static long scan(FileChannel in, Handler handler) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+		while (header.hasRemaining() && in.read(header, header.position()) > 0) {
+			continue;
+		}
+		header.flip();
+		if (header.remaining() < HEADER_BYTES || header.getLong() != MAGIC || header.getInt() != RECORD_BYTES) {
+			throw new IOException("Not a move log");
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(BATCH_RECORDS * RECORD_BYTES);
+		long index = 0;
+		long at = HEADER_BYTES;
+		while (true) {
+			buffer.clear();
+			int read = in.read(buffer, at);
+			if (read < RECORD_BYTES) {
+				return index;
+			}
+			buffer.flip();
+			while (buffer.remaining() >= RECORD_BYTES) {
+				long gameId = buffer.getLong();
+				int move = buffer.getInt();
+				if (buffer.getInt() != check(gameId, move, index)) {
+					return index;
+				}
+				if (handler != null) {
+					handler.onRecord(gameId, move);
+				}
+				++index;
+			}
+			at += read - buffer.remaining();
+		}
+	}
+
+	/**
+	 * Check of a record: its contents and index mixed so that zeros, torn
+	 * records and records left from other data all fail.
+	 * @param gameId id of the game
+	 * @param move packed move
+	 * @param index index of the record in the file
+	 * @return the check
+	 */
+	private static int check(long gameId, int move, long index) {
+		long z = gameId * 0x9E3779B97F4A7C15L + move * 0xC2B2AE3D27D4EB4FL + index + MAGIC;
+		z = (z ^ (z >>> 33)) * 0xFF51AFD7ED558CCDL;
+		z = (z ^ (z >>> 33)) * 0xC4CEB9FE1A85EC53L;
+		return (int) (z ^ (z >>> 32));
+	}
+
+	//******************************************************
+	//*******     BELOW THIS LINE IS TESTING CODE    *******
+	//******************************************************
+
+	/**
+	 * Main is testing concurrent games, recovery and a torn tail, and prints
+	 * the move rate.
+	 * @param args takes in command line arguements
+	 * @throws Exception if the test cannot run
+	 */
+	public static void main(String[] args) throws Exception {
+		Path file = java.nio.file.Files.createTempFile("moves", ".wal");
+		java.nio.file.Files.delete(file);
+		int threads = 8;
+		int gamesPerThread = 50;
+		int movesPerGame = 200;
+		long[] hashes = new long[threads * gamesPerThread];
+
+		//each thread plays its own games, every move waits to be durable
+		MoveLog log = new MoveLog(file, 1 << 20, 200);
+		Thread[] players = new Thread[threads];
+		long start = System.nanoTime();
+		for (int t = 0; t < threads; ++t) {
+			int first = t * gamesPerThread;
+			players[t] = new Thread(() -> {
+				java.util.Random random = new java.util.Random(first);
+				PowerConnectFour[] games = new PowerConnectFour[gamesPerThread];
+				for (int g = 0; g < gamesPerThread; ++g) {
+					games[g] = new PowerConnectFour();
+				}
+				int[] moves = new int[16];
+				try {
+					for (int m = 0; m < movesPerGame; ++m) {
+						long ticket = 0;
+						for (int g = 0; g < gamesPerThread; ++g) {
+							PowerConnectFour game = games[g];
+							if (moves.length < game.maxLegalMoves()) {
+								moves = new int[game.maxLegalMoves() * 2];
+							}
+							int move = moves[random.nextInt(game.legalMoves(moves))];
+							game.apply(move);
+							ticket = log.append(first + g, move);
+						}
+						log.awaitDurable(ticket);
+					}
+				}
+				catch (IOException e) {
+					throw new java.io.UncheckedIOException(e);
+				}
+				for (int g = 0; g < gamesPerThread; ++g) {
+					hashes[first + g] = games[g].positionHash();
+				}
+			});
+			players[t].start();
+		}
+		for (Thread t : players) {
+			t.join();
+		}
+		long elapsed = System.nanoTime() - start;
+		long total = (long) threads * gamesPerThread * movesPerGame;
+		System.out.format("%d moves, %d forces, %.0f moves/s%n", total, log.forces(), total * 1e9 / elapsed);
+		log.close();
+
+		Map<Long, PowerConnectFour> games = recover(file, 7, 4);
+		boolean same = games.size() == hashes.length;
+		for (int g = 0; g < hashes.length && same; ++g) {
+			same = games.get((long) g).positionHash() == hashes[g];
+		}
+		if (same && log.forces() < total / 10) {
+			System.out.println("Yay 1");
+		}
+
+		//a torn record at the end is dropped and appending goes on after the good ones;
+		//a good record left past it by the crash must not come back after the next run
+		try (FileChannel raw = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			raw.write(ByteBuffer.wrap(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9}), HEADER_BYTES + total * RECORD_BYTES);
+			long stale = hashes.length + 7;
+			ByteBuffer record = ByteBuffer.allocate(RECORD_BYTES).putLong(stale).putInt(Move.drop(0))
+				.putInt(check(stale, Move.drop(0), total + 1));
+			record.flip();
+			raw.write(record, HEADER_BYTES + (total + 1) * RECORD_BYTES);
+		}
+		MoveLog reopened = new MoveLog(file, 1 << 20, 200);
+		boolean resumed = reopened.appended() == total;
+		reopened.commit(hashes.length, Move.drop(3));
+		reopened.close();
+		if (resumed && read(file, null) == total + 1 && recover(file, 7, 4).size() == hashes.length + 1) {
+			System.out.println("Yay 2");
+		}
+
+		//appending to a closed log fails instead of losing the move
+		try {
+			reopened.append(0, Move.drop(0));
+		}
+		catch (IOException e) {
+			System.out.println("Yay 3");
+		}
+		java.nio.file.Files.delete(file);
+	}
+}
@@ -0,0 +1,618 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ *  A small neural network that scores positions for Searcher, in the
+ *  style of NNUE: a wide sparse first layer kept up to date move by move,
+ *  then a clipped ReLU and one output.
+ *  The input is one state per column: the top WINDOW tokens as mine or
+ *  theirs, how much taller the column is than its left neighbour, and how
+ *  far it is from the edge. Each state has its own row of first-layer
+ *  weights, so the first layer is the sum of one row per column. A move
+ *  changes the state of its column and the one to its right, whatever it
+ *  does inside the column, so the update costs two row swaps even when a
+ *  power move shifts a tall column.
+ *  Weights are int16, the accumulators are int so wide boards cannot
+ *  overflow them, and scoring does not allocate. Training runs in floats
+ *  on self-play games and the result is quantized.
+ *  @author Adam David
+ */
+public class NnueEvaluator {
+
+	/**
+	 * size of the hidden layer.
+	 */
+	public static final int HIDDEN = 32;
+
+	/**
+	 * tokens at the top of a column that are looked at.
+	 */
+	public static final int WINDOW = 5;
+
+	/**
+	 * states of the top of a column: each cell is none, mine or theirs.
+	 */
+	private static final int WINDOW_STATES = 243;
+
+	/**
+	 * height differences to the left neighbour, -4 to 4.
+	 */
+	private static final int DIFF_BUCKETS = 9;
+
+	/**
+	 * distances from the nearest edge, 0 to 3 or more.
+	 */
+	private static final int EDGE_BUCKETS = 4;
+
+	/**
+	 * number of column states, rows of the first layer.
+	 */
+	private static final int STATES = EDGE_BUCKETS * DIFF_BUCKETS * WINDOW_STATES;
+
+	/**
+	 * int16 units of 1.0, the top of the clipped ReLU.
+	 */
+	private static final int ONE = 64;
+
+	/**
+	 * score of an output of 1.0, in Searcher.evaluate units.
+	 */
+	private static final int SCORE_SCALE = 100;
+
+	/**
+	 * first bytes of a weights file.
+	 */
+	private static final int MAGIC = 0x4E4E5545;
+
+	/**
+	 * first layer, HIDDEN weights per state.
+	 */
+	private final short[] table;
+
+	/**
+	 * first layer bias.
+	 */
+	private final short[] bias;
+
+	/**
+	 * output weights.
+	 */
+	private final short[] output;
+
+	/**
+	 * output bias, in ONE * ONE units.
+	 */
+	private final int outputBias;
+
+	/**
+	 * a constructer for a network with the given weights.
+	 * @param table first layer, HIDDEN weights per state
+	 * @param bias first layer bias
+	 * @param output output weights
+	 * @param outputBias output bias, in ONE * ONE units
+	 */
+	private NnueEvaluator(short[] table, short[] bias, short[] output, int outputBias) {
+		this.table = table;
+		this.bias = bias;
+		this.output = output;
+		this.outputBias = outputBias;
+	}
+
+	/**
+	 * Makes the incremental state for scoring positions of one board size.
+	 * Each searching thread needs its own.
+	 * @param numCols number of columns of the boards to score
+	 * @return a new accumulator, refresh it before use
+	 */
+	public Accumulator newAccumulator(int numCols) {
+		return new Accumulator(numCols);
+	}
+
+	/**
+	 * First-layer sums of one board, for both players' points of view.
+	 */
+	public final class Accumulator {
+
+		/**
+		 * number of columns.
+		 */
+		private final int numCols;
+
+		/**
+		 * state of each column as seen by RED, then as seen by YELLOW.
+		 */
+		private final int[] states;
+
+		/**
+		 * first-layer sums as seen by RED, then as seen by YELLOW.
+		 */
+		private final int[] sums = new int[2 * HIDDEN];
+
+		/**
+		 * a constructer for an accumulator.
+		 * @param numCols number of columns
+		 */
+		private Accumulator(int numCols) {
+			this.numCols = numCols;
+			this.states = new int[2 * numCols];
+		}
+
+		/**
+		 * Recomputes everything from the board.
+		 * @param game the board, sizeCol() must match
+		 */
+		public void refresh(PowerConnectFour game) {
+			checkWidth(game);
+			for (int p = 0; p < 2; ++p) {
+				for (int i = 0; i < HIDDEN; ++i) {
+					this.sums[p * HIDDEN + i] = bias[i];
+				}
+			}
+			for (int col = 0; col < this.numCols; ++col) {
+				for (int p = 0; p < 2; ++p) {
+					int s = state(game, col, p);
+					this.states[p * this.numCols + col] = s;
+					int row = s * HIDDEN;
+					for (int i = 0; i < HIDDEN; ++i) {
+						this.sums[p * HIDDEN + i] += table[row + i];
+					}
+				}
+			}
+		}
+
+		/**
+		 * Catches up after a move or its undo.
+		 * @param game the board after the change
+		 * @param move the packed move that was made or taken back
+		 */
+		public void moved(PowerConnectFour game, int move) {
+			int col = Move.col(move);
+			columnChanged(game, col);
+			if (col + 1 < this.numCols) {
+				columnChanged(game, col + 1);
+			}
+		}
+
+		/**
+		 * Brings one column's state up to date.
+		 * @param game the board after the change
+		 * @param col index of the column
+		 */
+		private void columnChanged(PowerConnectFour game, int col) {
+			for (int p = 0; p < 2; ++p) {
+				int s = state(game, col, p);
+				int old = this.states[p * this.numCols + col];
+				if (s == old) {
+					continue;
+				}
+				this.states[p * this.numCols + col] = s;
+				int add = s * HIDDEN;
+				int sub = old * HIDDEN;
+				int base = p * HIDDEN;
+				for (int i = 0; i < HIDDEN; ++i) {
+					this.sums[base + i] += table[add + i] - table[sub + i];
+				}
+			}
+		}
+
+		/**
+		 * Scores the board for the player to move.
+		 * @param game the board the accumulator is up to date with
+		 * @return the score, in Searcher.evaluate units
+		 */
+		public int evaluate(PowerConnectFour game) {
+			int base = game.currentPlayer() == Token.RED ? 0 : HIDDEN;
+			long sum = outputBias;
+			for (int i = 0; i < HIDDEN; ++i) {
+				int h = Math.max(0, Math.min(ONE, this.sums[base + i]));
+				sum += h * output[i];
+			}
+			return (int) (sum * SCORE_SCALE / (ONE * ONE));
+		}
+
+		/**
+		 * Checks whether a board has the width this accumulator was made for.
+		 * @param game the board
+		 * @return whether it can be scored with this accumulator
+		 */
+		public boolean fits(PowerConnectFour game) {
+			return game.sizeCol() == this.numCols;
+		}
+
+		/**
+		 * Makes sure a board has the width this accumulator was made for.
+		 * @param game the board
+		 */
+		private void checkWidth(PowerConnectFour game) {
+			if (game.sizeCol() != this.numCols) {
+				throw new IllegalArgumentException("Expected " + this.numCols + " columns, got " + game.sizeCol());
+			}
+		}
+	}
+
+	/**
+	 * State of a column as seen by one player.
+	 * @param game the board
+	 * @param col index of the column
+	 * @param perspective 0 to see RED tokens as mine, 1 for YELLOW
+	 * @return the state, 0 to STATES - 1
+	 */
+	static int state(PowerConnectFour game, int col, int perspective) {
+		Column<Token> column = game.getColumn(col);
+		int height = column.size();
+		Token mine = perspective == 0 ? Token.RED : Token.YELLOW;
+		int window = 0;
+		for (int d = 0; d < WINDOW; ++d) {
+			int digit = 0;
+			if (d < height) {
+				digit = column.get(height - 1 - d) == mine ? 1 : 2;
+			}
+			window = window * 3 + digit;
+		}
+		int diff = col == 0 ? 0 : height - game.getColumn(col - 1).size();
+		int diffBucket = Math.max(-4, Math.min(4, diff)) + 4;
+		int edge = Math.min(EDGE_BUCKETS - 1, Math.min(col, game.sizeCol() - 1 - col));
+		return (edge * DIFF_BUCKETS + diffBucket) * WINDOW_STATES + window;
+	}
+
+	/**
+	 * Writes the weights.
+	 * @param out stream to write to
+	 * @throws IOException if the stream fails
+	 */
+	public void writeTo(DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(HIDDEN);
+		out.writeInt(STATES);
+		for (short w : this.table) {
+			out.writeShort(w);
+		}
+		for (short w : this.bias) {
+			out.writeShort(w);
+		}
+		for (short w : this.output) {
+			out.writeShort(w);
+		}
+		out.writeInt(this.outputBias);
+	}
+
+	/**
+	 * Reads weights written by writeTo.
+	 * @param in stream to read from
+	 * @return the network
+	 * @throws IOException if the stream fails or holds another layout
+	 */
+	public static NnueEvaluator readFrom(DataInputStream in) throws IOException {
+		if (in.readInt() != MAGIC || in.readInt() != HIDDEN || in.readInt() != STATES) {
+			throw new IOException("Not a network of this layout");
+		}
+		short[] table = new short[STATES * HIDDEN];
+		short[] bias = new short[HIDDEN];
+		short[] output = new short[HIDDEN];
+		for (int i = 0; i < table.length; ++i) {
+			table[i] = in.readShort();
+		}
+		for (int i = 0; i < HIDDEN; ++i) {
+			bias[i] = in.readShort();
+		}
+		for (int i = 0; i < HIDDEN; ++i) {
+			output[i] = in.readShort();
+		}
+		return new NnueEvaluator(table, bias, output, in.readInt());
+	}
+
+	/**
+	 * Trains a network on self-play games. Each game is played by a simple
+	 * policy that takes a win when it sees one, avoids moves that hand the
+	 * other player a line, and otherwise plays at random; every position is
+	 * labelled with how the game ended for the player to move.
+	 * @param games number of games to play
+	 * @param epochs passes over the positions
+	 * @param numCols number of columns of the games
+	 * @param winLength number of connected tokens needed to win
+	 * @param seed seed for the games and the starting weights
+	 * @return the trained, quantized network
+	 */
+	public static NnueEvaluator train(int games, int epochs, int numCols, int winLength, long seed) {
+		SplittableRandom random = new SplittableRandom(seed);
+		Samples samples = selfPlay(games, numCols, winLength, random);
+
+		float[] t = new float[STATES * HIDDEN];
+		float[] b = new float[HIDDEN];
+		float[] w = new float[HIDDEN];
+		float[] c = {0f};
+		for (int i = 0; i < HIDDEN; ++i) {
+			b[i] = 0.5f;
+			w[i] = (float) (random.nextDouble() - 0.5) * 0.2f;
+		}
+		float[] a = new float[HIDDEN];
+		int[] order = new int[samples.count];
+		for (int i = 0; i < order.length; ++i) {
+			order[i] = i;
+		}
+		float rate = 0.01f;
+		for (int epoch = 0; epoch < epochs; ++epoch) {
+			for (int i = order.length - 1; i > 0; --i) {
+				int j = random.nextInt(i + 1);
+				int swap = order[i];
+				order[i] = order[j];
+				order[j] = swap;
+			}
+			for (int k : order) {
+				trainStep(samples, k, t, b, w, c, a, rate);
+			}
+		}
+		return quantize(t, b, w, c[0]);
+	}
+
+	/**
+	 * One SGD step of the float network on one position, binary cross
+	 * entropy against the game result.
+	 * @param samples the positions
+	 * @param k index of the position
+	 * @param t first layer
+	 * @param b first layer bias
+	 * @param w output weights
+	 * @param c output bias, one element
+	 * @param a scratch for the first-layer sums
+	 * @param rate learning rate
+	 */
+	private static void trainStep(Samples samples, int k, float[] t, float[] b, float[] w, float[] c,
+		float[] a, float rate) {
+		int from = k * samples.numCols;
+		System.arraycopy(b, 0, a, 0, HIDDEN);
+		for (int col = 0; col < samples.numCols; ++col) {
+			int row = samples.states[from + col] * HIDDEN;
+			for (int i = 0; i < HIDDEN; ++i) {
+				a[i] += t[row + i];
+			}
+		}
+		float z = c[0];
+		for (int i = 0; i < HIDDEN; ++i) {
+			z += w[i] * Math.max(0f, Math.min(1f, a[i]));
+		}
+		float dz = (float) (1.0 / (1.0 + Math.exp(-z))) - samples.labels[k];
+		c[0] -= rate * dz;
+		for (int i = 0; i < HIDDEN; ++i) {
+			float h = Math.max(0f, Math.min(1f, a[i]));
+			float da = a[i] > 0f && a[i] < 1f ? dz * w[i] : 0f;
+			w[i] -= rate * dz * h;
+			a[i] = da;
+		}
+		for (int i = 0; i < HIDDEN; ++i) {
+			b[i] -= rate * a[i];
+		}
+		for (int col = 0; col < samples.numCols; ++col) {
+			int row = samples.states[from + col] * HIDDEN;
+			for (int i = 0; i < HIDDEN; ++i) {
+				t[row + i] -= rate * a[i];
+			}
+		}
+	}
+
+	/**
+	 * Rounds float weights to int16.
+	 * @param t first layer
+	 * @param b first layer bias
+	 * @param w output weights
+	 * @param c output bias
+	 * @return the quantized network
+	 */
+	private static NnueEvaluator quantize(float[] t, float[] b, float[] w, float c) {
+		short[] table = new short[t.length];
+		for (int i = 0; i < t.length; ++i) {
+			table[i] = toShort(t[i] * ONE);
+		}
+		short[] bias = new short[HIDDEN];
+		short[] output = new short[HIDDEN];
+		for (int i = 0; i < HIDDEN; ++i) {
+			bias[i] = toShort(b[i] * ONE);
+			output[i] = toShort(w[i] * ONE);
+		}
+		return new NnueEvaluator(table, bias, output, Math.round(c * ONE * ONE));
+	}
+
+	/**
+	 * Rounds and clips a float to int16.
+	 * @param x the value
+	 * @return nearest int16
+	 */
+	private static short toShort(float x) {
+		return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(x)));
+	}
+
+	/**
+	 * Positions for training, as column states seen by the player to move.
+	 */
+	private static final class Samples {
+
+		/**
+		 * number of columns of every position.
+		 */
+		private final int numCols;
+
+		/**
+		 * numCols states per position.
+		 */
+		private int[] states;
+
+		/**
+		 * result for the player to move: 1 won, 0 lost, 0.5 unfinished.
+		 */
+		private float[] labels;
+
+		/**
+		 * number of positions.
+		 */
+		private int count = 0;
+
+		/**
+		 * a constructer for an empty set.
+		 * @param numCols number of columns of every position
+		 */
+		Samples(int numCols) {
+			this.numCols = numCols;
+			this.states = new int[1024 * numCols];
+			this.labels = new float[1024];
+		}
+
+		/**
+		 * Adds a position, labelled later.
+		 * @param game the position
+		 * @return index of the position
+		 */
+		int add(PowerConnectFour game) {
+			if (this.count == this.labels.length) {
+				this.labels = Arrays.copyOf(this.labels, this.count * 2);
+				this.states = Arrays.copyOf(this.states, this.count * 2 * this.numCols);
+			}
+			int p = game.currentPlayer() == Token.RED ? 0 : 1;
+			for (int col = 0; col < this.numCols; ++col) {
+				this.states[this.count * this.numCols + col] = state(game, col, p);
+			}
+			return this.count++;
+		}
+	}
+
+	/**
+	 * Plays and records the training games.
+	 * @param games number of games
+	 * @param numCols number of columns
+	 * @param winLength number of connected tokens needed to win
+	 * @param random source of the random moves
+	 * @return the labelled positions
+	 */
+	private static Samples selfPlay(int games, int numCols, int winLength, SplittableRandom random) {
+		Samples samples = new Samples(numCols);
+		PowerConnectFour game = new PowerConnectFour(numCols, winLength);
+		int[] moves = new int[game.maxLegalMoves()];
+		Token[] movers = new Token[1024];
+		for (int g = 0; g < games; ++g) {
+			game.reset();
+			int first = samples.count;
+			int ply = 0;
+			while (!game.isGameOver() && ply < movers.length) {
+				movers[ply++] = game.currentPlayer();
+				samples.add(game);
+				if (moves.length < game.maxLegalMoves()) {
+					moves = new int[game.maxLegalMoves() * 2];
+				}
+				game.apply(pickMove(game, moves, random));
+			}
+			Token winner = null;
+			if (game.isGameOver()) {
+				Token toMove = game.currentPlayer();
+				Token mover = toMove == Token.RED ? Token.YELLOW : Token.RED;
+				winner = game.hasFourConnected(mover) ? mover : toMove;
+			}
+			for (int i = first; i < samples.count; ++i) {
+				Token who = movers[i - first];
+				samples.labels[i] = winner == null ? 0.5f : winner == who ? 1f : 0f;
+			}
+		}
+		return samples;
+	}
+
+	/**
+	 * The self-play policy: a winning move if there is one, else a random
+	 * move that does not hand the other player a line, else any move.
+	 * @param game position, left as it was
+	 * @param moves buffer with room for maxLegalMoves() moves
+	 * @param random source of the random moves
+	 * @return the move
+	 */
+	private static int pickMove(PowerConnectFour game, int[] moves, SplittableRandom random) {
+		int n = game.legalMoves(moves);
+		int safe = 0;
+		for (int i = 0; i < n; ++i) {
+			game.apply(moves[i]);
+			int terminal = Searcher.terminalScore(game, 1);
+			game.undo(moves[i]);
+			if (terminal < 0) {
+				return moves[i];
+			}
+			if (terminal == 0) {
+				int swap = moves[safe];
+				moves[safe++] = moves[i];
+				moves[i] = swap;
+			}
+		}
+		return moves[random.nextInt(safe > 0 ? safe : n)];
+	}
+
+	//******************************************************
+	//*******     BELOW THIS LINE IS TESTING CODE    *******
+	//******************************************************
+
+	/**
+	 * Main is testing the incremental updates and the training, and can save
+	 * the trained network.
+	 * @param args command line args: number of games, then a file to save to
+	 * @throws IOException if the network cannot be saved
+	 */
+	public static void main(String[] args) throws IOException {
+		int games = args.length > 0 ? Integer.parseInt(args[0]) : 3000;
+		long start = System.nanoTime();
+		NnueEvaluator net = train(games, 4, 7, 4, 40);
+		System.out.format("trained on %d games in %d ms%n", games, (System.nanoTime() - start) / 1000000);
+
+		//incremental sums match a full refresh after every kind of move and undo
+		PowerConnectFour game = new PowerConnectFour();
+		Accumulator acc = net.newAccumulator(7);
+		Accumulator fresh = net.newAccumulator(7);
+		acc.refresh(game);
+		SplittableRandom random = new SplittableRandom(41);
+		int[] moves = new int[16];
+		int[] history = new int[400];
+		boolean same = true;
+		for (int i = 0; i < history.length; ++i) {
+			if (moves.length < game.maxLegalMoves()) {
+				moves = new int[game.maxLegalMoves() * 2];
+			}
+			history[i] = moves[random.nextInt(game.legalMoves(moves))];
+			game.apply(history[i]);
+			acc.moved(game, history[i]);
+			fresh.refresh(game);
+			same = same && Arrays.equals(acc.sums, fresh.sums) && acc.evaluate(game) == fresh.evaluate(game);
+		}
+		for (int i = history.length - 1; i >= 0; --i) {
+			game.undo(history[i]);
+			acc.moved(game, history[i]);
+		}
+		fresh.refresh(game);
+		if (same && Arrays.equals(acc.sums, fresh.sums)) {
+			System.out.println("Yay 1");
+		}
+
+		//a side with three in a row and the move scores better than the other side
+		PowerConnectFour threat = PositionCodec.fromText("R:Y,R,R,R,,Y,Y", 4);
+		PowerConnectFour mirror = PositionCodec.fromText("Y:Y,R,R,R,,Y,Y", 4);
+		acc.refresh(threat);
+		int attacking = acc.evaluate(threat);
+		acc.refresh(mirror);
+		int defending = acc.evaluate(mirror);
+		if (attacking > defending) {
+			System.out.println("Yay 2");
+		}
+
+		//weights survive a round trip, and the searcher plays with them
+		java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+		net.writeTo(new DataOutputStream(bytes));
+		NnueEvaluator read = readFrom(new DataInputStream(new java.io.ByteArrayInputStream(bytes.toByteArray())));
+		Searcher searcher = new Searcher();
+		searcher.setEvaluator(read);
+		Searcher.Result r = searcher.search(threat, 200, 6);
+		if (Arrays.equals(read.table, net.table) && r.score() >= Searcher.WIN_THRESHOLD) {
+			System.out.println("Yay 3");
+		}
+		if (args.length > 1) {
+			try (DataOutputStream out = new DataOutputStream(new java.io.BufferedOutputStream(
+				new java.io.FileOutputStream(args[1])))) {
+				net.writeTo(out);
+			}
+		}
+	}
+}
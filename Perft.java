@@ -0,0 +1,313 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ *  Counts the legal move sequences of a given length from a position
+ *  (perft). The counts are an oracle for move generation and move logic:
+ *  a faster board or a rewritten move must give exactly the same numbers.
+ *  A position where someone has connected ends the game, so it has no moves
+ *  and adds nothing to deeper counts. Also reports leaves per second as the
+ *  standard move generation benchmark.
+ *  Use with the command:
+ *      java Perft [depth] [-p threads] [-c cacheBits] [-d] [-m D3,PD2:0,...]
+ *  @author Adam David
+ */
+public class Perft {
+
+	/**
+	 * below this many plies a parallel task stops splitting and counts alone.
+	 */
+	private static final int SEQUENTIAL_DEPTH = 3;
+
+	/**
+	 * Only static helpers, no instances.
+	 */
+	private Perft() {
+	}
+
+	/**
+	 * Counts move sequences of the given length, on the calling thread.
+	 * The game is left as it was.
+	 * @param game position to count from
+	 * @param depth number of plies
+	 * @param cache subtree counts to reuse, can be null
+	 * @return the number of leaves
+	 */
+	public static long perft(PowerConnectFour game, int depth, Cache cache) {
+		return count(game, depth, new int[depth + 1][], cache);
+	}
+
+	/**
+	 * Counts move sequences of the given length, splitting the work over a
+	 * fork-join pool. The game is left as it was.
+	 * @param game position to count from
+	 * @param depth number of plies
+	 * @param cache subtree counts to reuse (shared by all threads), can be null
+	 * @param pool pool to run on
+	 * @return the number of leaves
+	 */
+	public static long parallelPerft(PowerConnectFour game, int depth, Cache cache, ForkJoinPool pool) {
+		return pool.invoke(new Task(new PowerConnectFour(game), depth, cache));
+	}
+
+	/**
+	 * Counts the leaves under each legal move of the position.
+	 * @param game position to count from
+	 * @param depth number of plies, including the listed move
+	 * @param cache subtree counts to reuse, can be null
+	 * @return one line per move with its count
+	 */
+	public static List<String> divide(PowerConnectFour game, int depth, Cache cache) {
+		List<String> lines = new ArrayList<>();
+		int[] moves = new int[game.maxLegalMoves()];
+		int n = game.legalMoves(moves);
+		for (int i = 0; i < n; ++i) {
+			game.apply(moves[i]);
+			long leaves = game.isGameOver() ? (depth == 1 ? 1 : 0) : perft(game, depth - 1, cache);
+			game.undo(moves[i]);
+			lines.add(Move.toString(moves[i]) + ": " + leaves);
+		}
+		return lines;
+	}
+
+	/**
+	 * Depth-first count with make/undo on a single board.
+	 * @param game position to count from
+	 * @param depth number of plies left
+	 * @param buffers move buffer for each ply, filled in as needed
+	 * @param cache subtree counts to reuse, can be null
+	 * @return the number of leaves
+	 */
+	private static long count(PowerConnectFour game, int depth, int[][] buffers, Cache cache) {
+		if (depth == 0) {
+			return 1;
+		}
+		if (game.isGameOver()) {
+			return 0;
+		}
+		long hash = game.positionHash();
+		if (cache != null && depth > 1) {
+			long cached = cache.get(hash, depth);
+			if (cached >= 0) {
+				return cached;
+			}
+		}
+		int[] moves = buffers[depth];
+		if (moves == null || moves.length < game.maxLegalMoves()) {
+			moves = new int[game.maxLegalMoves() * 2];
+			buffers[depth] = moves;
+		}
+		int n = game.legalMoves(moves);
+		//every legal move makes a leaf, no need to play them out
+		if (depth == 1) {
+			return n;
+		}
+		long total = 0;
+		for (int i = 0; i < n; ++i) {
+			game.apply(moves[i]);
+			total += count(game, depth - 1, buffers, cache);
+			game.undo(moves[i]);
+		}
+		if (cache != null) {
+			cache.put(hash, depth, total);
+		}
+		return total;
+	}
+
+	/**
+	 * Fork-join task that counts under one position, forking a task per move
+	 * until few enough plies are left to count alone.
+	 */
+	private static final class Task extends RecursiveTask<Long> {
+
+		/**
+		 * serialization id, tasks are never serialized.
+		 */
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * position owned by this task.
+		 */
+		private final PowerConnectFour game;
+
+		/**
+		 * number of plies left.
+		 */
+		private final int depth;
+
+		/**
+		 * shared subtree counts, can be null.
+		 */
+		private final Cache cache;
+
+		/**
+		 * a constructer for a task.
+		 * @param game position owned by this task
+		 * @param depth number of plies left
+		 * @param cache shared subtree counts, can be null
+		 */
+		Task(PowerConnectFour game, int depth, Cache cache) {
+			this.game = game;
+			this.depth = depth;
+			this.cache = cache;
+		}
+
+		@Override
+		protected Long compute() {
+			if (this.depth <= SEQUENTIAL_DEPTH || this.game.isGameOver()) {
+				return count(this.game, this.depth, new int[this.depth + 1][], this.cache);
+			}
+			int[] moves = new int[this.game.maxLegalMoves()];
+			int n = this.game.legalMoves(moves);
+			List<Task> children = new ArrayList<>(n);
+			for (int i = 0; i < n; ++i) {
+				PowerConnectFour child = new PowerConnectFour(this.game);
+				child.apply(moves[i]);
+				Task task = new Task(child, this.depth - 1, this.cache);
+				task.fork();
+				children.add(task);
+			}
+			long total = 0;
+			for (Task task : children) {
+				total += task.join();
+			}
+			return total;
+		}
+	}
+
+	/**
+	 * Fixed-size table of subtree counts keyed by position hash and depth.
+	 * Safe to share between threads without locks: each slot stores the key
+	 * XORed with the count, so a slot written by two threads at once just
+	 * fails the check on read and is treated as a miss.
+	 */
+	public static final class Cache {
+
+		/**
+		 * key XOR count of each slot.
+		 */
+		private final long[] checks;
+
+		/**
+		 * count of each slot.
+		 */
+		private final long[] counts;
+
+		/**
+		 * slot count minus one, the slot count is a power of two.
+		 */
+		private final int mask;
+
+		/**
+		 * a constructer for a table with 2^bits slots.
+		 * @param bits log2 of the number of slots, 1 to 30
+		 */
+		public Cache(int bits) {
+			if (bits < 1 || bits > 30) {
+				throw new IllegalArgumentException("Cache bits must be between 1 and 30");
+			}
+			this.checks = new long[1 << bits];
+			this.counts = new long[1 << bits];
+			this.mask = (1 << bits) - 1;
+		}
+
+		/**
+		 * Looks up a count.
+		 * @param hash position hash
+		 * @param depth number of plies
+		 * @return the count, or -1 if it is not in the table
+		 */
+		public long get(long hash, int depth) {
+			long key = key(hash, depth);
+			int slot = (int) key & this.mask;
+			long count = this.counts[slot];
+			long check = this.checks[slot];
+			return (check ^ count) == key && count != 0 ? count : -1;
+		}
+
+		/**
+		 * Stores a count, replacing whatever was in its slot.
+		 * @param hash position hash
+		 * @param depth number of plies
+		 * @param count the number of leaves
+		 */
+		public void put(long hash, int depth, long count) {
+			long key = key(hash, depth);
+			int slot = (int) key & this.mask;
+			this.counts[slot] = count;
+			this.checks[slot] = key ^ count;
+		}
+
+		/**
+		 * Combines a position hash and a depth into one key.
+		 * @param hash position hash
+		 * @param depth number of plies
+		 * @return the key
+		 */
+		private static long key(long hash, int depth) {
+			long z = hash + depth * 0x9E3779B97F4A7C15L;
+			z = (z ^ (z >>> 33)) * 0xFF51AFD7ED558CCDL;
+			return z ^ (z >>> 33);
+		}
+	}
+
+	/**
+	 * Counts every depth from 1 up to the given one and prints the counts
+	 * with the time taken and leaves per second.
+	 * @param args command line args, see the class comment
+	 */
+	public static void main(String[] args) {
+		int depth = 5;
+		int threads = 0;
+		int cacheBits = 0;
+		boolean divide = false;
+		String moves = "";
+		for (int i = 0; i < args.length; ++i) {
+			switch (args[i]) {
+				case "-p":
+					threads = Integer.parseInt(args[++i]);
+					break;
+				case "-c":
+					cacheBits = Integer.parseInt(args[++i]);
+					break;
+				case "-d":
+					divide = true;
+					break;
+				case "-m":
+					moves = args[++i];
+					break;
+				default:
+					depth = Integer.parseInt(args[i]);
+			}
+		}
+
+		PowerConnectFour game = new PowerConnectFour();
+		for (String move : moves.split(",")) {
+			if (!move.isEmpty() && !game.apply(Move.parse(move))) {
+				System.out.println("Invalid Move: " + move);
+				System.exit(1);
+			}
+		}
+		Cache cache = cacheBits > 0 ? new Cache(cacheBits) : null;
+		ForkJoinPool pool = threads > 0 ? new ForkJoinPool(threads) : null;
+
+		if (divide) {
+			for (String line : divide(game, depth, cache)) {
+				System.out.println(line);
+			}
+			return;
+		}
+		System.out.println("depth  leaves  ms  leaves/s");
+		for (int d = 1; d <= depth; ++d) {
+			long start = System.nanoTime();
+			long leaves = pool == null ? perft(game, d, cache) : parallelPerft(game, d, cache, pool);
+			long elapsed = Math.max(System.nanoTime() - start, 1);
+			System.out.format("%d  %d  %d  %.0f%n", d, leaves, elapsed / 1000000, leaves * 1e9 / elapsed);
+		}
+		if (pool != null) {
+			pool.shutdown();
+		}
+	}
+}
@@ -0,0 +1,614 @@
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ *  Plays huge numbers of random games to see how the rules behave: how
+ *  long games run, how tall the board gets (sizeRow), how often nobody
+ *  wins within the move limit, how often a position comes back, and how
+ *  much moving first is worth. Moves are picked uniformly from the legal
+ *  moves, or first a kind by a mix of weights (so power moves can be made
+ *  rarer or more common) and then a move of that kind.
+ *  Games are split into chunks of CHUNK_GAMES, and chunk c always plays
+ *  with the c-th stream split off the seed, so the results only depend on
+ *  the seed and never on the number of threads. Each chunk plays on one
+ *  board with buffers made up front, so moves allocate nothing.
+ *  Use with the command:
+ *      java PlayoutSimulator [-g games] [-s seed] [-p threads] [-w width] [-n winLength] [-l maxPlies] [-m D,P,PD,PP]
+ *  @author Adam David
+ */
+public class PlayoutSimulator {
+
+	/**
+	 * games played with one random stream.
+	 */
+	public static final int CHUNK_GAMES = 4096;
+
+	/**
+	 * moves after which a game nobody has won counts as a draw, by default.
+	 */
+	public static final int DEFAULT_MAX_PLIES = 200;
+
+	/**
+	 * growth policy of the boards, roomy enough that random games
+	 * hardly ever grow a column again after the first few games.
+	 */
+	private static final GrowthPolicy ROOMY = new GrowthPolicy(2.0, 3, 2, 16);
+
+	/**
+	 * number of columns.
+	 */
+	private final int width;
+
+	/**
+	 * number of connected tokens needed to win.
+	 */
+	private final int winLength;
+
+	/**
+	 * moves after which a game is a draw.
+	 */
+	private final int maxPlies;
+
+	/**
+	 * weight of each move kind, by kind, or null to pick uniformly.
+	 */
+	private final int[] mix;
+
+	/**
+	 * a constructer for a simulator.
+	 * @param width number of columns
+	 * @param winLength number of connected tokens needed to win
+	 * @param maxPlies moves after which a game nobody has won is a draw
+	 * @param mix weight of each of the 4 move kinds, or null to pick uniformly from all legal moves
+	 */
+	public PlayoutSimulator(int width, int winLength, int maxPlies, int[] mix) {
+		if (maxPlies < 1) {
+			throw new IllegalArgumentException("Games need at least one move, not " + maxPlies);
+		}
+		if (mix != null && mix.length != 4) {
+			throw new IllegalArgumentException("Move mix needs a weight for each of the 4 move kinds");
+		}
+		this.width = width;
+		this.winLength = winLength;
+		this.maxPlies = maxPlies;
+		this.mix = mix == null ? null : mix.clone();
+		//checks the board size now rather than in every chunk
+		new PowerConnectFour(width, winLength);
+	}
+
+	/**
+	 * Plays games on the calling thread.
+	 * @param games number of games
+	 * @param seed seed of the moves
+	 * @return the totals
+	 */
+	public Stats run(long games, long seed) {
+		SplittableRandom[] streams = streams(games, seed);
+		Stats stats = new Stats(this.maxPlies);
+		for (int c = 0; c < streams.length; ++c) {
+			playChunk(stats, streams[c], chunkGames(games, c));
+		}
+		return stats;
+	}
+
+	/**
+	 * Plays games spread over a fork-join pool. Gives exactly the same
+	 * totals as run(games, seed) on one thread.
+	 * @param games number of games
+	 * @param seed seed of the moves
+	 * @param pool pool to run on
+	 * @return the totals
+	 */
+	public Stats run(long games, long seed, ForkJoinPool pool) {
+		SplittableRandom[] streams = streams(games, seed);
+		try {
+			return pool.submit(() -> IntStream.range(0, streams.length).parallel().collect(
+				() -> new Stats(this.maxPlies), (s, c) -> playChunk(s, streams[c], chunkGames(games, c)), Stats::merge)).get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while playing", e);
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * Splits one random stream per chunk off the seed, in chunk order.
+	 * @param games number of games
+	 * @param seed seed of the moves
+	 * @return the streams
+	 */
+	private static SplittableRandom[] streams(long games, long seed) {
+		if (games < 0) {
+			throw new IllegalArgumentException("Number of games cannot be negative: " + games);
+		}
+		long chunks = (games + CHUNK_GAMES - 1) / CHUNK_GAMES;
+		if (chunks > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Too many games: " + games);
+		}
+		SplittableRandom root = new SplittableRandom(seed);
+		SplittableRandom[] streams = new SplittableRandom[(int) chunks];
+		for (int c = 0; c < streams.length; ++c) {
+			streams[c] = root.split();
+		}
+		return streams;
+	}
+
+	/**
+	 * Number of games in a chunk, the last one can be short.
+	 * @param games number of games
+	 * @param chunk index of the chunk
+	 * @return games in the chunk
+	 */
+	private static int chunkGames(long games, int chunk) {
+		return (int) Math.min(CHUNK_GAMES, games - (long) chunk * CHUNK_GAMES);
+	}
+
+	/**
+	 * Plays the games of one chunk on a board of its own.
+	 * @param stats totals to add to
+	 * @param random stream of the chunk
+	 * @param games number of games
+	 */
+	private void playChunk(Stats stats, SplittableRandom random, int games) {
+		PowerConnectFour game = new PowerConnectFour(this.width, this.winLength);
+		game.setGrowthPolicy(ROOMY);
+		int[] moves = new int[game.maxLegalMoves() + 2 * this.maxPlies];
+		int[] perKind = new int[4];
+		//positions of the game being played, open addressing stamped with the game number
+		int slots = Integer.highestOneBit(4 * this.maxPlies + 3) * 2;
+		long[] seen = new long[slots];
+		int[] stamps = new int[slots];
+		for (int g = 1; g <= games; ++g) {
+			game.reset();
+			int ply = 0;
+			int peak = game.sizeRow();
+			int repeats = 0;
+			int result = Stats.DRAW;
+			remember(seen, stamps, g, game.positionHash());
+			while (ply < this.maxPlies) {
+				game.apply(pick(game, moves, perKind, random));
+				++ply;
+				stats.kinds[Move.kind(moves[0])]++;
+				peak = Math.max(peak, game.sizeRow());
+				Token toMove = game.currentPlayer();
+				Token mover = toMove == Token.RED ? Token.YELLOW : Token.RED;
+				//decided the way the GUI decides it
+				if (game.hasFourConnected(mover)) {
+					result = mover == Token.RED ? Stats.RED_WON : Stats.YELLOW_WON;
+					break;
+				}
+				if (game.hasFourConnected(toMove)) {
+					result = toMove == Token.RED ? Stats.RED_WON : Stats.YELLOW_WON;
+					break;
+				}
+				repeats += remember(seen, stamps, g, game.positionHash()) ? 0 : 1;
+			}
+			stats.add(ply, peak, result, repeats);
+		}
+	}
+
+	/**
+	 * Picks a move: uniformly, or first a kind by the mix weights among
+	 * the kinds that have a legal move and then a move of that kind.
+	 * The move is also left in moves[0].
+	 * @param game position to move in
+	 * @param moves buffer with room for maxLegalMoves() moves
+	 * @param perKind buffer for the number of moves of each kind
+	 * @param random source of the random moves
+	 * @return the packed move
+	 */
+	private int pick(PowerConnectFour game, int[] moves, int[] perKind, SplittableRandom random) {
+		int n = game.legalMoves(moves);
+		int total = 0;
+		if (this.mix != null) {
+			Arrays.fill(perKind, 0);
+			for (int i = 0; i < n; ++i) {
+				++perKind[Move.kind(moves[i])];
+			}
+			for (int kind = 0; kind < 4; ++kind) {
+				total += perKind[kind] > 0 ? this.mix[kind] : 0;
+			}
+		}
+		int chosen;
+		if (total == 0) {
+			chosen = random.nextInt(n);
+		}
+		else {
+			int r = random.nextInt(total);
+			int kind = 0;
+			while (perKind[kind] == 0 || r >= this.mix[kind]) {
+				r -= perKind[kind] > 0 ? this.mix[kind] : 0;
+				++kind;
+			}
+			int which = random.nextInt(perKind[kind]);
+			chosen = 0;
+			while (Move.kind(moves[chosen]) != kind || which-- > 0) {
+				++chosen;
+			}
+		}
+		moves[0] = moves[chosen];
+		return moves[0];
+	}
+
+	/**
+	 * Adds a position to the positions of a game.
+	 * @param seen hashes by slot
+	 * @param stamps game number each slot was filled in
+	 * @param g game number
+	 * @param hash position hash
+	 * @return whether it was new to the game
+	 */
+	private static boolean remember(long[] seen, int[] stamps, int g, long hash) {
+		int mask = seen.length - 1;
+		for (int slot = (int) (hash ^ (hash >>> 32)) & mask; ; slot = (slot + 1) & mask) {
+			if (stamps[slot] != g) {
+				stamps[slot] = g;
+				seen[slot] = hash;
+				return true;
+			}
+			if (seen[slot] == hash) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Mergeable totals for a set of games. Each instance is only used by one
+	 * thread at a time; merge combines two when their threads are done.
+	 */
+	public static final class Stats {
+
+		/**
+		 * result index of a game nobody won within the move limit.
+		 */
+		private static final int DRAW = 0;
+
+		/**
+		 * result index of a game red won.
+		 */
+		private static final int RED_WON = 1;
+
+		/**
+		 * result index of a game yellow won.
+		 */
+		private static final int YELLOW_WON = 2;
+
+		/**
+		 * number of games played.
+		 */
+		private long games = 0;
+
+		/**
+		 * number of moves played over all games.
+		 */
+		private long moves = 0;
+
+		/**
+		 * games by result index.
+		 */
+		private final long[] results = new long[3];
+
+		/**
+		 * games by number of moves.
+		 */
+		private final long[] lengths;
+
+		/**
+		 * games by the largest sizeRow() they reached.
+		 */
+		private long[] peaks = new long[16];
+
+		/**
+		 * moves by Move kind.
+		 */
+		private final long[] kinds = new long[4];
+
+		/**
+		 * games in which some position came back.
+		 */
+		private long cycles = 0;
+
+		/**
+		 * positions that came back, over all games.
+		 */
+		private long repeats = 0;
+
+		/**
+		 * a constructer for empty totals.
+		 * @param maxPlies moves after which a game is a draw
+		 */
+		Stats(int maxPlies) {
+			this.lengths = new long[maxPlies + 1];
+		}
+
+		/**
+		 * Adds one game.
+		 * @param plies number of moves
+		 * @param peak largest sizeRow() of the game
+		 * @param result result index
+		 * @param repeated positions that came back
+		 */
+		private void add(int plies, int peak, int result, int repeated) {
+			this.games++;
+			this.moves += plies;
+			this.lengths[plies]++;
+			if (peak >= this.peaks.length) {
+				this.peaks = Arrays.copyOf(this.peaks, Math.max(peak + 1, this.peaks.length * 2));
+			}
+			this.peaks[peak]++;
+			this.results[result]++;
+			this.cycles += repeated > 0 ? 1 : 0;
+			this.repeats += repeated;
+		}
+
+		/**
+		 * Adds another set of totals into this one.
+		 * @param other totals to add, not used afterwards
+		 */
+		public void merge(Stats other) {
+			this.games += other.games;
+			this.moves += other.moves;
+			for (int i = 0; i < 3; ++i) {
+				this.results[i] += other.results[i];
+			}
+			for (int i = 0; i < this.lengths.length; ++i) {
+				this.lengths[i] += other.lengths[i];
+			}
+			if (other.peaks.length > this.peaks.length) {
+				this.peaks = Arrays.copyOf(this.peaks, other.peaks.length);
+			}
+			for (int i = 0; i < other.peaks.length; ++i) {
+				this.peaks[i] += other.peaks[i];
+			}
+			for (int k = 0; k < 4; ++k) {
+				this.kinds[k] += other.kinds[k];
+			}
+			this.cycles += other.cycles;
+			this.repeats += other.repeats;
+		}
+
+		/**
+		 * getter for the number of games.
+		 * @return number of games played
+		 */
+		public long games() {
+			return this.games;
+		}
+
+		/**
+		 * getter for the number of moves.
+		 * @return number of moves played over all games
+		 */
+		public long moves() {
+			return this.moves;
+		}
+
+		/**
+		 * getter for the number of draws.
+		 * @return games nobody won within the move limit
+		 */
+		public long draws() {
+			return this.results[DRAW];
+		}
+
+		/**
+		 * getter for the number of games red won.
+		 * @return games red won
+		 */
+		public long redWins() {
+			return this.results[RED_WON];
+		}
+
+		/**
+		 * getter for the number of games yellow won.
+		 * @return games yellow won
+		 */
+		public long yellowWins() {
+			return this.results[YELLOW_WON];
+		}
+
+		/**
+		 * getter for the number of games with a cycle.
+		 * @return games in which some position came back
+		 */
+		public long cycles() {
+			return this.cycles;
+		}
+
+		/**
+		 * getter for how often a kind of move was used.
+		 * @param kind one of the Move kinds
+		 * @return number of moves of that kind
+		 */
+		public long kindCount(int kind) {
+			return this.kinds[kind];
+		}
+
+		/**
+		 * getter for how many games reached a display height.
+		 * @param rows a sizeRow() value
+		 * @return games whose largest sizeRow() was that
+		 */
+		public long peakCount(int rows) {
+			return rows < this.peaks.length ? this.peaks[rows] : 0;
+		}
+
+		/**
+		 * How much moving first is worth: red's share of the decided games
+		 * minus a half.
+		 * @return the edge, from -0.5 to 0.5, 0 if no game was decided
+		 */
+		public double firstMoverAdvantage() {
+			long decided = this.results[RED_WON] + this.results[YELLOW_WON];
+			return decided == 0 ? 0 : (double) this.results[RED_WON] / decided - 0.5;
+		}
+
+		/**
+		 * Game length at a percentile.
+		 * @param percentile percentile, 0 to 100
+		 * @return the length in moves, 0 if no games
+		 */
+		public int lengthAt(double percentile) {
+			long rank = Math.max(1, (long) Math.ceil(Math.min(100, percentile) / 100 * this.games));
+			long seen = 0;
+			for (int plies = 0; plies < this.lengths.length; ++plies) {
+				seen += this.lengths[plies];
+				if (seen >= rank) {
+					return plies;
+				}
+			}
+			return 0;
+		}
+
+		/**
+		 * Checks whether two sets of totals are the same in every count.
+		 * @param other the other totals
+		 * @return whether they match
+		 */
+		public boolean sameAs(Stats other) {
+			int peaks = Math.max(this.peaks.length, other.peaks.length);
+			for (int i = 0; i < peaks; ++i) {
+				if (peakCount(i) != other.peakCount(i)) {
+					return false;
+				}
+			}
+			return this.games == other.games && this.moves == other.moves && this.cycles == other.cycles
+				&& this.repeats == other.repeats && Arrays.equals(this.results, other.results)
+				&& Arrays.equals(this.lengths, other.lengths) && Arrays.equals(this.kinds, other.kinds);
+		}
+
+		/**
+		 * Writes the report.
+		 * @param out where to write it
+		 */
+		public void print(PrintStream out) {
+			long finished = Math.max(1, this.games);
+			out.format("games %d  moves %d  mean length %.1f  median %d  p90 %d  p99 %d%n", this.games, this.moves,
+				this.moves / (double) finished, lengthAt(50), lengthAt(90), lengthAt(99));
+			out.format("red won %.2f%%  yellow won %.2f%%  draw %.2f%%  first mover advantage %+.4f%n",
+				100.0 * this.results[RED_WON] / finished, 100.0 * this.results[YELLOW_WON] / finished,
+				100.0 * this.results[DRAW] / finished, firstMoverAdvantage());
+			out.format("games with a repeated position %.2f%%  repeats per game %.3f%n",
+				100.0 * this.cycles / finished, this.repeats / (double) finished);
+			long total = Math.max(1, this.moves);
+			out.format("moves  D %.1f%%  P %.1f%%  PD %.1f%%  PP %.1f%%%n",
+				100.0 * this.kinds[Move.DROP] / total, 100.0 * this.kinds[Move.POP] / total,
+				100.0 * this.kinds[Move.POWER_DROP] / total, 100.0 * this.kinds[Move.POWER_POP] / total);
+			out.println("peak rows  games");
+			for (int rows = 0; rows < this.peaks.length; ++rows) {
+				if (this.peaks[rows] > 0) {
+					out.format("%d  %d%n", rows, this.peaks[rows]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Runs a simulation and prints the report with the time taken, or with
+	 * no arguments checks the simulator.
+	 * @param args command line args, see the class comment
+	 */
+	public static void main(String[] args) {
+		if (args.length == 0) {
+			check();
+			return;
+		}
+		long games = 1000000;
+		long seed = 46;
+		int threads = Runtime.getRuntime().availableProcessors();
+		int width = PowerConnectFour.DEFAULT_NUM_COLS;
+		int winLength = PowerConnectFour.DEFAULT_WIN_LENGTH;
+		int maxPlies = DEFAULT_MAX_PLIES;
+		int[] mix = null;
+		for (int i = 0; i < args.length; ++i) {
+			switch (args[i]) {
+				case "-g":
+					games = Long.parseLong(args[++i]);
+					break;
+				case "-s":
+					seed = Long.parseLong(args[++i]);
+					break;
+				case "-p":
+					threads = Integer.parseInt(args[++i]);
+					break;
+				case "-w":
+					width = Integer.parseInt(args[++i]);
+					break;
+				case "-n":
+					winLength = Integer.parseInt(args[++i]);
+					break;
+				case "-l":
+					maxPlies = Integer.parseInt(args[++i]);
+					break;
+				case "-m":
+					String[] weights = args[++i].split(",");
+					mix = new int[4];
+					for (int k = 0; k < mix.length; ++k) {
+						mix[k] = k < weights.length ? Integer.parseInt(weights[k]) : 0;
+					}
+					break;
+				default:
+					System.out.println("Unknown option: " + args[i]);
+					System.exit(1);
+			}
+		}
+		PlayoutSimulator simulator = new PlayoutSimulator(width, winLength, maxPlies, mix);
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		long start = System.nanoTime();
+		Stats stats = simulator.run(games, seed, pool);
+		long elapsed = Math.max(System.nanoTime() - start, 1);
+		pool.shutdown();
+		stats.print(System.out);
+		System.out.format("%d ms on %d threads, %.0f games/s, seed %d%n", elapsed / 1000000, threads,
+			stats.games() * 1e9 / elapsed, seed);
+	}
+
+	//******************************************************
+	//*******     BELOW THIS LINE IS TESTING CODE    *******
+	//******************************************************
+
+	/**
+	 * Checks reproducibility and the counts.
+	 */
+	private static void check() {
+		//the same seed gives the same totals on one thread or many
+		PlayoutSimulator uniform = new PlayoutSimulator(7, 4, 60, null);
+		ForkJoinPool pool = new ForkJoinPool(3);
+		Stats one = uniform.run(3 * CHUNK_GAMES + 5, 1);
+		Stats many = uniform.run(3 * CHUNK_GAMES + 5, 1, pool);
+		Stats other = uniform.run(3 * CHUNK_GAMES + 5, 2, pool);
+		pool.shutdown();
+		if (one.sameAs(many) && !one.sameAs(other) && one.games() == 3 * CHUNK_GAMES + 5) {
+			System.out.println("Yay 1");
+		}
+
+		//drops only never repeat a position, every game is someone's or a draw
+		PlayoutSimulator drops = new PlayoutSimulator(7, 4, 40, new int[] {1, 0, 0, 0});
+		Stats d = drops.run(2000, 3);
+		long peaks = 0;
+		for (int rows = 0; rows <= 41; ++rows) {
+			peaks += d.peakCount(rows);
+		}
+		if (d.cycles() == 0 && d.kindCount(Move.DROP) == d.moves() && peaks == 2000
+			&& d.redWins() + d.yellowWins() + d.draws() == 2000 && d.firstMoverAdvantage() > 0) {
+			System.out.println("Yay 2");
+		}
+
+		//pops can undo drops, so positions come back
+		PlayoutSimulator pops = new PlayoutSimulator(7, 4, 60, new int[] {1, 1, 0, 0});
+		Stats p = pops.run(2000, 4);
+		if (p.cycles() > 0 && p.kindCount(Move.POP) > 0 && p.kindCount(Move.POWER_DROP) == 0 && p.lengthAt(100) <= 60) {
+			System.out.println("Yay 3");
+		}
+	}
+}
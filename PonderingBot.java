@@ -0,0 +1,299 @@
+import java.lang.reflect.Method;
+
+/**
+ *  A computer opponent that keeps thinking while the human thinks.
+ *  After its own move the bot guesses the human's reply (the best reply its
+ *  table knows, or a quick search) and searches the position after that
+ *  reply on a background thread. If the human plays the guessed move the
+ *  search is already under way, so the bot only waits out what is left of
+ *  its budget; if not, the background search is stopped and a fresh one
+ *  runs, still helped by what pondering put in the table.
+ *  The background thread is a virtual thread where the JDK has them and a
+ *  daemon platform thread otherwise. Only the game thread calls the methods.
+ *  @author Adam David
+ */
+public class PonderingBot {
+
+	/**
+	 * time budget of a guess when the table has no reply for the position.
+	 */
+	private static final long GUESS_MILLIS = 20;
+
+	/**
+	 * longest a ponder search runs when the human never moves.
+	 */
+	private static final long PONDER_LIMIT_MILLIS = 10 * 60 * 1000;
+
+	/**
+	 * search used both for pondering and for fresh searches, never at once.
+	 */
+	private final Searcher searcher = new Searcher();
+
+	/**
+	 * time the bot may take per move, counted from the human's move.
+	 */
+	private final long budgetMillis;
+
+	/**
+	 * deepest full-width depth of any search.
+	 */
+	private final int maxDepth;
+
+	/**
+	 * the background thread, null when not pondering.
+	 */
+	private Thread ponderThread;
+
+	/**
+	 * cleared to tell the background thread to give up.
+	 */
+	private volatile boolean pondering = false;
+
+	/**
+	 * the human move the running ponder search assumes, -1 before it is guessed.
+	 */
+	private volatile int predicted = -1;
+
+	/**
+	 * result of the ponder search, null until it returns.
+	 */
+	private volatile Searcher.Result ponderResult;
+
+	/**
+	 * System.nanoTime() when the ponder search started.
+	 */
+	private volatile long ponderStart;
+
+	/**
+	 * number of human moves that matched the guess.
+	 */
+	private int hits = 0;
+
+	/**
+	 * number of human moves that did not.
+	 */
+	private int misses = 0;
+
+	/**
+	 * time between the human's move and the bot's answer, last move.
+	 */
+	private long lastLatencyMillis = 0;
+
+	/**
+	 * a constructer for a bot.
+	 * @param budgetMillis time the bot may take per move
+	 * @param maxDepth deepest full-width depth of any search
+	 */
+	public PonderingBot(long budgetMillis, int maxDepth) {
+		if (budgetMillis < 1) {
+			throw new IllegalArgumentException("Budget must be at least 1 ms");
+		}
+		this.budgetMillis = budgetMillis;
+		this.maxDepth = maxDepth;
+	}
+
+	/**
+	 * Starts thinking about the position the human is to move in.
+	 * The game is copied, so it can change afterwards.
+	 * @param game position with the human to move
+	 */
+	public void startPondering(PowerConnectFour game) {
+		stopPondering();
+		if (game.isGameOver()) {
+			return;
+		}
+		PowerConnectFour position = new PowerConnectFour(game);
+		this.predicted = -1;
+		this.ponderResult = null;
+		this.pondering = true;
+		this.ponderThread = startThread(() -> ponder(position));
+	}
+
+	/**
+	 * Stops the background search, if any, and waits for it to end.
+	 */
+	public void stopPondering() {
+		Thread t = this.ponderThread;
+		this.ponderThread = null;
+		this.pondering = false;
+		if (t == null) {
+			return;
+		}
+		//the search clears stop when it starts, so keep asking until the thread ends
+		while (t.isAlive()) {
+			this.searcher.stop();
+			try {
+				t.join(1);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Picks the bot's move. Call it right after the human's move is made.
+	 * @param game position with the bot to move, not over
+	 * @param humanMove the move the human just made, or -1 if unknown
+	 * @return the packed move to play
+	 */
+	public int chooseMove(PowerConnectFour game, int humanMove) {
+		long start = System.nanoTime();
+		Thread t = this.ponderThread;
+		Searcher.Result result = null;
+		if (t != null && humanMove != -1 && humanMove == this.predicted) {
+			this.hits++;
+			long used = (start - this.ponderStart) / 1000000L;
+			try {
+				t.join(Math.max(1, this.budgetMillis - used));
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			stopPondering();
+			result = this.ponderResult;
+		}
+		else {
+			if (t != null) {
+				this.misses++;
+			}
+			stopPondering();
+		}
+		if (result == null || result.depth() == 0) {
+			long left = Math.max(1, this.budgetMillis - (System.nanoTime() - start) / 1000000L);
+			result = this.searcher.search(game, left, this.maxDepth);
+		}
+		this.lastLatencyMillis = (System.nanoTime() - start) / 1000000L;
+		return result.bestMove();
+	}
+
+	/**
+	 * getter for the ponder hits.
+	 * @return number of human moves that matched the guess
+	 */
+	public int hits() {
+		return this.hits;
+	}
+
+	/**
+	 * getter for the ponder misses.
+	 * @return number of human moves that did not match the guess
+	 */
+	public int misses() {
+		return this.misses;
+	}
+
+	/**
+	 * getter for the latency.
+	 * @return milliseconds between the human's move and the bot's last answer
+	 */
+	public long lastLatencyMillis() {
+		return this.lastLatencyMillis;
+	}
+
+	/**
+	 * Body of the background thread: guess the reply, then search past it.
+	 * @param position copy of the position with the human to move
+	 */
+	private void ponder(PowerConnectFour position) {
+		int guess = guessReply(position);
+		if (guess == -1 || !this.pondering) {
+			return;
+		}
+		position.apply(guess);
+		if (position.isGameOver()) {
+			return;
+		}
+		this.ponderStart = System.nanoTime();
+		this.predicted = guess;
+		this.ponderResult = this.searcher.search(position, PONDER_LIMIT_MILLIS, this.maxDepth);
+	}
+
+	/**
+	 * Guesses the human's reply: the table's best move if it has a legal
+	 * one, otherwise the result of a short search.
+	 * @param position position with the human to move
+	 * @return the guessed move, or -1 if the search was stopped first
+	 */
+	private int guessReply(PowerConnectFour position) {
+		long entry = this.searcher.table().probe(Searcher.tableKey(position));
+		if (entry != Searcher.Table.MISS) {
+			int move = Searcher.Table.move(entry);
+			int[] moves = new int[position.maxLegalMoves()];
+			int n = position.legalMoves(moves);
+			for (int i = 0; i < n; ++i) {
+				if (moves[i] == move) {
+					return move;
+				}
+			}
+		}
+		Searcher.Result quick = this.searcher.search(position, GUESS_MILLIS, this.maxDepth);
+		return quick.depth() > 0 ? quick.bestMove() : -1;
+	}
+
+	/**
+	 * Runs a task on a virtual thread if the JDK has them (Java 21 and up),
+	 * otherwise on a daemon platform thread.
+	 * @param task the task
+	 * @return the started thread
+	 */
+	private static Thread startThread(Runnable task) {
+		try {
+			Method virtual = Thread.class.getMethod("startVirtualThread", Runnable.class);
+			return (Thread) virtual.invoke(null, task);
+		}
+		catch (ReflectiveOperationException | UnsupportedOperationException e) {
+			Thread t = new Thread(task, "ponder");
+			t.setDaemon(true);
+			t.start();
+			return t;
+		}
+	}
+
+	//******************************************************
+	//*******     BELOW THIS LINE IS TESTING CODE    *******
+	//******************************************************
+
+	/**
+	 * Main is testing a ponder hit, a ponder miss and a clean stop.
+	 * @param args takes in command line arguements
+	 * @throws InterruptedException if the test is interrupted
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		PonderingBot bot = new PonderingBot(300, 32);
+		PowerConnectFour game = new PowerConnectFour();
+		game.apply(Move.drop(3));
+		game.apply(bot.chooseMove(game, Move.drop(3)));
+
+		//the human takes a while and plays the guess, the answer is nearly instant
+		bot.startPondering(game);
+		Thread.sleep(500);
+		int guess = bot.predicted;
+		game.apply(guess);
+		int reply = bot.chooseMove(game, guess);
+		if (bot.hits() == 1 && bot.lastLatencyMillis() < 100 && game.apply(reply)) {
+			System.out.println("Yay 1");
+		}
+
+		//the human plays something else, the bot still answers in its budget
+		bot.startPondering(game);
+		Thread.sleep(100);
+		int[] moves = new int[game.maxLegalMoves()];
+		int n = game.legalMoves(moves);
+		int other = moves[0] == bot.predicted ? moves[n - 1] : moves[0];
+		game.apply(other);
+		reply = bot.chooseMove(game, other);
+		if (bot.misses() == 1 && bot.lastLatencyMillis() < 1000 && game.apply(reply)) {
+			System.out.println("Yay 2");
+		}
+
+		//stopping leaves no thread behind
+		bot.startPondering(game);
+		Thread t = bot.ponderThread;
+		bot.stopPondering();
+		if (t != null && !t.isAlive() && bot.ponderThread == null) {
+			System.out.println("Yay 3");
+		}
+	}
+}
@@ -0,0 +1,218 @@
+import java.util.Arrays;
+
+/**
+ *  Reads and writes positions as text.
+ *  A position is the player to move, a colon, then every column bottom to
+ *  top as token symbols, separated by commas. The classic empty board is
+ *  "R:,,,,,," and "Y:,,RY,Y,,," has two tokens in column 2 and one in column 3.
+ *  The win length is not part of the text.
+ *  The binary form is for storing many positions: the width and every
+ *  column height as varints, the player to move, then one bit per token
+ *  (set for YELLOW), bottom to top, column after column.
+ *  @author Adam David
+ */
+public final class PositionCodec {
+
+	/**
+	 * Only static helpers, no instances.
+	 */
+	private PositionCodec() {
+	}
+
+	/**
+	 * Writes a position as text.
+	 * @param game position to write
+	 * @return the position as text
+	 */
+	public static String toText(PowerConnectFour game) {
+		StringBuilder s = new StringBuilder(game.tokenCount() + game.sizeCol() + 2);
+		s.append(game.currentPlayer().getSymbol()).append(':');
+		for (int col = 0; col < game.sizeCol(); ++col) {
+			if (col > 0) {
+				s.append(',');
+			}
+			game.getColumn(col).forEach(t -> s.append(t.getSymbol()));
+		}
+		return s.toString();
+	}
+
+	/**
+	 * Reads a position written by toText into a new game.
+	 * @param text the position as text
+	 * @param winLength number of connected tokens needed to win
+	 * @return a game set up at that position
+	 */
+	public static PowerConnectFour fromText(String text, int winLength) {
+		return fromText(text, winLength, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Reads a position written by toText into a new game, refusing it
+	 * before anything is built if it has too many columns.
+	 * @param text the position as text
+	 * @param winLength number of connected tokens needed to win
+	 * @param maxWidth most columns the position may have
+	 * @return a game set up at that position
+	 */
+	public static PowerConnectFour fromText(String text, int winLength, int maxWidth) {
+		Token toMove = parseHeader(text);
+		Token[][] columns = parseColumns(text, maxWidth);
+		PowerConnectFour game = new PowerConnectFour(columns.length, winLength);
+		game.load(columns, toMove);
+		return game;
+	}
+
+	/**
+	 * Reads a position written by toText into an existing game of the same width.
+	 * @param text the position as text
+	 * @param game game to set up
+	 */
+	public static void loadText(String text, PowerConnectFour game) {
+		game.load(parseColumns(text, Integer.MAX_VALUE), parseHeader(text));
+	}
+
+	/**
+	 * Writes a position in the compact binary form.
+	 * @param game position to write
+	 * @return the position as bytes
+	 */
+	public static byte[] toBytes(PowerConnectFour game) {
+		int width = game.sizeCol();
+		byte[] out = new byte[5 * (width + 1) + 1 + (game.tokenCount() + 7) / 8];
+		int at = writeVarint(out, 0, width);
+		out[at++] = (byte) game.currentPlayer().ordinal();
+		for (int col = 0; col < width; ++col) {
+			at = writeVarint(out, at, game.getColumn(col).size());
+		}
+		int bit = at * 8;
+		for (int col = 0; col < width; ++col) {
+			Column<Token> column = game.getColumn(col);
+			for (int row = 0; row < column.size(); ++row, ++bit) {
+				if (column.get(row) == Token.YELLOW) {
+					out[bit >>> 3] |= (byte) (1 << (bit & 7));
+				}
+			}
+		}
+		return Arrays.copyOf(out, (bit + 7) >>> 3);
+	}
+
+	/**
+	 * Reads a position written by toBytes into a new game.
+	 * @param bytes the position as bytes
+	 * @param winLength number of connected tokens needed to win
+	 * @return a game set up at that position
+	 */
+	public static PowerConnectFour fromBytes(byte[] bytes, int winLength) {
+		int[] at = {0};
+		PowerConnectFour game = new PowerConnectFour(readVarint(bytes, at), winLength);
+		loadBytes(bytes, game);
+		return game;
+	}
+
+	/**
+	 * Reads a position written by toBytes into an existing game of the same width.
+	 * @param bytes the position as bytes
+	 * @param game game to set up
+	 */
+	public static void loadBytes(byte[] bytes, PowerConnectFour game) {
+		int[] at = {0};
+		int width = readVarint(bytes, at);
+		Token toMove = Token.values()[bytes[at[0]++]];
+		Token[][] columns = new Token[width][];
+		for (int col = 0; col < width; ++col) {
+			columns[col] = new Token[readVarint(bytes, at)];
+		}
+		int bit = at[0] * 8;
+		for (int col = 0; col < width; ++col) {
+			for (int row = 0; row < columns[col].length; ++row, ++bit) {
+				boolean yellow = (bytes[bit >>> 3] & (1 << (bit & 7))) != 0;
+				columns[col][row] = yellow ? Token.YELLOW : Token.RED;
+			}
+		}
+		game.load(columns, toMove);
+	}
+
+	/**
+	 * Writes an unsigned varint, 7 bits per byte, low bits first.
+	 * @param out buffer to write into
+	 * @param at position to write at
+	 * @param value value to write, not negative
+	 * @return position after the varint
+	 */
+	private static int writeVarint(byte[] out, int at, int value) {
+		while ((value & ~0x7F) != 0) {
+			out[at++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out[at++] = (byte) value;
+		return at;
+	}
+
+	/**
+	 * Reads an unsigned varint.
+	 * @param in buffer to read from
+	 * @param at position to read at, moved past the varint
+	 * @return the value
+	 */
+	private static int readVarint(byte[] in, int[] at) {
+		int value = 0;
+		for (int shift = 0; ; shift += 7) {
+			byte b = in[at[0]++];
+			value |= (b & 0x7F) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+	}
+
+	/**
+	 * Reads the player to move.
+	 * @param text the position as text
+	 * @return the player to move
+	 */
+	private static Token parseHeader(String text) {
+		if (text.length() < 2 || text.charAt(1) != ':') {
+			throw new IllegalArgumentException("Position must start with R: or Y:");
+		}
+		return tokenOf(text.charAt(0));
+	}
+
+	/**
+	 * Reads the columns.
+	 * @param text the position as text
+	 * @param maxWidth most columns the position may have
+	 * @return tokens of each column, bottom first
+	 */
+	private static Token[][] parseColumns(String text, int maxWidth) {
+		int width = 1;
+		for (int i = 2; i < text.length(); ++i) {
+			if (text.charAt(i) == ',' && ++width > maxWidth) {
+				throw new IllegalArgumentException("Width must be at most " + maxWidth);
+			}
+		}
+		String[] parts = text.substring(2).split(",", -1);
+		Token[][] columns = new Token[parts.length][];
+		for (int col = 0; col < parts.length; ++col) {
+			String part = parts[col];
+			columns[col] = new Token[part.length()];
+			for (int row = 0; row < part.length(); ++row) {
+				columns[col][row] = tokenOf(part.charAt(row));
+			}
+		}
+		return columns;
+	}
+
+	/**
+	 * Turns a symbol into its token.
+	 * @param symbol R or Y
+	 * @return the token
+	 */
+	private static Token tokenOf(char symbol) {
+		for (Token t : Token.values()) {
+			if (t.getSymbol() == symbol) {
+				return t;
+			}
+		}
+		throw new IllegalArgumentException("Unknown token symbol: " + symbol);
+	}
+}
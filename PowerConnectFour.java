@@ -1,3 +1,5 @@
+import java.util.Arrays;
+
 /**
  *  Manages data structure and operations
  *  for the power connect 4 boardgame.
@@ -13,9 +15,14 @@ public class PowerConnectFour {
 	private Column<Token>[] grid;
 
 	/**
-	 *  The fixed number of columns the game grid should have.
+	 *  The number of columns the game grid has unless told otherwise.
+	 */
+	public static final int DEFAULT_NUM_COLS = 7;
+
+	/**
+	 *  The number of connected tokens needed to win unless told otherwise.
 	 */
-	private static final int NUM_COLS = 7;
+	public static final int DEFAULT_WIN_LENGTH = 4;
 
 	/**
 	 *  The minimum number of rows of the grid for display.
@@ -42,6 +49,81 @@ public class PowerConnectFour {
 	 */  
 	private static final int MARGIN_ROWS = 1;
 	
+	/**
+	 * Default height above which a column switches to run-length encoding.
+	 */
+	public static final int DEFAULT_RUN_LENGTH_THRESHOLD = 256;
+
+	/**
+	 * Default number of times a position may occur before the game is a draw.
+	 */
+	public static final int DEFAULT_REPETITION_LIMIT = 3;
+
+	/**
+	 * cell value of an empty cell, for peek and the bulk readers.
+	 */
+	public static final byte CELL_EMPTY = 0;
+
+	/**
+	 * cell value of a red token.
+	 */
+	public static final byte CELL_RED = 1;
+
+	/**
+	 * cell value of a yellow token.
+	 */
+	public static final byte CELL_YELLOW = 2;
+
+	/**
+	 * cell value peek gives for a cell that is not on the grid.
+	 */
+	public static final byte CELL_OFF_GRID = -1;
+
+	/**
+	 * Win cache state: the whole board has to be scanned.
+	 */
+	private static final int WIN_UNKNOWN = 0;
+
+	/**
+	 * Win cache state: no line as of the last check, only changed cells need a look.
+	 */
+	private static final int WIN_NONE = 1;
+
+	/**
+	 * Win cache state: a line was found through the witness cell.
+	 */
+	private static final int WIN_FOUND = 2;
+
+	/**
+	 * Marks a column with no changes since the last win check.
+	 */
+	private static final int CLEAN = Integer.MAX_VALUE;
+
+	/**
+	 * Base of the polynomial column hash, odd so it has an inverse mod 2^64.
+	 */
+	private static final long HASH_BASE = 0x9E3779B97F4A7C15L;
+
+	/**
+	 * Inverse of HASH_BASE mod 2^64, used to shift a column hash down a row.
+	 */
+	private static final long HASH_BASE_INVERSE = inverse(HASH_BASE);
+
+	/**
+	 * Mixed into the position hash when it is YELLOW's turn.
+	 */
+	private static final long TURN_KEY = 0xC2B2AE3D27D4EB4FL;
+
+	/**
+	 *  The number of columns the game grid has.
+	 */
+	private final int numCols;
+
+	/**
+	 *  The number of connected tokens needed to win.
+	 */
+	private final int winLength;
+
 	/**
 	 *  rows stores how many rows are to be displayed excluding margin.
 	 */
@@ -51,32 +133,316 @@ public class PowerConnectFour {
 	 *  whosTurn stores the current token to be deployed.
 	 */
 	private Token whosTurn;
+
+	/**
+	 *  columns taller than this are stored run-length encoded.
+	 */
+	private int runLengthThreshold = DEFAULT_RUN_LENGTH_THRESHOLD;
+
+	/**
+	 *  plain columns past the threshold that were scanned and stay plain
+	 *  because encoding would not save memory, so they are not scanned again
+	 *  until they fall back to it.
+	 */
+	private java.util.BitSet keptPlain = new java.util.BitSet();
 	
+	/**
+	 *  heightCounts[h] is the number of columns holding exactly h tokens.
+	 */
+	private int[] heightCounts;
+
+	/**
+	 *  height of the tallest column.
+	 */
+	private int maxHeight;
+
+	/**
+	 *  win cache state for each player (by ordinal).
+	 */
+	private final int[] winState = new int[2];
+
+	/**
+	 *  column of a cell on a connected line, for each player in WIN_FOUND.
+	 */
+	private final int[] witnessCol = new int[2];
+
+	/**
+	 *  row of a cell on a connected line, for each player in WIN_FOUND.
+	 */
+	private final int[] witnessRow = new int[2];
+
+	/**
+	 *  lowest changed row of each column since each player's last win check.
+	 */
+	private final int[][] dirtyFrom = new int[2][];
+
+	/**
+	 *  columns that changed since each player's last win check.
+	 */
+	private final int[][] dirtyCols = new int[2][];
+
+	/**
+	 *  number of entries in use in dirtyCols.
+	 */
+	private final int[] dirtyCount = new int[2];
+
+	/**
+	 *  cells looked through by win checks so far, for tracing.
+	 */
+	private long cellsExamined;
+
+	/**
+	 *  number of tokens on the grid.
+	 */
+	private int tokenCount;
+
+	/**
+	 *  hash of each column: the sum of code(token at i) * HASH_BASE^i.
+	 */
+	private long[] columnHashes;
+
+	/**
+	 *  sum of the mixed keys of every column, kept up to date by every move.
+	 */
+	private long boardHash;
+
+	/**
+	 *  hashPowers[i] is HASH_BASE^i, grown as columns get taller.
+	 */
+	private long[] hashPowers;
+
+	/**
+	 *  where successful moves are published, null for none.
+	 */
+	private MoveEventBus eventBus;
+
+	/**
+	 *  table that short columns are shared through, null for none.
+	 */
+	private ColumnInterner interner;
+
+	/**
+	 *  position hash after every move since the start, oldest first; the
+	 *  last one is the current position.
+	 */
+	private long[] history = new long[64];
+
+	/**
+	 *  number of entries in use in history.
+	 */
+	private int historyLength;
+
+	/**
+	 *  distinct hashes in history, open addressing; a slot is empty when
+	 *  its count is 0.
+	 */
+	private long[] seenHashes = new long[128];
+
+	/**
+	 *  times each hash in seenHashes occurs in history.
+	 */
+	private int[] seenCounts = new int[128];
+
+	/**
+	 *  number of slots of seenHashes in use.
+	 */
+	private int seenSize;
+
+	/**
+	 *  times a position may occur before the game is a draw, 0 for never.
+	 */
+	private int repetitionLimit = DEFAULT_REPETITION_LIMIT;
+
 	/**
 	 *  A default constructer. Creates underlying data structure.
 	 */
-	@SuppressWarnings("unchecked")	
 	public PowerConnectFour() {
 		// Constructor with no arguments.
 		
-		// A grid with NUM_COLS columns should be created.  The initial capacity of 
-		// each column should be DEFAULT_CAPACITY defined in our Column class. 
-		// All columns are empty initially(size 0).
+		// A grid with DEFAULT_NUM_COLS columns should be created, four in a row wins.
+		this(DEFAULT_NUM_COLS, DEFAULT_WIN_LENGTH);
+	}
+
+	/**
+	 *  A constructer for a custom board. Creates underlying data structure.
+	 *  @param numCols number of columns of the grid
+	 *  @param winLength number of connected tokens needed to win
+	 */
+	@SuppressWarnings("unchecked")
+	public PowerConnectFour(int numCols, int winLength) {
+		// The initial capacity of each column should be DEFAULT_CAPACITY
+		// defined in our Column class. All columns are empty initially(size 0).
 		
 		// Initialize game settings.
+		if (numCols < 1) {
+			throw new IllegalArgumentException("Number of columns must be positive");
+		}
+		if (winLength < 2) {
+			throw new IllegalArgumentException("Win length must be at least 2");
+		}
+		this.numCols = numCols;
+		this.winLength = winLength;
 		
 		//array of columns created
-		grid = (Column<Token>[]) new Column[NUM_COLS];
-		//adding 7 columns to grid
-		for (int i = 0; i < 7; ++i) {
+		grid = (Column<Token>[]) new Column<?>[numCols];
+		for (int i = 0; i < numCols; ++i) {
 			grid[i] = new Column<Token>();
 		}
+		this.heightCounts = new int[MIN_ROWS];
+		for (int p = 0; p < 2; ++p) {
+			this.dirtyFrom[p] = new int[numCols];
+			java.util.Arrays.fill(this.dirtyFrom[p], CLEAN);
+			this.dirtyCols[p] = new int[numCols];
+		}
+		this.columnHashes = new long[numCols];
+		this.hashPowers = new long[] {1L};
+		clearBookkeeping();
 		//the game will start with 6 rows, this can change later.
 		this.rows = MIN_ROWS;
 		this.whosTurn = playerOne;
+		startHistory();
 		
 	}
 
+	/**
+	 *  A copy constructer. The copy shares nothing with the original but
+	 *  read-only shared columns, so both can be played on (for example by
+	 *  different threads) independently.
+	 *  @param other game to copy
+	 */
+	@SuppressWarnings("unchecked")
+	public PowerConnectFour(PowerConnectFour other) {
+		this.numCols = other.numCols;
+		this.winLength = other.winLength;
+		this.grid = (Column<Token>[]) new Column<?>[numCols];
+		for (int i = 0; i < numCols; ++i) {
+			this.grid[i] = copyColumn(other.grid[i]);
+		}
+		this.rows = other.rows;
+		this.whosTurn = other.whosTurn;
+		this.runLengthThreshold = other.runLengthThreshold;
+		this.keptPlain = (java.util.BitSet) other.keptPlain.clone();
+		this.heightCounts = other.heightCounts.clone();
+		this.maxHeight = other.maxHeight;
+		for (int p = 0; p < 2; ++p) {
+			this.winState[p] = other.winState[p];
+			this.witnessCol[p] = other.witnessCol[p];
+			this.witnessRow[p] = other.witnessRow[p];
+			this.dirtyFrom[p] = other.dirtyFrom[p].clone();
+			this.dirtyCols[p] = other.dirtyCols[p].clone();
+			this.dirtyCount[p] = other.dirtyCount[p];
+		}
+		this.tokenCount = other.tokenCount;
+		this.columnHashes = other.columnHashes.clone();
+		this.boardHash = other.boardHash;
+		this.hashPowers = other.hashPowers.clone();
+		this.interner = other.interner;
+		this.history = other.history.clone();
+		this.historyLength = other.historyLength;
+		this.seenHashes = other.seenHashes.clone();
+		this.seenCounts = other.seenCounts.clone();
+		this.seenSize = other.seenSize;
+		this.repetitionLimit = other.repetitionLimit;
+	}
+
+	/**
+	 *  Sets every counter, hash and win cache to match empty columns.
+	 *  The columns themselves must already be empty.
+	 */
+	private void clearBookkeeping() {
+		//every column starts empty
+		java.util.Arrays.fill(this.heightCounts, 0);
+		this.heightCounts[0] = numCols;
+		this.maxHeight = 0;
+		this.keptPlain.clear();
+		this.tokenCount = 0;
+		for (int p = 0; p < 2; ++p) {
+			this.winState[p] = WIN_NONE;
+			clearChanges(p);
+		}
+		//empty columns hash to 0, the board hash still tells them apart by index
+		java.util.Arrays.fill(this.columnHashes, 0L);
+		this.boardHash = 0;
+		for (int i = 0; i < numCols; ++i) {
+			this.boardHash += columnKey(i);
+		}
+	}
+
+	/**
+	 *  Empties the grid and gives the first move to playerOne, keeping the
+	 *  board size and settings. Column arrays are reused where possible.
+	 */
+	public void reset() {
+		for (int i = 0; i < numCols; ++i) {
+			Column<Token> column = this.grid[i];
+			if (this.interner != null) {
+				this.grid[i] = this.interner.intern(SharedColumn.EMPTY);
+			}
+			else if (column instanceof RunLengthColumn || column instanceof SharedColumn) {
+				this.grid[i] = new Column<Token>(column.policy().minCapacity(), column.policy());
+			}
+			else {
+				column.removeRange(0, column.size());
+			}
+		}
+		clearBookkeeping();
+		this.whosTurn = playerOne;
+		startHistory();
+		publishReload();
+	}
+
+	/**
+	 *  Sets up a position: the tokens of every column, bottom first, and the
+	 *  player to move. Keeps the board size and settings.
+	 *  @param columns tokens of each column, one array per column of the grid
+	 *  @param toMove player who makes the next move
+	 */
+	public void load(Token[][] columns, Token toMove) {
+		if (columns.length != numCols) {
+			throw new IllegalArgumentException("Expected " + numCols + " columns, got " + columns.length);
+		}
+		if (toMove == null) {
+			throw new IllegalArgumentException("Player to move cannot be null");
+		}
+		for (Token[] column : columns) {
+			for (Token t : column) {
+				if (t == null) {
+					throw new IllegalArgumentException("Columns cannot have empty cells");
+				}
+			}
+		}
+		reset();
+		for (int col = 0; col < numCols; ++col) {
+			for (Token t : columns[col]) {
+				insertToken(col, this.grid[col].size(), t);
+			}
+		}
+		//nothing is known about lines yet, the first check scans the board
+		for (int p = 0; p < 2; ++p) {
+			clearChanges(p);
+			this.winState[p] = WIN_UNKNOWN;
+		}
+		this.whosTurn = toMove;
+		startHistory();
+		publishReload();
+	}
+
+	/**
+	 *  Copies a column, keeping its storage type and policy.
+	 *  @param column column to copy
+	 *  @return the copy
+	 */
+	private static Column<Token> copyColumn(Column<Token> column) {
+		//shared columns never change, so the copy can hold the same one
+		if (column instanceof SharedColumn) {
+			return column;
+		}
+		if (column instanceof RunLengthColumn) {
+			return new RunLengthColumn(column);
+		}
+		return copyColumn(column.size(), column);
+	}
+
 
 	/**
 	 *  A getter method for number of columns.
@@ -84,10 +450,18 @@ public class PowerConnectFour {
 	 */
 	public int sizeCol() { 
 		// Return number of columns of the grid
-		// Set to be a constant number.
+		// Fixed when the game is created.
 		
 		// O(1)
-		return NUM_COLS; //default return, make sure to remove/change
+		return this.numCols;
+	}
+
+	/**
+	 *  A getter method for the win length.
+	 *  @return number of connected tokens needed to win
+	 */
+	public int winLength() {
+		return this.winLength;
 	}
 	
 	/**
@@ -105,30 +479,205 @@ public class PowerConnectFour {
 		//		make sure the display covers the "tallest" column and leaves one "margin"
 		//		row at the top of the grid.
 		
-		// O(1)
+		// O(1), the tallest column is kept up to date by every move
 
-		//get each columns size, rows must be 6 (if size is 0-5), or 1 greater than the biggest size (6+)
-		int size;
-		int max = 0;
+		this.rows = Math.max(MIN_ROWS, this.maxHeight + MARGIN_ROWS);
+		return this.rows;
+	}
+	
+	/**
+	 *  Estimates the memory held by the grid: the array of columns plus
+	 *  every column and its underlying array. Shared columns are left out,
+	 *  they are counted once by their ColumnInterner.
+	 *  @return estimated bytes
+	 */
+	public long footprintBytes() {
+		long total = Column.align(Column.ARRAY_HEADER_BYTES + (long) numCols * Column.REFERENCE_BYTES);
+		for (int i = 0; i < numCols; ++i) {
+			if (!(this.grid[i] instanceof SharedColumn)) {
+				total += this.grid[i].footprintBytes();
+			}
+		}
+		return total;
+	}
 
-		//getting longest column (store into max)
-		for (int i = 0; i < NUM_COLS; ++i) {
-			size = grid[i].size();
-			if (size > max) {
-				max = size;
+	/**
+	 *  Estimates the memory the grid would hold with no columns shared, to
+	 *  compare with footprintBytes.
+	 *  @return estimated bytes
+	 */
+	public long unsharedFootprintBytes() {
+		long total = Column.align(Column.ARRAY_HEADER_BYTES + (long) numCols * Column.REFERENCE_BYTES);
+		for (int i = 0; i < numCols; ++i) {
+			Column<Token> column = this.grid[i];
+			total += column instanceof SharedColumn ? copyColumn(column.size(), column).footprintBytes() : column.footprintBytes();
+		}
+		return total;
+	}
+
+	/**
+	 *  Shares columns of up to SharedColumn.MAX_HEIGHT tokens through an
+	 *  interner from now on, so games given the same interner hold one copy
+	 *  of each distinct column between them. A move on a shared column
+	 *  swaps in the shared column for the result; a column that grows past
+	 *  the limit gets a private array until it comes back down.
+	 *  @param interner table to share through, null to stop sharing
+	 */
+	public void setInterner(ColumnInterner interner) {
+		this.interner = interner;
+		for (int i = 0; i < numCols; ++i) {
+			Column<Token> column = this.grid[i];
+			if (interner != null && column.size() <= SharedColumn.MAX_HEIGHT) {
+				this.grid[i] = interner.intern(column);
+			}
+			else if (column instanceof SharedColumn) {
+				this.grid[i] = copyColumn(column.size(), column);
 			}
 		}
-		if (0 <= max && max <= 5) {
-			this.rows = 6;
+	}
+
+	/**
+	 *  Makes a private plain copy of a column.
+	 *  @param capacity capacity to start with
+	 *  @param column column to copy
+	 *  @return the copy
+	 */
+	private static Column<Token> copyColumn(int capacity, Column<Token> column) {
+		Column<Token> copy = new Column<Token>(Math.max(capacity, column.policy().minCapacity()), column.policy());
+		copy.addAll(column);
+		return copy;
+	}
+
+	/**
+	 *  Shrinks every column to the smallest capacity its policy allows.
+	 *  Useful once a temporary tall column has been popped back down.
+	 */
+	public void trimToSize() {
+		for (int i = 0; i < numCols; ++i) {
+			this.grid[i].trimToSize();
 		}
-		//rows will be 1 more than the longest column
-		else if (max >= 6) {
-			this.rows = max + 1;
+	}
+
+	/**
+	 *  Sets the height above which a column is stored run-length encoded.
+	 *  A column is encoded when it grows past the threshold (if that saves
+	 *  memory) and goes back to a plain array when it falls below half of it.
+	 *  Columns already past the threshold are only changed by their next move.
+	 *  @param height threshold height, Integer.MAX_VALUE turns encoding off
+	 */
+	public void setRunLengthThreshold(int height) {
+		if (height < 1) {
+			throw new IllegalArgumentException("Threshold must be positive");
+		}
+		if (height != this.runLengthThreshold) {
+			//what did not pay at the old threshold is looked at again
+			this.keptPlain.clear();
 		}
+		this.runLengthThreshold = height;
+	}
 
-		return this.rows;
+	/**
+	 *  Switches a column between plain and run-length storage after it
+	 *  changed height. Only does work when the column crosses a threshold.
+	 *  @param col index of the column that changed
+	 */
+	private void updateEncoding(int col) {
+		Column<Token> column = this.grid[col];
+		int size = column.size();
+		if (column instanceof SharedColumn) {
+			return;
+		}
+		//a private column that came back down is shared again
+		if (this.interner != null && size <= SharedColumn.MAX_HEIGHT) {
+			this.grid[col] = this.interner.intern(column);
+			return;
+		}
+		if (column instanceof RunLengthColumn) {
+			if (size < this.runLengthThreshold / 2) {
+				Column<Token> plain = new Column<Token>(Math.max(size, 1), column.policy());
+				plain.addAll(column);
+				this.grid[col] = plain;
+			}
+		}
+		else if (size <= this.runLengthThreshold) {
+			this.keptPlain.clear(col);
+		}
+		//a column that did not pay stays marked, so this scan happens once per crossing
+		else if (!this.keptPlain.get(col)) {
+			// a run costs a long, a plain slot costs a reference
+			if ((long) RunLengthColumn.countRuns(column) * Long.BYTES < (long) size * Column.REFERENCE_BYTES) {
+				this.grid[col] = new RunLengthColumn(column);
+			}
+			else {
+				this.keptPlain.set(col);
+			}
+		}
 	}
-	
+
+	/**
+	 *  Publishes every successful drop, pop, powerDrop and powerPop (also
+	 *  when made through apply) to the bus. A reset, load or undo publishes
+	 *  MoveEventBus.RELOAD instead, so search on a copy of a game that has a
+	 *  bus.
+	 *  Copies made with the copy constructer start without a bus.
+	 *  Events hold columns and rows the way Move packs them, so a game with
+	 *  a bus cannot be wider than Move.MAX_COL + 1 columns, and drops that
+	 *  would make a column taller than Move.MAX_ROW + 1 are rejected.
+	 *  @param bus where to publish, null to stop publishing
+	 */
+	public void setEventBus(MoveEventBus bus) {
+		if (bus != null && (numCols - 1 > Move.MAX_COL || this.maxHeight - 1 > Move.MAX_ROW)) {
+			throw new IllegalArgumentException("A board of " + numCols + " columns and " + this.maxHeight
+				+ " rows is too big to publish");
+		}
+		this.eventBus = bus;
+	}
+
+	/**
+	 *  Checks whether a column is too tall to take another token while
+	 *  moves are published.
+	 *  @param col index of the column
+	 *  @return whether the next token would land above Move.MAX_ROW
+	 */
+	private boolean tooTallToPublish(int col) {
+		return this.eventBus != null && this.grid[col].size() > Move.MAX_ROW;
+	}
+
+	/**
+	 *  Publishes a successful move if a bus is set. Called after the turn
+	 *  has switched, so the player who moved is the one not to move.
+	 *  @param kind one of the Move kinds
+	 *  @param col index of the column
+	 *  @param row row the token landed on or was removed from
+	 */
+	private void publish(int kind, int col, int row) {
+		if (this.eventBus != null) {
+			Token mover = whosTurn == Token.RED ? Token.YELLOW : Token.RED;
+			this.eventBus.publish(kind, col, row, mover, this.grid[col].size());
+		}
+	}
+
+	/**
+	 *  Publishes a RELOAD if a bus is set: the position changed without a move.
+	 */
+	private void publishReload() {
+		if (this.eventBus != null) {
+			this.eventBus.publishReload(whosTurn);
+		}
+	}
+
+	/**
+	 *  Changes how every column grows and shrinks.
+	 *  @param policy decides how the columns grow and shrink
+	 */
+	public void setGrowthPolicy(GrowthPolicy policy) {
+		for (int i = 0; i < numCols; ++i) {
+			if (!(this.grid[i] instanceof SharedColumn)) {
+				this.grid[i].setPolicy(policy);
+			}
+		}
+	}
+
 	/**
 	 *  A getter method for a constant.
 	 *  @return symbol '-''
@@ -160,25 +709,92 @@ public class PowerConnectFour {
 		// Return null if the cell at the given col and row is empty
 		// O(1)
 		Token x;
-		if (col < 0 || col > 6) {
+		if (col < 0 || col >= numCols) {
 			throw new IndexOutOfBoundsException("Col " + col + ", Row "+ row + " out of bounds!");
 		}
 		if (row < 0 || row >= sizeRow()) {
 			throw new IndexOutOfBoundsException("Col " + col + ", Row "+ row + " out of bounds!");
 		}
-		//System.out.println(col +" "+ row);
-		try {
-			x = this.grid[col].get(row);
-		}
-		catch (IndexOutOfBoundsException e) {
-			return null;
-		}
+		//cells above the column are empty, no need to ask the column
+		Column<Token> column = this.grid[col];
+		x = row < column.size() ? column.get(row) : null;
 		
 		return x;
 	}
 
+	/**
+	 *  Looks at one cell without any bounds exceptions.
+	 *  @param col index of the column
+	 *  @param row index of the row
+	 *  @return CELL_RED, CELL_YELLOW, CELL_EMPTY above a column,
+	 *  or CELL_OFF_GRID for a column or row that is not on the grid
+	 */
+	public byte peek(int col, int row) {
+		if (col < 0 || col >= numCols || row < 0) {
+			return CELL_OFF_GRID;
+		}
+		Column<Token> column = this.grid[col];
+		return row < column.size() ? cell(column.get(row)) : CELL_EMPTY;
+	}
+
+	/**
+	 *  Reads a whole row, left to right, in one pass.
+	 *  @param row index of the row, rows with no tokens read as empty
+	 *  @param dst buffer with room for at least sizeCol() cells
+	 *  @return number of cells written, sizeCol()
+	 */
+	public int readRow(int row, byte[] dst) {
+		for (int col = 0; col < numCols; ++col) {
+			Column<Token> column = this.grid[col];
+			dst[col] = row >= 0 && row < column.size() ? cell(column.get(row)) : CELL_EMPTY;
+		}
+		return numCols;
+	}
+
+	/**
+	 *  Reads a whole column, bottom to top, in one pass. Run-length columns
+	 *  are filled a run at a time.
+	 *  @param col index of the column
+	 *  @param dst buffer with room for at least the height of the column
+	 *  @return number of cells written, the height of the column
+	 */
+	public int readColumn(int col, byte[] dst) {
+		if (col < 0 || col >= numCols) {
+			throw new IndexOutOfBoundsException("Col " + col + " out of bounds!");
+		}
+		Column<Token> column = this.grid[col];
+		int height = column.size();
+		if (column instanceof RunLengthColumn) {
+			for (int row = 0; row < height; ) {
+				int run = column.runLength(row);
+				Arrays.fill(dst, row, row + run, cell(column.get(row)));
+				row += run;
+			}
+		}
+		else {
+			for (int row = 0; row < height; ++row) {
+				dst[row] = cell(column.get(row));
+			}
+		}
+		return height;
+	}
+
+	/**
+	 *  Reads the height of every column, left to right.
+	 *  @param dst buffer with room for at least sizeCol() heights
+	 *  @return number of heights written, sizeCol()
+	 */
+	public int heights(int[] dst) {
+		for (int col = 0; col < numCols; ++col) {
+			dst[col] = this.grid[col].size();
+		}
+		return numCols;
+	}
+
 	/**
 	 *  Getter method for a column in the grid.
+	 *  The column object can be swapped for a run-length one as it grows,
+	 *  so look it up again after a move instead of holding on to it.
 	 *  @param col index of column
 	 *  @return column
 	 */
@@ -192,7 +808,7 @@ public class PowerConnectFour {
 		
 		// O(1)
 
-		if (col < 0 || col > 6) {
+		if (col < 0 || col >= numCols) {
 			throw new IndexOutOfBoundsException("Col " + col + " out of bounds!");
 		}
 
@@ -227,19 +843,24 @@ public class PowerConnectFour {
 		
 		// Amortized O(1)
 
-		//when not 0-6, move is invalid, otherwise valid
-		if (col < 0 || col > 6) {
+		//when not a column of the grid, move is invalid, otherwise valid
+		if (col < 0 || col >= numCols) {
+			EngineEvents.moveRejected(Move.DROP, col, 0, "no such column");
+			return false;
+		}
+		if (tooTallToPublish(col)) {
+			EngineEvents.moveRejected(Move.DROP, col, 0, "column too tall to publish");
 			return false;
 		}
 
+		EngineEvents.MoveApplied event = EngineEvents.moveStarted();
 		//rows to be displayed are auto managed in sizeRow()
-		this.grid[col].add(whosTurn);
-		if (whosTurn == Token.RED) {
-			whosTurn = Token.YELLOW;
-		}
-		else if (whosTurn == Token.YELLOW) {
-			whosTurn = Token.RED;
-		}
+		int row = this.grid[col].size();
+		insertToken(col, row, whosTurn);
+		switchTurn();
+		recordPosition();
+		publish(Move.DROP, col, row);
+		EngineEvents.moveApplied(event, Move.DROP, col, row, 0);
 		
 		return true;
 	}
@@ -264,22 +885,26 @@ public class PowerConnectFour {
 
 		// O(N) where N is the number of tokens in the involved column
 
-		if (col < 0 || col > 6) {
+		if (col < 0 || col >= numCols) {
+			EngineEvents.moveRejected(Move.POWER_DROP, col, row, "no such column");
 			return false;
 		}
 		if (row > this.grid[col].size() || row < 0) {
+			EngineEvents.moveRejected(Move.POWER_DROP, col, row, "row would float");
 			return false;
 		}
-
-		this.grid[col].add(row, whosTurn);
-
-		if (whosTurn == Token.RED) {
-			whosTurn = Token.YELLOW;
-		}
-		else if (whosTurn == Token.YELLOW) {
-			whosTurn = Token.RED;
+		if (tooTallToPublish(col)) {
+			EngineEvents.moveRejected(Move.POWER_DROP, col, row, "column too tall to publish");
+			return false;
 		}
 
+		EngineEvents.MoveApplied event = EngineEvents.moveStarted();
+		insertToken(col, row, whosTurn);
+		switchTurn();
+		recordPosition();
+		publish(Move.POWER_DROP, col, row);
+		EngineEvents.moveApplied(event, Move.POWER_DROP, col, row, this.grid[col].size() - 1 - row);
+
 		return true;
 	}
 	
@@ -298,28 +923,28 @@ public class PowerConnectFour {
 
 		// O(N) where N is the number of tokens in the involved column
 
-		//only 7 collumns 0-6
-		if (col < 0 || col > 6) {
+		//only columns of the grid
+		if (col < 0 || col >= numCols) {
+			EngineEvents.moveRejected(Move.POP, col, 0, "no such column");
 			return false;
 		}
 		//there has to be something to pop
 		if (this.grid[col].size() == 0) {
+			EngineEvents.moveRejected(Move.POP, col, 0, "empty column");
 			return false;
 		}
 		//gridrow[col][0] must be same token as current turn
 		if (this.grid[col].get(0) != whosTurn) {
+			EngineEvents.moveRejected(Move.POP, col, 0, "not the mover's token");
 			return false;
 		}
 
-		this.grid[col].delete(0);
-
-		//swap turns
-		if (whosTurn == Token.RED) {
-			whosTurn = Token.YELLOW;
-		}
-		else if (whosTurn == Token.YELLOW) {
-			whosTurn = Token.RED;
-		}
+		EngineEvents.MoveApplied event = EngineEvents.moveStarted();
+		removeToken(col, 0);
+		switchTurn();
+		recordPosition();
+		publish(Move.POP, col, 0);
+		EngineEvents.moveApplied(event, Move.POP, col, 0, this.grid[col].size());
 		return true;
 
 	}
@@ -343,29 +968,274 @@ public class PowerConnectFour {
 
 		// O(N) where N is the number of tokens in the involved column
 
-		//only 7 collumns 0-6
-		if (col < 0 || col > 6) {
+		//only columns of the grid
+		if (col < 0 || col >= numCols) {
+			EngineEvents.moveRejected(Move.POWER_POP, col, row, "no such column");
 			return false;
 		}
 		//there has to be something to pop
 		if (this.grid[col].size() <= row || row < 0) {
+			EngineEvents.moveRejected(Move.POWER_POP, col, row, "no token at row");
 			return false;
 		}
 		if (this.grid[col].get(row) != whosTurn) {
+			EngineEvents.moveRejected(Move.POWER_POP, col, row, "not the mover's token");
 			return false;
 		}
-		this.grid[col].delete(row);
+		EngineEvents.MoveApplied event = EngineEvents.moveStarted();
+		removeToken(col, row);
+		switchTurn();
+		recordPosition();
+		publish(Move.POWER_POP, col, row);
+		EngineEvents.moveApplied(event, Move.POWER_POP, col, row, this.grid[col].size() - row);
+
+		return true;
+	}
+
+	/**
+	 *  Puts a token into a column and keeps the board bookkeeping up to date.
+	 *  @param col index of the column
+	 *  @param row index the token ends up at, at most the column size
+	 *  @param token token to insert
+	 */
+	private void insertToken(int col, int row, Token token) {
+		Column<Token> column = this.grid[col];
+		int height = column.size();
+		long oldKey = columnKey(col);
+		if (column instanceof SharedColumn) {
+			SharedColumn shared = (SharedColumn) column;
+			//copy on write: the result is another shared column, or a private one once too tall
+			if (height < SharedColumn.MAX_HEIGHT) {
+				this.grid[col] = this.interner.intern(shared.inserted(row, token));
+			}
+			else {
+				column = copyColumn(height + 1, shared);
+				column.add(row, token);
+				this.grid[col] = column;
+			}
+		}
+		else if (row == height) {
+			column.add(token);
+		}
+		else {
+			column.add(row, token);
+		}
+		++this.tokenCount;
+		heightChanged(height, height + 1);
+		hashInsert(col, row, code(token), height);
+		this.boardHash += columnKey(col) - oldKey;
+		markChanged(col, row);
+		updateEncoding(col);
+	}
+
+	/**
+	 *  Takes a token out of a column and keeps the board bookkeeping up to date.
+	 *  @param col index of the column
+	 *  @param row index of the token
+	 *  @return the token removed
+	 */
+	private Token removeToken(int col, int row) {
+		Column<Token> column = this.grid[col];
+		int height = column.size();
+		long oldKey = columnKey(col);
+		Token removed;
+		if (column instanceof SharedColumn) {
+			removed = column.get(row);
+			this.grid[col] = this.interner.intern(((SharedColumn) column).removed(row));
+		}
+		else {
+			removed = column.delete(row);
+		}
+		--this.tokenCount;
+		heightChanged(height, height - 1);
+		hashDelete(col, row, code(removed), height);
+		this.boardHash += columnKey(col) - oldKey;
+		markChanged(col, row);
+		updateEncoding(col);
+		return removed;
+	}
+
+	/**
+	 *  Updates a column hash after a token was inserted.
+	 *  Only the part of the column that moved has to be summed, and the
+	 *  smaller of the part below or above the row is used to get it.
+	 *  @param col index of the column, already changed
+	 *  @param row index of the inserted token
+	 *  @param code code of the inserted token
+	 *  @param oldHeight column height before the insert
+	 */
+	private void hashInsert(int col, int row, long code, int oldHeight) {
+		ensureHashPowers(oldHeight + 1);
+		long old = this.columnHashes[col];
+		long suffix;
+		if (row <= oldHeight - row) {
+			suffix = old - hashSum(col, 0, row, 0);
+		}
+		else {
+			//old tokens from row up now sit one row higher
+			suffix = hashSum(col, row + 1, oldHeight + 1, -1);
+		}
+		this.columnHashes[col] = old - suffix + code * this.hashPowers[row] + suffix * HASH_BASE;
+	}
+
+	/**
+	 *  Updates a column hash after a token was removed.
+	 *  @param col index of the column, already changed
+	 *  @param row index of the removed token
+	 *  @param code code of the removed token
+	 *  @param oldHeight column height before the removal
+	 */
+	private void hashDelete(int col, int row, long code, int oldHeight) {
+		long old = this.columnHashes[col];
+		long removed = code * this.hashPowers[row];
+		long suffix;
+		if (row <= oldHeight - row) {
+			suffix = old - hashSum(col, 0, row, 0);
+		}
+		else {
+			//old tokens above row now sit one row lower
+			suffix = removed + hashSum(col, row, oldHeight - 1, 1);
+		}
+		this.columnHashes[col] = old - suffix + (suffix - removed) * HASH_BASE_INVERSE;
+	}
+
+	/**
+	 *  Sums code(token at j) * HASH_BASE^(j + shift) over a range of rows.
+	 *  @param col index of the column
+	 *  @param from first row
+	 *  @param to one past the last row
+	 *  @param shift added to each row for the power
+	 *  @return the sum
+	 */
+	private long hashSum(int col, int from, int to, int shift) {
+		Column<Token> column = this.grid[col];
+		long sum = 0;
+		for (int j = from; j < to; ++j) {
+			sum += code(column.get(j)) * this.hashPowers[j + shift];
+		}
+		return sum;
+	}
+
+	/**
+	 *  Makes sure HASH_BASE^i is known for every i up to the given one.
+	 *  @param upTo largest power needed
+	 */
+	private void ensureHashPowers(int upTo) {
+		if (upTo < this.hashPowers.length) {
+			return;
+		}
+		int old = this.hashPowers.length;
+		this.hashPowers = java.util.Arrays.copyOf(this.hashPowers, Math.max(upTo + 1, old * 2));
+		for (int i = old; i < this.hashPowers.length; ++i) {
+			this.hashPowers[i] = this.hashPowers[i - 1] * HASH_BASE;
+		}
+	}
+
+	/**
+	 *  Mixes a column's hash, height and index into the key added to the board hash.
+	 *  @param col index of the column
+	 *  @return the column key
+	 */
+	private long columnKey(int col) {
+		long z = this.columnHashes[col] + this.grid[col].size() * 0xBF58476D1CE4E5B9L + col * 0x94D049BB133111EBL;
+		// splitmix64 finalizer
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 *  Code of a token for hashing, 0 is never used so runs of one color
+	 *  still hash differently by length.
+	 *  @param token a token on the grid
+	 *  @return 1 for RED, 2 for YELLOW
+	 */
+	private static long code(Token token) {
+		return token.ordinal() + 1;
+	}
+
+	/**
+	 *  Cell value of a token for the bulk readers.
+	 *  @param token a token, not null
+	 *  @return CELL_RED or CELL_YELLOW
+	 */
+	private static byte cell(Token token) {
+		return token == Token.RED ? CELL_RED : CELL_YELLOW;
+	}
+
+	/**
+	 *  Inverse of an odd number mod 2^64 by Newton's method.
+	 *  @param odd an odd number
+	 *  @return x such that odd * x == 1
+	 */
+	private static long inverse(long odd) {
+		long x = odd;
+		//each step doubles the number of correct low bits, starting from 3
+		for (int i = 0; i < 5; ++i) {
+			x *= 2 - odd * x;
+		}
+		return x;
+	}
 
-		//swap turns
+	/**
+	 *  Hands the turn to the other player.
+	 */
+	private void switchTurn() {
 		if (whosTurn == Token.RED) {
 			whosTurn = Token.YELLOW;
 		}
 		else if (whosTurn == Token.YELLOW) {
 			whosTurn = Token.RED;
 		}
+	}
 
+	/**
+	 *  Moves one column from one height to another in the height counts
+	 *  and keeps track of the tallest column.
+	 *  @param from old height
+	 *  @param to new height
+	 */
+	private void heightChanged(int from, int to) {
+		if (to >= this.heightCounts.length) {
+			this.heightCounts = java.util.Arrays.copyOf(this.heightCounts, this.heightCounts.length * 2);
+		}
+		--this.heightCounts[from];
+		++this.heightCounts[to];
+		if (to > this.maxHeight) {
+			this.maxHeight = to;
+		}
+		//heights only change by one, so this loop runs at most once per move
+		while (this.maxHeight > 0 && this.heightCounts[this.maxHeight] == 0) {
+			--this.maxHeight;
+		}
+	}
 
-		return true;
+	/**
+	 *  Records that every cell of a column from the given row upward may
+	 *  have changed, so the next win check looks at them.
+	 *  @param col index of the column
+	 *  @param row lowest changed row
+	 */
+	private void markChanged(int col, int row) {
+		for (int p = 0; p < 2; ++p) {
+			if (this.dirtyFrom[p][col] == CLEAN) {
+				this.dirtyCols[p][this.dirtyCount[p]++] = col;
+			}
+			if (row < this.dirtyFrom[p][col]) {
+				this.dirtyFrom[p][col] = row;
+			}
+		}
+	}
+
+	/**
+	 *  Forgets the changes recorded for a player's win check.
+	 *  @param p player index
+	 */
+	private void clearChanges(int p) {
+		for (int i = 0; i < this.dirtyCount[p]; ++i) {
+			this.dirtyFrom[p][this.dirtyCols[p][i]] = CLEAN;
+		}
+		this.dirtyCount[p] = 0;
 	}
 	
 
@@ -383,83 +1253,18 @@ public class PowerConnectFour {
 		
 		// Return 0 if out of bounds
 		
-		// O(1)
-		int count = 0;
-
-		//only 7 collumns 0-6
-		if (col < 0 || col > 6) {
+		// O(L) where L is the length of the line
+		if (!isAt(col, row, player)) {
 			return 0;
 		}
-		//does this column go that high, also prevents out of bounds
-		if (row > this.grid[col].size() || row < 0) {
-			return 0;
-		}
-		//is it null, does it not equal the right token.
-		if (this.grid[col].get(row) == null || this.grid[col].get(row) != player) {
-			return 0;
-		}
-
-		//counting from beginning, col = 0
-		if (col == 0) {
-			//iterate through columns, keep row the same
-			for (int i = 0; i < 7; ++i) {
-				//checks that get is out of bounds or not
-				if (this.grid[i].size() <= row) {
-					break;
-				}
-				if (this.grid[i].get(row) == player) {
-					++count;
-				}
-				else {
-					break;
-				}
-			}
-		}
-
-		//both ways count
-		else if (col>0 && col<6) {
-			for (int i = col; i < 7;++i) {
-				//checks that get is out of bounds or not
-				if (this.grid[i].size() <= row) {
-					break;
-				}
-				if (this.grid[i].get(row) == player) {
-					++count;
-				}
-				else {
-					break;
-				}				
-			}
-			for (int i = col-1; i >= 0;--i) {
-				//checks that get is out of bounds or not
-				if (this.grid[i].size() <= row) {
-					break;
-				}
-				if (this.grid[i].get(row) == player) {
-					++count;
-				}
-				else {
-					break;
-				}
-			}
+		int count = 1;
+		//count to the right, then to the left, keep row the same
+		for (int i = col + 1; i < numCols && isAt(i, row, player); ++i) {
+			++count;
 		}
-		//counting from top
-		else if (col == 6){
-			for (int i = 6; i >= 0;--i) {
-				//checks that get is out of bounds or not
-				if (this.grid[i].size() <= row) {
-					break;
-				}
-				if (this.grid[i].get(row) == player) {
-					++count;
-				}
-				else {
-					break;
-				}
-
-			}
+		for (int i = col - 1; i >= 0 && isAt(i, row, player); --i) {
+			++count;
 		}
-
 		return count;
 	}
 		
@@ -477,58 +1282,14 @@ public class PowerConnectFour {
 		
 		// Return 0 if out of bounds
 		
-		// O(N) where N is the number of tokens in the involved column
+		// O(log R) where R is the number of runs for a run-length column,
+		// O(L) where L is the length of the run for a plain column
 
-		int count = 0;
-		if (col < 0 || col > 6 || row < 0) {
-			return 0;
-		}
-		if (this.grid[col].size() <= row) {
+		if (!isAt(col, row, player)) {
 			return 0;
 		}
-
-		if (row == 0) {
-			//iterate through columns, keep row the same
-			for (int i = 0; i < this.grid[col].size(); ++i) {
-				if (this.grid[col].get(i) == player) {
-					++count;
-				}
-				else {
-					break;
-				}
-			}
-		}
-		//both ways count
-		else if (row>0 && row<this.grid[col].size()-1) {
-			for (int i = row; i < this.grid[col].size(); ++i) {
-				if (this.grid[col].get(i) == player) {
-					++count;
-				}
-				else {
-					break;
-				}
-			}
-			for (int i = row-1; i >= 0; --i) {
-				if (this.grid[col].get(i) == player) {
-					++count;
-				}
-				else {
-					break;
-				}
-			}
-		}
-		else if (row == this.grid[col].size()-1){
-			for (int i = row; i >= 0; --i) {
-				if (this.grid[col].get(i) == player) {
-					++count;
-				}
-				else {
-					break;
-				}
-			}
-		}		
-
-		return count;
+		//the tokens counted are exactly the run holding the row
+		return this.grid[col].runLength(row);
 	}
 	
 	/**
@@ -546,94 +1307,20 @@ public class PowerConnectFour {
 		// location (col, row).  
 		
 		// Return 0 if out of bounds
-		// O(1)
+		// O(L) where L is the length of the line
 
-		int count = 0;
-		int rowInc = row;
-		if (col < 0 || col > 6 || row < 0) {
+		if (!isAt(col, row, player)) {
 			return 0;
 		}
-		//starting from bottom right, going upward-left
-		if (col == 6) {
-			for (int i = 6; i >= 0; --i ) {
-				//because of the nature of movement, impossible to have 4 in row in corner
-				if (rowInc < 0) {
-					break;
-				}
-				//check column is long enough for row before get method
-				if (this.grid[i].size() <= rowInc) {
-					break;
-				}
-				if (this.grid[i].get(rowInc) == player) {
-					++count;
-					++rowInc;
-				}
-				else {
-					break;
-				}
-				
-			}
-		}
-		//middle route
-		else if (col != 0 && col != 6) {
-			for (int i = col; i >= 0; --i) {
-				//because of the nature of movement, impossible to have 4 in row in corner
-				if (rowInc < 0) {
-					break;
-				}
-				//check column is long enough for row before get method
-				if (this.grid[i].size() <= rowInc) {
-					break;
-				}
-				if (this.grid[i].get(rowInc) == player) {
-					++count;
-					++rowInc;
-				}
-				else {
-					break;
-				}
-			}
-			//Erases past changes
-			rowInc = row - 1;
-			for (int i = col + 1; i <= 6; ++i ) {
-				if (rowInc < 0) {
-					break;
-				}
-				//check column is long enough for row before get method
-				if (this.grid[i].size() <= rowInc) {
-					break;
-				}
-				if (this.grid[i].get(rowInc) == player) {
-					++count;
-					--rowInc;
-				}
-				else {
-					break;
-				}
-			}
+		int count = 1;
+		//upward-left
+		for (int i = col - 1, r = row + 1; i >= 0 && isAt(i, r, player); --i, ++r) {
+			++count;
 		}
-
-		//starting from left route
-		else if (col == 0) {
-			for (int i = 0; i <= 6; ++i) {
-				//because of the nature of movement, impossible to have 4 in row in corner
-				if (rowInc < 0) {
-					break;
-				}
-				if (this.grid[i].size() <= rowInc) {
-					break;
-				}
-				if (this.grid[i].get(rowInc) == player) {
-					++count;
-					--rowInc;
-				}
-				else {
-					break;
-				}
-			}
+		//downward-right, stops at row 0
+		for (int i = col + 1, r = row - 1; i < numCols && r >= 0 && isAt(i, r, player); ++i, --r) {
+			++count;
 		}
-			
-		
 		return count;
 	}
 
@@ -652,99 +1339,321 @@ public class PowerConnectFour {
 		// location (col, row).  
 		
 		// Return 0 if out of bounds
-		// O(1)
+		// O(L) where L is the length of the line
 
-		int count = 0;
-		int rowInc = row;
-		if (col < 0 || col > 6 || row < 0) {
+		if (!isAt(col, row, player)) {
 			return 0;
 		}
-		//starting from bottom left, going top right
-		if (col == 0) {
-			for (int i = 0; i <= 6; ++i ) {
-				if (rowInc < 0) {
-					break;
-				}
-				//check column is long enough for row before get method
-				if (this.grid[i].size() <= rowInc) {
-					break;
-				}
-				if (this.grid[i].get(rowInc) == player) {
-					++count;
-					++rowInc;
-				}
-				else {
-					break;
-				}
+		int count = 1;
+		//upward-right
+		for (int i = col + 1, r = row + 1; i < numCols && isAt(i, r, player); ++i, ++r) {
+			++count;
+		}
+		//downward-left, stops at row 0
+		for (int i = col - 1, r = row - 1; i >= 0 && r >= 0 && isAt(i, r, player); --i, --r) {
+			++count;
+		}
+		return count;
+	}
 				
+	/**
+	 *  Checks whether a cell holds the given player's token.
+	 *  @param col index of the column
+	 *  @param row index of the row
+	 *  @param player the player to look for
+	 *  @return false for cells off the grid or empty
+	 */
+	private boolean isAt(int col, int row, Token player) {
+		if (col < 0 || col >= numCols || row < 0) {
+			return false;
+		}
+		Column<Token> column = this.grid[col];
+		return row < column.size() && column.get(row) == player;
+	}
+
+	/**
+	 *  Checks whether a cell is on a line of at least winLength tokens.
+	 *  @param col index of the column
+	 *  @param row index of the row
+	 *  @param player the player to check for
+	 *  @return whether a winning line goes through the cell
+	 */
+	private boolean winsThrough(int col, int row, Token player) {
+		++this.cellsExamined;
+		return countRow(col, row, player) >= winLength || countCol(col, row, player) >= winLength
+			|| countMajorDiagonal(col, row, player) >= winLength
+			|| countMinorDiagonal(col, row, player) >= winLength;
+	}
+
+	/**
+	 *  Looks for a winning line through any cell of a column from the given row up.
+	 *  Records the cell as the witness when one is found.
+	 *  @param p player index
+	 *  @param col index of the column
+	 *  @param from lowest row to look at
+	 *  @return whether a line was found
+	 */
+	private boolean scanColumn(int p, int col, int from) {
+		Token player = p == 0 ? Token.RED : Token.YELLOW;
+		int height = this.grid[col].size();
+		for (int row = from; row < height; ++row) {
+			if (winsThrough(col, row, player)) {
+				this.witnessCol[p] = col;
+				this.witnessRow[p] = row;
+				return true;
 			}
 		}
-		//middle route
-		else if (col != 0 && col != 6) {
-			for (int i = col; i < 7; ++i) {
-				if (rowInc < 0) {
-					break;
-				}
-				//check column is long enough for row before get method
-				if (this.grid[i].size() <= rowInc) {
-					break;
-				}
-				if (this.grid[i].get(rowInc) == player) {
-					++count;
-					++rowInc;
-				}
-				else {
-					break;
-				}
+		return false;
+	}
+	
+	/**
+	 *  Makes a packed move (see Move) for the current player.
+	 *  @param move packed move
+	 *  @return boolean if it was sucessful or not
+	 */
+	public boolean apply(int move) {
+		int col = Move.col(move);
+		switch (Move.kind(move)) {
+			case Move.DROP:
+				return drop(col);
+			case Move.POP:
+				return pop(col);
+			case Move.POWER_DROP:
+				return powerDrop(col, Move.row(move));
+			default:
+				return powerPop(col, Move.row(move));
+		}
+	}
+
+	/**
+	 *  Takes back a packed move. It must be the last move that was applied
+	 *  successfully and not yet taken back; nothing is checked.
+	 *  @param move packed move
+	 */
+	public void undo(int move) {
+		// the player who made the move is the one not to move now
+		Token mover = whosTurn == Token.RED ? Token.YELLOW : Token.RED;
+		int col = Move.col(move);
+		switch (Move.kind(move)) {
+			case Move.DROP:
+				removeToken(col, this.grid[col].size() - 1);
+				break;
+			case Move.POP:
+				insertToken(col, 0, mover);
+				break;
+			case Move.POWER_DROP:
+				removeToken(col, Move.row(move));
+				break;
+			default:
+				insertToken(col, Move.row(move), mover);
+		}
+		switchTurn();
+		if (this.historyLength > 1) {
+			forget(this.history[--this.historyLength]);
+		}
+		publishReload();
+	}
+
+	/**
+	 *  The largest number of moves legalMoves can write for this position.
+	 *  @return size a move buffer needs
+	 */
+	public int maxLegalMoves() {
+		return 2 * numCols + 2 * this.tokenCount;
+	}
+
+	/**
+	 *  Writes every legal move of the current player into a buffer.
+	 *  A power drop on top of a column is the same as a drop, and a power pop
+	 *  at row 0 is the same as a pop, so those are only listed as the plain move.
+	 *  @param dst buffer with room for at least maxLegalMoves() moves
+	 *  @return number of moves written
+	 */
+	public int legalMoves(int[] dst) {
+		int n = 0;
+		for (int col = 0; col < numCols; ++col) {
+			Column<Token> column = this.grid[col];
+			int height = column.size();
+			dst[n++] = Move.drop(col);
+			if (height > 0 && column.get(0) == whosTurn) {
+				dst[n++] = Move.pop(col);
 			}
-			//Erases past changes
-			rowInc = row - 1;
-			for (int i = col - 1; i >=0; --i) {
-				if (rowInc < 0) {
-					break;
-				}
-				
-				//check column is long enough for row before get method
-				if (this.grid[i].size() <= rowInc) {
-					break;
-				}
-				if (this.grid[i].get(rowInc) == player) {
-					++count;
-					--rowInc;
-				}
-				else {
-					break;
+			for (int row = 0; row < height; ++row) {
+				dst[n++] = Move.powerDrop(col, row);
+				if (row > 0 && column.get(row) == whosTurn) {
+					dst[n++] = Move.powerPop(col, row);
 				}
 			}
 		}
+		return n;
+	}
 
-		//starting from right route
-		else if (col == 6) {
-			for (int i = 6; i >= 0; --i) {
-				//because of the nature of movement, impossible to have 4 in row in corner
-				if (rowInc < 0) {
-					break;
-				}
-				if (this.grid[i].size() <= rowInc) {
-					break;
-				}
-				if (this.grid[i].get(rowInc) == player) {
-					++count;
-					--rowInc;
-				}
-				else {
-					break;
-				}
+	/**
+	 *  Getter for the number of tokens on the grid.
+	 *  @return the number of tokens
+	 */
+	public int tokenCount() {
+		return this.tokenCount;
+	}
+
+	/**
+	 *  A 64 bit hash of the position: every column and the player to move.
+	 *  Equal positions always hash the same, whatever moves led to them.
+	 *  Kept up to date by every move, so this is O(1).
+	 *  @return the position hash
+	 */
+	public long positionHash() {
+		return whosTurn == Token.RED ? this.boardHash : this.boardHash ^ TURN_KEY;
+	}
+
+	/**
+	 *  Counts how often the current position has occurred since the start
+	 *  of the game (or the last reset or load), this time included. Only
+	 *  pops and power pops can bring a position back. Searches can treat a
+	 *  count above 1 as a cycle. The counts are kept up to date by every
+	 *  move and undo, so this is O(1).
+	 *  @return number of occurrences, at least 1
+	 */
+	public int repetitions() {
+		//the player to move is part of the hash, so equal hashes are the same player's turn
+		return this.seenCounts[seenSlot(this.history[this.historyLength - 1])];
+	}
+
+	/**
+	 *  Checks whether the game is drawn by repetition: the current position
+	 *  has occurred as often as the repetition limit allows.
+	 *  @return whether the game is a draw
+	 */
+	public boolean isDrawByRepetition() {
+		return this.repetitionLimit > 0 && repetitions() >= this.repetitionLimit;
+	}
+
+	/**
+	 *  getter for the repetition limit.
+	 *  @return times a position may occur before the game is a draw, 0 for never
+	 */
+	public int repetitionLimit() {
+		return this.repetitionLimit;
+	}
+
+	/**
+	 *  Sets how often a position may occur before the game is a draw, for
+	 *  example 3 for threefold repetition.
+	 *  @param limit number of occurrences, at least 2, or 0 to never draw
+	 */
+	public void setRepetitionLimit(int limit) {
+		if (limit < 0 || limit == 1) {
+			throw new IllegalArgumentException("Repetition limit must be 0 or at least 2, not " + limit);
+		}
+		this.repetitionLimit = limit;
+	}
+
+	/**
+	 *  Starts the position history over at the current position.
+	 */
+	private void startHistory() {
+		this.historyLength = 0;
+		java.util.Arrays.fill(this.seenCounts, 0);
+		this.seenSize = 0;
+		recordPosition();
+	}
+
+	/**
+	 *  Adds the current position to the history.
+	 */
+	private void recordPosition() {
+		if (this.historyLength == this.history.length) {
+			this.history = java.util.Arrays.copyOf(this.history, this.history.length * 2);
+		}
+		long hash = positionHash();
+		this.history[this.historyLength++] = hash;
+		int slot = seenSlot(hash);
+		if (this.seenCounts[slot]++ == 0) {
+			this.seenHashes[slot] = hash;
+			if (++this.seenSize * 2 > this.seenHashes.length) {
+				growSeen();
 			}
 		}
+	}
 
-		return count;
+	/**
+	 *  Takes one occurrence of a hash off the counts, emptying its slot
+	 *  when it was the last one.
+	 *  @param hash hash leaving the history
+	 */
+	private void forget(long hash) {
+		int mask = this.seenHashes.length - 1;
+		int hole = seenSlot(hash);
+		if (--this.seenCounts[hole] > 0) {
+			return;
+		}
+		--this.seenSize;
+		//shift back the entries after the hole that probed past it
+		for (int i = (hole + 1) & mask; this.seenCounts[i] != 0; i = (i + 1) & mask) {
+			int home = seenHome(this.seenHashes[i], mask);
+			if (((i - home) & mask) >= ((i - hole) & mask)) {
+				this.seenHashes[hole] = this.seenHashes[i];
+				this.seenCounts[hole] = this.seenCounts[i];
+				this.seenCounts[i] = 0;
+				hole = i;
+			}
+		}
 	}
-	
+
+	/**
+	 *  Finds the slot of a hash in the counts, or the empty slot it would go in.
+	 *  @param hash a position hash
+	 *  @return the slot
+	 */
+	private int seenSlot(long hash) {
+		int mask = this.seenHashes.length - 1;
+		int slot = seenHome(hash, mask);
+		while (this.seenCounts[slot] != 0 && this.seenHashes[slot] != hash) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/**
+	 *  The first slot a hash is looked for in.
+	 *  @param hash a position hash
+	 *  @param mask number of slots minus 1
+	 *  @return the slot
+	 */
+	private static int seenHome(long hash, int mask) {
+		return (int) (hash ^ (hash >>> 32)) & mask;
+	}
+
+	/**
+	 *  Doubles the slots of the counts.
+	 */
+	private void growSeen() {
+		long[] hashes = this.seenHashes;
+		int[] counts = this.seenCounts;
+		this.seenHashes = new long[hashes.length * 2];
+		this.seenCounts = new int[counts.length * 2];
+		for (int i = 0; i < hashes.length; ++i) {
+			if (counts[i] != 0) {
+				int slot = seenSlot(hashes[i]);
+				this.seenHashes[slot] = hashes[i];
+				this.seenCounts[slot] = counts[i];
+			}
+		}
+	}
+
+	/**
+	 *  Checks whether either player has connected, which ends the game.
+	 *  @return whether someone has won
+	 */
+	public boolean isGameOver() {
+		return hasFourConnected(Token.RED) || hasFourConnected(Token.YELLOW);
+	}
+
 	/**
 	 * The method that checks whether the specified player has four connected tokens
 	 * horizontally, vertically, or diagonally.  It relies on the methods of countRow(),
 	 * countCol(), countMajorDiagonal(), and countMinorDiagonal() to work correctly.
+	 * For a custom board it checks for winLength connected tokens instead of four.
 	 *
 	 * @param player the token to be checked
 	 * @return whether the given player has four tokens connected
@@ -754,15 +1663,46 @@ public class PowerConnectFour {
 		// in a column, or in a diagonal line (major or minor). Return true if 
 		// so; return false otherwise.	
 		
-		for (int j = 0; j<sizeCol(); j++){
-			for (int i = 0; i<sizeRow(); i++){
-				if (countRow(j, i, player)>=4 || countCol(j, i, player)>=4
-					|| countMajorDiagonal(j, i, player)>=4 
-					|| countMinorDiagonal(j, i, player)>=4 )
-					return true;
+		EngineEvents.WinCheck event = EngineEvents.winCheckStarted();
+		long before = this.cellsExamined;
+		boolean found = findConnected(player);
+		EngineEvents.winChecked(event, player, this.cellsExamined - before, found);
+		return found;
+	}
+
+	/**
+	 *  Does the work of hasFourConnected.
+	 *  @param player the token to be checked
+	 *  @return whether the given player has a line
+	 */
+	private boolean findConnected(Token player) {
+		// A new line must go through a cell that changed since the last check,
+		// so only those cells are looked at. The whole board is scanned only
+		// when a line found earlier has been broken.
+		int p = player.ordinal();
+		if (this.winState[p] == WIN_FOUND) {
+			if (winsThrough(this.witnessCol[p], this.witnessRow[p], player)) {
+				clearChanges(p);
+				return true;
 			}
+			this.winState[p] = WIN_UNKNOWN;
 		}
-		return false;
+
+		boolean found = false;
+		if (this.winState[p] == WIN_NONE) {
+			for (int i = 0; i < this.dirtyCount[p] && !found; ++i) {
+				int col = this.dirtyCols[p][i];
+				found = scanColumn(p, col, this.dirtyFrom[p][col]);
+			}
+		}
+		else {
+			for (int col = 0; col < numCols && !found; ++col) {
+				found = scanColumn(p, col, 0);
+			}
+		}
+		clearChanges(p);
+		this.winState[p] = found ? WIN_FOUND : WIN_NONE;
+		return found;
 		
 	}
 
@@ -778,7 +1718,7 @@ public class PowerConnectFour {
 	
 		// init with an empty grid
 		PowerConnectFour myGame = new PowerConnectFour();
-		if (myGame.sizeCol() == NUM_COLS && myGame.sizeRow() == MIN_ROWS
+		if (myGame.sizeCol() == DEFAULT_NUM_COLS && myGame.sizeRow() == MIN_ROWS
 			&& myGame.getColumn(2).size() == 0 && myGame.currentPlayer() == Token.RED
 			&& myGame.get(0,0) == null){
 			System.out.println("Yay 1!");		
@@ -835,7 +1775,160 @@ public class PowerConnectFour {
 			&& myGame.countMinorDiagonal(2,0,Token.YELLOW) == 1){
 			System.out.println("Yay 6!");												
 		}
+
+		// tall columns switch to run-length storage and back
+		PowerConnectFour tall = new PowerConnectFour();
+		tall.setRunLengthThreshold(64);
+		for (int i = 0; i < 300; i++) {
+			tall.drop(0);
+			tall.drop(1);
+		}
+		boolean encoded = tall.getColumn(0) instanceof RunLengthColumn
+			&& tall.countCol(0, 150, Token.RED) == 300 && tall.get(1, 299) == Token.YELLOW;
+		for (int i = 0; i < 290; i++) {
+			tall.pop(0);
+			tall.pop(1);
+		}
+		if (encoded && !(tall.getColumn(0) instanceof RunLengthColumn)
+			&& tall.getColumn(0).size() == 10 && tall.countCol(0, 3, Token.RED) == 10
+			&& tall.sizeRow() == 11) {
+			System.out.println("Yay 7!");
+		}
 			
-	
+		// wide board, five in a row, win found and then broken by a pop
+		PowerConnectFour wide = new PowerConnectFour(64, 5);
+		for (int i = 0; i < 4; i++) {
+			wide.drop(60 + i);	//R along row 0
+			wide.drop(10 + i);	//Y somewhere else
+		}
+		boolean notYet = !wide.hasFourConnected(Token.RED);
+		wide.drop(59);
+		boolean won = wide.hasFourConnected(Token.RED) && wide.countRow(59, 0, Token.RED) == 5;
+		wide.drop(0);
+		wide.pop(61);
+		if (notYet && won && !wide.hasFourConnected(Token.RED) && !wide.hasFourConnected(Token.YELLOW)
+			&& wide.sizeCol() == 64 && wide.winLength() == 5) {
+			System.out.println("Yay 8!");
+		}
+
+		// random moves and take backs keep the position hash in step with a fresh board
+		java.util.Random rand = new java.util.Random(3);
+		PowerConnectFour game = new PowerConnectFour();
+		int[] moves = new int[4096];
+		int[] history = new int[400];
+		boolean hashesMatch = true;
+		for (int i = 0; i < 400; i++) {
+			int count = game.legalMoves(moves);
+			history[i] = moves[rand.nextInt(count)];
+			hashesMatch = hashesMatch && game.apply(history[i]);
+		}
+		PowerConnectFour copy = new PowerConnectFour(game);
+		for (int i = 399; i >= 200; i--) {
+			game.undo(history[i]);
+		}
+		PowerConnectFour replay = new PowerConnectFour();
+		for (int i = 0; i < 200; i++) {
+			replay.apply(history[i]);
+		}
+		for (int col = 0; col < game.sizeCol(); col++) {
+			hashesMatch = hashesMatch && game.getColumn(col).size() == replay.getColumn(col).size();
+		}
+		if (hashesMatch && game.positionHash() == replay.positionHash()
+			&& copy.positionHash() != game.positionHash() && copy.tokenCount() > 0) {
+			System.out.println("Yay 9!");
+		}
+
+		//bulk readers agree with get, run-length columns included
+		PowerConnectFour bulk = new PowerConnectFour(5, 4);
+		bulk.setRunLengthThreshold(8);
+		for (int i = 0; i < 60; ++i) {
+			bulk.drop(i % 2 == 0 ? 0 : i % 4 == 1 ? 1 : 2);
+		}
+		byte[] cells = new byte[bulk.sizeRow()];
+		int[] tops = new int[bulk.sizeCol()];
+		boolean bulkMatches = bulk.heights(tops) == 5 && bulk.getColumn(0) instanceof RunLengthColumn;
+		for (int c = 0; c < bulk.sizeCol(); ++c) {
+			int height = bulk.readColumn(c, cells);
+			bulkMatches = bulkMatches && height == tops[c];
+			for (int r = 0; r < bulk.sizeRow(); ++r) {
+				Token t = bulk.get(c, r);
+				byte expected = t == null ? CELL_EMPTY : t == Token.RED ? CELL_RED : CELL_YELLOW;
+				bulkMatches = bulkMatches && bulk.peek(c, r) == expected && (r >= height || cells[r] == expected);
+			}
+		}
+		byte[] row = new byte[bulk.sizeCol()];
+		bulk.readRow(3, row);
+		if (bulkMatches && row[3] == CELL_EMPTY && row[0] == bulk.peek(0, 3)
+			&& bulk.peek(-1, 0) == CELL_OFF_GRID && bulk.peek(0, -1) == CELL_OFF_GRID) {
+			System.out.println("Yay 10!");
+		}
+
+		//drops popped straight back bring the empty board back, the third time is a draw
+		PowerConnectFour cycle = new PowerConnectFour();
+		int[] loop = {Move.drop(0), Move.drop(1), Move.pop(0), Move.pop(1)};
+		for (int i = 0; i < 8; ++i) {
+			cycle.apply(loop[i % 4]);
+		}
+		boolean threefold = cycle.repetitions() == 3 && cycle.isDrawByRepetition()
+			&& new PowerConnectFour(cycle).isDrawByRepetition();
+		cycle.undo(loop[3]);
+		boolean undone = cycle.repetitions() == 2 && !cycle.isDrawByRepetition();
+		cycle.apply(loop[3]);
+		cycle.setRepetitionLimit(0);
+		boolean off = !cycle.isDrawByRepetition() && cycle.repetitions() == 3;
+		cycle.reset();
+		//the counts match a scan of the history through a long game of pops and undos
+		PowerConnectFour popper = new PowerConnectFour(3, 4);
+		popper.setRepetitionLimit(0);
+		java.util.Random popRandom = new java.util.Random(49);
+		int[] popMoves = new int[1024];
+		int[] played = new int[4000];
+		int length = 0;
+		boolean counted = true;
+		for (int i = 0; i < 20000 && counted; ++i) {
+			if (length > 0 && popRandom.nextInt(3) == 0) {
+				popper.undo(played[--length]);
+			}
+			else {
+				int n = popper.legalMoves(popMoves);
+				int move = popMoves[popRandom.nextInt(n)];
+				for (int j = 0; j < n; ++j) {
+					move = Move.kind(popMoves[j]) == Move.POP && popRandom.nextBoolean() ? popMoves[j] : move;
+				}
+				if (length == played.length || !popper.apply(move)) {
+					continue;
+				}
+				played[length++] = move;
+			}
+			int scan = 0;
+			for (int h = 0; h < popper.historyLength; ++h) {
+				scan += popper.history[h] == popper.positionHash() ? 1 : 0;
+			}
+			counted = popper.repetitions() == scan;
+		}
+		if (threefold && undone && off && counted && cycle.repetitions() == 1 && !cycle.isGameOver()) {
+			System.out.println("Yay 11!");
+		}
+
+		//a lower threshold encodes a column already past it on its next move, a mixed one stays plain
+		PowerConnectFour lowered = new PowerConnectFour();
+		for (int i = 0; i < 100; i++) {
+			lowered.drop(0);
+			lowered.drop(1);
+		}
+		for (int i = 0; i < 100; i++) {
+			lowered.drop(2);
+		}
+		boolean plainBefore = !(lowered.getColumn(0) instanceof RunLengthColumn);
+		lowered.setRunLengthThreshold(64);
+		lowered.drop(0);
+		lowered.drop(2);
+		lowered.drop(1);
+		lowered.drop(2);
+		if (plainBefore && lowered.getColumn(0) instanceof RunLengthColumn
+			&& !(lowered.getColumn(2) instanceof RunLengthColumn)
+			&& lowered.countCol(0, 50, Token.RED) == 101 && lowered.getColumn(2).size() == 102) {
+			System.out.println("Yay 12!");
+		}
 	}
-}
\ No newline at end of file
+}
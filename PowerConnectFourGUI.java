@@ -1,6 +1,7 @@
 import java.util.Scanner;
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  *  A little ASCII GUI to help you interact with the game.
@@ -8,6 +9,8 @@ import java.io.IOException;
  *      java PowerConnectFourGUI 
  *  or 
  * 		java PowerConnectFourGUI Input_File_Name
+ *  or, to play against the computer (it plays Y and thinks on your time),
+ * 		java PowerConnectFourGUI -c
  *  
  *  @author Y Zhong
  */	
@@ -18,6 +21,36 @@ public class PowerConnectFourGUI {
 	 */
 	
 	enum Mode { KEYBOARD, FILE};
+
+	/**
+	 * Time the computer takes per move, in milliseconds.
+	 */
+	private static final long BOT_BUDGET_MILLIS = 1000;
+
+	/**
+	 * Deepest search depth of the computer.
+	 */
+	private static final int BOT_MAX_DEPTH = 32;
+
+	/**
+	 * Time the hint command takes, in milliseconds.
+	 */
+	private static final long HINT_BUDGET_MILLIS = 500;
+
+	/**
+	 * Number of moves the hint command lists.
+	 */
+	private static final int HINTS_LISTED = 5;
+
+	/**
+	 * Number of rows drawn at most, taller boards are drawn through a window.
+	 */
+	private static final int VIEWPORT_ROWS = 20;
+
+	/**
+	 * The window of rows displayGrid draws.
+	 */
+	private static final Viewport viewport = new Viewport(VIEWPORT_ROWS);
 	 
 	/**
 	 *  The main method that presents the GUI.
@@ -33,12 +66,14 @@ public class PowerConnectFourGUI {
 		Mode mode = Mode.FILE;
 		String next;
 		boolean validMove = false;
+		int move = -1;
+		PonderingBot bot = null;
 		
 		if(args.length > 1){
-			System.out.println("Usage: java PowerConnectFourGUI [Input_File_Name]");
+			System.out.println("Usage: java PowerConnectFourGUI [Input_File_Name | -c]");
 			System.exit(0);
 		}
-		else if (args.length == 1){
+		else if (args.length == 1 && !args[0].equals("-c")){
 			try{
 				// open file for input
 				scanner = new Scanner(new File(args[0]));				
@@ -54,7 +89,13 @@ public class PowerConnectFourGUI {
 			System.out.println("  Supported Moves: \n\tD-Drop, P-Pop, PD-Power Drop, PP-Power Pop, Q-Quit");
 			System.out.println("  Example format: 'D 5' - Drop at Column 5");
 			System.out.println("  Example format: 'PP 3 0' - Power Pop from Column 3 Row 0");
+			System.out.println("  H - Hint: scores every move for the current player");
+			System.out.println("  V - View on tall boards: 'V 10' up 10 rows, 'V -10' down, 'V T' top, 'V L' last move, 'V A' all");
 			mode = Mode.KEYBOARD;
+			if (args.length == 1){
+				bot = new PonderingBot(BOT_BUDGET_MILLIS, BOT_MAX_DEPTH);
+				System.out.println("  Playing against the computer, you are R");
+			}
 		}
 
 		
@@ -65,6 +106,8 @@ public class PowerConnectFourGUI {
 		Token player = game.currentPlayer();
 		reportcurrentPlayer(game);
 		
+		if (bot != null)
+			bot.startPondering(game);
 		if (mode==Mode.KEYBOARD)
 			System.out.print("Next Move: ");
 		else
@@ -83,6 +126,7 @@ public class PowerConnectFourGUI {
 					System.out.println("-----------------------------------------------");	
 					System.out.format(" %d: Move by player %c : Drop %d: ", step, player.getSymbol(), col);
 					validMove = game.drop(col);
+					move = validMove ? Move.drop(col) : -1;
 					break;
 				case "P": //pop
 					col = scanner.nextInt();
@@ -90,6 +134,7 @@ public class PowerConnectFourGUI {
 					System.out.println("-----------------------------------------------");	
 					System.out.format(" %d: Move by player %c : Pop %d: ", step, player.getSymbol(), col);
 					validMove = game.pop(col);
+					move = validMove ? Move.pop(col) : -1;
 					break;
 				case "PD": //power drop
 					col = scanner.nextInt();
@@ -98,6 +143,7 @@ public class PowerConnectFourGUI {
 					System.out.println("-----------------------------------------------");	
 					System.out.format(" %d: Move by player %c : Power Drop Column %d Row %d: ", step, player.getSymbol(), col, row);
 					validMove = game.powerDrop(col,row);
+					move = validMove ? Move.powerDrop(col, row) : -1;
 					break;
 				case "PP": //power pop
 					col = scanner.nextInt();
@@ -106,7 +152,46 @@ public class PowerConnectFourGUI {
 					System.out.println("-----------------------------------------------");	
 					System.out.format(" %d: Move by player %c : Power Pop Column %d Row %d: ", step, player.getSymbol(), col, row);
 					validMove = game.powerPop(col,row);
+					move = validMove ? Move.powerPop(col, row) : -1;
 					break;
+				case "H": //hint, not a move
+					next = scanner.nextLine();
+					step--;
+					MoveHints.Hint[] hints = MoveHints.analyze(game, HINT_BUDGET_MILLIS, BOT_MAX_DEPTH, ForkJoinPool.commonPool());
+					System.out.println("-----------------------------------------------");	
+					displayGrid(game, hints);
+					reportcurrentPlayer(game);
+					if (mode == Mode.FILE)
+						enterToContinue();
+					else
+						System.out.print("Next Move: ");
+					continue;
+				case "V": //viewport, not a move
+					String where = scanner.next();
+					next = scanner.nextLine();
+					step--;
+					if (where.equals("T"))
+						viewport.followTop();
+					else if (where.equals("L"))
+						viewport.followMove();
+					else if (where.equals("A"))
+						viewport.showAll();
+					else {
+						try {
+							viewport.scroll(game, Integer.parseInt(where));
+						}
+						catch (NumberFormatException e) {
+							System.out.println(" Unknown view: " + where);
+						}
+					}
+					System.out.println("-----------------------------------------------");	
+					displayGrid(game);
+					reportcurrentPlayer(game);
+					if (mode == Mode.FILE)
+						enterToContinue();
+					else
+						System.out.print("Next Move: ");
+					continue;
 				case "Q": //quit
 					System.out.println("-----------------------------------------------");	
 					System.out.println(" - Ending Game");	
@@ -119,6 +204,8 @@ public class PowerConnectFourGUI {
 
 			}
 						
+			if (validMove)
+				viewport.moved(moveRow(game, move));
 			if (validMove)
 				System.out.println("Valid Move");
 			else
@@ -137,6 +224,23 @@ public class PowerConnectFourGUI {
 				System.out.format(" Winner: %c!\n", player.getSymbol());
 				break;			
 			}
+			if (reportDraw(game))
+				break;
+			if (bot != null && validMove){
+				// the computer answers right away, then thinks on the next reply
+				int reply = bot.chooseMove(game, move);
+				step++;
+				System.out.println("-----------------------------------------------");	
+				System.out.format(" %d: Move by player %c : %s (%d ms): ", step, player.getSymbol(), Move.toString(reply), bot.lastLatencyMillis());
+				System.out.println(game.apply(reply) ? "Valid Move" : "Invalid Move");
+				viewport.moved(moveRow(game, reply));
+				System.out.println("-----------------------------------------------");							
+				displayGrid(game);
+				if (reportWinner(game, player) || reportDraw(game))
+					break;
+				player = game.currentPlayer();
+				bot.startPondering(game);
+			}
 			reportcurrentPlayer(game);
 			if (mode == Mode.FILE)
 				enterToContinue();
@@ -145,11 +249,46 @@ public class PowerConnectFourGUI {
 
 		
 		}
+		if (bot != null)
+			bot.stopPondering();
 		System.out.println("-----------------------------------------------");	
 		System.out.println(" - Ending Game");	
 		System.out.println("-----------------------------------------------");	
 		
 	}
+
+	/**
+	 * The method that reports a winner after a move, if there is one.
+	 * The player who moved wins if they connected, otherwise the other player does if they did.
+	 *
+	 * @param game the connect four game involved
+	 * @param mover the player who just moved
+	 * @return whether someone has won
+	 */
+	public static boolean reportWinner(PowerConnectFour game, Token mover){
+		Token other = mover == Token.RED ? Token.YELLOW : Token.RED;
+		Token winner = game.hasFourConnected(mover) ? mover : game.hasFourConnected(other) ? other : null;
+		if (winner == null)
+			return false;
+		System.out.println("-----------------------------------------------");	
+		System.out.format(" Winner: %c!\n", winner.getSymbol());
+		return true;
+	}
+	
+	/**
+	 * The method that reports a draw by repetition, if the position has
+	 * come back as often as the game's repetition limit allows.
+	 *
+	 * @param game the connect four game involved
+	 * @return whether the game is drawn
+	 */
+	public static boolean reportDraw(PowerConnectFour game){
+		if (!game.isDrawByRepetition())
+			return false;
+		System.out.println("-----------------------------------------------");	
+		System.out.format(" Draw: position repeated %d times!\n", game.repetitions());
+		return true;
+	}
 	
 	/**
 	 * The method that displays the grid of the game.
@@ -157,27 +296,126 @@ public class PowerConnectFourGUI {
 	 * @param game the connect four game to be displayed
 	 */
 	public static void displayGrid(PowerConnectFour game){
-		int row = game.sizeRow();
+		displayGrid(game, null);
+	}
+
+	/**
+	 * The method that displays the grid of the game with move hints.
+	 * Under the column headers each column is marked W if a move there wins,
+	 * B if a move there blocks a win, * if it holds the best move and x if
+	 * every move there loses; the best moves are listed under the grid.
+	 * Only the rows in the viewport are drawn, with a line for the rows hidden
+	 * above and below.
+	 *
+	 * @param game the connect four game to be displayed
+	 * @param hints scored moves, best first, or null for no hints
+	 */
+	public static void displayGrid(PowerConnectFour game, MoveHints.Hint[] hints){
 		int col = game.sizeCol();
+		int top = viewport.top(game);
+		int bottom = viewport.bottom(game);
 				
 		System.out.format("|   |");
 		for (int j=0; j<col; j++){
 			System.out.format("| %d |", j);
 		}
 		System.out.println("");		
-		for (int i=row-1; i>=0; i--){
+		if (hints != null){
+			System.out.format("| H |");
+			for (int j=0; j<col; j++){
+				System.out.format("| %c |", hintMark(hints, j));
+			}
+			System.out.println("");
+		}
+		byte[] cells = new byte[col];
+		if (top < game.sizeRow()-1)
+			reportHidden(game, top+1, game.sizeRow()-1, '^');
+		for (int i=top; i>=bottom; i--){
 			System.out.format("| %d |", i);
+			game.readRow(i, cells);
 			for (int j=0; j<col; j++){
-				Token cell = game.get(j,i);
-				if (cell == null)
+				if (cells[j] == PowerConnectFour.CELL_EMPTY)
 					System.out.format("| %c |", game.getEmptySymbol());
+				else if (cells[j] == PowerConnectFour.CELL_RED)
+					System.out.format("| %c |", Token.RED.getSymbol());
 				else
-					System.out.format("| %c |", cell.getSymbol());
+					System.out.format("| %c |", Token.YELLOW.getSymbol());
+			}
+			System.out.println("");
+		}
+		if (bottom > 0)
+			reportHidden(game, 0, bottom-1, 'v');
+		if (hints != null){
+			System.out.print(" Hints:");
+			for (int i=0; i<hints.length && i<HINTS_LISTED; i++){
+				MoveHints.Hint h = hints[i];
+				String mark = h.mark() == MoveHints.WIN ? " win" : h.mark() == MoveHints.BLOCK ? " block" : h.mark() == MoveHints.LOSS ? " loss" : "";
+				System.out.format(" %s %+d%s;", Move.toString(h.move()), h.score(), mark);
 			}
 			System.out.println("");
 		}
 
 	}
+
+	/**
+	 * The method that prints the summary line of rows outside the viewport.
+	 *
+	 * @param game the connect four game to be displayed
+	 * @param from lowest hidden row
+	 * @param to highest hidden row
+	 * @param arrow ^ for rows above the viewport, v for rows below
+	 */
+	private static void reportHidden(PowerConnectFour game, int from, int to, char arrow){
+		int[] heights = new int[game.sizeCol()];
+		game.heights(heights);
+		long tokens = 0;
+		for (int h : heights)
+			tokens += Math.max(0, Math.min(h, to+1) - from);
+		System.out.format("| %c | rows %d-%d hidden, %d tokens\n", arrow, from, to, tokens);
+	}
+
+	/**
+	 * The method that finds the row a move that was just made touched.
+	 *
+	 * @param game the game after the move
+	 * @param move the packed move
+	 * @return row the token landed on or was removed from
+	 */
+	private static int moveRow(PowerConnectFour game, int move){
+		switch (Move.kind(move)){
+			case Move.DROP:
+				return game.getColumn(Move.col(move)).size()-1;
+			case Move.POP:
+				return 0;
+			default:
+				return Move.row(move);
+		}
+	}
+
+	/**
+	 * The method that picks the hint mark of a column.
+	 *
+	 * @param hints scored moves, best first
+	 * @param col index of the column
+	 * @return W, B, *, x or a space
+	 */
+	private static char hintMark(MoveHints.Hint[] hints, int col){
+		boolean any = false, block = false, allLose = true;
+		for (MoveHints.Hint h : hints){
+			if (Move.col(h.move()) != col)
+				continue;
+			if (h.mark() == MoveHints.WIN)
+				return 'W';
+			any = true;
+			block = block || h.mark() == MoveHints.BLOCK;
+			allLose = allLose && h.score() <= -Searcher.WIN_THRESHOLD;
+		}
+		if (block)
+			return 'B';
+		if (hints.length > 0 && Move.col(hints[0].move()) == col)
+			return '*';
+		return any && allLose ? 'x' : ' ';
+	}
 	
 	/**
 	* The method that reports the current player of a game.
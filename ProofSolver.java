@@ -0,0 +1,471 @@
+import java.util.Arrays;
+
+/**
+ *  Proves or disproves that the player to move can force a win within a
+ *  number of plies, with proof-number search. Every node carries a proof
+ *  number (how many more leaves must be shown to be wins to prove it) and
+ *  a disproof number; each step walks down to the most-proving leaf,
+ *  expands it, and fixes the numbers on the way back. Effort goes to the
+ *  narrowest line, which suits the deep, forcing tactics of power moves.
+ *  Wins are decided the way the GUI decides them. A line that reaches the
+ *  ply limit with nobody connected counts as not a win.
+ *  Nodes live in a fixed pool of parallel arrays. As soon as a node is
+ *  solved its subtree is given back to the pool, since only its result is
+ *  needed from then on; if the pool still runs out the answer is UNKNOWN.
+ *  @author Adam David
+ */
+public class ProofSolver {
+
+	/**
+	 * the player to move can force a win.
+	 */
+	public static final int PROVEN = 1;
+
+	/**
+	 * the player to move cannot force a win within the plies.
+	 */
+	public static final int DISPROVEN = 2;
+
+	/**
+	 * the node pool or the time ran out first.
+	 */
+	public static final int UNKNOWN = 0;
+
+	/**
+	 * proof or disproof number of a solved node's other side.
+	 */
+	private static final int INFINITY = 1 << 28;
+
+	/**
+	 * marks the end of a child list or the free list.
+	 */
+	private static final int NONE = -1;
+
+	/**
+	 * proof number of each node.
+	 */
+	private final int[] proof;
+
+	/**
+	 * disproof number of each node.
+	 */
+	private final int[] disproof;
+
+	/**
+	 * first child of each node, NONE until expanded.
+	 */
+	private final int[] firstChild;
+
+	/**
+	 * next sibling of each node, or next free node.
+	 */
+	private final int[] nextSibling;
+
+	/**
+	 * move that leads to each node.
+	 */
+	private final int[] moveTo;
+
+	/**
+	 * head of the free list.
+	 */
+	private int free;
+
+	/**
+	 * nodes in use.
+	 */
+	private int used;
+
+	/**
+	 * most nodes in use at once during the last solve.
+	 */
+	private int peak;
+
+	/**
+	 * moves from the root to the node being expanded.
+	 */
+	private int[] path = new int[64];
+
+	/**
+	 * nodes from the root to the node being expanded.
+	 */
+	private int[] pathNodes = new int[64];
+
+	/**
+	 * a constructer for a solver that can hold the given number of nodes.
+	 * @param maxNodes size of the node pool
+	 */
+	public ProofSolver(int maxNodes) {
+		if (maxNodes < 2) {
+			throw new IllegalArgumentException("Pool must hold at least 2 nodes");
+		}
+		this.proof = new int[maxNodes];
+		this.disproof = new int[maxNodes];
+		this.firstChild = new int[maxNodes];
+		this.nextSibling = new int[maxNodes];
+		this.moveTo = new int[maxNodes];
+	}
+
+	/**
+	 * The answer of a solve.
+	 */
+	public static final class Result {
+
+		/**
+		 * PROVEN, DISPROVEN or UNKNOWN.
+		 */
+		private final int status;
+
+		/**
+		 * a winning move when PROVEN, otherwise -1.
+		 */
+		private final int move;
+
+		/**
+		 * number of leaves expanded.
+		 */
+		private final long expansions;
+
+		/**
+		 * most nodes in use at once.
+		 */
+		private final int peakNodes;
+
+		/**
+		 * a constructer for a result.
+		 * @param status PROVEN, DISPROVEN or UNKNOWN
+		 * @param move a winning move when PROVEN, otherwise -1
+		 * @param expansions number of leaves expanded
+		 * @param peakNodes most nodes in use at once
+		 */
+		public Result(int status, int move, long expansions, int peakNodes) {
+			this.status = status;
+			this.move = move;
+			this.expansions = expansions;
+			this.peakNodes = peakNodes;
+		}
+
+		/**
+		 * getter for the status.
+		 * @return PROVEN, DISPROVEN or UNKNOWN
+		 */
+		public int status() {
+			return this.status;
+		}
+
+		/**
+		 * getter for the winning move.
+		 * @return a winning move when PROVEN, otherwise -1
+		 */
+		public int move() {
+			return this.move;
+		}
+
+		/**
+		 * getter for the expansions.
+		 * @return number of leaves expanded
+		 */
+		public long expansions() {
+			return this.expansions;
+		}
+
+		/**
+		 * getter for the peak node count.
+		 * @return most nodes in use at once
+		 */
+		public int peakNodes() {
+			return this.peakNodes;
+		}
+	}
+
+	/**
+	 * Solves a position. The game is left as it was.
+	 * @param game position with the attacker to move
+	 * @param maxPlies longest line looked at, at least 1
+	 * @param budgetMillis time budget in milliseconds
+	 * @return whether the player to move can force a win within maxPlies
+	 */
+	public Result solve(PowerConnectFour game, int maxPlies, long budgetMillis) {
+		if (maxPlies < 1) {
+			throw new IllegalArgumentException("Need at least 1 ply");
+		}
+		long deadline = System.nanoTime() + budgetMillis * 1000000L;
+		if (game.isGameOver()) {
+			//the GUI would have ended it already, so there is nothing to prove
+			return new Result(DISPROVEN, -1, 0, 0);
+		}
+		Token attacker = game.currentPlayer();
+		clearPool();
+		int root = allocate(-1);
+		this.proof[root] = 1;
+		this.disproof[root] = 1;
+		long expansions = 0;
+		int[] moves = new int[game.maxLegalMoves()];
+
+		while (this.proof[root] != 0 && this.disproof[root] != 0) {
+			if ((expansions & 63) == 0 && System.nanoTime() > deadline) {
+				return new Result(UNKNOWN, -1, expansions, this.peak);
+			}
+			//walk to the most-proving node, playing its moves
+			int depth = 0;
+			int node = root;
+			while (this.firstChild[node] != NONE) {
+				boolean attacking = depth % 2 == 0;
+				int best = NONE;
+				for (int c = this.firstChild[node]; c != NONE; c = this.nextSibling[c]) {
+					if (best == NONE || (attacking ? this.proof[c] < this.proof[best]
+						: this.disproof[c] < this.disproof[best])) {
+						best = c;
+					}
+				}
+				push(depth, node, this.moveTo[best]);
+				game.apply(this.moveTo[best]);
+				node = best;
+				++depth;
+			}
+
+			if (moves.length < game.maxLegalMoves()) {
+				moves = new int[game.maxLegalMoves() * 2];
+			}
+			boolean expanded = expand(game, node, depth, maxPlies, attacker, moves);
+			for (int d = depth - 1; d >= 0; --d) {
+				game.undo(this.path[d]);
+			}
+			if (!expanded) {
+				return new Result(UNKNOWN, -1, expansions, this.peak);
+			}
+			++expansions;
+
+			//fix the numbers from the leaf back to the root
+			update(node, depth);
+			for (int d = depth - 1; d >= 0; --d) {
+				update(this.pathNodes[d], d);
+			}
+		}
+
+		int winning = -1;
+		if (this.proof[root] == 0) {
+			for (int c = this.firstChild[root]; c != NONE; c = this.nextSibling[c]) {
+				if (this.proof[c] == 0) {
+					winning = this.moveTo[c];
+					break;
+				}
+			}
+		}
+		return new Result(this.proof[root] == 0 ? PROVEN : DISPROVEN, winning, expansions, this.peak);
+	}
+
+	/**
+	 * Adds every child of a leaf, scoring the ones that end the game.
+	 * @param game position of the leaf
+	 * @param node the leaf
+	 * @param depth plies from the root to the leaf
+	 * @param maxPlies longest line looked at
+	 * @param attacker the player trying to win
+	 * @param moves buffer with room for maxLegalMoves() moves
+	 * @return false if the pool ran out
+	 */
+	private boolean expand(PowerConnectFour game, int node, int depth, int maxPlies, Token attacker, int[] moves) {
+		int n = game.legalMoves(moves);
+		if (this.used + n > this.proof.length) {
+			return false;
+		}
+		int last = NONE;
+		for (int i = 0; i < n; ++i) {
+			int child = allocate(moves[i]);
+			if (last == NONE) {
+				this.firstChild[node] = child;
+			}
+			else {
+				this.nextSibling[last] = child;
+			}
+			last = child;
+			game.apply(moves[i]);
+			int terminal = Searcher.terminalScore(game, 0);
+			game.undo(moves[i]);
+			//terminal is for the player to move after the move
+			Token toMove = game.currentPlayer() == Token.RED ? Token.YELLOW : Token.RED;
+			boolean attackerWon = terminal != 0 && (terminal > 0) == (toMove == attacker);
+			if (terminal != 0) {
+				this.proof[child] = attackerWon ? 0 : INFINITY;
+				this.disproof[child] = attackerWon ? INFINITY : 0;
+			}
+			else if (depth + 1 >= maxPlies) {
+				this.proof[child] = INFINITY;
+				this.disproof[child] = 0;
+			}
+			else {
+				this.proof[child] = 1;
+				this.disproof[child] = 1;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Recomputes a node's numbers from its children and gives back the
+	 * subtree of a node that is now solved.
+	 * @param node the node
+	 * @param depth plies from the root, even where the attacker is to move
+	 */
+	private void update(int node, int depth) {
+		boolean attacking = depth % 2 == 0;
+		int min = INFINITY;
+		long sum = 0;
+		for (int c = this.firstChild[node]; c != NONE; c = this.nextSibling[c]) {
+			int minOf = attacking ? this.proof[c] : this.disproof[c];
+			int sumOf = attacking ? this.disproof[c] : this.proof[c];
+			min = Math.min(min, minOf);
+			sum = Math.min(INFINITY, sum + sumOf);
+		}
+		if (attacking) {
+			this.proof[node] = min;
+			this.disproof[node] = (int) sum;
+		}
+		else {
+			this.proof[node] = (int) sum;
+			this.disproof[node] = min;
+		}
+		//the root keeps its children so the winning move can be read off
+		if (depth > 0 && (this.proof[node] == 0 || this.disproof[node] == 0)) {
+			releaseChildren(node);
+		}
+	}
+
+	/**
+	 * Gives a node's whole subtree back to the pool.
+	 * @param node the node, which stays
+	 */
+	private void releaseChildren(int node) {
+		int c = this.firstChild[node];
+		this.firstChild[node] = NONE;
+		//children of released nodes are chained onto the list still to visit
+		while (c != NONE) {
+			int next = this.nextSibling[c];
+			int grand = this.firstChild[c];
+			if (grand != NONE) {
+				int tail = grand;
+				while (this.nextSibling[tail] != NONE) {
+					tail = this.nextSibling[tail];
+				}
+				this.nextSibling[tail] = next;
+				next = grand;
+			}
+			this.nextSibling[c] = this.free;
+			this.free = c;
+			this.used--;
+			c = next;
+		}
+	}
+
+	/**
+	 * Takes a node from the pool.
+	 * @param move move that leads to it
+	 * @return the node
+	 */
+	private int allocate(int move) {
+		int node = this.free;
+		this.free = this.nextSibling[node];
+		this.firstChild[node] = NONE;
+		this.nextSibling[node] = NONE;
+		this.moveTo[node] = move;
+		this.used++;
+		this.peak = Math.max(this.peak, this.used);
+		return node;
+	}
+
+	/**
+	 * Puts every node back on the free list.
+	 */
+	private void clearPool() {
+		for (int i = 0; i < this.proof.length; ++i) {
+			this.nextSibling[i] = i + 1 < this.proof.length ? i + 1 : NONE;
+		}
+		this.free = 0;
+		this.used = 0;
+		this.peak = 0;
+	}
+
+	/**
+	 * Records one step of the walk down.
+	 * @param depth plies from the root
+	 * @param node node the move is played from
+	 * @param move the move
+	 */
+	private void push(int depth, int node, int move) {
+		if (depth == this.path.length) {
+			this.path = Arrays.copyOf(this.path, depth * 2);
+			this.pathNodes = Arrays.copyOf(this.pathNodes, depth * 2);
+		}
+		this.path[depth] = move;
+		this.pathNodes[depth] = node;
+	}
+
+	//******************************************************
+	//*******     BELOW THIS LINE IS TESTING CODE    *******
+	//******************************************************
+
+	/**
+	 * Main is testing the solver against full-width search, or solves a
+	 * position given on the command line.
+	 * @param args command line args: plies, then moves as D3,PD2:0,...
+	 */
+	public static void main(String[] args) {
+		ProofSolver solver = new ProofSolver(1 << 20);
+		if (args.length > 0) {
+			PowerConnectFour game = new PowerConnectFour();
+			if (args.length > 1) {
+				for (String move : args[1].split(",")) {
+					game.apply(Move.parse(move));
+				}
+			}
+			Result r = solver.solve(game, Integer.parseInt(args[0]), 60000);
+			System.out.format("%s %s expansions %d peak nodes %d%n",
+				r.status() == PROVEN ? "PROVEN" : r.status() == DISPROVEN ? "DISPROVEN" : "UNKNOWN",
+				r.move() < 0 ? "-" : Move.toString(r.move()), r.expansions(), r.peakNodes());
+			return;
+		}
+
+		//a win on the spot is found with its move
+		PowerConnectFour win = PositionCodec.fromText("R:Y,R,R,R,,Y,Y", 4);
+		Result r = solver.solve(win, 1, 1000);
+		PowerConnectFour check = new PowerConnectFour(win);
+		check.apply(r.move());
+		if (r.status() == PROVEN && check.hasFourConnected(Token.RED)) {
+			System.out.println("Yay 1");
+		}
+
+		//agrees with full-width search on random positions
+		java.util.Random random = new java.util.Random(41);
+		Searcher searcher = new Searcher();
+		boolean agree = true;
+		int proven = 0;
+		for (int g = 0; g < 40; ++g) {
+			PowerConnectFour game = new PowerConnectFour();
+			int[] moves = new int[64];
+			for (int i = 0; i < 12 + random.nextInt(10) && !game.isGameOver(); ++i) {
+				int n = game.legalMoves(moves);
+				int move = moves[random.nextInt(n)];
+				game.apply(move);
+				if (game.isGameOver()) {
+					game.undo(move);
+					break;
+				}
+			}
+			Result solved = solver.solve(game, 3, 10000);
+			boolean searchWins = searcher.search(game, 10000, 3).score() >= Searcher.WIN_THRESHOLD;
+			agree = agree && solved.status() != UNKNOWN && (solved.status() == PROVEN) == searchWins;
+			proven += solved.status() == PROVEN ? 1 : 0;
+		}
+		if (agree && proven > 0) {
+			System.out.println("Yay 2");
+		}
+
+		//a tiny pool gives up instead of failing
+		ProofSolver tiny = new ProofSolver(64);
+		Result small = tiny.solve(new PowerConnectFour(), 9, 1000);
+		if (small.status() == UNKNOWN && small.peakNodes() <= 64) {
+			System.out.println("Yay 3");
+		}
+	}
+}
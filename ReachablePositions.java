@@ -0,0 +1,884 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ *  Breadth-first enumeration of every position reachable from the empty
+ *  board, depth by depth, kept on disk instead of on the heap.
+ *  A position is stored as a 64 bit key that is also its canonical hash:
+ *  the player to move in the lowest bit (set for yellow), then for each
+ *  column, left to right, its height in unary (that many set bits and a
+ *  clear one) followed by its tokens bottom first (set for yellow). A
+ *  position and its mirror image are the same game, so the key is the
+ *  smaller of the two. A key takes 2 * tokens + width + 1 bits, and no
+ *  move adds more than one token, so depth is capped at (62 - width) / 2.
+ *  Each depth is a frontier file: a header, then its keys sorted and
+ *  unique, read back through memory-mapped windows. The next depth is made
+ *  by expanding every position that nobody has won yet into a fixed heap
+ *  buffer; a full buffer is sorted and spilled to a run file, and the runs
+ *  are merged into the new frontier, leaving out positions already found
+ *  at an earlier depth. Frontier files are for opening book and tablebase
+ *  builders: open one with Frontier.open and decode its keys.
+ *  Use with the command:
+ *      java ReachablePositions dir depth [-w width] [-n winLength] [-r runLongs]
+ *  @author Adam David
+ */
+public class ReachablePositions {
+
+	/**
+	 * first bytes of every frontier file.
+	 */
+	public static final long MAGIC = 0x5043344652303031L;
+
+	/**
+	 * keys the heap buffer holds before it spills, by default.
+	 */
+	public static final int DEFAULT_RUN_LONGS = 1 << 22;
+
+	/**
+	 * bytes before the first key: magic, width, win length, depth, count.
+	 */
+	private static final int HEADER_BYTES = 32;
+
+	/**
+	 * bytes of a file mapped at once.
+	 */
+	private static final int WINDOW_BYTES = 1 << 26;
+
+	/**
+	 * most runs merged at once, so the open files stay few.
+	 */
+	private static final int MERGE_WAYS = 128;
+
+	/**
+	 * bytes written to a file at once.
+	 */
+	private static final int WRITE_BYTES = 1 << 20;
+
+	/**
+	 * number of columns.
+	 */
+	private final int width;
+
+	/**
+	 * number of connected tokens needed to win.
+	 */
+	private final int winLength;
+
+	/**
+	 * directory the frontier and run files go in.
+	 */
+	private final Path dir;
+
+	/**
+	 * keys the heap buffer holds before it spills.
+	 */
+	private final int runLongs;
+
+	/**
+	 * a constructer for an enumerator.
+	 * @param width number of columns
+	 * @param winLength number of connected tokens needed to win
+	 * @param dir directory the frontier files are written to
+	 * @param runLongs keys held on the heap before they spill to a sorted run
+	 */
+	public ReachablePositions(int width, int winLength, Path dir, int runLongs) {
+		if (runLongs < 1) {
+			throw new IllegalArgumentException("Runs need room for at least one key, not " + runLongs);
+		}
+		//checks the board size
+		new PowerConnectFour(width, winLength);
+		this.width = width;
+		this.winLength = winLength;
+		this.dir = dir;
+		this.runLongs = runLongs;
+	}
+
+	/**
+	 * Counts for one depth.
+	 */
+	public static final class Level {
+
+		/**
+		 * plies from the empty board.
+		 */
+		private final int depth;
+
+		/**
+		 * positions, mirror images counted once.
+		 */
+		private final long positions;
+
+		/**
+		 * positions, mirror images counted apart.
+		 */
+		private final long withMirrors;
+
+		/**
+		 * positions someone has won.
+		 */
+		private final long won;
+
+		/**
+		 * sorted runs spilled while making this depth.
+		 */
+		private final int runs;
+
+		/**
+		 * a constructer for the counts of a depth.
+		 * @param depth plies from the empty board
+		 * @param positions positions, mirror images counted once
+		 * @param withMirrors positions, mirror images counted apart
+		 * @param won positions someone has won
+		 * @param runs sorted runs spilled while making the depth
+		 */
+		Level(int depth, long positions, long withMirrors, long won, int runs) {
+			this.depth = depth;
+			this.positions = positions;
+			this.withMirrors = withMirrors;
+			this.won = won;
+			this.runs = runs;
+		}
+
+		/**
+		 * getter for the depth.
+		 * @return plies from the empty board
+		 */
+		public int depth() {
+			return this.depth;
+		}
+
+		/**
+		 * getter for the number of positions.
+		 * @return positions first reached at this depth, mirror images counted once
+		 */
+		public long positions() {
+			return this.positions;
+		}
+
+		/**
+		 * getter for the number of positions with mirror images.
+		 * @return positions first reached at this depth, mirror images counted apart
+		 */
+		public long withMirrors() {
+			return this.withMirrors;
+		}
+
+		/**
+		 * getter for the number of won positions.
+		 * @return positions of this depth someone has connected in
+		 */
+		public long won() {
+			return this.won;
+		}
+
+		/**
+		 * getter for the number of runs.
+		 * @return sorted runs spilled while making this depth
+		 */
+		public int runs() {
+			return this.runs;
+		}
+	}
+
+	/**
+	 * Path of a frontier file.
+	 * @param dir directory of the files
+	 * @param depth the depth
+	 * @return the path
+	 */
+	public static Path frontierFile(Path dir, int depth) {
+		return dir.resolve(String.format("frontier-%02d.bin", depth));
+	}
+
+	/**
+	 * Enumerates every depth up to maxDepth and writes their frontier files.
+	 * @param maxDepth last depth
+	 * @return counts of each depth, by depth
+	 * @throws IOException if a file cannot be written or read
+	 */
+	public Level[] enumerate(int maxDepth) throws IOException {
+		if (maxDepth < 0 || 2 * maxDepth + this.width + 1 > 63) {
+			throw new IllegalArgumentException("Depth " + maxDepth + " does not fit a key for width " + this.width);
+		}
+		Files.createDirectories(this.dir);
+		try (Writer out = new Writer(frontierFile(this.dir, 0), this.width, this.winLength, 0)) {
+			out.write(key(new PowerConnectFour(this.width, this.winLength)));
+		}
+		Level[] levels = new Level[maxDepth + 1];
+		int runs = 0;
+		for (int depth = 0; depth <= maxDepth; ++depth) {
+			List<Path> spilled = new ArrayList<>();
+			long[] counts = expand(depth, depth < maxDepth ? spilled : null);
+			try (Frontier frontier = Frontier.open(frontierFile(this.dir, depth))) {
+				levels[depth] = new Level(depth, frontier.count(), counts[0], counts[1], runs);
+			}
+			if (depth < maxDepth) {
+				merge(spilled, depth + 1);
+				runs = spilled.size();
+			}
+		}
+		return levels;
+	}
+
+	/**
+	 * Reads a frontier, counts its positions and spills the positions one
+	 * move on into sorted runs.
+	 * @param depth depth of the frontier
+	 * @param runs where the run files are listed, null to only count
+	 * @return positions with mirror images counted apart, and positions someone has won
+	 * @throws IOException if a file cannot be read or written
+	 */
+	private long[] expand(int depth, List<Path> runs) throws IOException {
+		PowerConnectFour game = new PowerConnectFour(this.width, this.winLength);
+		long[] buffer = runs == null ? null : new long[this.runLongs];
+		int buffered = 0;
+		int[] moves = new int[game.maxLegalMoves() + 2 * depth];
+		long withMirrors = 0;
+		long won = 0;
+		try (Frontier frontier = Frontier.open(frontierFile(this.dir, depth))) {
+			while (frontier.hasNext()) {
+				long key = frontier.next();
+				decode(key, game);
+				withMirrors += encode(game, false) == encode(game, true) ? 1 : 2;
+				if (Searcher.terminalScore(game, 0) != 0) {
+					++won;
+					continue;
+				}
+				if (runs == null) {
+					continue;
+				}
+				int n = game.legalMoves(moves);
+				for (int i = 0; i < n; ++i) {
+					game.apply(moves[i]);
+					buffer[buffered++] = key(game);
+					game.undo(moves[i]);
+					if (buffered == buffer.length) {
+						runs.add(spill(buffer, buffered, depth + 1, runs.size()));
+						buffered = 0;
+					}
+				}
+			}
+		}
+		if (runs != null && buffered > 0) {
+			runs.add(spill(buffer, buffered, depth + 1, runs.size()));
+		}
+		return new long[] {withMirrors, won};
+	}
+
+	/**
+	 * Sorts the buffer and writes its distinct keys to a run file.
+	 * @param buffer the keys
+	 * @param length number of keys in the buffer
+	 * @param depth depth the keys are for
+	 * @param index number of the run
+	 * @return the run file
+	 * @throws IOException if the file cannot be written
+	 */
+	private Path spill(long[] buffer, int length, int depth, int index) throws IOException {
+		Arrays.sort(buffer, 0, length);
+		Path run = this.dir.resolve(String.format("run-%02d-%d.tmp", depth, index));
+		try (Writer out = new Writer(run, this.width, this.winLength, depth)) {
+			for (int i = 0; i < length; ++i) {
+				if (i == 0 || buffer[i] != buffer[i - 1]) {
+					out.write(buffer[i]);
+				}
+			}
+		}
+		return run;
+	}
+
+	/**
+	 * One sorted file being read in a merge.
+	 */
+	private static final class Head {
+
+		/**
+		 * the file.
+		 */
+		private final Frontier frontier;
+
+		/**
+		 * the key the file is at.
+		 */
+		private long key;
+
+		/**
+		 * a constructer for a file at its first key.
+		 * @param frontier the file, with at least one key
+		 * @throws IOException if the file cannot be read
+		 */
+		Head(Frontier frontier) throws IOException {
+			this.frontier = frontier;
+			this.key = frontier.next();
+		}
+	}
+
+	/**
+	 * Merges the runs of a depth into its frontier file, at most MERGE_WAYS
+	 * at a time, and deletes the runs.
+	 * @param runs the run files
+	 * @param depth the depth
+	 * @throws IOException if a file cannot be read or written
+	 */
+	private void merge(List<Path> runs, int depth) throws IOException {
+		for (int pass = 0; runs.size() > MERGE_WAYS; ++pass) {
+			List<Path> merged = new ArrayList<>();
+			for (int i = 0; i < runs.size(); i += MERGE_WAYS) {
+				Path run = this.dir.resolve(String.format("run-%02d-%d-%d.tmp", depth, pass, merged.size()));
+				mergeInto(runs.subList(i, Math.min(runs.size(), i + MERGE_WAYS)), run, depth, false);
+				merged.add(run);
+			}
+			runs = merged;
+		}
+		mergeInto(runs, frontierFile(this.dir, depth), depth, true);
+	}
+
+	/**
+	 * Merges sorted runs into one sorted file of distinct keys, and deletes
+	 * the runs. For a frontier, keys that are in a frontier of an earlier
+	 * depth are left out; only depths of the same parity are looked at, the
+	 * player to move is part of the key.
+	 * @param runs the run files
+	 * @param file the file to write
+	 * @param depth the depth
+	 * @param frontier whether the file is the depth's frontier
+	 * @throws IOException if a file cannot be read or written
+	 */
+	private void mergeInto(List<Path> runs, Path file, int depth, boolean frontier) throws IOException {
+		PriorityQueue<Head> queue = new PriorityQueue<>((a, b) -> Long.compare(a.key, b.key));
+		List<Frontier> open = new ArrayList<>();
+		List<Head> earlier = new ArrayList<>();
+		try (Writer out = new Writer(file, this.width, this.winLength, depth)) {
+			for (Path run : runs) {
+				Frontier f = Frontier.open(run);
+				open.add(f);
+				if (f.hasNext()) {
+					queue.add(new Head(f));
+				}
+			}
+			for (int d = depth - 2; frontier && d >= 0; d -= 2) {
+				Frontier f = Frontier.open(frontierFile(this.dir, d));
+				open.add(f);
+				if (f.hasNext()) {
+					earlier.add(new Head(f));
+				}
+			}
+			long last = -1;
+			while (!queue.isEmpty()) {
+				Head head = queue.poll();
+				long key = head.key;
+				if (head.frontier.hasNext()) {
+					head.key = head.frontier.next();
+					queue.add(head);
+				}
+				if (key == last) {
+					continue;
+				}
+				last = key;
+				if (!seen(earlier, key)) {
+					out.write(key);
+				}
+			}
+		}
+		finally {
+			for (Frontier f : open) {
+				f.close();
+			}
+			for (Path run : runs) {
+				Files.deleteIfExists(run);
+			}
+		}
+	}
+
+	/**
+	 * Whether a key is in one of the earlier frontiers. Keys must be asked
+	 * for in increasing order.
+	 * @param earlier the earlier frontiers
+	 * @param key the key
+	 * @return whether it was found
+	 * @throws IOException if a file cannot be read
+	 */
+	private static boolean seen(List<Head> earlier, long key) throws IOException {
+		for (int i = 0; i < earlier.size(); ++i) {
+			Head head = earlier.get(i);
+			while (head.key < key && head.frontier.hasNext()) {
+				head.key = head.frontier.next();
+			}
+			if (head.key == key) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Canonical key of a position: the smaller of its key and its mirror's.
+	 * @param game the position, left as it was
+	 * @return the key
+	 */
+	public static long key(PowerConnectFour game) {
+		return Math.min(encode(game, false), encode(game, true));
+	}
+
+	/**
+	 * Key of a position as it stands or mirrored.
+	 * @param game the position
+	 * @param mirrored whether to read the columns right to left
+	 * @return the key
+	 */
+	private static long encode(PowerConnectFour game, boolean mirrored) {
+		int width = game.sizeCol();
+		long key = 0;
+		int bits = 0;
+		for (int i = width - 1; i >= 0; --i) {
+			Column<Token> column = game.getColumn(mirrored ? width - 1 - i : i);
+			int height = column.size();
+			long tokens = 0;
+			for (int row = height - 1; row >= 0; --row) {
+				tokens = tokens << 1 | (column.get(row) == Token.YELLOW ? 1 : 0);
+			}
+			//height in unary below the tokens, then everything to the right above that
+			key = (key << height | tokens) << (height + 1) | ((1L << height) - 1);
+			bits += 2 * height + 1;
+		}
+		if (bits + 1 > 63) {
+			throw new IllegalArgumentException("Position has too many tokens for a key: " + game.tokenCount());
+		}
+		return key << 1 | (game.currentPlayer() == Token.YELLOW ? 1 : 0);
+	}
+
+	/**
+	 * Sets up a board from a key.
+	 * @param key the key
+	 * @param game board of the key's width, replaced by the position
+	 */
+	public static void decode(long key, PowerConnectFour game) {
+		Token toMove = (key & 1) != 0 ? Token.YELLOW : Token.RED;
+		key >>>= 1;
+		Token[][] columns = new Token[game.sizeCol()][];
+		for (int col = 0; col < columns.length; ++col) {
+			int height = Long.numberOfTrailingZeros(~key);
+			key >>>= height + 1;
+			columns[col] = new Token[height];
+			for (int row = 0; row < height; ++row) {
+				columns[col][row] = (key >>> row & 1) != 0 ? Token.YELLOW : Token.RED;
+			}
+			key >>>= height;
+		}
+		if (key != 0) {
+			throw new IllegalArgumentException("Key has more columns than the board");
+		}
+		game.load(columns, toMove);
+	}
+
+	/**
+	 * A frontier or run file read in order through mapped windows.
+	 */
+	public static final class Frontier implements Closeable {
+
+		/**
+		 * the open file.
+		 */
+		private final FileChannel channel;
+
+		/**
+		 * number of columns of the positions.
+		 */
+		private final int width;
+
+		/**
+		 * win length of the positions.
+		 */
+		private final int winLength;
+
+		/**
+		 * depth of the positions.
+		 */
+		private final int depth;
+
+		/**
+		 * number of keys.
+		 */
+		private final long count;
+
+		/**
+		 * keys read so far.
+		 */
+		private long read = 0;
+
+		/**
+		 * the mapped window.
+		 */
+		private MappedByteBuffer window;
+
+		/**
+		 * a constructer for a file at its first key.
+		 * @param channel the open file
+		 * @throws IOException if the header cannot be read
+		 */
+		private Frontier(FileChannel channel) throws IOException {
+			this.channel = channel;
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+			while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+				continue;
+			}
+			if (header.hasRemaining() || header.getLong(0) != MAGIC) {
+				throw new IOException("Not a frontier file");
+			}
+			this.width = header.getInt(8);
+			this.winLength = header.getInt(12);
+			this.depth = header.getInt(16);
+			this.count = header.getLong(24);
+			if (channel.size() != HEADER_BYTES + this.count * Long.BYTES) {
+				throw new IOException("Frontier file should hold " + this.count + " keys");
+			}
+		}
+
+		/**
+		 * Opens a frontier file.
+		 * @param file the file
+		 * @return the frontier, at its first key
+		 * @throws IOException if the file cannot be opened or is not a frontier
+		 */
+		public static Frontier open(Path file) throws IOException {
+			FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+			try {
+				return new Frontier(channel);
+			}
+			catch (IOException e) {
+				channel.close();
+				throw e;
+			}
+		}
+
+		/**
+		 * getter for the width.
+		 * @return number of columns of the positions
+		 */
+		public int width() {
+			return this.width;
+		}
+
+		/**
+		 * getter for the win length.
+		 * @return win length of the positions
+		 */
+		public int winLength() {
+			return this.winLength;
+		}
+
+		/**
+		 * getter for the depth.
+		 * @return plies from the empty board
+		 */
+		public int depth() {
+			return this.depth;
+		}
+
+		/**
+		 * getter for the number of keys.
+		 * @return number of positions in the file
+		 */
+		public long count() {
+			return this.count;
+		}
+
+		/**
+		 * Checks whether there are keys left.
+		 * @return whether next can be called
+		 */
+		public boolean hasNext() {
+			return this.read < this.count;
+		}
+
+		/**
+		 * Reads the next key, in increasing order.
+		 * @return the key
+		 * @throws IOException if the file cannot be mapped
+		 */
+		public long next() throws IOException {
+			if (!hasNext()) {
+				throw new IndexOutOfBoundsException("Index: " + this.read + " out of bounds!");
+			}
+			if (this.window == null || !this.window.hasRemaining()) {
+				long at = HEADER_BYTES + this.read * Long.BYTES;
+				long length = Math.min(WINDOW_BYTES, (this.count - this.read) * Long.BYTES);
+				this.window = this.channel.map(FileChannel.MapMode.READ_ONLY, at, length);
+			}
+			++this.read;
+			return this.window.getLong();
+		}
+
+		/**
+		 * Closes the file.
+		 * @throws IOException if it cannot be closed
+		 */
+		@Override
+		public void close() throws IOException {
+			this.window = null;
+			this.channel.close();
+		}
+	}
+
+	/**
+	 * Writes keys after a header through an off-heap buffer.
+	 */
+	private static final class Writer implements Closeable {
+
+		/**
+		 * the open file.
+		 */
+		private final FileChannel channel;
+
+		/**
+		 * keys not written yet.
+		 */
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BYTES);
+
+		/**
+		 * number of keys written.
+		 */
+		private long count = 0;
+
+		/**
+		 * a constructer for a new file, replacing an old one.
+		 * @param file the file
+		 * @param width number of columns of the positions
+		 * @param winLength win length of the positions
+		 * @param depth depth of the positions
+		 * @throws IOException if the file cannot be created
+		 */
+		Writer(Path file, int width, int winLength, int depth) throws IOException {
+			this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.WRITE);
+			this.buffer.putLong(MAGIC).putInt(width).putInt(winLength).putInt(depth).putInt(0).putLong(0);
+		}
+
+		/**
+		 * Adds a key.
+		 * @param key the key
+		 * @throws IOException if the file cannot be written
+		 */
+		void write(long key) throws IOException {
+			if (!this.buffer.hasRemaining()) {
+				flush();
+			}
+			this.buffer.putLong(key);
+			++this.count;
+		}
+
+		/**
+		 * Writes out the buffer.
+		 * @throws IOException if the file cannot be written
+		 */
+		private void flush() throws IOException {
+			this.buffer.flip();
+			while (this.buffer.hasRemaining()) {
+				this.channel.write(this.buffer);
+			}
+			this.buffer.clear();
+		}
+
+		/**
+		 * Writes out what is left and the count, and closes the file.
+		 * @throws IOException if the file cannot be written
+		 */
+		@Override
+		public void close() throws IOException {
+			try {
+				flush();
+				this.buffer.putLong(this.count).flip();
+				this.channel.write(this.buffer, 24);
+			}
+			finally {
+				this.channel.close();
+			}
+		}
+	}
+
+	/**
+	 * Enumerates positions and prints the counts, or with no arguments
+	 * checks the enumeration.
+	 * @param args command line args, see the class comment
+	 * @throws IOException if a file cannot be written or read
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0) {
+			check();
+			return;
+		}
+		if (args.length < 2) {
+			System.out.println("Usage: java ReachablePositions dir depth [-w width] [-n winLength] [-r runLongs]");
+			System.exit(0);
+		}
+		Path dir = Path.of(args[0]);
+		int depth = Integer.parseInt(args[1]);
+		int width = PowerConnectFour.DEFAULT_NUM_COLS;
+		int winLength = PowerConnectFour.DEFAULT_WIN_LENGTH;
+		int runLongs = DEFAULT_RUN_LONGS;
+		for (int i = 2; i < args.length; ++i) {
+			switch (args[i]) {
+				case "-w":
+					width = Integer.parseInt(args[++i]);
+					break;
+				case "-n":
+					winLength = Integer.parseInt(args[++i]);
+					break;
+				case "-r":
+					runLongs = Integer.parseInt(args[++i]);
+					break;
+				default:
+					System.out.println("Unknown option: " + args[i]);
+					System.exit(1);
+			}
+		}
+		long start = System.nanoTime();
+		Level[] levels = new ReachablePositions(width, winLength, dir, runLongs).enumerate(depth);
+		System.out.println("depth  positions  with mirrors  won  runs");
+		for (Level level : levels) {
+			System.out.format("%d  %d  %d  %d  %d%n", level.depth(), level.positions(), level.withMirrors(),
+				level.won(), level.runs());
+		}
+		System.out.format("%d ms%n", (System.nanoTime() - start) / 1000000);
+	}
+
+	//******************************************************
+	//*******     BELOW THIS LINE IS TESTING CODE    *******
+	//******************************************************
+
+	/**
+	 * Checks the enumeration against one done on the heap.
+	 * @throws IOException if a file cannot be written or read
+	 */
+	private static void check() throws IOException {
+		Path dir = Files.createTempDirectory("reachable");
+		try {
+			//tiny runs spill many times and merge in passes, the counts must not care
+			int depth = 5;
+			Level[] levels = new ReachablePositions(5, 3, dir, 16).enumerate(depth);
+			long[][] expected = onHeap(5, 3, depth);
+			boolean same = levels[depth].runs() > MERGE_WAYS;
+			for (int d = 0; d <= depth; ++d) {
+				same = same && levels[d].positions() == expected[0][d] && levels[d].withMirrors() == expected[1][d]
+					&& levels[d].won() == expected[2][d];
+			}
+			if (same && levels[1].positions() == 3 && levels[1].withMirrors() == 5 && levels[5].won() > 0) {
+				System.out.println("Yay 1");
+			}
+
+			//keys come back as the same position, mirrors share a key
+			java.util.Random random = new java.util.Random(48);
+			PowerConnectFour game = new PowerConnectFour(7, 4);
+			PowerConnectFour back = new PowerConnectFour(7, 4);
+			int[] moves = new int[256];
+			boolean keys = true;
+			for (int g = 0; g < 200; ++g) {
+				game.reset();
+				for (int ply = random.nextInt(20); ply > 0; --ply) {
+					game.apply(moves[random.nextInt(game.legalMoves(moves))]);
+				}
+				long key = encode(game, false);
+				decode(key, back);
+				Token[][] mirrored = new Token[7][];
+				for (int col = 0; col < 7; ++col) {
+					Column<Token> column = game.getColumn(col);
+					mirrored[6 - col] = new Token[column.size()];
+					for (int row = 0; row < column.size(); ++row) {
+						mirrored[6 - col][row] = column.get(row);
+					}
+				}
+				PowerConnectFour mirror = new PowerConnectFour(7, 4);
+				mirror.load(mirrored, game.currentPlayer());
+				keys = keys && back.positionHash() == game.positionHash() && key(mirror) == key(game);
+			}
+			if (keys) {
+				System.out.println("Yay 2");
+			}
+
+			//frontier files are sorted and hold what they say, the runs are gone
+			boolean files = true;
+			for (int d = 0; d <= depth; ++d) {
+				try (Frontier f = Frontier.open(frontierFile(dir, d))) {
+					files = files && f.depth() == d && f.width() == 5 && f.winLength() == 3;
+					long last = -1;
+					PowerConnectFour position = new PowerConnectFour(5, 3);
+					while (f.hasNext()) {
+						long key = f.next();
+						decode(key, position);
+						files = files && key > last && position.tokenCount() <= d
+							&& position.currentPlayer() == (d % 2 == 0 ? Token.RED : Token.YELLOW);
+						last = key;
+					}
+				}
+			}
+			try (java.util.stream.Stream<Path> left = Files.list(dir)) {
+				files = files && left.count() == depth + 1;
+			}
+			if (files) {
+				System.out.println("Yay 3");
+			}
+		}
+		finally {
+			try (java.util.stream.Stream<Path> left = Files.list(dir)) {
+				for (Path p : (Iterable<Path>) left::iterator) {
+					Files.deleteIfExists(p);
+				}
+			}
+			Files.deleteIfExists(dir);
+		}
+	}
+
+	/**
+	 * The same enumeration with hash sets on the heap.
+	 * @param width number of columns
+	 * @param winLength number of connected tokens needed to win
+	 * @param depth last depth
+	 * @return positions, positions with mirrors and won positions, each by depth
+	 */
+	private static long[][] onHeap(int width, int winLength, int depth) {
+		long[][] counts = new long[3][depth + 1];
+		List<java.util.Set<Long>> levels = new ArrayList<>();
+		java.util.Set<Long> frontier = new java.util.HashSet<>();
+		PowerConnectFour game = new PowerConnectFour(width, winLength);
+		frontier.add(encode(game, false));
+		int[] moves = new int[256];
+		for (int d = 0; d <= depth; ++d) {
+			levels.add(frontier);
+			java.util.Set<Long> next = new java.util.HashSet<>();
+			java.util.Set<Long> canonical = new java.util.HashSet<>();
+			for (long key : frontier) {
+				decode(key, game);
+				canonical.add(key(game));
+				if (Searcher.terminalScore(game, 0) != 0) {
+					continue;
+				}
+				for (int i = 0, n = game.legalMoves(moves); i < n; ++i) {
+					game.apply(moves[i]);
+					next.add(encode(game, false));
+					game.undo(moves[i]);
+				}
+			}
+			counts[0][d] = canonical.size();
+			counts[1][d] = frontier.size();
+			for (long key : canonical) {
+				decode(key, game);
+				counts[2][d] += Searcher.terminalScore(game, 0) != 0 ? 1 : 0;
+			}
+			for (java.util.Set<Long> earlier : levels) {
+				next.removeAll(earlier);
+			}
+			frontier = next;
+		}
+		return counts;
+	}
+}
@@ -0,0 +1,309 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ *  A recorded game that can be jumped around in. Keeps the move log as
+ *  packed moves (see Move) and a compact snapshot (see PositionCodec) of
+ *  the board every interval moves, so any move number is reached by loading
+ *  the nearest snapshot at or before it and replaying fewer than interval
+ *  moves. Short steps backward take moves back with undo instead, which
+ *  costs the same or less. Tall boards and long games seek in bounded time
+ *  instead of replaying from the start.
+ *  @author Adam David
+ */
+public class ReplayIndex {
+
+	/**
+	 * interval used when none is given.
+	 */
+	public static final int DEFAULT_INTERVAL = 64;
+
+	/**
+	 * number of moves between snapshots.
+	 */
+	private final int interval;
+
+	/**
+	 * number of connected tokens needed to win.
+	 */
+	private final int winLength;
+
+	/**
+	 * the move log, packed moves.
+	 */
+	private int[] moves = new int[64];
+
+	/**
+	 * number of moves in the log.
+	 */
+	private int moveCount = 0;
+
+	/**
+	 * snapshot i is the position after i * interval moves.
+	 */
+	private byte[][] snapshots = new byte[8][];
+
+	/**
+	 * number of snapshots taken.
+	 */
+	private int snapshotCount = 0;
+
+	/**
+	 * position after every move of the log, where new moves are recorded.
+	 */
+	private final PowerConnectFour tail;
+
+	/**
+	 * position being viewed.
+	 */
+	private final PowerConnectFour view;
+
+	/**
+	 * number of moves of the log applied to the view.
+	 */
+	private int position = 0;
+
+	/**
+	 * a constructer for an empty replay from the empty board.
+	 * @param numCols number of columns
+	 * @param winLength number of connected tokens needed to win
+	 * @param interval number of moves between snapshots, at least 1
+	 */
+	public ReplayIndex(int numCols, int winLength, int interval) {
+		if (interval < 1) {
+			throw new IllegalArgumentException("Interval must be at least 1");
+		}
+		this.interval = interval;
+		this.winLength = winLength;
+		this.tail = new PowerConnectFour(numCols, winLength);
+		this.view = new PowerConnectFour(numCols, winLength);
+		this.snapshots[this.snapshotCount++] = PositionCodec.toBytes(this.tail);
+	}
+
+	/**
+	 * a constructer for an empty replay of the classic board.
+	 */
+	public ReplayIndex() {
+		this(PowerConnectFour.DEFAULT_NUM_COLS, PowerConnectFour.DEFAULT_WIN_LENGTH, DEFAULT_INTERVAL);
+	}
+
+	/**
+	 * getter for the interval.
+	 * @return number of moves between snapshots
+	 */
+	public int interval() {
+		return this.interval;
+	}
+
+	/**
+	 * getter for the length of the log.
+	 * @return number of moves recorded
+	 */
+	public int size() {
+		return this.moveCount;
+	}
+
+	/**
+	 * getter for the view position.
+	 * @return number of moves applied to the view
+	 */
+	public int position() {
+		return this.position;
+	}
+
+	/**
+	 * getter for a recorded move.
+	 * @param moveNumber index of the move, starting at 0
+	 * @return the packed move
+	 */
+	public int moveAt(int moveNumber) {
+		if (moveNumber < 0 || moveNumber >= this.moveCount) {
+			throw new IndexOutOfBoundsException("Index: " + moveNumber + ", Size: " + this.moveCount);
+		}
+		return this.moves[moveNumber];
+	}
+
+	/**
+	 * The board at the view position. It belongs to the index, so change it
+	 * only through seek and the steps; copy it to play on from there.
+	 * @return the viewed board
+	 */
+	public PowerConnectFour view() {
+		return this.view;
+	}
+
+	/**
+	 * Adds a move to the end of the log. The view does not move.
+	 * @param move packed move
+	 * @return boolean if the move was legal at the end of the log
+	 */
+	public boolean record(int move) {
+		if (!this.tail.apply(move)) {
+			return false;
+		}
+		if (this.moveCount == this.moves.length) {
+			this.moves = Arrays.copyOf(this.moves, this.moveCount * 2);
+		}
+		this.moves[this.moveCount++] = move;
+		if (this.moveCount % this.interval == 0) {
+			if (this.snapshotCount == this.snapshots.length) {
+				this.snapshots = Arrays.copyOf(this.snapshots, this.snapshotCount * 2);
+			}
+			this.snapshots[this.snapshotCount++] = PositionCodec.toBytes(this.tail);
+		}
+		return true;
+	}
+
+	/**
+	 * Moves the view to the position after the given number of moves,
+	 * applying or taking back fewer than interval moves.
+	 * @param moveNumber number of moves, 0 to size()
+	 * @return the viewed board
+	 */
+	public PowerConnectFour seek(int moveNumber) {
+		if (moveNumber < 0 || moveNumber > this.moveCount) {
+			throw new IndexOutOfBoundsException("Index: " + moveNumber + ", Size: " + this.moveCount);
+		}
+		int snapshot = moveNumber / this.interval;
+		int fromSnapshot = moveNumber - snapshot * this.interval;
+		int distance = Math.abs(moveNumber - this.position);
+		if (distance > fromSnapshot) {
+			PositionCodec.loadBytes(this.snapshots[snapshot], this.view);
+			this.position = snapshot * this.interval;
+		}
+		while (this.position > moveNumber) {
+			this.view.undo(this.moves[--this.position]);
+		}
+		while (this.position < moveNumber) {
+			this.view.apply(this.moves[this.position++]);
+		}
+		return this.view;
+	}
+
+	/**
+	 * Moves the view one move forward, if there is one.
+	 * @return the viewed board
+	 */
+	public PowerConnectFour stepForward() {
+		return seek(Math.min(this.position + 1, this.moveCount));
+	}
+
+	/**
+	 * Moves the view one move back, if there is one.
+	 * @return the viewed board
+	 */
+	public PowerConnectFour stepBack() {
+		return seek(Math.max(this.position - 1, 0));
+	}
+
+	/**
+	 * Writes the log and the snapshots.
+	 * @param out stream to write to
+	 * @throws IOException if the stream fails
+	 */
+	public void writeTo(DataOutputStream out) throws IOException {
+		out.writeInt(this.tail.sizeCol());
+		out.writeInt(this.winLength);
+		out.writeInt(this.interval);
+		out.writeInt(this.moveCount);
+		for (int i = 0; i < this.moveCount; ++i) {
+			out.writeInt(this.moves[i]);
+		}
+		out.writeInt(this.snapshotCount);
+		for (int i = 0; i < this.snapshotCount; ++i) {
+			out.writeInt(this.snapshots[i].length);
+			out.write(this.snapshots[i]);
+		}
+	}
+
+	/**
+	 * Reads a replay written by writeTo. The snapshots are taken as written,
+	 * the end of the log is rebuilt from the last one.
+	 * @param in stream to read from
+	 * @return the replay, viewing the empty board
+	 * @throws IOException if the stream fails
+	 */
+	public static ReplayIndex readFrom(DataInputStream in) throws IOException {
+		ReplayIndex replay = new ReplayIndex(in.readInt(), in.readInt(), in.readInt());
+		int count = in.readInt();
+		replay.moves = new int[Math.max(count, 64)];
+		for (int i = 0; i < count; ++i) {
+			replay.moves[i] = in.readInt();
+		}
+		replay.moveCount = count;
+		int snapshotCount = in.readInt();
+		if (snapshotCount != count / replay.interval + 1) {
+			throw new IOException("Expected " + (count / replay.interval + 1) + " snapshots, got " + snapshotCount);
+		}
+		replay.snapshots = new byte[snapshotCount][];
+		for (int i = 0; i < snapshotCount; ++i) {
+			replay.snapshots[i] = new byte[in.readInt()];
+			in.readFully(replay.snapshots[i]);
+		}
+		replay.snapshotCount = snapshotCount;
+		PositionCodec.loadBytes(replay.snapshots[snapshotCount - 1], replay.tail);
+		for (int i = (snapshotCount - 1) * replay.interval; i < count; ++i) {
+			replay.tail.apply(replay.moves[i]);
+		}
+		return replay;
+	}
+
+	//******************************************************
+	//*******     BELOW THIS LINE IS TESTING CODE    *******
+	//******************************************************
+
+	/**
+	 * Main is testing seeks against replaying from the start.
+	 * @param args takes in command line arguements
+	 * @throws IOException never, the stream is in memory
+	 */
+	public static void main(String[] args) throws IOException {
+		java.util.Random random = new java.util.Random(33);
+		ReplayIndex replay = new ReplayIndex(7, 4, 16);
+		PowerConnectFour game = new PowerConnectFour(7, 4);
+		int[] buffer = new int[16];
+		long[] hashes = new long[2001];
+		hashes[0] = game.positionHash();
+		//a long game that keeps going after someone connects
+		while (replay.size() < 2000) {
+			if (buffer.length < game.maxLegalMoves()) {
+				buffer = new int[game.maxLegalMoves() * 2];
+			}
+			int move = buffer[random.nextInt(game.legalMoves(buffer))];
+			game.apply(move);
+			replay.record(move);
+			hashes[replay.size()] = game.positionHash();
+		}
+		boolean hashesMatch = true;
+		for (int i = 0; i < 500; ++i) {
+			int n = random.nextInt(2001);
+			hashesMatch = hashesMatch && replay.seek(n).positionHash() == hashes[n];
+		}
+		if (hashesMatch && replay.snapshotCount == 2000 / 16 + 1) {
+			System.out.println("Yay 1");
+		}
+
+		//walk the whole game backward one step at a time
+		replay.seek(2000);
+		boolean stepsMatch = true;
+		for (int n = 1999; n >= 0; --n) {
+			stepsMatch = stepsMatch && replay.stepBack().positionHash() == hashes[n];
+		}
+		if (stepsMatch && replay.position() == 0 && replay.stepBack().positionHash() == hashes[0]) {
+			System.out.println("Yay 2");
+		}
+
+		//a written replay reads back the same and keeps recording
+		java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+		replay.writeTo(new DataOutputStream(bytes));
+		ReplayIndex read = readFrom(new DataInputStream(new java.io.ByteArrayInputStream(bytes.toByteArray())));
+		int[] next = new int[game.maxLegalMoves()];
+		game.legalMoves(next);
+		if (read.size() == 2000 && read.seek(1234).positionHash() == hashes[1234]
+			&& read.record(next[0]) && !read.record(Move.pop(99))) {
+			System.out.println("Yay 3");
+		}
+	}
+}
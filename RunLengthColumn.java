@@ -0,0 +1,665 @@
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Run-length-encoded column for very tall columns of tokens.
+ * Tokens are stored as runs in one primitive array. Each run is packed into
+ * a long: the upper bits hold the index one past the end of the run (so
+ * the array is sorted and can be binary searched), the lowest byte holds
+ * the token code (0 for null, otherwise ordinal + 1).
+ * Memory and run lookups depend on the number of runs, not the height.
+ * @author Adam David
+ */
+public class RunLengthColumn extends Column<Token> {
+
+	/**
+	 * bits used for the token code of a run.
+	 */
+	private static final int CODE_BITS = 8;
+
+	/**
+	 * mask to read the token code of a run.
+	 */
+	private static final long CODE_MASK = (1L << CODE_BITS) - 1;
+
+	/**
+	 * tokens by code, code 0 is an empty cell.
+	 */
+	private static final Token[] TOKENS = tokenTable();
+
+	/**
+	 * underlying array of packed runs, bottom run first.
+	 */
+	private long[] runs;
+
+	/**
+	 * number of runs in use.
+	 */
+	private int runCount = 0;
+
+	/**
+	 * number of tokens stored.
+	 */
+	private int size = 0;
+
+	/**
+	 * a constructer for an empty run-length column.
+	 */
+	public RunLengthColumn() {
+		this(GrowthPolicy.DEFAULT);
+	}
+
+	/**
+	 * a constructer for an empty run-length column.
+	 * @param policy decides how the run array grows and shrinks
+	 */
+	public RunLengthColumn(GrowthPolicy policy) {
+		super(1, policy);
+		this.runs = new long[policy.minCapacity()];
+	}
+
+	/**
+	 * a constructer that encodes the tokens of another column.
+	 * @param source column to copy, left unchanged
+	 */
+	public RunLengthColumn(Column<Token> source) {
+		this(source.policy());
+		source.forEach(this::add);
+	}
+
+	/**
+	 * Counts the runs a column would need, without building anything.
+	 * Used to decide whether encoding a column is worth it.
+	 * @param column column to look at
+	 * @return the number of runs
+	 */
+	public static int countRuns(Column<Token> column) {
+		if (column instanceof RunLengthColumn) {
+			return ((RunLengthColumn) column).runCount;
+		}
+		int count = 0;
+		Token last = null;
+		for (int i = 0; i < column.size(); ++i) {
+			Token t = column.get(i);
+			if (i == 0 || t != last) {
+				++count;
+			}
+			last = t;
+		}
+		return count;
+	}
+
+	/**
+	 *  getter for size attribute.
+	 * 	@return the number of tokens
+	 */
+	@Override
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 *  getter for capacity attribute. For this column it is the number of
+	 *  runs that fit before the run array grows.
+	 * 	@return the run capacity
+	 */
+	@Override
+	public int capacity() {
+		return this.runs.length;
+	}
+
+	/**
+	 *  getter for the number of runs.
+	 * 	@return the number of runs in use
+	 */
+	public int runCount() {
+		return this.runCount;
+	}
+
+	/**
+	 * return a token, no alterations to structure.
+	 * @param index for the location of item
+	 * @return the token at index
+	 */
+	@Override
+	public Token get(int index) {
+		// O(log R) where R is the number of runs
+		if (index < 0 || index > size-1) {
+			throw new IndexOutOfBoundsException("Index: " + index + " out of bounds!");
+		}
+		return TOKENS[code(this.runs[find(index)])];
+	}
+
+	/**
+	 * replace one value with another.
+	 * @param index for the location of item
+	 * @param value to be replacing
+	 * @return the token removed
+	 */
+	@Override
+	public Token set(int index, Token value) {
+		Token old = get(index);
+		if (old != value) {
+			delete(index);
+			add(index, value);
+		}
+		return old;
+	}
+
+	/**
+	 * Add to end of list, extends the top run when the token matches.
+	 * @param value to be added
+	 */
+	@Override
+	public void add(Token value) {
+		// Amortized O(1)
+		int code = codeOf(value);
+		if (this.runCount > 0 && code(this.runs[this.runCount - 1]) == code) {
+			this.runs[this.runCount - 1] += 1L << CODE_BITS;
+		}
+		else {
+			insertRun(this.runCount, this.size + 1, code);
+		}
+		++this.size;
+	}
+
+	/**
+	 * Insert the given value at the given index, splitting or extending runs.
+	 * @param index for the location of item
+	 * @param value to be inserted
+	 */
+	@Override
+	public void add(int index, Token value) {
+		// O(R) where R is the number of runs
+		if (index < 0 || index > size) {
+			throw new IndexOutOfBoundsException("Index: " + index + " out of bounds!");
+		}
+		if (index == this.size) {
+			add(value);
+			return;
+		}
+		int code = codeOf(value);
+		int r = find(index);
+		int start = r == 0 ? 0 : end(this.runs[r - 1]);
+
+		if (code(this.runs[r]) == code) {
+			//grow the run that already holds the index
+			shiftEnds(r, 1);
+		}
+		else if (index == start && r > 0 && code(this.runs[r - 1]) == code) {
+			//grow the run right below
+			shiftEnds(r - 1, 1);
+		}
+		else if (index == start) {
+			//new run between two others
+			shiftEnds(r, 1);
+			insertRun(r, index + 1, code);
+		}
+		else {
+			//split the run in two around the new token
+			int oldCode = code(this.runs[r]);
+			shiftEnds(r, 1);
+			insertRun(r, index + 1, code);
+			insertRun(r, index, oldCode);
+		}
+		++this.size;
+	}
+
+	/**
+	 * removing a token, merges the runs on each side if they end up touching.
+	 * @param index for the location of item
+	 * @return the token removed
+	 */
+	@Override
+	public Token delete(int index) {
+		// O(R) where R is the number of runs
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + " out of bounds!");
+		}
+		int r = find(index);
+		Token element = TOKENS[code(this.runs[r])];
+		shiftEnds(r, -1);
+		--this.size;
+
+		int start = r == 0 ? 0 : end(this.runs[r - 1]);
+		if (end(this.runs[r]) == start) {
+			removeRun(r);
+			//the runs that were on each side may now hold the same token
+			if (r > 0 && r < this.runCount && code(this.runs[r - 1]) == code(this.runs[r])) {
+				removeRun(r - 1);
+			}
+		}
+
+		int shrunk = policy().shrink(this.runCount, this.runs.length);
+		if (shrunk < this.runs.length) {
+			resizeRuns(shrunk);
+		}
+		return element;
+	}
+
+	/**
+	 * Counts the tokens in the run holding the given index.
+	 * @param index for the location of item
+	 * @return the length of that run
+	 */
+	@Override
+	public int runLength(int index) {
+		// O(log R) where R is the number of runs
+		if (index < 0 || index > size-1) {
+			throw new IndexOutOfBoundsException("Index: " + index + " out of bounds!");
+		}
+		int r = find(index);
+		int start = r == 0 ? 0 : end(this.runs[r - 1]);
+		return end(this.runs[r]) - start;
+	}
+
+	/**
+	 * Inserts a slice of an array at the given index.
+	 * @param index for the location of the first inserted item
+	 * @param values array holding the items
+	 * @param offset first position of values to insert
+	 * @param length number of items to insert
+	 */
+	@Override
+	public void addAll(int index, Token[] values, int offset, int length) {
+		if (index < 0 || index > size) {
+			throw new IndexOutOfBoundsException("Index: " + index + " out of bounds!");
+		}
+		if (offset < 0 || length < 0 || offset > values.length - length) {
+			throw new IndexOutOfBoundsException("Range: " + offset + " to " + (offset + length) + " out of bounds!");
+		}
+		for (int i = 0; i < length; ++i) {
+			add(index + i, values[offset + i]);
+		}
+	}
+
+	/**
+	 * Appends every item of another column.
+	 * @param other column to copy from, left unchanged
+	 */
+	@Override
+	public void addAll(Column<? extends Token> other) {
+		other.forEach(this::add);
+	}
+
+	/**
+	 * Removes items from index from (inclusive) to index to (exclusive).
+	 * @param from first index to remove
+	 * @param to one past the last index to remove
+	 */
+	@Override
+	public void removeRange(int from, int to) {
+		checkRange(from, to);
+		for (int i = to - 1; i >= from; --i) {
+			delete(i);
+		}
+	}
+
+	/**
+	 * Copies items from index from (inclusive) to index to (exclusive) into
+	 * an array owned by the caller, one run at a time.
+	 * @param from first index to copy
+	 * @param to one past the last index to copy
+	 * @param dest array to copy into
+	 * @param destPos position in dest for the item at from
+	 */
+	@Override
+	public void copyRange(int from, int to, Object[] dest, int destPos) {
+		checkRange(from, to);
+		if (from == to) {
+			return;
+		}
+		int i = from;
+		int r = find(from);
+		while (i < to) {
+			int runEnd = Math.min(end(this.runs[r]), to);
+			Token t = TOKENS[code(this.runs[r])];
+			for (; i < runEnd; ++i) {
+				dest[destPos + i - from] = t;
+			}
+			++r;
+		}
+	}
+
+	/**
+	 * Runs the action on every item, bottom to top.
+	 * @param action to run on each item
+	 */
+	@Override
+	public void forEach(Consumer<? super Token> action) {
+		int i = 0;
+		for (int r = 0; r < this.runCount; ++r) {
+			Token t = TOKENS[code(this.runs[r])];
+			for (int runEnd = end(this.runs[r]); i < runEnd; ++i) {
+				action.accept(t);
+			}
+		}
+	}
+
+	/**
+	 * Iterator over the items, bottom to top.
+	 * @return iterator for the column
+	 */
+	@Override
+	public Iterator<Token> iterator() {
+		return new Iterator<Token>() {
+			private int next = 0;
+			private int run = 0;
+
+			public boolean hasNext() {
+				return this.next < size;
+			}
+
+			public Token next() {
+				if (this.next >= size) {
+					throw new NoSuchElementException();
+				}
+				while (end(runs[this.run]) <= this.next) {
+					++this.run;
+				}
+				++this.next;
+				return TOKENS[code(runs[this.run])];
+			}
+		};
+	}
+
+	/**
+	 * Sized spliterator over the items, splits by index in halves.
+	 * @return spliterator for the column
+	 */
+	@Override
+	public Spliterator<Token> spliterator() {
+		return new RunSpliterator(0, this.size);
+	}
+
+	/**
+	 * Shrinks the run array to the smallest capacity the policy allows.
+	 */
+	@Override
+	public void trimToSize() {
+		int trimmed = policy().trim(this.runCount);
+		if (trimmed < this.runs.length) {
+			resizeRuns(trimmed);
+		}
+	}
+
+	/**
+	 * Estimates the memory held by this column, including the small unused
+	 * array inherited from Column.
+	 * @return estimated bytes
+	 */
+	@Override
+	public long footprintBytes() {
+		// runs reference plus runCount and size ints on top of the Column fields
+		long self = align(OBJECT_HEADER_BYTES + 3 * REFERENCE_BYTES + 4 * Integer.BYTES);
+		return self + align(ARRAY_HEADER_BYTES + REFERENCE_BYTES)
+			+ align(ARRAY_HEADER_BYTES + (long) this.runs.length * Long.BYTES);
+	}
+
+	/**
+	 * Binary search for the run holding an index.
+	 * @param index a valid index
+	 * @return position of the run in runs
+	 */
+	private int find(int index) {
+		int lo = 0;
+		int hi = this.runCount - 1;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (end(this.runs[mid]) <= index) {
+				lo = mid + 1;
+			}
+			else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * Moves the end of every run from the given one upward.
+	 * @param from first run to change
+	 * @param delta amount to move the ends by
+	 */
+	private void shiftEnds(int from, int delta) {
+		long step = (long) delta << CODE_BITS;
+		for (int r = from; r < this.runCount; ++r) {
+			this.runs[r] += step;
+		}
+	}
+
+	/**
+	 * Inserts a run, growing the run array if needed.
+	 * @param r position of the new run
+	 * @param end index one past the end of the new run
+	 * @param code token code of the new run
+	 */
+	private void insertRun(int r, int end, int code) {
+		if (this.runCount == this.runs.length) {
+			resizeRuns(policy().grow(this.runs.length));
+		}
+		System.arraycopy(this.runs, r, this.runs, r + 1, this.runCount - r);
+		this.runs[r] = pack(end, code);
+		++this.runCount;
+	}
+
+	/**
+	 * Removes a run without touching the ends of the others.
+	 * @param r position of the run
+	 */
+	private void removeRun(int r) {
+		System.arraycopy(this.runs, r + 1, this.runs, r, this.runCount - r - 1);
+		--this.runCount;
+	}
+
+	/**
+	 * Moves the runs into a new array of the given capacity.
+	 * @param newCapacity length of the new array, at least runCount
+	 */
+	private void resizeRuns(int newCapacity) {
+		EngineEvents.ColumnResized event = EngineEvents.resizeStarted();
+		int oldCapacity = this.runs.length;
+		long[] temp = new long[newCapacity];
+		System.arraycopy(this.runs, 0, temp, 0, this.runCount);
+		this.runs = temp;
+		EngineEvents.resized(event, oldCapacity, newCapacity, this.runCount, true);
+	}
+
+	/**
+	 * Checks a from/to index pair against the items stored.
+	 * @param from first index
+	 * @param to one past the last index
+	 */
+	private void checkRange(int from, int to) {
+		if (from < 0 || to > this.size || from > to) {
+			throw new IndexOutOfBoundsException("Range: " + from + " to " + to + " out of bounds!");
+		}
+	}
+
+	/**
+	 * Packs a run.
+	 * @param end index one past the end of the run
+	 * @param code token code
+	 * @return packed run
+	 */
+	private static long pack(int end, int code) {
+		return ((long) end << CODE_BITS) | code;
+	}
+
+	/**
+	 * Reads the end of a packed run.
+	 * @param run packed run
+	 * @return index one past the end of the run
+	 */
+	private static int end(long run) {
+		return (int) (run >>> CODE_BITS);
+	}
+
+	/**
+	 * Reads the token code of a packed run.
+	 * @param run packed run
+	 * @return token code
+	 */
+	private static int code(long run) {
+		return (int) (run & CODE_MASK);
+	}
+
+	/**
+	 * Turns a token into its code.
+	 * @param value token or null
+	 * @return token code
+	 */
+	private static int codeOf(Token value) {
+		return value == null ? 0 : value.ordinal() + 1;
+	}
+
+	/**
+	 * Builds the code to token table.
+	 * @return tokens by code
+	 */
+	private static Token[] tokenTable() {
+		Token[] values = Token.values();
+		Token[] table = new Token[values.length + 1];
+		System.arraycopy(values, 0, table, 1, values.length);
+		return table;
+	}
+
+	/**
+	 * Spliterator over an index range of the column.
+	 */
+	private final class RunSpliterator implements Spliterator<Token> {
+
+		/**
+		 * next index to hand out.
+		 */
+		private int index;
+
+		/**
+		 * one past the last index to hand out.
+		 */
+		private final int fence;
+
+		/**
+		 * a constructer for an index range.
+		 * @param origin first index
+		 * @param fence one past the last index
+		 */
+		RunSpliterator(int origin, int fence) {
+			this.index = origin;
+			this.fence = fence;
+		}
+
+		@Override
+		public Spliterator<Token> trySplit() {
+			int lo = this.index;
+			int mid = (lo + this.fence) >>> 1;
+			if (lo >= mid) {
+				return null;
+			}
+			this.index = mid;
+			return new RunSpliterator(lo, mid);
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super Token> action) {
+			if (this.index < this.fence) {
+				action.accept(get(this.index++));
+				return true;
+			}
+			return false;
+		}
+
+		@Override
+		public void forEachRemaining(Consumer<? super Token> action) {
+			int i = this.index;
+			int hi = this.fence;
+			this.index = hi;
+			if (i >= hi) {
+				return;
+			}
+			for (int r = find(i); i < hi; ++r) {
+				Token t = TOKENS[code(runs[r])];
+				for (int runEnd = Math.min(end(runs[r]), hi); i < runEnd; ++i) {
+					action.accept(t);
+				}
+			}
+		}
+
+		@Override
+		public long estimateSize() {
+			return this.fence - this.index;
+		}
+
+		@Override
+		public int characteristics() {
+			return Spliterator.ORDERED | Spliterator.SIZED | Spliterator.SUBSIZED;
+		}
+	}
+
+	//******************************************************
+	//*******     BELOW THIS LINE IS TESTING CODE    *******
+	//******************************************************
+
+	/**
+	 * Main is testing the run-length column against a plain column.
+	 * @param args takes in command line arguements
+	 */
+	public static void main(String[] args) {
+		//long single color runs
+		RunLengthColumn col = new RunLengthColumn();
+		for (int i = 0; i < 3000; i++) {
+			col.add(i < 1000 ? Token.RED : Token.YELLOW);
+		}
+		if (col.size() == 3000 && col.runCount() == 2 && col.get(999) == Token.RED
+			&& col.get(1000) == Token.YELLOW && col.runLength(10) == 1000) {
+			System.out.println("Yay 1");
+		}
+
+		//split a run, then merge it back
+		col.add(500, Token.YELLOW);
+		boolean split = col.runCount() == 4 && col.runLength(499) == 500 && col.get(500) == Token.YELLOW;
+		col.delete(500);
+		if (split && col.runCount() == 2 && col.size() == 3000) {
+			System.out.println("Yay 2");
+		}
+
+		//random edits agree with the array column
+		java.util.Random rand = new java.util.Random(7);
+		Column<Token> plain = new Column<>();
+		RunLengthColumn encoded = new RunLengthColumn();
+		boolean same = true;
+		for (int step = 0; step < 20000 && same; step++) {
+			Token t = rand.nextBoolean() ? Token.RED : Token.YELLOW;
+			int choice = rand.nextInt(4);
+			if (choice < 2 || plain.size() == 0) {
+				int at = rand.nextInt(plain.size() + 1);
+				plain.add(at, t);
+				encoded.add(at, t);
+			}
+			else if (choice == 2) {
+				int at = rand.nextInt(plain.size());
+				same = plain.delete(at) == encoded.delete(at);
+			}
+			else {
+				int at = rand.nextInt(plain.size());
+				same = plain.set(at, t) == encoded.set(at, t);
+			}
+			same = same && plain.size() == encoded.size();
+			if (same && plain.size() > 0) {
+				int at = rand.nextInt(plain.size());
+				same = plain.get(at) == encoded.get(at) && plain.runLength(at) == encoded.runLength(at);
+			}
+		}
+		Token[] a = new Token[plain.size()];
+		Token[] b = new Token[plain.size()];
+		plain.copyRange(0, a.length, a, 0);
+		encoded.copyRange(0, b.length, b, 0);
+		if (same && java.util.Arrays.equals(a, b)
+			&& encoded.stream().filter(x -> x == Token.RED).count()
+			== plain.parallelStream().filter(x -> x == Token.RED).count()) {
+			System.out.println("Yay 3");
+		}
+	}
+}
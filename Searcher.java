@@ -0,0 +1,706 @@
+/**
+ *  Finds a good move for the player to move with iterative deepening
+ *  alpha-beta (negamax) search inside a time budget.
+ *  Scores are from the point of view of the player to move. A win is
+ *  WIN_SCORE minus the number of plies to reach it, so faster wins score
+ *  higher. A searcher is used by one thread at a time, but its table can be
+ *  shared by several searchers. A repetition scores 0 only because of the
+ *  game history that led to it, so nothing whose score rests on one is
+ *  stored in the table.
+ *  @author Adam David
+ */
+public class Searcher {
+
+	/**
+	 * score of a position where the player to move has won.
+	 */
+	public static final int WIN_SCORE = 1000000;
+
+	/**
+	 * scores at or above this (or at or below minus this) are forced wins (losses).
+	 */
+	public static final int WIN_THRESHOLD = WIN_SCORE - 10000;
+
+	/**
+	 * deepest ply the search goes to.
+	 */
+	public static final int MAX_PLY = 128;
+
+	/**
+	 * how often (in nodes, minus one) the clock is read.
+	 */
+	private static final int CHECK_INTERVAL = 1023;
+
+	/**
+	 * a score no search returns, used as minus infinity.
+	 */
+	private static final int INFINITY = WIN_SCORE + 1;
+
+	/**
+	 * table of earlier results.
+	 */
+	private final Table table;
+
+	/**
+	 * set from another thread to end the current search early.
+	 */
+	private volatile boolean stopRequested;
+
+	/**
+	 * System.nanoTime() after which the search stops.
+	 */
+	private long deadline;
+
+	/**
+	 * whether the current iteration ran out of time.
+	 */
+	private boolean aborted;
+
+	/**
+	 * positions looked at by the current search.
+	 */
+	private long nodes;
+
+	/**
+	 * repetitions scored as draws, over the life of the searcher.
+	 */
+	private long repetitionsScored;
+
+	/**
+	 * move buffer for each ply.
+	 */
+	private final int[][] moveBuffers = new int[MAX_PLY + 1][];
+
+	/**
+	 * network that scores the leaves, null for the handcrafted evaluate.
+	 */
+	private NnueEvaluator evaluator;
+
+	/**
+	 * the network's sums for the position being searched.
+	 */
+	private NnueEvaluator.Accumulator accumulator;
+
+	/**
+	 * a constructer with a private table of 2^20 entries.
+	 */
+	public Searcher() {
+		this(new Table(20));
+	}
+
+	/**
+	 * a constructer for a searcher using the given table.
+	 * @param table table of earlier results, can be shared with other searchers
+	 */
+	public Searcher(Table table) {
+		this.table = table;
+	}
+
+	/**
+	 * getter for the table.
+	 * @return the table this searcher reads and writes
+	 */
+	public Table table() {
+		return this.table;
+	}
+
+	/**
+	 * Scores leaves with a network instead of evaluate.
+	 * @param evaluator the network, or null to go back to evaluate
+	 */
+	public void setEvaluator(NnueEvaluator evaluator) {
+		this.evaluator = evaluator;
+		this.accumulator = null;
+	}
+
+	/**
+	 * Ends the current search as soon as possible. Safe to call from any thread.
+	 * The search still returns the best move of its last finished depth.
+	 */
+	public void stop() {
+		this.stopRequested = true;
+	}
+
+	/**
+	 * Searches deeper and deeper until the budget or the depth limit is used up.
+	 * The game is left as it was. The game must not be over.
+	 * @param game position to search
+	 * @param budgetMillis time budget in milliseconds
+	 * @param maxDepth deepest full-width depth to try
+	 * @return the best move found and its score
+	 */
+	public Result search(PowerConnectFour game, long budgetMillis, int maxDepth) {
+		long start = System.nanoTime();
+		this.deadline = start + budgetMillis * 1000000L;
+		this.stopRequested = false;
+		this.nodes = 0;
+
+		if (this.evaluator != null) {
+			if (this.accumulator == null || !this.accumulator.fits(game)) {
+				this.accumulator = this.evaluator.newAccumulator(game.sizeCol());
+			}
+			this.accumulator.refresh(game);
+		}
+
+		int[] rootMoves = new int[game.maxLegalMoves()];
+		int n = game.legalMoves(rootMoves);
+		int bestMove = rootMoves[0];
+		int bestScore = -INFINITY;
+		int completed = 0;
+
+		for (int depth = 1; depth <= Math.min(maxDepth, MAX_PLY); ++depth) {
+			this.aborted = false;
+			//last best move first, so a cut-short iteration has looked at it
+			moveToFront(rootMoves, n, bestMove);
+			int alpha = -INFINITY;
+			int iterationBest = rootMoves[0];
+			for (int i = 0; i < n; ++i) {
+				play(game, rootMoves[i]);
+				int score = -negamax(game, depth - 1, -INFINITY, -alpha, 1);
+				takeBack(game, rootMoves[i]);
+				if (this.aborted) {
+					break;
+				}
+				if (score > alpha) {
+					alpha = score;
+					iterationBest = rootMoves[i];
+				}
+			}
+			if (this.aborted) {
+				//nothing finished yet, the partial result beats no result
+				if (completed == 0 && alpha > -INFINITY) {
+					bestMove = iterationBest;
+					bestScore = alpha;
+				}
+				break;
+			}
+			bestMove = iterationBest;
+			bestScore = alpha;
+			completed = depth;
+			//a forced result will not change with more depth
+			if (Math.abs(bestScore) >= WIN_THRESHOLD) {
+				break;
+			}
+		}
+		long elapsed = (System.nanoTime() - start) / 1000000L;
+		return new Result(bestMove, bestScore == -INFINITY ? 0 : bestScore, completed, this.nodes, elapsed);
+	}
+
+	/**
+	 * Negamax alpha-beta search of one position.
+	 * @param game position to search
+	 * @param depth plies left
+	 * @param alpha lower bound
+	 * @param beta upper bound
+	 * @param ply plies from the root
+	 * @return score for the player to move
+	 */
+	private int negamax(PowerConnectFour game, int depth, int alpha, int beta, int ply) {
+		if ((++this.nodes & CHECK_INTERVAL) == 0
+			&& (this.stopRequested || System.nanoTime() > this.deadline)) {
+			this.aborted = true;
+		}
+		if (this.aborted) {
+			return 0;
+		}
+		int terminal = terminalScore(game, ply);
+		if (terminal != 0) {
+			return terminal;
+		}
+		//back in a position of the game or of this line, going round again gains nothing
+		if (ply > 0 && game.repetitions() > 1) {
+			++this.repetitionsScored;
+			return 0;
+		}
+		if (depth == 0 || ply >= MAX_PLY) {
+			return this.accumulator != null ? this.accumulator.evaluate(game) : evaluate(game);
+		}
+
+		long hash = tableKey(game);
+		int ttMove = -1;
+		long entry = this.table.probe(hash);
+		if (entry != Table.MISS) {
+			ttMove = Table.move(entry);
+			if (Table.depth(entry) >= depth) {
+				int score = fromTable(Table.score(entry), ply);
+				int flag = Table.flag(entry);
+				if (flag == Table.EXACT
+					|| (flag == Table.LOWER && score >= beta)
+					|| (flag == Table.UPPER && score <= alpha)) {
+					return score;
+				}
+			}
+		}
+
+		int[] moves = this.moveBuffers[ply];
+		if (moves == null || moves.length < game.maxLegalMoves()) {
+			moves = new int[game.maxLegalMoves() * 2];
+			this.moveBuffers[ply] = moves;
+		}
+		int n = game.legalMoves(moves);
+		if (ttMove != -1) {
+			moveToFront(moves, n, ttMove);
+		}
+
+		long repetitionsBefore = this.repetitionsScored;
+		int originalAlpha = alpha;
+		int best = -INFINITY;
+		int bestMove = moves[0];
+		for (int i = 0; i < n; ++i) {
+			play(game, moves[i]);
+			int score = -negamax(game, depth - 1, -beta, -alpha, ply + 1);
+			takeBack(game, moves[i]);
+			if (this.aborted) {
+				return 0;
+			}
+			if (score > best) {
+				best = score;
+				bestMove = moves[i];
+			}
+			if (score > alpha) {
+				alpha = score;
+			}
+			if (alpha >= beta) {
+				break;
+			}
+		}
+
+		//a score that rests on a repetition only holds for this game's history
+		if (this.repetitionsScored == repetitionsBefore) {
+			int flag = best <= originalAlpha ? Table.UPPER : best >= beta ? Table.LOWER : Table.EXACT;
+			this.table.store(hash, bestMove, toTable(best, ply), depth, flag);
+		}
+		return best;
+	}
+
+	/**
+	 * Makes a move, keeping the network's sums up to date.
+	 * @param game position to change
+	 * @param move packed move, legal in game
+	 */
+	private void play(PowerConnectFour game, int move) {
+		game.apply(move);
+		if (this.accumulator != null) {
+			this.accumulator.moved(game, move);
+		}
+	}
+
+	/**
+	 * Takes a move back, keeping the network's sums up to date.
+	 * @param game position to change
+	 * @param move the last packed move made
+	 */
+	private void takeBack(PowerConnectFour game, int move) {
+		game.undo(move);
+		if (this.accumulator != null) {
+			this.accumulator.moved(game, move);
+		}
+	}
+
+	/**
+	 * Key of a position in the table: its hash with the win length mixed
+	 * in, since the same board scores differently when more tokens are
+	 * needed to win.
+	 * @param game the position
+	 * @return the key
+	 */
+	public static long tableKey(PowerConnectFour game) {
+		return game.positionHash() ^ game.winLength() * 0x9E3779B97F4A7C15L;
+	}
+
+	/**
+	 * Scores a finished game the way the GUI decides it: the player who just
+	 * moved wins if they connected, otherwise the player to move wins if they did.
+	 * @param game position to look at
+	 * @param ply plies from the root
+	 * @return the score for the player to move, or 0 if the game is not over
+	 */
+	public static int terminalScore(PowerConnectFour game, int ply) {
+		Token toMove = game.currentPlayer();
+		Token mover = toMove == Token.RED ? Token.YELLOW : Token.RED;
+		if (game.hasFourConnected(mover)) {
+			return -(WIN_SCORE - ply);
+		}
+		if (game.hasFourConnected(toMove)) {
+			return WIN_SCORE - ply;
+		}
+		return 0;
+	}
+
+	/**
+	 * Quick score of a position that is not over, for the player to move.
+	 * Looks at the top token of each column: longer lines through it are
+	 * worth more, lines one short of a win are worth a lot more.
+	 * @param game position to score
+	 * @return the score
+	 */
+	public static int evaluate(PowerConnectFour game) {
+		Token me = game.currentPlayer();
+		int winLength = game.winLength();
+		int score = 0;
+		for (int col = 0; col < game.sizeCol(); ++col) {
+			Column<Token> column = game.getColumn(col);
+			int row = column.size() - 1;
+			if (row < 0) {
+				continue;
+			}
+			Token t = column.get(row);
+			int s = lineValue(game.countRow(col, row, t), winLength)
+				+ lineValue(game.countCol(col, row, t), winLength)
+				+ lineValue(game.countMajorDiagonal(col, row, t), winLength)
+				+ lineValue(game.countMinorDiagonal(col, row, t), winLength);
+			score += t == me ? s : -s;
+		}
+		return score;
+	}
+
+	/**
+	 * Value of one line for evaluate.
+	 * @param count tokens on the line
+	 * @param winLength tokens needed to win
+	 * @return the value
+	 */
+	private static int lineValue(int count, int winLength) {
+		if (count >= winLength - 1) {
+			return 100;
+		}
+		return count * count;
+	}
+
+	/**
+	 * Moves a move to the front of a list, keeping the others in order.
+	 * @param moves list of moves
+	 * @param n number of moves in the list
+	 * @param move move to bring forward, nothing happens if it is not in the list
+	 */
+	private static void moveToFront(int[] moves, int n, int move) {
+		for (int i = 0; i < n; ++i) {
+			if (moves[i] == move) {
+				System.arraycopy(moves, 0, moves, 1, i);
+				moves[0] = move;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Makes a win score relative to the position before storing it.
+	 * @param score score relative to the root
+	 * @param ply plies from the root
+	 * @return score to store
+	 */
+	private static int toTable(int score, int ply) {
+		if (score >= WIN_THRESHOLD) {
+			return score + ply;
+		}
+		if (score <= -WIN_THRESHOLD) {
+			return score - ply;
+		}
+		return score;
+	}
+
+	/**
+	 * Makes a stored win score relative to the root again.
+	 * @param score stored score
+	 * @param ply plies from the root
+	 * @return score relative to the root
+	 */
+	private static int fromTable(int score, int ply) {
+		if (score >= WIN_THRESHOLD) {
+			return score - ply;
+		}
+		if (score <= -WIN_THRESHOLD) {
+			return score + ply;
+		}
+		return score;
+	}
+
+	/**
+	 * Outcome of a search.
+	 */
+	public static final class Result {
+
+		/**
+		 * best packed move found.
+		 */
+		private final int bestMove;
+
+		/**
+		 * score of the best move for the player to move.
+		 */
+		private final int score;
+
+		/**
+		 * deepest depth that finished.
+		 */
+		private final int depth;
+
+		/**
+		 * positions looked at.
+		 */
+		private final long nodes;
+
+		/**
+		 * time taken in milliseconds.
+		 */
+		private final long millis;
+
+		/**
+		 * a constructer for a result.
+		 * @param bestMove best packed move found
+		 * @param score score of the best move
+		 * @param depth deepest depth that finished
+		 * @param nodes positions looked at
+		 * @param millis time taken in milliseconds
+		 */
+		public Result(int bestMove, int score, int depth, long nodes, long millis) {
+			this.bestMove = bestMove;
+			this.score = score;
+			this.depth = depth;
+			this.nodes = nodes;
+			this.millis = millis;
+		}
+
+		/**
+		 * getter for the best move.
+		 * @return best packed move found
+		 */
+		public int bestMove() {
+			return this.bestMove;
+		}
+
+		/**
+		 * getter for the score.
+		 * @return score of the best move for the player to move
+		 */
+		public int score() {
+			return this.score;
+		}
+
+		/**
+		 * getter for the depth.
+		 * @return deepest depth that finished
+		 */
+		public int depth() {
+			return this.depth;
+		}
+
+		/**
+		 * getter for the node count.
+		 * @return positions looked at
+		 */
+		public long nodes() {
+			return this.nodes;
+		}
+
+		/**
+		 * getter for the time taken.
+		 * @return time taken in milliseconds
+		 */
+		public long millis() {
+			return this.millis;
+		}
+
+		/**
+		 * Allows result to be printed in a custom format.
+		 * @return string representing the result
+		 */
+		public String toString() {
+			return Move.toString(this.bestMove) + " score " + this.score + " depth " + this.depth
+				+ " nodes " + this.nodes + " in " + this.millis + "ms";
+		}
+	}
+
+	/**
+	 * Fixed-size transposition table keyed by position hash. Safe to share
+	 * between threads without locks: each slot stores the key XORed with
+	 * the data, so a slot torn by two writers fails the check and is a miss.
+	 * Entries pack the move (32 bits), score (22 bits), depth (8 bits) and
+	 * bound type (2 bits) into one long.
+	 */
+	public static final class Table {
+
+		/**
+		 * returned by probe when there is no entry.
+		 */
+		public static final long MISS = 0L;
+
+		/**
+		 * bound type of an exact score.
+		 */
+		public static final int EXACT = 1;
+
+		/**
+		 * bound type of a score that is at least the stored one.
+		 */
+		public static final int LOWER = 2;
+
+		/**
+		 * bound type of a score that is at most the stored one.
+		 */
+		public static final int UPPER = 3;
+
+		/**
+		 * added to scores so they pack as unsigned.
+		 */
+		private static final int SCORE_OFFSET = 1 << 21;
+
+		/**
+		 * hash XOR data of each slot.
+		 */
+		private final long[] checks;
+
+		/**
+		 * data of each slot.
+		 */
+		private final long[] data;
+
+		/**
+		 * slot count minus one, the slot count is a power of two.
+		 */
+		private final int mask;
+
+		/**
+		 * a constructer for a table with 2^bits slots.
+		 * @param bits log2 of the number of slots, 1 to 30
+		 */
+		public Table(int bits) {
+			if (bits < 1 || bits > 30) {
+				throw new IllegalArgumentException("Table bits must be between 1 and 30");
+			}
+			this.checks = new long[1 << bits];
+			this.data = new long[1 << bits];
+			this.mask = (1 << bits) - 1;
+		}
+
+		/**
+		 * Looks up a position.
+		 * @param hash position hash
+		 * @return the packed entry, or MISS
+		 */
+		public long probe(long hash) {
+			int slot = (int) (hash ^ (hash >>> 32)) & this.mask;
+			long d = this.data[slot];
+			return d != MISS && (this.checks[slot] ^ d) == hash ? d : MISS;
+		}
+
+		/**
+		 * Stores a result, replacing whatever was in its slot unless that
+		 * was the same position searched deeper.
+		 * @param hash position hash
+		 * @param move best packed move
+		 * @param score score for the player to move
+		 * @param depth depth searched
+		 * @param flag EXACT, LOWER or UPPER
+		 */
+		public void store(long hash, int move, int score, int depth, int flag) {
+			int slot = (int) (hash ^ (hash >>> 32)) & this.mask;
+			long old = this.data[slot];
+			if (old != MISS && (this.checks[slot] ^ old) == hash && depth(old) > depth) {
+				return;
+			}
+			long d = (move & 0xFFFFFFFFL)
+				| ((long) (score + SCORE_OFFSET) << 32)
+				| ((long) Math.min(depth, 255) << 54)
+				| ((long) flag << 62);
+			this.data[slot] = d;
+			this.checks[slot] = hash ^ d;
+		}
+
+		/**
+		 * Clears every entry.
+		 */
+		public void clear() {
+			java.util.Arrays.fill(this.data, MISS);
+		}
+
+		/**
+		 * Reads the move of an entry.
+		 * @param entry packed entry
+		 * @return best packed move
+		 */
+		public static int move(long entry) {
+			return (int) entry;
+		}
+
+		/**
+		 * Reads the score of an entry.
+		 * @param entry packed entry
+		 * @return stored score
+		 */
+		public static int score(long entry) {
+			return (int) ((entry >>> 32) & ((1 << 22) - 1)) - SCORE_OFFSET;
+		}
+
+		/**
+		 * Reads the depth of an entry.
+		 * @param entry packed entry
+		 * @return depth searched
+		 */
+		public static int depth(long entry) {
+			return (int) ((entry >>> 54) & 255);
+		}
+
+		/**
+		 * Reads the bound type of an entry.
+		 * @param entry packed entry
+		 * @return EXACT, LOWER or UPPER
+		 */
+		public static int flag(long entry) {
+			return (int) (entry >>> 62);
+		}
+	}
+
+	//******************************************************
+	//*******     BELOW THIS LINE IS TESTING CODE    *******
+	//******************************************************
+
+	/**
+	 * Main is testing that the search finds simple wins and blocks, and what the table keeps.
+	 * @param args takes in command line arguements
+	 */
+	public static void main(String[] args) {
+		//R has three in column 0 and it is R's turn
+		PowerConnectFour game = PositionCodec.fromText("R:RRR,YY,Y,,,,", 4);
+		Result win = new Searcher().search(game, 500, 4);
+		//a searcher that saw the board needing four scores it needing five like a new one
+		Searcher reused = new Searcher();
+		reused.search(PositionCodec.fromText("Y:RRR,YY,Y,,,,", 4), 5000, 4);
+		Result five = reused.search(PositionCodec.fromText("Y:RRR,YY,Y,,,,", 5), 5000, 4);
+		Result fresh = new Searcher().search(PositionCodec.fromText("Y:RRR,YY,Y,,,,", 5), 5000, 4);
+		if (win.bestMove() == Move.drop(0) && win.score() >= WIN_THRESHOLD
+			&& five.score() == fresh.score() && five.bestMove() == fresh.bestMove()) {
+			System.out.println("Yay 1");
+		}
+
+		//R has three open on row 0, dropping can't stop both ends but a power drop under them can
+		game = PositionCodec.fromText("Y:,RY,RY,R,,,", 4);
+		Result block = new Searcher().search(game, 500, 3);
+		if (Move.kind(block.bestMove()) == Move.POWER_DROP && block.score() > -WIN_THRESHOLD) {
+			System.out.println("Yay 2");
+		}
+
+		//the table packs and unpacks entries
+		Table table = new Table(4);
+		table.store(12345L, Move.powerPop(3, 2), -WIN_SCORE + 7, 9, Table.LOWER);
+		long e = table.probe(12345L);
+		if (Table.move(e) == Move.powerPop(3, 2) && Table.score(e) == -WIN_SCORE + 7
+			&& Table.depth(e) == 9 && Table.flag(e) == Table.LOWER && table.probe(54321L) == Table.MISS) {
+			System.out.println("Yay 3");
+		}
+
+		//after D0,D1,P0,P1 the board is empty again and lines back to those positions
+		//score 0; a searcher that saw that game scores a new empty board like a fresh one
+		Searcher cyclic = new Searcher(new Table(16));
+		PowerConnectFour cycle = new PowerConnectFour(4, 4);
+		for (int move : new int[] {Move.drop(0), Move.drop(1), Move.pop(0), Move.pop(1)}) {
+			cycle.apply(move);
+		}
+		Result drawn = cyclic.search(cycle, 50000, 4);
+		Result after = cyclic.search(new PowerConnectFour(4, 4), 50000, 4);
+		Result alone = new Searcher(new Table(16)).search(new PowerConnectFour(4, 4), 50000, 4);
+		if (drawn.score() == 0 && after.score() == alone.score() && alone.score() != 0) {
+			System.out.println("Yay 4");
+		}
+	}
+}
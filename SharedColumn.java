@@ -0,0 +1,360 @@
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+
+/**
+ * Read-only column of at most MAX_HEIGHT tokens, shared between games
+ * through a ColumnInterner. The whole column is packed into one long: bit
+ * i is set when the token at row i is YELLOW, and a marker bit sits just
+ * above the top token, so the code alone says both height and contents.
+ * Games never change a shared column; a move swaps in the interned column
+ * for the new code instead, so copying a game or starting many games from
+ * the same opening costs no column memory.
+ * @author Adam David
+ */
+public class SharedColumn extends Column<Token> {
+
+	/**
+	 * tallest column that can be shared.
+	 */
+	public static final int MAX_HEIGHT = 62;
+
+	/**
+	 * code of the empty column.
+	 */
+	public static final long EMPTY = 1L;
+
+	/**
+	 * marker bit above the tokens and the token bits.
+	 */
+	private final long code;
+
+	/**
+	 * a constructer for the column with the given code.
+	 * @param code marker bit above the token bits, at most MAX_HEIGHT tokens
+	 */
+	SharedColumn(long code) {
+		super(1, GrowthPolicy.DEFAULT);
+		if (code <= 0) {
+			throw new IllegalArgumentException("Not a shared column code: " + code);
+		}
+		this.code = code;
+	}
+
+	/**
+	 * Packs a column into a code.
+	 * @param column column of tokens, no empty cells
+	 * @return the code, or -1 if the column is taller than MAX_HEIGHT
+	 */
+	public static long encode(Column<Token> column) {
+		if (column instanceof SharedColumn) {
+			return ((SharedColumn) column).code;
+		}
+		int size = column.size();
+		if (size > MAX_HEIGHT) {
+			return -1;
+		}
+		long code = 1L << size;
+		for (int row = 0; row < size; ++row) {
+			if (column.get(row) == Token.YELLOW) {
+				code |= 1L << row;
+			}
+		}
+		return code;
+	}
+
+	/**
+	 * Code of the column with a token put in.
+	 * @param row index the token ends up at, at most the size
+	 * @param token token to put in
+	 * @return the new code; the column must be under MAX_HEIGHT
+	 */
+	long inserted(int row, Token token) {
+		long below = this.code & ((1L << row) - 1);
+		long bit = token == Token.YELLOW ? 1L << row : 0L;
+		return (this.code >>> row) << (row + 1) | bit | below;
+	}
+
+	/**
+	 * Code of the column with a token taken out.
+	 * @param row index of the token, under the size
+	 * @return the new code
+	 */
+	long removed(int row) {
+		long below = this.code & ((1L << row) - 1);
+		return (this.code >>> (row + 1)) << row | below;
+	}
+
+	/**
+	 * getter for the code.
+	 * @return marker bit above the token bits
+	 */
+	public long code() {
+		return this.code;
+	}
+
+	/**
+	 *  getter for size attribute.
+	 * 	@return the number of tokens
+	 */
+	@Override
+	public int size() {
+		return 63 - Long.numberOfLeadingZeros(this.code);
+	}
+
+	/**
+	 *  getter for capacity attribute, the same as the size.
+	 * 	@return the number of tokens
+	 */
+	@Override
+	public int capacity() {
+		return size();
+	}
+
+	/**
+	 * return a token, no alterations to structure.
+	 * @param index for the location of item
+	 * @return the token at index
+	 */
+	@Override
+	public Token get(int index) {
+		if (index < 0 || index >= size()) {
+			throw new IndexOutOfBoundsException("Index: " + index + " out of bounds!");
+		}
+		return (this.code >>> index & 1L) != 0 ? Token.YELLOW : Token.RED;
+	}
+
+	/**
+	 * Shared columns cannot be changed.
+	 * @param index for the location of item
+	 * @param value to be replacing
+	 * @return never
+	 */
+	@Override
+	public Token set(int index, Token value) {
+		throw readOnly();
+	}
+
+	/**
+	 * Shared columns cannot be changed.
+	 * @param value to be added
+	 */
+	@Override
+	public void add(Token value) {
+		throw readOnly();
+	}
+
+	/**
+	 * Shared columns cannot be changed.
+	 * @param index for the location of item
+	 * @param value to be added
+	 */
+	@Override
+	public void add(int index, Token value) {
+		throw readOnly();
+	}
+
+	/**
+	 * Shared columns cannot be changed.
+	 * @param index for the location of item
+	 * @return never
+	 */
+	@Override
+	public Token delete(int index) {
+		throw readOnly();
+	}
+
+	/**
+	 * Shared columns cannot be changed.
+	 * @param index for the location of the first inserted item
+	 * @param values array holding the items
+	 * @param offset first position of values to insert
+	 * @param length number of items to insert
+	 */
+	@Override
+	public void addAll(int index, Token[] values, int offset, int length) {
+		throw readOnly();
+	}
+
+	/**
+	 * Shared columns cannot be changed.
+	 * @param other column to copy from
+	 */
+	@Override
+	public void addAll(Column<? extends Token> other) {
+		throw readOnly();
+	}
+
+	/**
+	 * Shared columns cannot be changed.
+	 * @param from first index to remove
+	 * @param to one past the last index to remove
+	 */
+	@Override
+	public void removeRange(int from, int to) {
+		throw readOnly();
+	}
+
+	/**
+	 * Shared columns cannot be changed, not even their policy.
+	 * @param policy decides how the array grows and shrinks
+	 */
+	@Override
+	public void setPolicy(GrowthPolicy policy) {
+		throw readOnly();
+	}
+
+	/**
+	 * Nothing to trim, the column holds no array of its own.
+	 */
+	@Override
+	public void trimToSize() {
+	}
+
+	/**
+	 * Counts the tokens in the run of equal tokens holding the given index,
+	 * the token itself included. Works on the bits, so it is O(1).
+	 * @param index for the location of item
+	 * @return the length of that run
+	 */
+	@Override
+	public int runLength(int index) {
+		int size = size();
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + " out of bounds!");
+		}
+		long tokens = this.code & ((1L << size) - 1);
+		//set bits where the token differs from the one at index
+		long differs = (this.code >>> index & 1L) != 0 ? ~tokens : tokens;
+		long above = (differs >>> index) | (1L << (size - index));
+		long below = index == 0 ? 1L : Long.reverse(differs << (64 - index)) | (1L << index);
+		return Long.numberOfTrailingZeros(above) + Long.numberOfTrailingZeros(below);
+	}
+
+	/**
+	 * Copies items from index from (inclusive) to index to (exclusive) into
+	 * an array owned by the caller, no alterations to structure.
+	 * @param from first index to copy
+	 * @param to one past the last index to copy
+	 * @param dest array to copy into
+	 * @param destPos position in dest for the item at from
+	 */
+	@Override
+	public void copyRange(int from, int to, Object[] dest, int destPos) {
+		if (from < 0 || to > size() || from > to) {
+			throw new IndexOutOfBoundsException("Range: " + from + " to " + to + " out of bounds!");
+		}
+		for (int i = from; i < to; ++i) {
+			dest[destPos + i - from] = get(i);
+		}
+	}
+
+	/**
+	 * Runs the action on every item, bottom to top.
+	 * @param action to run on each item
+	 */
+	@Override
+	public void forEach(Consumer<? super Token> action) {
+		int size = size();
+		for (int i = 0; i < size; ++i) {
+			action.accept(get(i));
+		}
+	}
+
+	/**
+	 * Iterator over the items, bottom to top.
+	 * @return iterator for the column
+	 */
+	@Override
+	public Iterator<Token> iterator() {
+		return new Iterator<Token>() {
+			private int next = 0;
+
+			public boolean hasNext() {
+				return this.next < size();
+			}
+
+			public Token next() {
+				if (this.next >= size()) {
+					throw new NoSuchElementException();
+				}
+				return get(this.next++);
+			}
+		};
+	}
+
+	/**
+	 * Sized spliterator over the items, bottom to top.
+	 * @return spliterator for the column
+	 */
+	@Override
+	public Spliterator<Token> spliterator() {
+		return Spliterators.spliterator(iterator(), size(), Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.IMMUTABLE);
+	}
+
+	/**
+	 * Estimates the memory held by this column, counted once however many
+	 * games share it.
+	 * @return estimated bytes
+	 */
+	@Override
+	public long footprintBytes() {
+		// the code on top of the Column fields, plus the tiny inherited array
+		long self = align(OBJECT_HEADER_BYTES + 2 * REFERENCE_BYTES + 2 * Integer.BYTES + Long.BYTES);
+		return self + align(ARRAY_HEADER_BYTES + REFERENCE_BYTES);
+	}
+
+	/**
+	 * The error for any change.
+	 * @return the exception to throw
+	 */
+	private static UnsupportedOperationException readOnly() {
+		return new UnsupportedOperationException("Shared columns are read only");
+	}
+
+	//******************************************************
+	//*******     BELOW THIS LINE IS TESTING CODE    *******
+	//******************************************************
+
+	/**
+	 * Main is testing the packed reads and the code changes.
+	 * @param args takes in command line arguements
+	 */
+	public static void main(String[] args) {
+		Column<Token> plain = new Column<Token>();
+		Token[] tokens = {Token.RED, Token.RED, Token.YELLOW, Token.YELLOW, Token.YELLOW, Token.RED};
+		plain.addAll(tokens);
+		SharedColumn shared = new SharedColumn(encode(plain));
+		boolean same = shared.size() == 6;
+		for (int i = 0; i < 6; ++i) {
+			same = same && shared.get(i) == plain.get(i) && shared.runLength(i) == plain.runLength(i);
+		}
+		if (same && new SharedColumn(EMPTY).size() == 0) {
+			System.out.println("Yay 1");
+		}
+
+		SharedColumn in = new SharedColumn(shared.inserted(2, Token.RED));
+		SharedColumn out = new SharedColumn(in.removed(2));
+		plain.add(2, Token.RED);
+		boolean match = in.size() == 7;
+		for (int i = 0; i < 7; ++i) {
+			match = match && in.get(i) == plain.get(i);
+		}
+		if (match && out.code() == shared.code()) {
+			System.out.println("Yay 2");
+		}
+
+		try {
+			shared.add(Token.RED);
+		}
+		catch (UnsupportedOperationException e) {
+			Object[] copy = new Object[6];
+			shared.copyRange(0, 6, copy, 0);
+			if (copy[2] == Token.YELLOW && shared.stream().count() == 6) {
+				System.out.println("Yay 3");
+			}
+		}
+	}
+}
@@ -0,0 +1,394 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *  A spectator of a SpectatorServer: keeps a board for every game it
+ *  watches, built from a snapshot and then move deltas. A delta whose
+ *  sequence does not follow the last one is a gap; the client asks for a
+ *  resync and ignores deltas of that game until the new snapshot comes.
+ *  Not thread safe, use one client per thread.
+ *  Use with the command:
+ *      java SpectatorClient port gameId...
+ *  @author Adam David
+ */
+public class SpectatorClient implements Closeable {
+
+	/**
+	 * longest a receive waits for the next frame.
+	 */
+	private static final long TIMEOUT_MILLIS = 10000;
+
+	/**
+	 * What the client knows of one game.
+	 */
+	private static final class View {
+
+		/**
+		 * the board, null before the first snapshot.
+		 */
+		private PowerConnectFour board;
+
+		/**
+		 * sequence of the last frame applied.
+		 */
+		private long sequence = -1;
+
+		/**
+		 * whether a resync was asked for and not answered yet.
+		 */
+		private boolean resyncing = false;
+
+		/**
+		 * whether the server ended the stream.
+		 */
+		private boolean ended = false;
+	}
+
+	/**
+	 * the socket.
+	 */
+	private final SocketChannel channel;
+
+	/**
+	 * selector the socket waits on.
+	 */
+	private final Selector selector;
+
+	/**
+	 * bytes read but not handled yet.
+	 */
+	private ByteBuffer in = ByteBuffer.allocateDirect(64 * 1024);
+
+	/**
+	 * buffer for requests.
+	 */
+	private final ByteBuffer request = ByteBuffer.allocate(SpectatorServer.REQUEST_BYTES);
+
+	/**
+	 * games watched, by id.
+	 */
+	private final Map<Long, View> views = new HashMap<>();
+
+	/**
+	 * deltas to throw away as if they had been lost, for testing.
+	 */
+	private int toLose = 0;
+
+	/**
+	 * snapshots received.
+	 */
+	private long snapshots = 0;
+
+	/**
+	 * deltas applied.
+	 */
+	private long deltas = 0;
+
+	/**
+	 * gaps found.
+	 */
+	private long gaps = 0;
+
+	/**
+	 * bytes read from the socket.
+	 */
+	private long bytesReceived = 0;
+
+	/**
+	 * bytes of snapshot frames.
+	 */
+	private long snapshotBytes = 0;
+
+	/**
+	 * a constructer for a spectator connected to a server.
+	 * @param host host of the server
+	 * @param port port of the server
+	 * @throws IOException if it cannot connect
+	 */
+	public SpectatorClient(String host, int port) throws IOException {
+		this.channel = SocketChannel.open(new InetSocketAddress(host, port));
+		this.channel.socket().setTcpNoDelay(true);
+		this.channel.configureBlocking(false);
+		this.selector = Selector.open();
+		this.channel.register(this.selector, SelectionKey.OP_READ);
+	}
+
+	/**
+	 * Starts watching a game; its snapshot comes with a later receive.
+	 * @param id id of the game
+	 * @throws IOException if the request cannot be sent
+	 */
+	public void watch(long id) throws IOException {
+		this.views.putIfAbsent(id, new View());
+		ask(SpectatorServer.REQUEST_WATCH, id);
+	}
+
+	/**
+	 * Stops watching a game.
+	 * @param id id of the game
+	 * @throws IOException if the request cannot be sent
+	 */
+	public void unwatch(long id) throws IOException {
+		this.views.remove(id);
+		ask(SpectatorServer.REQUEST_UNWATCH, id);
+	}
+
+	/**
+	 * Sends a request.
+	 * @param type type of request
+	 * @param id id of the game
+	 * @throws IOException if the request cannot be sent
+	 */
+	private void ask(byte type, long id) throws IOException {
+		this.request.clear();
+		this.request.put(type).putLong(id).flip();
+		while (this.request.hasRemaining()) {
+			this.channel.write(this.request);
+		}
+	}
+
+	/**
+	 * Handles frames until a game's board has reached a sequence or its
+	 * stream has ended.
+	 * @param id id of the game
+	 * @param sequence sequence to reach, 0 for just the first snapshot
+	 * @throws IOException if the socket fails or nothing comes for too long
+	 */
+	public void receive(long id, long sequence) throws IOException {
+		View v = view(id);
+		while (!v.ended && (v.board == null || v.resyncing || v.sequence < sequence)) {
+			receiveSome();
+		}
+	}
+
+	/**
+	 * Handles frames until a game's stream has ended.
+	 * @param id id of the game
+	 * @throws IOException if the socket fails or nothing comes for too long
+	 */
+	public void awaitEnd(long id) throws IOException {
+		View v = view(id);
+		while (!v.ended) {
+			receiveSome();
+		}
+	}
+
+	/**
+	 * Waits for bytes and handles every whole frame.
+	 * @throws IOException if the socket fails or nothing comes for too long
+	 */
+	public void receiveSome() throws IOException {
+		if (this.selector.select(TIMEOUT_MILLIS) == 0) {
+			throw new IOException("No frames for " + TIMEOUT_MILLIS + " ms");
+		}
+		this.selector.selectedKeys().clear();
+		int read = this.channel.read(this.in);
+		if (read < 0) {
+			throw new IOException("Server closed the connection");
+		}
+		this.bytesReceived += read;
+		this.in.flip();
+		while (true) {
+			int start = this.in.position();
+			long length = SpectatorServer.getVarint(this.in);
+			if (length < 0 || this.in.remaining() < length) {
+				this.in.position(start);
+				break;
+			}
+			int end = this.in.position() + (int) length;
+			handle(end, this.in.position() - start + (int) length);
+			this.in.position(end);
+		}
+		this.in.compact();
+		if (!this.in.hasRemaining()) {
+			//a frame bigger than the buffer
+			ByteBuffer bigger = ByteBuffer.allocateDirect(this.in.capacity() * 2);
+			this.in.flip();
+			bigger.put(this.in);
+			this.in = bigger;
+		}
+	}
+
+	/**
+	 * Handles one frame.
+	 * @param end position where the frame ends
+	 * @param bytes bytes of the frame with its length
+	 * @throws IOException if a resync cannot be asked for
+	 */
+	private void handle(int end, int bytes) throws IOException {
+		byte type = this.in.get();
+		long id = SpectatorServer.getVarint(this.in);
+		long sequence = SpectatorServer.getVarint(this.in);
+		View v = this.views.get(id);
+		if (v == null) {
+			return;
+		}
+		switch (type) {
+			case SpectatorServer.FRAME_SNAPSHOT:
+				int winLength = this.in.get();
+				byte[] position = new byte[end - this.in.position()];
+				this.in.get(position);
+				v.board = PositionCodec.fromBytes(position, winLength);
+				v.board.setRepetitionLimit(0);
+				v.sequence = sequence;
+				v.resyncing = false;
+				++this.snapshots;
+				this.snapshotBytes += bytes;
+				break;
+			case SpectatorServer.FRAME_DELTA:
+				int move = (int) SpectatorServer.getVarint(this.in);
+				if (this.toLose > 0) {
+					--this.toLose;
+					return;
+				}
+				if (v.resyncing || v.board == null) {
+					return;
+				}
+				if (sequence != v.sequence + 1 || !v.board.apply(move)) {
+					++this.gaps;
+					v.resyncing = true;
+					ask(SpectatorServer.REQUEST_RESYNC, id);
+					return;
+				}
+				v.sequence = sequence;
+				++this.deltas;
+				break;
+			default:
+				v.ended = true;
+		}
+	}
+
+	/**
+	 * Finds a watched game.
+	 * @param id id of the game
+	 * @return what is known of it
+	 */
+	private View view(long id) {
+		View v = this.views.get(id);
+		if (v == null) {
+			throw new IllegalArgumentException("Not watching game " + id);
+		}
+		return v;
+	}
+
+	/**
+	 * getter for a game's board.
+	 * @param id id of the game
+	 * @return the board, null before its snapshot; do not move on it
+	 */
+	public PowerConnectFour board(long id) {
+		return view(id).board;
+	}
+
+	/**
+	 * getter for a game's sequence.
+	 * @param id id of the game
+	 * @return moves the board has had since the game was first watched, -1 before its snapshot
+	 */
+	public long sequence(long id) {
+		return view(id).sequence;
+	}
+
+	/**
+	 * Checks whether a game's stream has ended.
+	 * @param id id of the game
+	 * @return whether the game is over, unknown or no longer watched
+	 */
+	public boolean ended(long id) {
+		return view(id).ended;
+	}
+
+	/**
+	 * getter for the number of snapshots.
+	 * @return snapshots received
+	 */
+	public long snapshots() {
+		return this.snapshots;
+	}
+
+	/**
+	 * getter for the number of deltas.
+	 * @return deltas applied
+	 */
+	public long deltas() {
+		return this.deltas;
+	}
+
+	/**
+	 * getter for the number of gaps.
+	 * @return times a sequence skipped and a resync was asked for
+	 */
+	public long gaps() {
+		return this.gaps;
+	}
+
+	/**
+	 * getter for the bytes received.
+	 * @return bytes read from the socket
+	 */
+	public long bytesReceived() {
+		return this.bytesReceived;
+	}
+
+	/**
+	 * getter for the snapshot bytes.
+	 * @return bytes of snapshot frames
+	 */
+	public long snapshotBytes() {
+		return this.snapshotBytes;
+	}
+
+	/**
+	 * Throws away the next deltas as if the network had lost them, to
+	 * try out gap handling.
+	 * @param count number of deltas to lose
+	 */
+	void loseDeltas(int count) {
+		this.toLose = count;
+	}
+
+	/**
+	 * Closes the socket.
+	 * @throws IOException if it cannot be closed
+	 */
+	@Override
+	public void close() throws IOException {
+		this.selector.close();
+		this.channel.close();
+	}
+
+	/**
+	 * Watches games and prints each board as it changes.
+	 * @param args command line args: port, then game ids
+	 * @throws IOException if the socket fails
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.out.println("Usage: java SpectatorClient port gameId...");
+			System.exit(0);
+		}
+		try (SpectatorClient client = new SpectatorClient("127.0.0.1", Integer.parseInt(args[0]))) {
+			Map<Long, Long> shown = new HashMap<>();
+			for (int i = 1; i < args.length; ++i) {
+				client.watch(Long.parseLong(args[i]));
+			}
+			while (true) {
+				client.receiveSome();
+				for (Map.Entry<Long, View> e : client.views.entrySet()) {
+					View v = e.getValue();
+					if (v.board != null && !Long.valueOf(v.sequence).equals(shown.get(e.getKey()))) {
+						shown.put(e.getKey(), v.sequence);
+						System.out.format("game %d move %d: %s%n", e.getKey(), v.sequence, PositionCodec.toText(v.board));
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,1145 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ *  Streams games to remote spectators over plain TCP on the loopback
+ *  address. A spectator asks to watch a game and gets one snapshot of the
+ *  position, then one small delta per move, so a move costs a few bytes
+ *  however big the board is.
+ *  Requests from a spectator are 9 bytes: a type (REQUEST_WATCH,
+ *  REQUEST_RESYNC or REQUEST_UNWATCH) and the game id as a big-endian long.
+ *  Frames to a spectator are a varint length, then a type, the game id
+ *  and a sequence number as varints, then the payload:
+ *    FRAME_SNAPSHOT  the win length as a byte and the position in the
+ *                    binary form of PositionCodec; the sequence is the
+ *                    number of events the game has published since its
+ *                    current spectators started watching
+ *    FRAME_DELTA     the move as a varint (see Move); its sequence is one
+ *                    more than the frame before
+ *    FRAME_END       the game is over or no longer watched
+ *    FRAME_UNKNOWN   there is no such game
+ *  A spectator that sees a sequence skip asks for a resync and gets a new
+ *  snapshot. Deltas for a spectator that has more than maxQueuedBytes
+ *  waiting are dropped, so a slow spectator costs memory only up to that
+ *  point and then resyncs.
+ *  Games are watched through a MoveEventBus, so the game thread never
+ *  waits for the network. A hosted game costs nothing more until someone
+ *  asks to watch it: then it gets a bus and a replica, and both go again
+ *  when its last spectator leaves. A publish on a bus puts the game on a
+ *  ready queue and wakes the selector thread, which accepts, reads
+ *  requests, takes the new moves of only the ready games into their
+ *  replicas, and writes frames through pooled direct buffers. Moves on a
+ *  watched
+ *  game, and resets, loads and undos, must be made while holding the
+ *  game's monitor, as GameServer does, so a snapshot can be taken in step
+ *  with the bus. A reset, load or undo has no delta: the game publishes a
+ *  RELOAD and every spectator gets a new snapshot.
+ *  Use with the command:
+ *      java SpectatorServer [port]
+ *  @author Adam David
+ */
+public class SpectatorServer {
+
+	/**
+	 * request to watch a game.
+	 */
+	public static final byte REQUEST_WATCH = 1;
+
+	/**
+	 * request for a new snapshot of a watched game.
+	 */
+	public static final byte REQUEST_RESYNC = 2;
+
+	/**
+	 * request to stop watching a game.
+	 */
+	public static final byte REQUEST_UNWATCH = 3;
+
+	/**
+	 * bytes of every request.
+	 */
+	public static final int REQUEST_BYTES = 9;
+
+	/**
+	 * frame with a whole position.
+	 */
+	public static final byte FRAME_SNAPSHOT = 1;
+
+	/**
+	 * frame with one move.
+	 */
+	public static final byte FRAME_DELTA = 2;
+
+	/**
+	 * frame saying a game is no longer streamed.
+	 */
+	public static final byte FRAME_END = 3;
+
+	/**
+	 * frame saying a game is not known.
+	 */
+	public static final byte FRAME_UNKNOWN = 4;
+
+	/**
+	 * events each game's bus holds before the replica has to resync.
+	 */
+	public static final int DEFAULT_BUS_CAPACITY = 1024;
+
+	/**
+	 * bytes that may wait for a spectator before its deltas are dropped, by default.
+	 */
+	public static final int DEFAULT_MAX_QUEUED_BYTES = 1 << 20;
+
+	/**
+	 * bytes of a pooled buffer.
+	 */
+	private static final int BUFFER_BYTES = 16 * 1024;
+
+	/**
+	 * most events taken off one bus at a time.
+	 */
+	private static final int MAX_EVENTS_PER_PUMP = 256;
+
+	/**
+	 * A hosted game, streamed while it has spectators.
+	 */
+	private static final class Watched {
+
+		/**
+		 * id of the game.
+		 */
+		private final long id;
+
+		/**
+		 * the game, moved by its own thread.
+		 */
+		private final PowerConnectFour game;
+
+		/**
+		 * bus the game publishes its moves to, null while nobody watches.
+		 */
+		private MoveEventBus bus;
+
+		/**
+		 * where the selector thread reads the bus, null while nobody watches.
+		 */
+		private MoveEventBus.Subscription subscription;
+
+		/**
+		 * copy of the game kept up to date from the bus, for snapshots, null while nobody watches.
+		 */
+		private PowerConnectFour replica;
+
+		/**
+		 * whether the game is on the ready queue, made with the first bus.
+		 */
+		private AtomicBoolean queued;
+
+		/**
+		 * events the replica has had since the bus was made.
+		 */
+		private long sequence;
+
+		/**
+		 * whether the replica no longer follows the game and has to be copied again.
+		 */
+		private boolean stale = false;
+
+		/**
+		 * spectators of the game.
+		 */
+		private final List<Connection> spectators = new ArrayList<>();
+
+		/**
+		 * a constructer for a hosted game nobody watches yet.
+		 * @param id id of the game
+		 * @param game the game
+		 */
+		Watched(long id, PowerConnectFour game) {
+			this.id = id;
+			this.game = game;
+		}
+	}
+
+	/**
+	 * One spectator's socket.
+	 */
+	private static final class Connection {
+
+		/**
+		 * the socket.
+		 */
+		private final SocketChannel channel;
+
+		/**
+		 * key of the socket in the selector.
+		 */
+		private SelectionKey key;
+
+		/**
+		 * requests read but not handled yet.
+		 */
+		private final ByteBuffer in;
+
+		/**
+		 * frames waiting to be written, each buffer in fill mode.
+		 */
+		private final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+
+		/**
+		 * bytes waiting to be written.
+		 */
+		private int queued = 0;
+
+		/**
+		 * whether the connection is on the list of connections to flush.
+		 */
+		private boolean dirty = false;
+
+		/**
+		 * ids of the games this spectator watches.
+		 */
+		private final Set<Long> watching = new HashSet<>();
+
+		/**
+		 * a constructer for a new spectator.
+		 * @param channel the socket
+		 * @param in buffer for requests
+		 */
+		Connection(SocketChannel channel, ByteBuffer in) {
+			this.channel = channel;
+			this.in = in;
+		}
+	}
+
+	/**
+	 * the listening socket.
+	 */
+	private final ServerSocketChannel acceptor;
+
+	/**
+	 * the selector of every socket.
+	 */
+	private final Selector selector;
+
+	/**
+	 * events each game's bus holds.
+	 */
+	private final int busCapacity;
+
+	/**
+	 * bytes that may wait for a spectator before its deltas are dropped.
+	 */
+	private final int maxQueuedBytes;
+
+	/**
+	 * watch and unwatch calls for the selector thread to carry out.
+	 */
+	private final ConcurrentLinkedQueue<Runnable> commands = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * games being hosted, by id, only used by the selector thread.
+	 */
+	private final Map<Long, Watched> games = new HashMap<>();
+
+	/**
+	 * watched games with events to read, added to by the game threads.
+	 */
+	private final ConcurrentLinkedQueue<Watched> ready = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * connections with frames to write, only used by the selector thread.
+	 */
+	private final List<Connection> dirty = new ArrayList<>();
+
+	/**
+	 * free direct buffers, only used by the selector thread.
+	 */
+	private final ArrayDeque<ByteBuffer> pool = new ArrayDeque<>();
+
+	/**
+	 * scratch buffer for one frame.
+	 */
+	private ByteBuffer frame = ByteBuffer.allocate(BUFFER_BYTES);
+
+	/**
+	 * the game whose bus is being read.
+	 */
+	private Watched pumping;
+
+	/**
+	 * the selector thread, null until started.
+	 */
+	private Thread thread;
+
+	/**
+	 * whether the selector thread should keep going.
+	 */
+	private volatile boolean running = false;
+
+	/**
+	 * frames written or queued.
+	 */
+	private volatile long framesSent = 0;
+
+	/**
+	 * deltas dropped for slow spectators.
+	 */
+	private volatile long framesDropped = 0;
+
+	/**
+	 * snapshots sent because of a resync.
+	 */
+	private volatile long resyncs = 0;
+
+	/**
+	 * bytes written to sockets.
+	 */
+	private volatile long bytesSent = 0;
+
+	/**
+	 * direct buffers made for the pool.
+	 */
+	private volatile int buffersMade = 0;
+
+	/**
+	 * a constructer for a server with default limits.
+	 * @param port port to listen on, 0 picks a free one
+	 * @throws IOException if the port cannot be opened
+	 */
+	public SpectatorServer(int port) throws IOException {
+		this(port, DEFAULT_BUS_CAPACITY, DEFAULT_MAX_QUEUED_BYTES);
+	}
+
+	/**
+	 * a constructer for a server on the loopback address.
+	 * @param port port to listen on, 0 picks a free one
+	 * @param busCapacity moves each game's bus holds before a replica has to resync
+	 * @param maxQueuedBytes bytes that may wait for a spectator before its deltas are dropped
+	 * @throws IOException if the port cannot be opened
+	 */
+	public SpectatorServer(int port, int busCapacity, int maxQueuedBytes) throws IOException {
+		if (maxQueuedBytes < BUFFER_BYTES) {
+			throw new IllegalArgumentException("Spectators must be allowed at least " + BUFFER_BYTES + " queued bytes");
+		}
+		this.busCapacity = busCapacity;
+		this.maxQueuedBytes = maxQueuedBytes;
+		this.selector = Selector.open();
+		this.acceptor = ServerSocketChannel.open();
+		this.acceptor.bind(new InetSocketAddress("127.0.0.1", port), 1024);
+		this.acceptor.configureBlocking(false);
+		this.acceptor.register(this.selector, SelectionKey.OP_ACCEPT);
+	}
+
+	/**
+	 * Starts the selector thread.
+	 */
+	public void start() {
+		this.running = true;
+		this.thread = new Thread(this::run, "spectators");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Stops the selector thread and closes every socket.
+	 */
+	public void stop() {
+		this.running = false;
+		this.selector.wakeup();
+		try {
+			if (this.thread != null) {
+				this.thread.join(1000);
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * getter for the port.
+	 * @return the port the server listens on
+	 */
+	public int port() {
+		try {
+			return ((InetSocketAddress) this.acceptor.getLocalAddress()).getPort();
+		}
+		catch (IOException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Hosts a game so spectators can ask for it. Call it before or between
+	 * moves; the game gets a MoveEventBus of its own while it is watched.
+	 * @param id id spectators ask for
+	 * @param game the game
+	 */
+	public void watch(long id, PowerConnectFour game) {
+		this.commands.add(() -> attach(id, game));
+		this.selector.wakeup();
+	}
+
+	/**
+	 * Stops hosting a game. Moves made before the call still reach the
+	 * spectators, then they get FRAME_END.
+	 * @param id id of the game
+	 */
+	public void unwatch(long id) {
+		this.commands.add(() -> detach(id));
+		this.selector.wakeup();
+	}
+
+	/**
+	 * getter for the number of frames sent.
+	 * @return frames queued for spectators
+	 */
+	public long framesSent() {
+		return this.framesSent;
+	}
+
+	/**
+	 * getter for the number of frames dropped.
+	 * @return deltas dropped for slow spectators
+	 */
+	public long framesDropped() {
+		return this.framesDropped;
+	}
+
+	/**
+	 * getter for the number of resyncs.
+	 * @return snapshots sent because a spectator asked again
+	 */
+	public long resyncs() {
+		return this.resyncs;
+	}
+
+	/**
+	 * getter for the number of bytes sent.
+	 * @return bytes written to sockets
+	 */
+	public long bytesSent() {
+		return this.bytesSent;
+	}
+
+	/**
+	 * Counts the games that have a bus, on the selector thread.
+	 * @return games being streamed to at least one spectator
+	 * @throws InterruptedException if interrupted while waiting for the count
+	 */
+	int streaming() throws InterruptedException {
+		java.util.concurrent.CompletableFuture<Integer> count = new java.util.concurrent.CompletableFuture<>();
+		this.commands.add(() -> {
+			int n = 0;
+			for (Watched w : this.games.values()) {
+				n += w.bus != null ? 1 : 0;
+			}
+			count.complete(n);
+		});
+		this.selector.wakeup();
+		try {
+			return count.get();
+		}
+		catch (java.util.concurrent.ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * getter for the number of pooled buffers.
+	 * @return direct buffers made, the most ever in use at once
+	 */
+	public int buffersMade() {
+		return this.buffersMade;
+	}
+
+	/**
+	 * The selector thread: commands, then sockets, then the ready buses, then writes.
+	 */
+	private void run() {
+		Pump pump = new Pump();
+		try {
+			while (this.running) {
+				this.selector.select();
+				//a watch is queued before anyone can ask for the game, so run it first
+				for (Runnable command = this.commands.poll(); command != null; command = this.commands.poll()) {
+					command.run();
+				}
+				Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					try {
+						if (key.isAcceptable()) {
+							accept();
+						}
+						else {
+							if (key.isReadable()) {
+								read((Connection) key.attachment());
+							}
+							if (key.isValid() && key.isWritable()) {
+								flush((Connection) key.attachment());
+							}
+						}
+					}
+					catch (IOException e) {
+						if (key.attachment() != null) {
+							close((Connection) key.attachment());
+						}
+					}
+				}
+				for (Watched w = this.ready.poll(); w != null; w = this.ready.poll()) {
+					//a publish from here on queues the game again
+					w.queued.set(false);
+					if (w.bus != null) {
+						pump(w, pump);
+					}
+				}
+				for (int i = 0; i < this.dirty.size(); ++i) {
+					Connection c = this.dirty.get(i);
+					c.dirty = false;
+					try {
+						flush(c);
+					}
+					catch (IOException e) {
+						close(c);
+					}
+				}
+				this.dirty.clear();
+			}
+		}
+		catch (IOException | ClosedSelectorException e) {
+			//the server is going away
+		}
+		finally {
+			for (SelectionKey key : this.selector.keys()) {
+				try {
+					key.channel().close();
+				}
+				catch (IOException e) {
+					//closing anyway
+				}
+			}
+			try {
+				this.selector.close();
+			}
+			catch (IOException e) {
+				//closing anyway
+			}
+		}
+	}
+
+	/**
+	 * Takes a spectator's socket.
+	 * @throws IOException if it cannot be set up
+	 */
+	private void accept() throws IOException {
+		SocketChannel channel = this.acceptor.accept();
+		if (channel == null) {
+			return;
+		}
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		Connection c = new Connection(channel, ByteBuffer.allocate(REQUEST_BYTES * 64));
+		c.key = channel.register(this.selector, SelectionKey.OP_READ, c);
+	}
+
+	/**
+	 * Reads and handles a spectator's requests.
+	 * @param c the spectator
+	 * @throws IOException if the socket fails
+	 */
+	private void read(Connection c) throws IOException {
+		if (c.channel.read(c.in) < 0) {
+			close(c);
+			return;
+		}
+		c.in.flip();
+		while (c.in.remaining() >= REQUEST_BYTES) {
+			byte type = c.in.get();
+			long id = c.in.getLong();
+			Watched w = this.games.get(id);
+			if (type == REQUEST_UNWATCH) {
+				c.watching.remove(id);
+				if (w != null) {
+					leave(w, c);
+				}
+			}
+			else if (w == null) {
+				send(c, FRAME_UNKNOWN, id, 0, null, 0);
+			}
+			else if (type == REQUEST_RESYNC) {
+				if (w.spectators.contains(c)) {
+					++this.resyncs;
+					snapshot(c, w);
+				}
+			}
+			else if (w.bus != null || stream(w)) {
+				if (c.watching.add(id)) {
+					w.spectators.add(c);
+				}
+				snapshot(c, w);
+			}
+			else {
+				send(c, FRAME_END, id, 0, null, 0);
+			}
+		}
+		c.in.compact();
+	}
+
+	/**
+	 * Closes a spectator's socket and forgets it.
+	 * @param c the spectator
+	 */
+	private void close(Connection c) {
+		for (long id : c.watching) {
+			Watched w = this.games.get(id);
+			if (w != null) {
+				leave(w, c);
+			}
+		}
+		c.watching.clear();
+		for (ByteBuffer b : c.out) {
+			give(b);
+		}
+		c.out.clear();
+		c.queued = 0;
+		if (c.key != null) {
+			c.key.cancel();
+		}
+		try {
+			c.channel.close();
+		}
+		catch (IOException e) {
+			//closing anyway
+		}
+	}
+
+	/**
+	 * Hosts a game, on the selector thread.
+	 * @param id id of the game
+	 * @param game the game
+	 */
+	private void attach(long id, PowerConnectFour game) {
+		if (this.games.containsKey(id)) {
+			detach(id);
+		}
+		this.games.put(id, new Watched(id, game));
+	}
+
+	/**
+	 * Stops hosting a game, on the selector thread.
+	 * @param id id of the game
+	 */
+	private void detach(long id) {
+		Watched w = this.games.remove(id);
+		if (w == null || w.bus == null) {
+			return;
+		}
+		pump(w, new Pump());
+		for (Connection c : w.spectators) {
+			c.watching.remove(id);
+			send(c, FRAME_END, id, w.sequence, null, 0);
+		}
+		w.spectators.clear();
+		unstream(w);
+	}
+
+	/**
+	 * Gives a game its bus and replica for its first spectator.
+	 * @param w the game
+	 * @return whether it can be streamed; a board too big to publish cannot
+	 */
+	private boolean stream(Watched w) {
+		MoveEventBus bus = new MoveEventBus(this.busCapacity);
+		if (w.queued == null) {
+			w.queued = new AtomicBoolean();
+		}
+		AtomicBoolean queued = w.queued;
+		bus.onPublish(() -> {
+			if (queued.compareAndSet(false, true)) {
+				this.ready.add(w);
+				this.selector.wakeup();
+			}
+		});
+		synchronized (w.game) {
+			try {
+				w.game.setEventBus(bus);
+			}
+			catch (IllegalArgumentException e) {
+				return false;
+			}
+			w.bus = bus;
+			resubscribe(w);
+		}
+		return true;
+	}
+
+	/**
+	 * Takes a game's bus and replica away once nobody watches it.
+	 * @param w the game
+	 */
+	private static void unstream(Watched w) {
+		synchronized (w.game) {
+			w.game.setEventBus(null);
+		}
+		w.subscription.close();
+		w.subscription = null;
+		w.bus = null;
+		w.replica = null;
+		w.stale = false;
+	}
+
+	/**
+	 * Takes a spectator off a game, and stops streaming it if it was the last.
+	 * @param w the game
+	 * @param c the spectator
+	 */
+	private static void leave(Watched w, Connection c) {
+		if (w.spectators.remove(c) && w.spectators.isEmpty()) {
+			unstream(w);
+		}
+	}
+
+	/**
+	 * Copies the game and reads its bus from the next move on. Must hold
+	 * the game's monitor, so no move falls between the two.
+	 * @param w the game
+	 */
+	private static void resubscribe(Watched w) {
+		if (w.subscription != null) {
+			w.subscription.close();
+		}
+		w.replica = new PowerConnectFour(w.game);
+		w.subscription = w.bus.subscribe();
+		w.sequence = w.bus.published();
+	}
+
+	/**
+	 * Reads the bus of one game into its replica and the spectators. A
+	 * RELOAD, or a move the replica cannot play, makes the replica stale.
+	 */
+	private final class Pump implements MoveEventBus.Handler {
+
+		@Override
+		public void onEvent(long sequence, int kind, int col, int row, Token player, int height) {
+			Watched w = pumping;
+			if (w.stale) {
+				return;
+			}
+			if (kind == MoveEventBus.RELOAD) {
+				w.stale = true;
+				return;
+			}
+			//drops and pops do not need the row
+			int move = Move.of(kind, col, kind == Move.DROP || kind == Move.POP ? 0 : row);
+			if (!w.replica.apply(move)) {
+				w.stale = true;
+				return;
+			}
+			w.sequence = sequence + 1;
+			for (int i = 0; i < w.spectators.size(); ++i) {
+				send(w.spectators.get(i), FRAME_DELTA, w.id, w.sequence, null, move);
+			}
+		}
+	}
+
+	/**
+	 * Reads what is new on a game's bus. If the bus lapped the replica or
+	 * the replica went stale, it is copied from the game again and every
+	 * spectator gets a snapshot.
+	 * @param w the game
+	 * @param pump handler for the events
+	 */
+	private void pump(Watched w, Pump pump) {
+		this.pumping = w;
+		while (w.subscription.poll(pump, MAX_EVENTS_PER_PUMP) == MAX_EVENTS_PER_PUMP && !w.stale) {
+			continue;
+		}
+		if (w.stale || w.subscription.dropped() > 0) {
+			synchronized (w.game) {
+				resubscribe(w);
+			}
+			w.stale = false;
+			for (Connection c : w.spectators) {
+				snapshot(c, w);
+			}
+		}
+	}
+
+	/**
+	 * Sends a snapshot of a game's replica.
+	 * @param c the spectator
+	 * @param w the game
+	 */
+	private void snapshot(Connection c, Watched w) {
+		send(c, FRAME_SNAPSHOT, w.id, w.sequence, PositionCodec.toBytes(w.replica), w.replica.winLength());
+	}
+
+	/**
+	 * Queues one frame for a spectator. Deltas are dropped while too much
+	 * is waiting.
+	 * @param c the spectator
+	 * @param type type of frame
+	 * @param id id of the game
+	 * @param sequence sequence of the frame
+	 * @param position position for a snapshot, else null
+	 * @param value win length for a snapshot, move for a delta
+	 */
+	private void send(Connection c, byte type, long id, long sequence, byte[] position, int value) {
+		if (type == FRAME_DELTA && c.queued > this.maxQueuedBytes) {
+			++this.framesDropped;
+			return;
+		}
+		int most = 1 + 2 * 10 + 5 + (position == null ? 0 : 1 + position.length);
+		if (this.frame.capacity() < most + 5) {
+			this.frame = ByteBuffer.allocate(most + 5);
+		}
+		ByteBuffer body = this.frame;
+		body.clear();
+		body.put(type);
+		putVarint(body, id);
+		putVarint(body, sequence);
+		if (position != null) {
+			body.put((byte) value).put(position);
+		}
+		else if (type == FRAME_DELTA) {
+			putVarint(body, value);
+		}
+		int length = body.position();
+		body.flip();
+		int total = length + varintBytes(length);
+		ByteBuffer tail = c.out.peekLast();
+		if (tail == null || tail.remaining() < total) {
+			tail = total <= BUFFER_BYTES ? take() : ByteBuffer.allocateDirect(total);
+			c.out.add(tail);
+		}
+		putVarint(tail, length);
+		tail.put(body);
+		c.queued += total;
+		++this.framesSent;
+		if (!c.dirty) {
+			c.dirty = true;
+			this.dirty.add(c);
+		}
+	}
+
+	/**
+	 * Writes what a spectator's socket takes, and asks to hear when it
+	 * takes more if something is left.
+	 * @param c the spectator
+	 * @throws IOException if the socket fails
+	 */
+	private void flush(Connection c) throws IOException {
+		while (!c.out.isEmpty()) {
+			ByteBuffer b = c.out.peekFirst();
+			b.flip();
+			int written = c.channel.write(b);
+			c.queued -= written;
+			this.bytesSent += written;
+			if (b.hasRemaining()) {
+				b.compact();
+				break;
+			}
+			c.out.pollFirst();
+			give(b);
+		}
+		if (c.key.isValid()) {
+			c.key.interestOps(c.out.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+	}
+
+	/**
+	 * Takes a buffer from the pool, making one if it is empty.
+	 * @return an empty buffer in fill mode
+	 */
+	private ByteBuffer take() {
+		ByteBuffer b = this.pool.pollFirst();
+		if (b == null) {
+			++this.buffersMade;
+			b = ByteBuffer.allocateDirect(BUFFER_BYTES);
+		}
+		return b;
+	}
+
+	/**
+	 * Puts a buffer back in the pool.
+	 * @param b the buffer, oversized ones are left to the garbage collector
+	 */
+	private void give(ByteBuffer b) {
+		if (b.capacity() == BUFFER_BYTES) {
+			b.clear();
+			this.pool.addFirst(b);
+		}
+	}
+
+	/**
+	 * Writes an unsigned varint, 7 bits per byte, low bits first.
+	 * @param out where to write
+	 * @param value the value, not negative
+	 */
+	static void putVarint(ByteBuffer out, long value) {
+		while ((value & ~0x7FL) != 0) {
+			out.put((byte) (value & 0x7F | 0x80));
+			value >>>= 7;
+		}
+		out.put((byte) value);
+	}
+
+	/**
+	 * Reads an unsigned varint.
+	 * @param in where to read, moved past the varint
+	 * @return the value, or -1 if the buffer ends first
+	 */
+	static long getVarint(ByteBuffer in) {
+		long value = 0;
+		int start = in.position();
+		for (int shift = 0; shift < 64; shift += 7) {
+			if (!in.hasRemaining()) {
+				in.position(start);
+				return -1;
+			}
+			byte b = in.get();
+			value |= (long) (b & 0x7F) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("Varint is too long");
+	}
+
+	/**
+	 * Number of bytes a varint takes.
+	 * @param value the value, not negative
+	 * @return bytes
+	 */
+	private static int varintBytes(long value) {
+		int bytes = 1;
+		while ((value & ~0x7FL) != 0) {
+			value >>>= 7;
+			++bytes;
+		}
+		return bytes;
+	}
+
+	//******************************************************
+	//*******     BELOW THIS LINE IS TESTING CODE    *******
+	//******************************************************
+
+	/**
+	 * Main is testing snapshots and deltas, gaps, many games and buses made
+	 * only for watched games, or with a port serves random games being
+	 * played until stopped.
+	 * @param args command line args: a port to serve on, or none to test
+	 * @throws Exception if a socket fails
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length > 0) {
+			SpectatorServer server = new SpectatorServer(Integer.parseInt(args[0]));
+			server.start();
+			System.out.println("Spectators on 127.0.0.1:" + server.port() + ", games 1 to 100");
+			java.util.Random random = new java.util.Random();
+			PowerConnectFour[] games = new PowerConnectFour[100];
+			for (int g = 0; g < games.length; ++g) {
+				games[g] = new PowerConnectFour();
+				server.watch(g + 1, games[g]);
+			}
+			int[] moves = new int[4096];
+			while (true) {
+				Thread.sleep(10);
+				PowerConnectFour game = games[random.nextInt(games.length)];
+				synchronized (game) {
+					if (game.isGameOver() || game.isDrawByRepetition()) {
+						game.reset();
+					}
+					game.apply(moves[random.nextInt(game.legalMoves(moves))]);
+				}
+			}
+		}
+
+		SpectatorServer server = new SpectatorServer(0);
+		server.start();
+		java.util.Random random = new java.util.Random(50);
+		int[] moves = new int[4096];
+		try (SpectatorClient early = new SpectatorClient("127.0.0.1", server.port())) {
+			//a spectator from the start and one that joins late see the same board
+			PowerConnectFour game = new PowerConnectFour();
+			server.watch(1, game);
+			early.watch(1);
+			early.receive(1, 0);
+			int played = 0;
+			for (; played < 30 && !game.isGameOver(); ++played) {
+				synchronized (game) {
+					game.apply(moves[random.nextInt(game.legalMoves(moves))]);
+				}
+			}
+			try (SpectatorClient late = new SpectatorClient("127.0.0.1", server.port())) {
+				late.watch(1);
+				early.receive(1, played);
+				late.receive(1, played);
+				if (early.board(1).positionHash() == game.positionHash() && late.board(1).positionHash() == game.positionHash()
+					&& early.snapshots() == 1 && late.snapshots() == 1 && early.deltas() == early.sequence(1)) {
+					System.out.println("Yay 1");
+				}
+			}
+
+			//lost deltas show up as a gap and a resync puts the board right
+			PowerConnectFour second = new PowerConnectFour();
+			second.setRepetitionLimit(0);
+			server.watch(2, second);
+			early.watch(2);
+			early.receive(2, 0);
+			early.loseDeltas(3);
+			played = 0;
+			for (; played < 20 && !second.isGameOver(); ++played) {
+				synchronized (second) {
+					second.apply(moves[random.nextInt(second.legalMoves(moves))]);
+				}
+			}
+			early.receive(2, played);
+			server.unwatch(2);
+			early.awaitEnd(2);
+			if (early.gaps() == 1 && early.snapshots() == 3 && early.board(2).positionHash() == second.positionHash()
+				&& early.ended(2) && server.resyncs() == 1) {
+				System.out.println("Yay 2");
+			}
+		}
+
+		//many games at once, deltas stay a few bytes each
+		int count = 2000;
+		PowerConnectFour[] games = new PowerConnectFour[count];
+		for (int g = 0; g < count; ++g) {
+			games[g] = new PowerConnectFour();
+			server.watch(100 + g, games[g]);
+		}
+		try (SpectatorClient many = new SpectatorClient("127.0.0.1", server.port())) {
+			for (int g = 0; g < count; ++g) {
+				many.watch(100 + g);
+			}
+			for (int g = 0; g < count; ++g) {
+				many.receive(100 + g, 0);
+			}
+			int[] lengths = new int[count];
+			for (int round = 0; round < 20; ++round) {
+				for (int g = 0; g < count; ++g) {
+					PowerConnectFour game = games[g];
+					synchronized (game) {
+						if (!game.isGameOver() && !game.isDrawByRepetition()) {
+							game.apply(moves[random.nextInt(game.legalMoves(moves))]);
+							++lengths[g];
+						}
+					}
+				}
+			}
+			boolean same = true;
+			long totalMoves = 0;
+			for (int g = 0; g < count; ++g) {
+				many.receive(100 + g, lengths[g]);
+				same = same && many.board(100 + g).positionHash() == games[g].positionHash();
+				totalMoves += lengths[g];
+			}
+			long deltaBytes = many.bytesReceived() - many.snapshotBytes();
+			if (same && many.gaps() == 0 && deltaBytes < totalMoves * 12 && server.buffersMade() < 20) {
+				System.out.println("Yay 3");
+			}
+		}
+
+		//a reset, an undo and a load have no delta, spectators get a snapshot of each
+		PowerConnectFour third = new PowerConnectFour();
+		server.watch(3, third);
+		try (SpectatorClient client = new SpectatorClient("127.0.0.1", server.port())) {
+			client.watch(3);
+			client.receive(3, 0);
+			synchronized (third) {
+				third.drop(0);
+				third.drop(0);
+				third.drop(0);
+				third.reset();
+				third.drop(1);
+			}
+			boolean reset = caughtUp(client, 3, third) && third.getColumn(0).size() == 0;
+			synchronized (third) {
+				third.drop(2);
+				third.drop(3);
+				third.undo(Move.drop(3));
+			}
+			boolean undone = caughtUp(client, 3, third);
+			synchronized (third) {
+				PositionCodec.loadText("Y:RY,,Y,R,,,", third);
+			}
+			boolean loaded = caughtUp(client, 3, third);
+			synchronized (third) {
+				third.drop(4);
+			}
+			if (reset && undone && loaded && caughtUp(client, 3, third) && client.gaps() == 0 && client.snapshots() >= 4) {
+				System.out.println("Yay 4");
+			}
+		}
+
+		//games nobody watches have no bus, one gets a bus while watched and loses it after
+		for (int g = 0; g < 10000; ++g) {
+			server.watch(100000 + g, new PowerConnectFour());
+		}
+		PowerConnectFour fourth = new PowerConnectFour();
+		server.watch(4, fourth);
+		boolean idle = server.streaming() == 0;
+		try (SpectatorClient client = new SpectatorClient("127.0.0.1", server.port())) {
+			client.watch(4);
+			client.receive(4, 0);
+			boolean one = server.streaming() == 1;
+			client.unwatch(4);
+			int left = server.streaming();
+			for (int tries = 0; tries < 100 && left != 0; ++tries) {
+				Thread.sleep(10);
+				left = server.streaming();
+			}
+			synchronized (fourth) {
+				fourth.drop(5);
+			}
+			client.watch(4);
+			synchronized (fourth) {
+				fourth.drop(6);
+			}
+			if (idle && one && left == 0 && caughtUp(client, 4, fourth) && server.streaming() == 1) {
+				System.out.println("Yay 5");
+			}
+		}
+		server.stop();
+	}
+
+	/**
+	 * Handles frames until a spectator's board matches a game.
+	 * @param client the spectator
+	 * @param id id of the game
+	 * @param game the game, which must have changed since the board last matched
+	 * @return true, or an IOException if frames stop coming first
+	 * @throws IOException if the socket fails or nothing comes for too long
+	 */
+	private static boolean caughtUp(SpectatorClient client, long id, PowerConnectFour game) throws IOException {
+		long hash;
+		synchronized (game) {
+			hash = game.positionHash();
+		}
+		while (client.board(id) == null || client.board(id).positionHash() != hash) {
+			client.receiveSome();
+		}
+		return true;
+	}
+}
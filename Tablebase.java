@@ -0,0 +1,922 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ *  Endgame tablebase for the height-capped variant, where no column may
+ *  grow past a fixed height, so drops and power drops into a full column
+ *  are illegal. Every position of a small board gets its exact result for
+ *  the player to move: win, loss or draw, and for wins and losses the
+ *  number of plies to the end with best play on both sides.
+ *  A position is indexed by a perfect hash: each column is written as a
+ *  marker bit above its tokens (bit set for yellow), the columns are
+ *  concatenated, and the player to move is the lowest bit. The table file
+ *  holds only the result, 2 bits per entry. The distances go to a second,
+ *  optional file of 4 bits per entry when every distance fits and 8
+ *  otherwise; without it a bot still knows what every move leads to, but
+ *  not which win is fastest. Both files are memory mapped, so a probe is
+ *  one read.
+ *  Generation starts from the positions where someone has connected and
+ *  works backwards one ply per round: a position is a win in k if some
+ *  move leads to a loss in k-1, and a loss in k if every move leads to a
+ *  win no longer than k-1. Pops and power pops take tokens away, so
+ *  results do not follow the number of tokens on the board; instead each
+ *  round is split into index ranges that run in parallel. Whatever is not
+ *  decided when a round changes nothing is a draw.
+ *  @author Adam David
+ */
+public class Tablebase {
+
+	/**
+	 * the player to move draws with best play.
+	 */
+	public static final int DRAW = 0;
+
+	/**
+	 * the player to move wins with best play.
+	 */
+	public static final int WIN = 1;
+
+	/**
+	 * the player to move loses with best play.
+	 */
+	public static final int LOSS = 2;
+
+	/**
+	 * first bytes of every tablebase file.
+	 */
+	private static final long MAGIC = 0x5043345442303032L;
+
+	/**
+	 * first bytes of every distance file.
+	 */
+	private static final long DISTANCE_MAGIC = 0x5043345444303031L;
+
+	/**
+	 * bits per entry of the table file.
+	 */
+	private static final int RESULT_BITS = 2;
+
+	/**
+	 * bytes before the first entry.
+	 */
+	private static final int HEADER_BYTES = 32;
+
+	/**
+	 * most bits of index a table may use, so 8 bit distances still map.
+	 */
+	private static final int MAX_INDEX_BITS = 30;
+
+	/**
+	 * index ranges per generation round.
+	 */
+	private static final int CHUNKS = 256;
+
+	/**
+	 * value of a loss in 0 plies; a win in d plies is d + 1.
+	 */
+	private static final int LOSS_BASE = 128;
+
+	/**
+	 * the board the table is for.
+	 */
+	private final Rules rules;
+
+	/**
+	 * the mapped table file, header included.
+	 */
+	private final MappedByteBuffer results;
+
+	/**
+	 * bits per entry of the distance file, 4 or 8, 0 without one.
+	 */
+	private final int distanceBits;
+
+	/**
+	 * the mapped distance file, header included, null without one.
+	 */
+	private final MappedByteBuffer distances;
+
+	/**
+	 * a constructer for a table over mapped files.
+	 * @param results the mapped table file
+	 * @param distances the mapped distance file, or null
+	 */
+	private Tablebase(MappedByteBuffer results, MappedByteBuffer distances) {
+		if (results.capacity() < HEADER_BYTES || results.getLong(0) != MAGIC) {
+			throw new IllegalArgumentException("Not a tablebase file");
+		}
+		this.rules = new Rules(results.getInt(8), results.getInt(12), results.getInt(16));
+		if (results.getInt(20) != RESULT_BITS || results.capacity() < HEADER_BYTES + entryBytes(this.rules.size(), RESULT_BITS)) {
+			throw new IllegalArgumentException("Tablebase file is cut short");
+		}
+		this.results = results;
+		if (distances == null) {
+			this.distanceBits = 0;
+		}
+		else {
+			if (distances.capacity() < HEADER_BYTES || distances.getLong(0) != DISTANCE_MAGIC) {
+				throw new IllegalArgumentException("Not a tablebase distance file");
+			}
+			if (distances.getInt(8) != this.rules.cols || distances.getInt(12) != this.rules.height
+				|| distances.getInt(16) != this.rules.winLength) {
+				throw new IllegalArgumentException("Distance file is for another board");
+			}
+			this.distanceBits = distances.getInt(20);
+			if ((this.distanceBits != 4 && this.distanceBits != 8)
+				|| distances.capacity() < HEADER_BYTES + entryBytes(this.rules.size(), this.distanceBits)) {
+				throw new IllegalArgumentException("Distance file is cut short");
+			}
+		}
+		this.distances = distances;
+	}
+
+	/**
+	 * Maps a tablebase file for lookups of results only.
+	 * @param file table file written by generate
+	 * @return the table
+	 * @throws IOException if the file cannot be read
+	 */
+	public static Tablebase open(Path file) throws IOException {
+		return open(file, null);
+	}
+
+	/**
+	 * Maps a tablebase file and its distances for lookups.
+	 * @param file table file written by generate
+	 * @param distanceFile distance file written by generate, or null
+	 * @return the table
+	 * @throws IOException if a file cannot be read
+	 */
+	public static Tablebase open(Path file, Path distanceFile) throws IOException {
+		return new Tablebase(map(file), distanceFile == null ? null : map(distanceFile));
+	}
+
+	/**
+	 * Maps a whole file read only.
+	 * @param file the file
+	 * @return the mapping
+	 * @throws IOException if the file cannot be read
+	 */
+	private static MappedByteBuffer map(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+	}
+
+	/**
+	 * Works out every position of a capped board and writes the table,
+	 * and the distances if asked for.
+	 * @param file table file to write, replaced if it exists
+	 * @param distanceFile distance file to write, replaced if it exists, or null for none
+	 * @param cols number of columns
+	 * @param height most tokens a column may hold
+	 * @param winLength tokens in a row needed to win
+	 * @param pool pool the rounds run on
+	 * @return the table, mapped from the file
+	 * @throws IOException if the file cannot be written
+	 */
+	public static Tablebase generate(Path file, Path distanceFile, int cols, int height, int winLength, ForkJoinPool pool)
+			throws IOException {
+		Rules rules = new Rules(cols, height, winLength);
+		byte[] values = new byte[rules.size()];
+		int chunk = (values.length + CHUNKS - 1) / CHUNKS;
+
+		int changed = inParallel(pool, values.length, chunk, (from, to) -> {
+			int found = 0;
+			for (int index = from; index < to; ++index) {
+				if (rules.valid(index)) {
+					values[index] = (byte) rules.terminal(index);
+					found += values[index] != 0 ? 1 : 0;
+				}
+			}
+			return found;
+		});
+		for (int k = 1; changed > 0; ++k) {
+			if (k >= LOSS_BASE - 1) {
+				throw new IllegalStateException("Distance " + k + " does not fit in the table");
+			}
+			int plies = k;
+			changed = inParallel(pool, values.length, chunk, (from, to) -> resolve(rules, values, plies, from, to));
+		}
+
+		try (FileChannel channel = create(file)) {
+			MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + entryBytes(values.length, RESULT_BITS));
+			header(out, MAGIC, rules, RESULT_BITS);
+			for (int index = 0; index < values.length; ++index) {
+				int v = values[index] & 0xFF;
+				if (v != 0) {
+					int at = HEADER_BYTES + (index >>> 2);
+					out.put(at, (byte) (out.get(at) | result(v) << ((index & 3) * 2)));
+				}
+			}
+			out.force();
+		}
+		if (distanceFile == null) {
+			return open(file);
+		}
+
+		int bits = 4;
+		for (byte value : values) {
+			int v = value & 0xFF;
+			if ((v < LOSS_BASE && v > 7) || v > LOSS_BASE + 7) {
+				bits = 8;
+				break;
+			}
+		}
+		try (FileChannel channel = create(distanceFile)) {
+			MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + entryBytes(values.length, bits));
+			header(out, DISTANCE_MAGIC, rules, bits);
+			for (int index = 0; index < values.length; ++index) {
+				int v = values[index] & 0xFF;
+				if (bits == 8) {
+					out.put(HEADER_BYTES + index, (byte) v);
+				}
+				else if (v != 0) {
+					int nibble = v >= LOSS_BASE ? v - LOSS_BASE + 8 : v;
+					int at = HEADER_BYTES + (index >>> 1);
+					out.put(at, (byte) (out.get(at) | nibble << ((index & 1) * 4)));
+				}
+			}
+			out.force();
+		}
+		return open(file, distanceFile);
+	}
+
+	/**
+	 * Opens a file to write, replacing it if it exists.
+	 * @param file the file
+	 * @return the open channel
+	 * @throws IOException if the file cannot be opened
+	 */
+	private static FileChannel create(Path file) throws IOException {
+		return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+			StandardOpenOption.READ, StandardOpenOption.WRITE);
+	}
+
+	/**
+	 * Writes the header of a file.
+	 * @param out the mapped file
+	 * @param magic first bytes of the file
+	 * @param rules the board
+	 * @param bits bits per entry
+	 */
+	private static void header(MappedByteBuffer out, long magic, Rules rules, int bits) {
+		out.putLong(0, magic);
+		out.putInt(8, rules.cols);
+		out.putInt(12, rules.height);
+		out.putInt(16, rules.winLength);
+		out.putInt(20, bits);
+	}
+
+	/**
+	 * One generation round over a range of indices.
+	 * @param rules the board
+	 * @param values value of every position so far, 0 if not decided
+	 * @param k distance being decided this round
+	 * @param from first index
+	 * @param to index after the last
+	 * @return number of positions decided
+	 */
+	private static int resolve(Rules rules, byte[] values, int k, int from, int to) {
+		int[] children = new int[rules.maxChildren()];
+		int found = 0;
+		for (int index = from; index < to; ++index) {
+			if (values[index] != 0 || !rules.valid(index)) {
+				continue;
+			}
+			int n = rules.children(index, children, null);
+			boolean allWin = n > 0;
+			boolean win = false;
+			for (int i = 0; i < n; ++i) {
+				int v = values[children[i]] & 0xFF;
+				if (v >= LOSS_BASE) {
+					//a loss decided this round is k plies away, too far for now
+					if (v - LOSS_BASE == k - 1) {
+						win = true;
+						break;
+					}
+					allWin = false;
+				}
+				else if (v == 0 || v - 1 > k - 1) {
+					allWin = false;
+				}
+			}
+			if (win) {
+				values[index] = (byte) (k + 1);
+				++found;
+			}
+			else if (allWin) {
+				values[index] = (byte) (LOSS_BASE + k);
+				++found;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Work on one range of indices.
+	 */
+	private interface Range {
+
+		/**
+		 * Does the work.
+		 * @param from first index
+		 * @param to index after the last
+		 * @return number of positions decided
+		 */
+		int run(int from, int to);
+	}
+
+	/**
+	 * Runs a range task over every chunk on a pool.
+	 * @param pool the pool
+	 * @param size number of indices
+	 * @param chunk indices per task
+	 * @param range the task
+	 * @return total positions decided
+	 */
+	private static int inParallel(ForkJoinPool pool, int size, int chunk, Range range) {
+		try {
+			return pool.submit(() -> IntStream.range(0, (size + chunk - 1) / chunk).parallel()
+				.map(c -> range.run(c * chunk, Math.min(size, (c + 1) * chunk))).sum()).get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Tablebase generation was interrupted", e);
+		}
+		catch (ExecutionException e) {
+			throw new IllegalStateException("Tablebase generation failed", e.getCause());
+		}
+	}
+
+	/**
+	 * Bytes taken by the entries.
+	 * @param size number of entries
+	 * @param bits bits per entry
+	 * @return bytes
+	 */
+	private static long entryBytes(int size, int bits) {
+		return ((long) size * bits + 7) / 8;
+	}
+
+	/**
+	 * getter for the number of columns.
+	 * @return the number of columns
+	 */
+	public int cols() {
+		return this.rules.cols;
+	}
+
+	/**
+	 * getter for the height cap.
+	 * @return most tokens a column may hold
+	 */
+	public int height() {
+		return this.rules.height;
+	}
+
+	/**
+	 * getter for the win length.
+	 * @return tokens in a row needed to win
+	 */
+	public int winLength() {
+		return this.rules.winLength;
+	}
+
+	/**
+	 * getter for the size of a distance entry.
+	 * @return bits per entry of the distance file, 4 or 8, or 0 if it was not opened
+	 */
+	public int bitsPerDistance() {
+		return this.distanceBits;
+	}
+
+	/**
+	 * Checks whether a game can be looked up.
+	 * @param game the game
+	 * @return whether the board matches and no column is over the cap
+	 */
+	public boolean covers(PowerConnectFour game) {
+		if (game.sizeCol() != this.rules.cols || game.winLength() != this.rules.winLength) {
+			return false;
+		}
+		for (int col = 0; col < this.rules.cols; ++col) {
+			if (game.getColumn(col).size() > this.rules.height) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Looks up the result of a position in the table file.
+	 * @param game position to look up, covered by the table
+	 * @return one of DRAW, WIN and LOSS, for the player to move
+	 */
+	public int probeResult(PowerConnectFour game) {
+		return resultAt(index(game));
+	}
+
+	/**
+	 * Looks up a position in the distance file.
+	 * @param game position to look up, covered by the table
+	 * @return the value; read it with result and distance
+	 */
+	public int probe(PowerConnectFour game) {
+		if (this.distances == null) {
+			throw new IllegalStateException("Tablebase was opened without its distances");
+		}
+		return value(index(game));
+	}
+
+	/**
+	 * Reads the result out of a value.
+	 * @param value value from probe
+	 * @return one of DRAW, WIN and LOSS, for the player to move
+	 */
+	public static int result(int value) {
+		return value == 0 ? DRAW : value < LOSS_BASE ? WIN : LOSS;
+	}
+
+	/**
+	 * Reads the distance out of a value.
+	 * @param value value from probe
+	 * @return plies to the end with best play, 0 for a draw
+	 */
+	public static int distance(int value) {
+		return value == 0 ? 0 : value < LOSS_BASE ? value - 1 : value - LOSS_BASE;
+	}
+
+	/**
+	 * Finds a best move: the fastest win, else a draw, else the slowest loss.
+	 * Without the distance file any move that keeps the result will do,
+	 * which may not bring a win closer. Only moves that keep every column
+	 * under the cap are considered.
+	 * @param game position to move in, covered by the table
+	 * @return the packed move, or -1 if the game is over or there is no move
+	 */
+	public int bestMove(PowerConnectFour game) {
+		int index = index(game);
+		if (this.rules.terminal(index) != 0) {
+			return -1;
+		}
+		int[] children = new int[this.rules.maxChildren()];
+		int[] moves = new int[children.length];
+		int n = this.rules.children(index, children, moves);
+		int best = -1;
+		int bestRank = Integer.MIN_VALUE;
+		for (int i = 0; i < n; ++i) {
+			//the child's value is for the other player
+			int rank;
+			if (this.distances == null) {
+				int r = resultAt(children[i]);
+				rank = r == LOSS ? 1 : r == DRAW ? 0 : -1;
+			}
+			else {
+				int v = value(children[i]);
+				rank = result(v) == LOSS ? LOSS_BASE * 2 - distance(v) : result(v) == DRAW ? 0 : distance(v) - LOSS_BASE * 2;
+			}
+			if (rank > bestRank) {
+				bestRank = rank;
+				best = moves[i];
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Reads one entry of the table file.
+	 * @param index position index
+	 * @return one of DRAW, WIN and LOSS
+	 */
+	private int resultAt(int index) {
+		return this.results.get(HEADER_BYTES + (index >>> 2)) >>> ((index & 3) * 2) & 3;
+	}
+
+	/**
+	 * Reads one entry of the distance file.
+	 * @param index position index
+	 * @return the value
+	 */
+	private int value(int index) {
+		if (this.distanceBits == 8) {
+			return this.distances.get(HEADER_BYTES + index) & 0xFF;
+		}
+		int nibble = this.distances.get(HEADER_BYTES + (index >>> 1)) >>> ((index & 1) * 4) & 0xF;
+		return nibble < 8 ? nibble : nibble - 8 + LOSS_BASE;
+	}
+
+	/**
+	 * Perfect hash of a position.
+	 * @param game position, covered by the table
+	 * @return its index
+	 */
+	private int index(PowerConnectFour game) {
+		if (!covers(game)) {
+			throw new IllegalArgumentException("Position is not covered by a " + this.rules.cols + "x" + this.rules.height
+				+ " connect " + this.rules.winLength + " tablebase");
+		}
+		int key = 0;
+		for (int col = this.rules.cols - 1; col >= 0; --col) {
+			Column<Token> column = game.getColumn(col);
+			int code = 1 << column.size();
+			for (int row = 0; row < column.size(); ++row) {
+				if (column.get(row) == Token.YELLOW) {
+					code |= 1 << row;
+				}
+			}
+			key = key << this.rules.stride | code;
+		}
+		return key << 1 | (game.currentPlayer() == Token.YELLOW ? 1 : 0);
+	}
+
+	/**
+	 * Moves and wins of the capped variant, worked straight on indices.
+	 * Column col is bits col * stride up of the key, its tokens at the
+	 * bottom and a marker bit above them; the rows above the marker are
+	 * always clear, which keeps lines from wrapping between columns.
+	 */
+	private static final class Rules {
+
+		/**
+		 * number of columns.
+		 */
+		private final int cols;
+
+		/**
+		 * most tokens a column may hold.
+		 */
+		private final int height;
+
+		/**
+		 * tokens in a row needed to win.
+		 */
+		private final int winLength;
+
+		/**
+		 * bits per column in the key.
+		 */
+		private final int stride;
+
+		/**
+		 * a constructer for the rules of a board.
+		 * @param cols number of columns
+		 * @param height most tokens a column may hold
+		 * @param winLength tokens in a row needed to win
+		 */
+		Rules(int cols, int height, int winLength) {
+			if (cols < 1 || height < 1 || winLength < 2) {
+				throw new IllegalArgumentException("Tablebase needs at least 1 column, height 1 and win length 2");
+			}
+			if (cols * (height + 1) + 1 > MAX_INDEX_BITS) {
+				throw new IllegalArgumentException("A " + cols + "x" + height + " tablebase is too big");
+			}
+			this.cols = cols;
+			this.height = height;
+			this.winLength = winLength;
+			this.stride = height + 1;
+		}
+
+		/**
+		 * Number of indices, valid or not.
+		 * @return the size of the table
+		 */
+		int size() {
+			return 1 << (this.cols * this.stride + 1);
+		}
+
+		/**
+		 * Most moves a position can have.
+		 * @return the bound
+		 */
+		int maxChildren() {
+			return this.cols * (2 * this.height + 1);
+		}
+
+		/**
+		 * Checks that every column of an index has its marker bit.
+		 * @param index position index
+		 * @return whether the index is a position
+		 */
+		boolean valid(int index) {
+			int key = index >>> 1;
+			for (int col = 0; col < this.cols; ++col) {
+				if ((key >>> (col * this.stride) & ((1 << this.stride) - 1)) == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Value of a position where someone has connected, decided the way
+		 * the GUI decides it.
+		 * @param index position index
+		 * @return a loss in 0 if the last mover connected, else a win in 0 if
+		 * the player to move did, else 0
+		 */
+		int terminal(int index) {
+			int key = index >>> 1;
+			long yellow = 0;
+			long red = 0;
+			for (int col = 0; col < this.cols; ++col) {
+				int shift = col * this.stride;
+				int code = key >>> shift & ((1 << this.stride) - 1);
+				int tokens = (1 << (31 - Integer.numberOfLeadingZeros(code))) - 1;
+				yellow |= (long) (code & tokens) << shift;
+				red |= (long) (~code & tokens) << shift;
+			}
+			boolean yellowToMove = (index & 1) == 1;
+			if (connected(yellowToMove ? red : yellow)) {
+				return LOSS_BASE;
+			}
+			return connected(yellowToMove ? yellow : red) ? 1 : 0;
+		}
+
+		/**
+		 * Checks a player's tokens for a line, vertical, horizontal or
+		 * either diagonal.
+		 * @param board the player's tokens
+		 * @return whether there are winLength in a row
+		 */
+		private boolean connected(long board) {
+			int[] steps = {1, this.stride, this.stride - 1, this.stride + 1};
+			for (int step : steps) {
+				long line = board;
+				for (int k = 1; k < this.winLength && line != 0; ++k) {
+					line &= board >>> (k * step);
+				}
+				if (line != 0) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Lists the positions one legal move away.
+		 * @param index position index
+		 * @param children receives the index after each move
+		 * @param moves receives each packed move, or null
+		 * @return number of moves
+		 */
+		int children(int index, int[] children, int[] moves) {
+			int key = index >>> 1;
+			int mover = index & 1;
+			int mask = (1 << this.stride) - 1;
+			int n = 0;
+			for (int col = 0; col < this.cols; ++col) {
+				int shift = col * this.stride;
+				int code = key >>> shift & mask;
+				int size = 31 - Integer.numberOfLeadingZeros(code);
+				int tokens = code & ((1 << size) - 1);
+				int rest = key & ~(mask << shift);
+				if (size < this.height) {
+					for (int row = 0; row <= size; ++row) {
+						int below = tokens & ((1 << row) - 1);
+						int moved = (tokens >>> row) << (row + 1) | mover << row | below;
+						children[n] = (rest | ((1 << (size + 1)) | moved) << shift) << 1 | (1 - mover);
+						if (moves != null) {
+							moves[n] = row == size ? Move.drop(col) : Move.powerDrop(col, row);
+						}
+						++n;
+					}
+				}
+				for (int row = 0; row < size; ++row) {
+					if ((tokens >>> row & 1) != mover) {
+						continue;
+					}
+					int below = tokens & ((1 << row) - 1);
+					int moved = (tokens >>> (row + 1)) << row | below;
+					children[n] = (rest | ((1 << (size - 1)) | moved) << shift) << 1 | (1 - mover);
+					if (moves != null) {
+						moves[n] = row == 0 ? Move.pop(col) : Move.powerPop(col, row);
+					}
+					++n;
+				}
+			}
+			return n;
+		}
+	}
+
+	//******************************************************
+	//*******     BELOW THIS LINE IS TESTING CODE    *******
+	//******************************************************
+
+	/**
+	 * Main is testing the table against a plain capped search, or builds
+	 * a table given on the command line.
+	 * @param args command line args: file cols height winLength [distanceFile]
+	 * @throws IOException if a table cannot be written
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length > 0) {
+			long start = System.nanoTime();
+			Tablebase table = generate(Path.of(args[0]), args.length > 4 ? Path.of(args[4]) : null, Integer.parseInt(args[1]),
+				Integer.parseInt(args[2]), Integer.parseInt(args[3]), ForkJoinPool.commonPool());
+			PowerConnectFour empty = new PowerConnectFour(table.cols(), table.winLength());
+			String[] names = {"draw", "win", "loss"};
+			if (table.bitsPerDistance() == 0) {
+				System.out.format("%d bit entries in %d ms, empty board: %s%n", RESULT_BITS,
+					(System.nanoTime() - start) / 1000000L, names[table.probeResult(empty)]);
+			}
+			else {
+				int value = table.probe(empty);
+				System.out.format("%d bit entries and %d bit distances in %d ms, empty board: %s in %d%n", RESULT_BITS,
+					table.bitsPerDistance(), (System.nanoTime() - start) / 1000000L, names[result(value)], distance(value));
+			}
+			return;
+		}
+
+		Path file = Files.createTempFile("tablebase", ".bin");
+		Path distanceFile = Files.createTempFile("tablebase", ".dist");
+		Path smallFile = Files.createTempFile("tablebase", ".bin");
+		Path smallDistanceFile = Files.createTempFile("tablebase", ".dist");
+		try {
+			//results take 2 bits whatever the distances need, the distances are apart
+			Tablebase table = generate(file, distanceFile, 4, 3, 3, ForkJoinPool.commonPool());
+			Tablebase resultsOnly = open(file);
+			PowerConnectFour empty = new PowerConnectFour(4, 3);
+			boolean mapped = Files.size(file) == HEADER_BYTES + (1 << 17) / 4
+				&& Files.size(distanceFile) == HEADER_BYTES + entryBytes(1 << 17, table.bitsPerDistance())
+				&& resultsOnly.bitsPerDistance() == 0 && resultsOnly.probeResult(empty) == result(table.probe(empty))
+				&& !table.covers(new PowerConnectFour(5, 3));
+			try {
+				resultsOnly.probe(empty);
+				mapped = false;
+			}
+			catch (IllegalStateException e) {
+				//no distances to read
+			}
+			//short distances pack two entries to a byte
+			Tablebase small = generate(smallFile, smallDistanceFile, 3, 2, 2, ForkJoinPool.commonPool());
+			PowerConnectFour start = new PowerConnectFour(3, 2);
+			int first = small.probe(start);
+			if (mapped && small.bitsPerDistance() == 4 && result(first) == WIN && distance(first) == 3
+				&& small.probeResult(start) == WIN && wins(start, 2, 3) && !wins(start, 2, 1)) {
+				System.out.println("Yay 1");
+			}
+
+			//every value agrees with a plain search of the capped game
+			java.util.Random random = new java.util.Random(42);
+			boolean agree = true;
+			int decided = 0;
+			for (int g = 0; g < 60; ++g) {
+				PowerConnectFour game = randomPosition(random, 3, random.nextInt(10));
+				int value = table.probe(game);
+				int d = distance(value);
+				agree = agree && resultsOnly.probeResult(game) == result(value);
+				if (d > 5) {
+					continue;
+				}
+				if (result(value) == WIN) {
+					agree = agree && wins(game, 3, d) && (d < 2 || !wins(game, 3, d - 2));
+					decided += d > 0 ? 1 : 0;
+				}
+				else if (result(value) == LOSS) {
+					agree = agree && loses(game, 3, d) && (d < 2 || !loses(game, 3, d - 2));
+				}
+				else {
+					agree = agree && !wins(game, 3, 5) && !loses(game, 3, 4);
+				}
+			}
+			if (agree && decided > 0) {
+				System.out.println("Yay 2");
+			}
+
+			//the table's moves win within the promised plies against anything
+			boolean perfect = true;
+			int played = 0;
+			for (int g = 0; g < 200 && played < 20; ++g) {
+				PowerConnectFour game = randomPosition(random, 3, random.nextInt(10));
+				int value = table.probe(game);
+				if (result(value) != WIN || distance(value) == 0) {
+					continue;
+				}
+				++played;
+				Token winner = game.currentPlayer();
+				int plies = 0;
+				while (!game.isGameOver() && plies <= distance(value)) {
+					if (game.currentPlayer() == winner) {
+						//the results alone still find a move that keeps the win
+						int kept = resultsOnly.bestMove(game);
+						game.apply(kept);
+						perfect = perfect && (game.isGameOver() || resultsOnly.probeResult(game) == LOSS);
+						game.undo(kept);
+						game.apply(table.bestMove(game));
+					}
+					else {
+						int[] moves = cappedMoves(game, 3);
+						game.apply(moves[random.nextInt(moves.length)]);
+					}
+					++plies;
+				}
+				perfect = perfect && plies <= distance(value) && Searcher.terminalScore(game, 0) < 0
+					&& game.currentPlayer() != winner;
+			}
+			if (perfect && played > 0) {
+				System.out.println("Yay 3");
+			}
+		}
+		finally {
+			Files.deleteIfExists(file);
+			Files.deleteIfExists(distanceFile);
+			Files.deleteIfExists(smallFile);
+			Files.deleteIfExists(smallDistanceFile);
+		}
+	}
+
+	/**
+	 * Plays random capped moves that do not end the game.
+	 * @param random source of moves
+	 * @param height the cap
+	 * @param plies moves to try to play
+	 * @return the position
+	 */
+	private static PowerConnectFour randomPosition(java.util.Random random, int height, int plies) {
+		PowerConnectFour game = new PowerConnectFour(4, 3);
+		for (int i = 0; i < plies; ++i) {
+			int[] moves = cappedMoves(game, height);
+			int move = moves[random.nextInt(moves.length)];
+			game.apply(move);
+			if (game.isGameOver()) {
+				game.undo(move);
+				break;
+			}
+		}
+		return game;
+	}
+
+	/**
+	 * Legal moves that keep every column under the cap.
+	 * @param game the position
+	 * @param height the cap
+	 * @return the moves
+	 */
+	private static int[] cappedMoves(PowerConnectFour game, int height) {
+		int[] moves = new int[game.maxLegalMoves()];
+		int n = 0;
+		for (int i = 0, all = game.legalMoves(moves); i < all; ++i) {
+			int kind = Move.kind(moves[i]);
+			boolean grows = kind == Move.DROP || kind == Move.POWER_DROP;
+			if (!grows || game.getColumn(Move.col(moves[i])).size() < height) {
+				moves[n++] = moves[i];
+			}
+		}
+		return java.util.Arrays.copyOf(moves, n);
+	}
+
+	/**
+	 * Whether the player to move can force a win within some plies.
+	 * @param game the position, left as it was
+	 * @param height the cap
+	 * @param plies the plies
+	 * @return whether there is a forced win
+	 */
+	private static boolean wins(PowerConnectFour game, int height, int plies) {
+		int terminal = Searcher.terminalScore(game, 0);
+		if (terminal != 0 || plies == 0) {
+			return terminal > 0;
+		}
+		for (int move : cappedMoves(game, height)) {
+			game.apply(move);
+			boolean lost = loses(game, height, plies - 1);
+			game.undo(move);
+			if (lost) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Whether the player to move loses within some plies whatever they play.
+	 * @param game the position, left as it was
+	 * @param height the cap
+	 * @param plies the plies
+	 * @return whether there is a forced loss
+	 */
+	private static boolean loses(PowerConnectFour game, int height, int plies) {
+		int terminal = Searcher.terminalScore(game, 0);
+		if (terminal != 0 || plies == 0) {
+			return terminal < 0;
+		}
+		int[] moves = cappedMoves(game, height);
+		for (int move : moves) {
+			game.apply(move);
+			boolean won = wins(game, height, plies - 1);
+			game.undo(move);
+			if (!won) {
+				return false;
+			}
+		}
+		return moves.length > 0;
+	}
+}
@@ -0,0 +1,189 @@
+/**
+ *  Picks which rows of a tall board get drawn. The window is a fixed number
+ *  of rows and either follows the top of the stacks, follows the row of the
+ *  last move, or stays where it was scrolled to. Boards no taller than the
+ *  window are drawn whole, as before. Working out the window is O(1), so
+ *  drawing costs only the rows that are shown.
+ *  @author Adam David
+ */
+public class Viewport {
+
+	/**
+	 * the window ends at the top display row.
+	 */
+	public static final int FOLLOW_TOP = 0;
+
+	/**
+	 * the window is centred on the row of the last move.
+	 */
+	public static final int FOLLOW_MOVE = 1;
+
+	/**
+	 * the window stays where it was scrolled to.
+	 */
+	public static final int MANUAL = 2;
+
+	/**
+	 * every row is drawn.
+	 */
+	public static final int SHOW_ALL = 3;
+
+	/**
+	 * number of rows in the window.
+	 */
+	private final int rows;
+
+	/**
+	 * one of FOLLOW_TOP, FOLLOW_MOVE, MANUAL and SHOW_ALL.
+	 */
+	private int mode = FOLLOW_TOP;
+
+	/**
+	 * row of the last move.
+	 */
+	private int moveRow = 0;
+
+	/**
+	 * bottom row of the window when it was scrolled.
+	 */
+	private int manualBottom = 0;
+
+	/**
+	 * a constructer for a window of the given height.
+	 * @param rows number of rows in the window, at least 1
+	 */
+	public Viewport(int rows) {
+		if (rows < 1) {
+			throw new IllegalArgumentException("Viewport needs at least 1 row");
+		}
+		this.rows = rows;
+	}
+
+	/**
+	 * getter for the mode.
+	 * @return one of FOLLOW_TOP, FOLLOW_MOVE, MANUAL and SHOW_ALL
+	 */
+	public int mode() {
+		return this.mode;
+	}
+
+	/**
+	 * Makes the window follow the top of the stacks.
+	 */
+	public void followTop() {
+		this.mode = FOLLOW_TOP;
+	}
+
+	/**
+	 * Makes the window follow the row of the last move.
+	 */
+	public void followMove() {
+		this.mode = FOLLOW_MOVE;
+	}
+
+	/**
+	 * Draws every row from now on.
+	 */
+	public void showAll() {
+		this.mode = SHOW_ALL;
+	}
+
+	/**
+	 * Notes the row of a move, for FOLLOW_MOVE.
+	 * @param row row the token landed on or was removed from
+	 */
+	public void moved(int row) {
+		this.moveRow = row;
+	}
+
+	/**
+	 * Moves the window and stops it following anything.
+	 * @param game the board being drawn
+	 * @param by rows to move, up if positive
+	 */
+	public void scroll(PowerConnectFour game, int by) {
+		int bottom = bottom(game);
+		this.mode = MANUAL;
+		this.manualBottom = clamp((long) bottom + by, game.sizeRow());
+	}
+
+	/**
+	 * Lowest row drawn.
+	 * @param game the board being drawn
+	 * @return index of the bottom row of the window
+	 */
+	public int bottom(PowerConnectFour game) {
+		int total = game.sizeRow();
+		if (this.mode == SHOW_ALL || total <= this.rows) {
+			return 0;
+		}
+		switch (this.mode) {
+			case FOLLOW_MOVE:
+				return clamp((long) this.moveRow - this.rows / 2, total);
+			case MANUAL:
+				return clamp(this.manualBottom, total);
+			default:
+				return total - this.rows;
+		}
+	}
+
+	/**
+	 * Highest row drawn.
+	 * @param game the board being drawn
+	 * @return index of the top row of the window
+	 */
+	public int top(PowerConnectFour game) {
+		int total = game.sizeRow();
+		if (this.mode == SHOW_ALL || total <= this.rows) {
+			return total - 1;
+		}
+		return bottom(game) + this.rows - 1;
+	}
+
+	/**
+	 * Keeps a bottom row inside the board.
+	 * @param bottom wanted bottom row
+	 * @param total number of display rows
+	 * @return nearest bottom row that keeps a full window on the board
+	 */
+	private int clamp(long bottom, int total) {
+		return (int) Math.max(0, Math.min(bottom, Math.max(0, total - this.rows)));
+	}
+
+	//******************************************************
+	//*******     BELOW THIS LINE IS TESTING CODE    *******
+	//******************************************************
+
+	/**
+	 * Main is testing the window in each mode.
+	 * @param args takes in command line arguements
+	 */
+	public static void main(String[] args) {
+		Viewport view = new Viewport(10);
+		PowerConnectFour game = new PowerConnectFour();
+		if (view.bottom(game) == 0 && view.top(game) == game.sizeRow() - 1) {
+			System.out.println("Yay 1");
+		}
+
+		for (int i = 0; i < 100; ++i) {
+			game.drop(3);
+		}
+		//100 tokens and a margin row make 101 display rows
+		boolean top = view.bottom(game) == 91 && view.top(game) == 100;
+		view.moved(40);
+		view.followMove();
+		boolean move = view.bottom(game) == 35 && view.top(game) == 44;
+		if (top && move) {
+			System.out.println("Yay 2");
+		}
+
+		view.scroll(game, -50);
+		boolean down = view.bottom(game) == 0 && view.mode() == MANUAL;
+		view.scroll(game, 1000);
+		boolean up = view.bottom(game) == 91;
+		view.showAll();
+		if (down && up && view.bottom(game) == 0 && view.top(game) == 100) {
+			System.out.println("Yay 3");
+		}
+	}
+}
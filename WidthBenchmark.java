@@ -0,0 +1,91 @@
+import java.util.Random;
+
+/**
+ *  Measures how the cost of one move (the move plus the win checks the GUI
+ *  does after it) changes with the width of the board and the win length.
+ *  Use with the command:
+ *      java WidthBenchmark [movesPerRun]
+ *  @author Adam David
+ */
+public class WidthBenchmark {
+
+	/**
+	 * board widths to measure.
+	 */
+	private static final int[] WIDTHS = {7, 16, 64, 256, 1024};
+
+	/**
+	 * win lengths to measure.
+	 */
+	private static final int[] WIN_LENGTHS = {4, 5, 6};
+
+	/**
+	 * Plays random moves on a board, checking both players for a win after
+	 * every move and starting a new game once someone wins.
+	 * @param width number of columns
+	 * @param winLength number of connected tokens needed to win
+	 * @param moves number of moves to play
+	 * @param seed seed for the random moves
+	 * @return a value that depends on the run, so the work cannot be skipped
+	 */
+	private static long play(int width, int winLength, int moves, long seed) {
+		Random rand = new Random(seed);
+		PowerConnectFour game = new PowerConnectFour(width, winLength);
+		long wins = 0;
+		for (int i = 0; i < moves; i++) {
+			Token player = game.currentPlayer();
+			int col = rand.nextInt(width);
+			int height = game.getColumn(col).size();
+			boolean moved;
+			switch (rand.nextInt(8)) {
+				case 0:
+					moved = game.pop(col);
+					break;
+				case 1:
+					moved = game.powerDrop(col, rand.nextInt(height + 1));
+					break;
+				case 2:
+					moved = height > 0 && game.powerPop(col, rand.nextInt(height));
+					break;
+				default:
+					moved = game.drop(col);
+			}
+			if (!moved) {
+				game.drop(col);
+			}
+			if (game.hasFourConnected(player) || game.hasFourConnected(game.currentPlayer())) {
+				++wins;
+				game = new PowerConnectFour(width, winLength);
+			}
+		}
+		return wins;
+	}
+
+	/**
+	 * Runs the measurements and prints one line per board size.
+	 * @param args command line args: optional number of moves per run
+	 */
+	public static void main(String[] args) {
+		int moves = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		long sink = 0;
+
+		//warm up so the first width measured is not paying for the JIT
+		for (int w : WIDTHS) {
+			sink += play(w, 4, moves / 4, 1);
+		}
+
+		System.out.println("width  connect  ns/move  wins");
+		for (int w : WIDTHS) {
+			for (int n : WIN_LENGTHS) {
+				long start = System.nanoTime();
+				long wins = play(w, n, moves, 42);
+				long elapsed = System.nanoTime() - start;
+				sink += wins;
+				System.out.format("%5d  %7d  %7.1f  %d%n", w, n, elapsed / (double) moves, wins);
+			}
+		}
+		if (sink == 42) {
+			System.out.println();
+		}
+	}
+}